@@ -65,6 +65,24 @@ public class FutureWrapper implements Exportable {
 		return _future.isFailure();
 	}
 
+	/**
+	 * Cancels this future, failing it with the given error unless it has already completed
+	 *
+	 * @param error the error to fail with
+	 *
+	 * @return true if the future was cancelled by this call
+	 */
+	public boolean cancel( JSONObject error ) {
+		return _future.cancel( error );
+	}
+
+	/**
+	 * Returns true if this future was cancelled
+	 */
+	public boolean isCancelled() {
+		return _future.isCancelled();
+	}
+
 	/**
 	 * Retrieves the value of this future in a synchronous fashion. If the future is completed in an
 	 * error state, the resultant Exception will be thrown from the invocation of this method.
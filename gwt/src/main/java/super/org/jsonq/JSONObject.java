@@ -20,6 +20,20 @@ public final class JSONObject extends JavaScriptObject {
 		return new Object();
 	}-*/;
 
+	/**
+	 * Create a new JSONObject. Shapes only save memory on the JVM, so the shape is not used
+	 */
+	public static JSONObject create( Shape shape ) {
+		return create();
+	}
+
+	/**
+	 * Returns null, as objects never use a shape in the browser
+	 */
+	public Shape getShape() {
+		return null;
+	}
+
 	/**
 	 * Returns all the keys in this JsonObject
 	 *
@@ -70,6 +84,54 @@ public final class JSONObject extends JavaScriptObject {
 		delete this[key];
 	}-*/;
 
+	/**
+	 * Freezes this object and all the objects within it, so that it can no longer be changed
+	 *
+	 * @return  this object
+	 */
+	public native JSONObject freeze() /*-{
+		var freeze = function(obj) {
+			if ( obj !== null && typeof obj == 'object' && !Object.isFrozen(obj) ) {
+				Object.freeze(obj);
+				for ( var key in obj ) {
+					freeze(obj[key]);
+				}
+			}
+		};
+		freeze(this);
+		return this;
+	}-*/;
+
+	/**
+	 * Returns true if this object has been frozen
+	 */
+	public native boolean isFrozen() /*-{
+		return Object.isFrozen(this);
+	}-*/;
+
+	/**
+	 * Returns a deep copy of this object. The copy is never frozen
+	 */
+	public native JSONObject copy() /*-{
+		return JSON.parse(JSON.stringify(this));
+	}-*/;
+
+	/**
+	 * Returns a deep copy of this object. Shapes are not used in the browser
+	 */
+	public JSONObject copy( Shape shape ) {
+		return copy();
+	}
+
+	/**
+	 * Does nothing, as JavaScript strings are values rather than objects
+	 *
+	 * @return  this object
+	 */
+	public JSONObject intern( org.jsonq.util.Function<String,String> dictionary ) {
+		return this;
+	}
+
 	/**
 	 * Add the given JsonObject to the given key
 	 *
@@ -215,6 +277,19 @@ public final class JSONObject extends JavaScriptObject {
 		this[key] = value;
 	}-*/;
 
+	/**
+	 * Store a long
+	 *
+	 * @param   key    the key
+	 * @param   value  the new value for the key
+	 *
+	 * @throws  NullPointerException  if the key is null
+	 */
+	public void put( String key, long value ) {
+		// JavaScript numbers are doubles, and JSNI cannot take a long
+		put( key, (double)value );
+	}
+
 	/**
 	 * Store a float
 	 *
@@ -299,6 +374,16 @@ public final class JSONObject extends JavaScriptObject {
 	// Multi-accessors
 	// ----------------------------------------
 
+	/**
+	 * Returns true if the key holds a list of values, rather than a single value. A list may hold
+	 * any number of values, including one or none
+	 *
+	 * @param   key  the key to check
+	 */
+	public native boolean isList( String key ) /*-{
+		return this[key] instanceof Array;
+	}-*/;
+
 	/**
 	 * Fetches the value for the given key. This method will always return an
 	 * unmodifiable List or null
@@ -309,9 +394,27 @@ public final class JSONObject extends JavaScriptObject {
 	 *
 	 * @throws  NullPointerException  if the key is null
 	 */
-	public List get( String key ) {
-		throw new IllegalStateException();
-	}
+	public native List get( String key ) /*-{
+		var box = function(val) {
+			var t = typeof val;
+			if (t == 'number') {
+				return @java.lang.Double::valueOf(D)(val);
+			} else if (t == 'boolean') {
+				return @java.lang.Boolean::valueOf(Z)(val);
+			}
+			return val;
+		};
+		var list = @java.util.ArrayList::new()();
+		var val = this[key];
+		if (val instanceof Array) {
+			for (var i=0; i<val.length; i++) {
+				list.@java.util.ArrayList::add(Ljava/lang/Object;)(box(val[i]));
+			}
+		} else if (typeof val != 'undefined') {
+			list.@java.util.ArrayList::add(Ljava/lang/Object;)(box(val));
+		}
+		return @java.util.Collections::unmodifiableList(Ljava/util/List;)(list);
+	}-*/;
 
 	// ----------------------------------------
 	// Convenience typed accessors for JsonObjects
@@ -365,6 +468,17 @@ public final class JSONObject extends JavaScriptObject {
 		throw @java.lang.IllegalArgumentException::new(Ljava/lang/String;)(key+" does not contain an integer");
 	}-*/;
 	
+	/**
+	 * Returns a long for the given key. JavaScript numbers are doubles, so only integers of up to
+	 * 53 bits are exact
+	 *
+	 * @throws  IllegalArgumentException if the value at the given key is not a number
+	 */
+	public long getLong( String key ) {
+		// JSNI cannot return a long
+		return (long)getDouble( key );
+	}
+
 	/*
 	/**
 	 * Returns a double value for the given key
@@ -0,0 +1,244 @@
+package org.jsonq.util;
+
+/**
+ * Basic implementation of Future. JavaScript is single-threaded, so unlike the JVM version this
+ * needs no atomics; the state word is a plain field.
+ */
+public class FutureImpl<T,E> extends FutureBase<T,E> {
+
+	// state bits
+	protected static final int COMPLETING = 1;
+	protected static final int COMPLETE = 2;
+	protected static final int HANDLERS = 4;
+	protected static final int CANCELLED = 16;
+
+	/** Maximum number of futures fired inline on one stack before deferring to the Scheduler */
+	private static final int MAX_INLINE_DEPTH = 32;
+
+	private static int _depth;
+
+	protected FutureImpl<T,E> _next;
+	protected Closure<T> _successHandler;
+	protected Closure<E> _errorHandler;
+	protected Closure<Double> _progressHandler;
+
+	private Future<?,E> _upstream;
+	private int _state;
+
+	/**
+	 * Constructor
+	 */
+	public FutureImpl() {
+		super( null );
+	}
+
+	/**
+	 * Register handlers with this future. Any of them may be null. If the future is already
+	 * complete (success or failure) when this method is called, the appropriate handler will be
+	 * fired immediately.
+	 *
+	 * @param successHandler the handler to be fired when the future completes
+	 * @param failureHandler the handler to be fired when the future fails
+	 * @param progressHandler the handler to be fired for updating progress on the operation
+	 *
+	 * @return a Future to allow chaining. The handlers for the returned Future are called after the
+	 * handlers for this Future complete
+	 *
+	 * @throws IllegalStateException if this method has been called before
+	 */
+	public Future<T,E> then(
+			Closure<T> successHandler,
+			Closure<E> failureHandler,
+			Closure<Double> progressHandler ) {
+
+		if ( 0 != (_state & HANDLERS) ) {
+			throw new IllegalStateException( "Cannot call then() twice!" );
+		}
+
+		FutureImpl<T,E> next = new FutureImpl<T,E>();
+		_successHandler = successHandler;
+		_errorHandler = failureHandler;
+		_progressHandler = progressHandler;
+		_next = next;
+
+		int prev = set( HANDLERS );
+		if ( 0 != (prev & COMPLETE) ) {
+			finish();
+		}
+		return next;
+	}
+
+	/**
+	 * Complete in a successful fashion
+	 *
+	 * @throws IllegalStateException if the future has already completed
+	 */
+	public void complete( T result ) {
+		setResults( result, null );
+	}
+
+	/**
+	 * Complete in an erroneous fashion
+	 *
+	 * @throws IllegalStateException if the future has already completed
+	 */
+	public void fail( E error ) {
+		setResults( null, error );
+	}
+
+	/**
+	 * Complete in a successful fashion, unless the future has already completed
+	 *
+	 * @return true if this call completed the future
+	 */
+	public boolean tryComplete( T result ) {
+		return trySetResults( result, null );
+	}
+
+	/**
+	 * Complete in an erroneous fashion, unless the future has already completed
+	 *
+	 * @return true if this call completed the future
+	 */
+	public boolean tryFail( E error ) {
+		return trySetResults( null, error );
+	}
+
+	/**
+	 * Blocking is not possible in JavaScript, so this only reports whether the future is complete
+	 *
+	 * @param timeout ignored
+	 *
+	 * @return true if the future has completed
+	 */
+	public boolean await( long timeout ) {
+		return isComplete();
+	}
+
+	/**
+	 * Cancels this future, failing it with the given error unless it has already completed. Any
+	 * upstream future is cancelled too.
+	 *
+	 * @param error the error to fail with
+	 *
+	 * @return true if this call cancelled the future
+	 */
+	public boolean cancel( E error ) {
+		if ( ! trySetResults( null, error, CANCELLED ) ) {
+			return false;
+		}
+		Future<?,E> upstream = _upstream;
+		if ( null != upstream ) {
+			upstream.cancel( error );
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if this future was cancelled
+	 */
+	public boolean isCancelled() {
+		return 0 != (_state & CANCELLED);
+	}
+
+	/**
+	 * Links the future of the work this future is waiting on, so that cancelling this future
+	 * cancels that work as well. If this future has already been cancelled, the upstream future is
+	 * cancelled immediately.
+	 *
+	 * @param upstream the future to cancel along with this one
+	 */
+	public void setUpstream( Future<?,E> upstream ) {
+		_upstream = upstream;
+		if ( isCancelled() ) {
+			upstream.cancel( _error );
+		}
+	}
+
+	/**
+	 * Returns true if this future is completed (success or failure)
+	 */
+	@Override
+	public boolean isComplete() {
+		return 0 != (_state & COMPLETE);
+	}
+
+	/**
+	 * Sets the results of this future and fires the handlers if they have been registered
+	 *
+	 * @throws IllegalStateException if the future has already completed
+	 */
+	@Override
+	protected void setResults( T result, E error ) {
+		if ( ! trySetResults( result, error ) ) {
+			throw new IllegalStateException( "Future has already completed" );
+		}
+	}
+
+	/**
+	 * Sets the results of this future unless it has already completed
+	 *
+	 * @return true if the results were set
+	 */
+	protected boolean trySetResults( T result, E error ) {
+		return trySetResults( result, error, 0 );
+	}
+
+	/**
+	 * Sets the results of this future unless it has already completed
+	 *
+	 * @param flags additional state bits to set along with the results
+	 *
+	 * @return true if the results were set
+	 */
+	private boolean trySetResults( T result, E error, int flags ) {
+		if ( 0 != (set( COMPLETING ) & COMPLETING) ) {
+			return false;
+		}
+		_result = result;
+		_error = error;
+
+		if ( 0 != (set( COMPLETE | flags ) & HANDLERS) ) {
+			finish();
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the given state bits
+	 *
+	 * @return the state before the bits were set
+	 */
+	protected final int set( int bit ) {
+		int state = _state;
+		_state = state | bit;
+		return state;
+	}
+
+	/**
+	 * Finish execution, firing any handlers necessary based on the state of completion
+	 */
+	private void finish() {
+		if ( _depth >= MAX_INLINE_DEPTH ) {
+			Scheduler.runAsync(
+					new Runnable() {
+						public void run() { finish(); }
+					});
+			return;
+		}
+
+		_depth++;
+		try {
+			if ( null != _error ) {
+				if ( null != _errorHandler ) {
+					_errorHandler.apply( _error );
+				}
+			} else if ( null != _successHandler ) {
+				_successHandler.apply( _result );
+			}
+			_next.setResults( _result, _error );
+		} finally {
+			_depth--;
+		}
+	}
+}
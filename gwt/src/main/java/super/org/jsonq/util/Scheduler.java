@@ -4,10 +4,27 @@ import java.util.concurrent.*;
 import java.util.*;
 
 /**
- * Rudimentary scheduler for executing things in the future
+ * Rudimentary scheduler for executing things in the future.
+ *
+ * Runnables are queued and run in batches by a single deferred command, rather than scheduling a
+ * deferred command for each one. A batch runs until the queue is empty or its time slice is used
+ * up, whichever comes first, after which the rest of the queue waits for the next deferred command
+ * so the browser stays responsive.
  */
 public final class Scheduler {
 
+	/** Longest time a batch may hold on to the browser, in milliseconds */
+	private static final double SLICE = 16;
+
+	// member variables
+	private static final LinkedList<Runnable> _queue = new LinkedList<>();
+	private static boolean _scheduled;
+
+	private static final com.google.gwt.core.client.Scheduler.ScheduledCommand _drain =
+			new com.google.gwt.core.client.Scheduler.ScheduledCommand() {
+				public void execute() { drain(); }
+			};
+
 	/**
 	 * Private Constructor - singleton 
 	 */
@@ -17,11 +34,67 @@ public final class Scheduler {
 	 * Runs the given code on another thread
 	 *
 	 * @param runnable the Runnable to execute
+	 *
+	 * @return true, the browser queue is never bounded
+	 */
+	public static boolean runAsync( Runnable runnable ) {
+		_queue.add( runnable );
+		if ( ! _scheduled ) {
+			_scheduled = true;
+			com.google.gwt.core.client.Scheduler.get().scheduleDeferred( _drain );
+		}
+		return true;
+	}
+
+	/**
+	 * Runs queued code until the queue is empty or the time slice is used up
+	 */
+	private static void drain() {
+		double end = com.google.gwt.core.client.Duration.currentTimeMillis() + SLICE;
+		try {
+			// the clock is read once per batch; batches grow with the queue so that a deep queue
+			// pays for fewer clock reads, while a short one is checked often
+			while ( ! _queue.isEmpty() ) {
+				int batch = Math.max( 1, Math.min( 64, _queue.size() / 8 ));
+				for ( int i = 0; i < batch && ! _queue.isEmpty(); i++ ) {
+					_queue.removeFirst().run();
+				}
+				if ( com.google.gwt.core.client.Duration.currentTimeMillis() >= end ) {
+					break;
+				}
+			}
+		} finally {
+			// also reached when a runnable throws, so the rest of the queue is not stranded
+			if ( _queue.isEmpty() ) {
+				_scheduled = false;
+			} else {
+				com.google.gwt.core.client.Scheduler.get().scheduleDeferred( _drain );
+			}
+		}
+	}
+
+	/**
+	 * Runs the given code once the delay has elapsed
+	 *
+	 * @param runnable the Runnable to execute
+	 * @param delay the delay in milliseconds
+	 *
+	 * @return a Runnable which cancels the runnable, unless it is already due
 	 */
-	public static void runAsync( final Runnable runnable ) {
-		com.google.gwt.core.client.Scheduler.get().scheduleDeferred(
-				new com.google.gwt.core.client.Scheduler.ScheduledCommand() {
-					public void execute() { runnable.run(); }
-				} );
+	public static Runnable runLater( final Runnable runnable, long delay ) {
+		final boolean[] cancelled = new boolean[ 1 ];
+		com.google.gwt.core.client.Scheduler.get().scheduleFixedDelay(
+				new com.google.gwt.core.client.Scheduler.RepeatingCommand() {
+					public boolean execute() {
+						if ( ! cancelled[0] ) {
+							runnable.run();
+						}
+						return false;
+					}
+				},
+				(int)delay );
+		return new Runnable() {
+			public void run() { cancelled[0] = true; }
+		};
 	}
 }
@@ -0,0 +1,94 @@
+package org.jsonq.util;
+
+/**
+ * Dictionary of canonical Strings. JavaScript strings are values rather than objects, so unlike
+ * the JVM version this holds nothing and hands every string back as it is.
+ */
+public class StringDictionary implements Function<String,String> {
+
+	/** Number of strings held unless told otherwise */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/** Longest string taken unless told otherwise */
+	public static final int DEFAULT_MAX_LENGTH = 32;
+
+	/** Number of lookups of a string after which it is taken, unless told otherwise */
+	public static final int DEFAULT_ADMISSION = 3;
+
+	private final int _capacity;
+	private final int _admission;
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity the number of strings to hold at most
+	 */
+	public StringDictionary( int capacity ) {
+		this( capacity, DEFAULT_MAX_LENGTH );
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity the number of strings to hold at most
+	 * @param maxLength the length of the longest string to take
+	 */
+	public StringDictionary( int capacity, int maxLength ) {
+		this( capacity, maxLength, DEFAULT_ADMISSION );
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity the number of strings to hold at most
+	 * @param maxLength the length of the longest string to take
+	 * @param admission the number of lookups of a string after which it is taken
+	 */
+	public StringDictionary( int capacity, int maxLength, int admission ) {
+		_capacity = capacity;
+		_admission = admission;
+	}
+
+	/**
+	 * Returns the given string
+	 */
+	public String intern( String value ) {
+		return value;
+	}
+
+	/**
+	 * Same as intern()
+	 */
+	@Override
+	public String apply( String value ) {
+		return value;
+	}
+
+	public int getSize() {
+		return 0;
+	}
+
+	public int getCapacity() {
+		return _capacity;
+	}
+
+	public int getAdmission() {
+		return _admission;
+	}
+
+	public long getLookups() {
+		return 0;
+	}
+
+	public long getHits() {
+		return 0;
+	}
+
+	public double getHitRate() {
+		return 0;
+	}
+
+	public long getBytesSaved() {
+		return 0;
+	}
+}
@@ -1,20 +1,80 @@
 package org.jsonq;
 
+import org.jsonq.io.*;
+import org.jsonq.util.Function;
+import java.nio.*;
 import java.util.*;
 
 /**
- * Interface for a representation of a JSON object
+ * Interface for a representation of a JSON object.
+ *
+ * Fields are kept in an open-addressed table of parallel key and value arrays, sized to the number
+ * of fields. A field with a single value holds the value itself; only fields with several values
+ * hold a List, wrapped in a private final class so that reads can tell the two apart with an exact
+ * class check. An empty object allocates no table at all.
+ *
+ * Numbers are not boxed. Their bits are kept in a parallel array of longs, which is only allocated
+ * once the first number is stored, and their slot in the value array holds a marker for their type.
+ * Storing a number, and reading it with the typed getters, allocates nothing.
+ *
+ * Objects with the same keys, such as the documents of one store, can share their key table by
+ * being created with a Shape (@see #create(Shape)). Each of them then holds only its values; a
+ * slot whose key the object does not contain holds a marker. An object given a key outside its
+ * shape moves to a key table of its own.
+ *
+ * A JSONObject can be frozen once it has been built (@see #freeze()). A frozen object and every
+ * object within it can no longer be changed, so reads of it take no locks and it can be shared
+ * freely between threads. Copies of a frozen object share its table until they are changed, or
+ * hand out one of their objects, and then only copy the table itself; the objects within it are
+ * copied the same way, so only the paths which are used get copied at all.
+ *
+ * A JSONObject can also wrap JSON text (@see #wrap(byte[])), which it only indexes when first used.
+ * Until a field is read its slot holds a marker, and its bits hold where its value lies in the
+ * text; nested objects are wrapped in turn when read. As long as such an object is not changed,
+ * its text can be handed on as it is (@see #getSource()).
  */
 public final class JSONObject {
 
-	private final Map<String,List> _map;
+	/** Size of the table once the first field is stored */
+	private static final int MIN_CAPACITY = 4;
+
+	/** Value of the slots of a shaped object whose key it does not contain */
+	private static final Object ABSENT = new Object();
+
+	/** Value of the slots still in the source, whose offset and length are kept in _bits */
+	private static final Object RAW = new Object();
+
+	/** Size of an object whose source has not been indexed yet */
+	private static final int UNINDEXED = -1;
+
+	/** Parsers for indexing and decoding sources, one per thread as they keep state */
+	private static final ThreadLocal<JSONParser> PARSER = new ThreadLocal<JSONParser>() {
+		@Override
+		protected JSONParser initialValue() {
+			return new JSONParser();
+		}
+	};
+
+	/** Values of the slots holding numbers, whose bits are kept in _bits */
+	private static final Primitive INT = new Primitive();
+	private static final Primitive LONG = new Primitive();
+	private static final Primitive FLOAT = new Primitive();
+	private static final Primitive DOUBLE = new Primitive();
+
+	private String[] _keys;
+	private Object[] _values;
+	private long[] _bits;
+	private int _size;
+	private Shape _shape;
+	private Source _source;
+	private boolean _modified;
+	private boolean _shared;
+	private volatile boolean _frozen;
 
 	/**
 	 * Private constructor. JSONObject must be created using the static generator. 
 	 */
-	private JSONObject() {
-		_map = new HashMap<>(32);
-	}
+	private JSONObject() {}
 
 	/**
 	 * Creates a new JSONObject
@@ -23,13 +83,192 @@ public final class JSONObject {
 		return new JSONObject();
 	}
 
+	/**
+	 * Creates a new JSONObject which uses the key table of the given shape
+	 *
+	 * @param   shape  the shape to use
+	 */
+	public static JSONObject create( Shape shape ) {
+		JSONObject obj = new JSONObject();
+		obj._shape = shape;
+		obj._keys = shape._keys;
+		obj._values = new Object[ shape._keys.length ];
+		Arrays.fill( obj._values, ABSENT );
+		return obj;
+	}
+
+	/**
+	 * Creates a JSONObject backed by UTF-8 encoded JSON text. Nothing is decoded until the object is
+	 * first used, when the text is checked and its fields are found; each value is then only decoded
+	 * once it is read. The bytes must not be changed afterwards.
+	 *
+	 * @param   json  the UTF-8 encoded JSON object
+	 *
+	 * @throws  IllegalArgumentException  from the first use of the object, if the text is not a
+	 *          valid JSON object
+	 */
+	public static JSONObject wrap( byte[] json ) {
+		return wrap( json, 0, json.length );
+	}
+
+	/**
+	 * Creates a JSONObject backed by UTF-8 encoded JSON text held in part of an array
+	 * (@see #wrap(byte[]))
+	 *
+	 * @param   json    the array holding the UTF-8 encoded JSON object
+	 * @param   offset  the start of the object
+	 * @param   length  the length of the object
+	 */
+	public static JSONObject wrap( byte[] json, int offset, int length ) {
+		if ( offset < 0 || length < 0 || offset + length > json.length ) {
+			throw new IndexOutOfBoundsException();
+		}
+		JSONObject obj = new JSONObject();
+		obj._source = new Source( json, offset, length );
+		obj._size = UNINDEXED;
+		return obj;
+	}
+
+	/**
+	 * Returns the JSON text this object was created from (@see #wrap(byte[])), if it still holds
+	 * exactly what this object does. The text is returned as a read-only buffer over the wrapped
+	 * bytes, without copying them.
+	 *
+	 * @return  the text, or null if this object was not created from text or has since changed
+	 */
+	public ByteBuffer getSource() {
+		if ( _frozen ) {
+			return source();
+		}
+		synchronized ( this ) {
+			return source();
+		}
+	}
+
+	/**
+	 * Returns the source, if it still matches
+	 */
+	private ByteBuffer source() {
+		if ( null == _source || _modified ) {
+			return null;
+		}
+		return ByteBuffer.wrap( _source._bytes, _source._offset, _source._length ).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Finds the fields of the source, if that has not been done yet. Called while holding the lock
+	 */
+	private void indexSource() {
+		if ( UNINDEXED != _size ) {
+			return;
+		}
+		_size = 0;
+		try {
+			PARSER.get().index( _source._bytes, _source._offset, _source._length,
+					new JSONParser.FieldVisitor() {
+						public void field( String key, int offset, int length ) {
+							int i = slotFor( key );
+							_values[i] = RAW;
+							bits()[i] = ((long)offset << 32) | length;
+						}
+					});
+		} catch ( RuntimeException e ) {
+			// so that the next use fails the same way
+			_keys = null;
+			_values = null;
+			_bits = null;
+			_size = UNINDEXED;
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the value of the given slot, decoding it from the source if it has not been read yet.
+	 * Frozen objects are read without the lock, so the lock is taken to decode. An object sharing
+	 * the table of a frozen one takes its own table before handing out a mutable value
+	 */
+	private Object valueAt( int i ) {
+		Object value = _values[i];
+		if ( RAW != value && ! _shared ) {
+			return value;
+		}
+		synchronized ( this ) {
+			value = _values[i];
+			if ( _shared && ! _frozen
+					&& (RAW == value || value instanceof JSONObject || value instanceof Values) ) {
+				unshare();
+				value = _values[i];
+			}
+			if ( RAW == value ) {
+				value = decode( i );
+				if ( ! _shared ) {
+					_values[i] = value;
+				}
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * Decodes the value of the given slot from the source
+	 */
+	@SuppressWarnings("unchecked")
+	private Object decode( int i ) {
+		int offset = (int)(_bits[i] >>> 32);
+		int length = (int)_bits[i];
+		if ( '{' == _source._bytes[offset] ) {
+			JSONObject obj = wrap( _source._bytes, offset, length );
+			// whoever reads a nested object may change it, and the source with it
+			_modified |= ! _frozen;
+			return _frozen ? obj.freeze() : obj;
+		}
+		Object value = PARSER.get().parseValue( _source._bytes, offset, length );
+		if ( value instanceof List ) {
+			_modified |= ! _frozen;
+			List<Object> list = (List<Object>)value;
+			if ( ! _frozen ) {
+				return new Values( list );
+			}
+			for ( Object element : list ) {
+				if ( element instanceof JSONObject ) {
+					((JSONObject)element).freeze();
+				}
+			}
+			return new Values( Collections.unmodifiableList( list ));
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the shape whose key table this object uses, or null if it has a table of its own
+	 */
+	public Shape getShape() {
+		if ( _frozen ) {
+			return _shape;
+		}
+		synchronized ( this ) {
+			return _shape;
+		}
+	}
+
 	/**
 	 * Returns all the keys in this JsonObject
 	 *
-	 * @return  an (unmodifiable) set of all the keys in the map
+	 * @return  an (unmodifiable) snapshot of all the keys in the map
 	 */
 	public Set<String> getKeys() {
-		return Collections.unmodifiableSet( _map.keySet() );
+		if ( _frozen ) {
+			// the table never changes again, so it can be shared
+			return 0 == _size ? Collections.<String>emptySet() : new KeySet( _keys, _values, _size );
+		}
+		synchronized ( this ) {
+			indexSource();
+			if ( 0 == _size ) {
+				return Collections.emptySet();
+			}
+			// the values are only needed to tell which keys of a shape are absent
+			return new KeySet( _keys.clone(), null == _shape ? null : _values.clone(), _size );
+		}
 	}
 
 	/**
@@ -38,14 +277,26 @@ public final class JSONObject {
 	 * @return  a count of the number of keys in this map
 	 */
 	public int size() {
-		return _map.size();
+		if ( _frozen ) {
+			return _size;
+		}
+		synchronized ( this ) {
+			indexSource();
+			return _size;
+		}
 	}
 
 	/**
 	 * Clears all values from this map
 	 */
-	public void clear() {
-		_map.clear();
+	public synchronized void clear() {
+		checkMutable();
+		_keys = null;
+		_values = null;
+		_bits = null;
+		_size = 0;
+		_shape = null;
+		_source = null;
 	}
 
 	/**
@@ -56,7 +307,21 @@ public final class JSONObject {
 	 * @return  true if the key is contained in this object
 	 */
 	public boolean containsKey( String key ) {
-		return _map.containsKey( key );
+		if ( _frozen ) {
+			return contains( key );
+		}
+		synchronized ( this ) {
+			indexSource();
+			return contains( key );
+		}
+	}
+
+	/**
+	 * Returns true if the table holds a value for the given key
+	 */
+	private boolean contains( String key ) {
+		int i = indexOf( _keys, key );
+		return i >= 0 && ABSENT != _values[i];
 	}
 
 	/**
@@ -64,8 +329,393 @@ public final class JSONObject {
 	 *
 	 * @param  key  the key which should be removed
 	 */
-	public void remove( String key ) {
-		_map.remove( key );
+	public synchronized void remove( String key ) {
+		checkMutable();
+		int index = indexOf( _keys, key );
+		if ( index < 0 || ABSENT == _values[index] ) {
+			return;
+		}
+		_size--;
+		if ( null != _shape ) {
+			// the key table is shared, only the value goes
+			_values[index] = ABSENT;
+			return;
+		}
+		// shift later members of the probe run back, so that no lookup stops early at the hole
+		int mask = _keys.length - 1;
+		int hole = index;
+		for ( int i = (index + 1) & mask; null != _keys[i]; i = (i + 1) & mask ) {
+			int home = Shape.slotOf( _keys[i], mask );
+			if ( ((i - home) & mask) >= ((i - hole) & mask) ) {
+				_keys[hole] = _keys[i];
+				_values[hole] = _values[i];
+				if ( null != _bits ) {
+					_bits[hole] = _bits[i];
+				}
+				hole = i;
+			}
+		}
+		_keys[hole] = null;
+		_values[hole] = null;
+	}
+
+	/**
+	 * Freezes this object and all the objects within it. A frozen object cannot be changed again,
+	 * and can be read from any number of threads without locking.
+	 *
+	 * @return  this object
+	 */
+	public synchronized JSONObject freeze() {
+		if ( _frozen ) {
+			return this;
+		}
+		// frozen objects are read without the lock, so their table must be complete
+		indexSource();
+		// a shared table is that of a frozen object, so everything in it is frozen already
+		for ( int i = 0; ! _shared && null != _keys && i < _keys.length; i++ ) {
+			Object value = _values[i];
+			if ( value instanceof JSONObject ) {
+				((JSONObject)value).freeze();
+			} else if ( value instanceof Values ) {
+				// copied, as the list may still be held by whoever put it here
+				List<Object> list = new ArrayList<>( ((Values)value)._list );
+				for ( Object element : list ) {
+					if ( element instanceof JSONObject ) {
+						((JSONObject)element).freeze();
+					}
+				}
+				_values[i] = new Values( Collections.unmodifiableList( list ));
+			}
+		}
+		_frozen = true;
+		return this;
+	}
+
+	/**
+	 * Returns true if this object has been frozen
+	 */
+	public boolean isFrozen() {
+		return _frozen;
+	}
+
+	/**
+	 * Returns a deep copy of this object. The copy is never frozen, so this is the way to change
+	 * a frozen object. Copying a frozen object, or a copy of one, takes constant time: the copy
+	 * shares the table until it is changed.
+	 */
+	public JSONObject copy() {
+		JSONObject copy = new JSONObject();
+		if ( _frozen ) {
+			shareWith( copy );
+		} else {
+			synchronized ( this ) {
+				if ( _shared ) {
+					shareWith( copy );
+				} else {
+					copyTo( copy );
+				}
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Lets an empty object use the table of this one, which is that of a frozen object
+	 */
+	private void shareWith( JSONObject copy ) {
+		copy._source = _source;
+		copy._modified = _modified;
+		if ( 0 == _size ) {
+			return;
+		}
+		copy._keys = _keys;
+		copy._values = _values;
+		copy._bits = _bits;
+		copy._size = _size;
+		copy._shape = _shape;
+		copy._shared = true;
+	}
+
+	/**
+	 * Takes a table of its own in place of the shared one, copying the objects in it, which only
+	 * share their own tables in turn. Called while holding the lock
+	 */
+	private void unshare() {
+		if ( ! _shared ) {
+			return;
+		}
+		_shared = false;
+		if ( null == _shape ) {
+			_keys = _keys.clone();
+		}
+		Object[] values = _values;
+		_values = new Object[ values.length ];
+		for ( int i = 0; i < values.length; i++ ) {
+			_values[i] = copyOf( values[i] );
+		}
+		if ( null != _bits ) {
+			_bits = _bits.clone();
+		}
+	}
+
+	/**
+	 * Returns a deep copy of this object which uses the key table of the given shape. Keys of this
+	 * object which are not in the shape are still copied, but the copy then has a key table of its
+	 * own.
+	 *
+	 * @param   shape  the shape of the copy, or null for a copy with a key table of its own
+	 */
+	public JSONObject copy( Shape shape ) {
+		if ( null == shape ) {
+			return copy();
+		}
+		JSONObject copy = create( shape );
+		if ( _frozen ) {
+			copyInto( copy );
+		} else {
+			synchronized ( this ) {
+				copyInto( copy );
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Replaces the keys and String values of this object, and of the objects within it, with the
+	 * instances given by the dictionary, which must be equal to them (@see
+	 * org.jsonq.util.StringDictionary). The content of the object does not change, so neither does
+	 * its source. Objects which are frozen, or share the table of a frozen object, are left as they
+	 * are, as are values not read from the source yet.
+	 *
+	 * @param   dictionary  gives the instance to keep for each string
+	 *
+	 * @return  this object
+	 *
+	 * @throws  UnsupportedOperationException  if this object is frozen
+	 */
+	public synchronized JSONObject intern( Function<String,String> dictionary ) {
+		if ( _frozen ) {
+			throw new UnsupportedOperationException( "JSONObject is frozen" );
+		}
+		indexSource();
+		for ( int i = 0; ! _shared && null != _keys && i < _keys.length; i++ ) {
+			Object value = _values[i];
+			if ( null == _keys[i] || ABSENT == value ) {
+				continue;
+			}
+			if ( null == _shape ) {
+				// the keys of a shape are shared already
+				_keys[i] = dictionary.apply( _keys[i] );
+			}
+			if ( value instanceof String ) {
+				_values[i] = dictionary.apply( (String)value );
+			} else if ( value instanceof JSONObject ) {
+				internChild( (JSONObject)value, dictionary );
+			} else if ( value instanceof Values ) {
+				// the list may be the caller's, so changes go into a new one
+				List<Object> list = ((Values)value)._list;
+				List<Object> interned = new ArrayList<>( list.size() );
+				for ( Object element : list ) {
+					if ( element instanceof String ) {
+						element = dictionary.apply( (String)element );
+					} else if ( element instanceof JSONObject ) {
+						internChild( (JSONObject)element, dictionary );
+					}
+					interned.add( element );
+				}
+				_values[i] = new Values( interned );
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Interns an object within this one, unless it cannot or need not be
+	 */
+	private static void internChild( JSONObject child, Function<String,String> dictionary ) {
+		synchronized ( child ) {
+			if ( ! child._frozen && ! child._shared ) {
+				child.intern( dictionary );
+			}
+		}
+	}
+
+	/**
+	 * Copies the fields of this object into an empty object with the same layout
+	 */
+	private void copyTo( JSONObject copy ) {
+		// values not read yet are shared with the source, which never changes
+		copy._source = _source;
+		copy._modified = _modified;
+		if ( _size <= 0 ) {
+			copy._size = _size;
+			return;
+		}
+		copy._shape = _shape;
+		copy._keys = null == _shape ? _keys.clone() : _keys;
+		copy._values = new Object[ _values.length ];
+		copy._bits = null == _bits ? null : _bits.clone();
+		copy._size = _size;
+		for ( int i = 0; i < _values.length; i++ ) {
+			copy._values[i] = copyOf( _values[i] );
+		}
+	}
+
+	/**
+	 * Copies the fields of this object one by one into an empty object with another layout
+	 */
+	private void copyInto( JSONObject copy ) {
+		indexSource();
+		copy._source = _source;
+		copy._modified = _modified;
+		for ( int i = 0; 0 != _size && i < _keys.length; i++ ) {
+			if ( null != _keys[i] && ABSENT != _values[i] ) {
+				int slot = copy.slotFor( _keys[i] );
+				copy._values[slot] = copyOf( _values[i] );
+				if ( _values[i] instanceof Primitive || RAW == _values[i] ) {
+					copy.bits()[slot] = _bits[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a deep copy of a stored value
+	 */
+	private static Object copyOf( Object value ) {
+		if ( value instanceof JSONObject ) {
+			return ((JSONObject)value).copy();
+		} else if ( value instanceof Values ) {
+			List<Object> list = new ArrayList<>( ((Values)value)._list.size() );
+			for ( Object element : ((Values)value)._list ) {
+				list.add( element instanceof JSONObject ? ((JSONObject)element).copy() : element );
+			}
+			return new Values( list );
+		}
+		return value;
+	}
+
+	/**
+	 * Throws if this object has been frozen. Otherwise the object is about to change, so its source
+	 * is indexed and no longer matches it, and it takes a table of its own if it shares one. Called
+	 * by all mutators while holding the lock
+	 */
+	private void checkMutable() {
+		if ( _frozen ) {
+			throw new UnsupportedOperationException( "JSONObject is frozen" );
+		}
+		indexSource();
+		unshare();
+		_modified = true;
+	}
+
+	/**
+	 * Returns the slot holding the key, or -1 if it is not in the table. The probe is bounded, as
+	 * containsKey() reads the table without holding the lock
+	 */
+	private static int indexOf( String[] keys, String key ) {
+		if ( null == keys || null == key ) {
+			return -1;
+		}
+		int mask = keys.length - 1;
+		int i = Shape.slotOf( key, mask );
+		for ( int n = 0; n <= mask && null != keys[i]; n++, i = (i + 1) & mask ) {
+			if ( key.equals( keys[i] ) ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the slot for the key, claiming a free one if the key is not in the table yet
+	 */
+	private int slotFor( String key ) {
+		if ( null == _keys ) {
+			_keys = new String[ MIN_CAPACITY ];
+			_values = new Object[ MIN_CAPACITY ];
+		}
+		int mask = _keys.length - 1;
+		int i = Shape.slotOf( key, mask );
+		for ( ; null != _keys[i]; i = (i + 1) & mask ) {
+			if ( key.equals( _keys[i] ) ) {
+				if ( ABSENT == _values[i] ) {
+					_values[i] = null;
+					_size++;
+				}
+				return i;
+			}
+		}
+		if ( null != _shape ) {
+			// the key is not in the shape, so this object needs a key table of its own
+			_shape = null;
+			int capacity = MIN_CAPACITY;
+			while ( (_size + 1) * 4 > capacity * 3 ) {
+				capacity <<= 1;
+			}
+			resize( capacity );
+			return slotFor( key );
+		}
+		// keep the table at most three quarters full
+		if ( (_size + 1) * 4 > _keys.length * 3 ) {
+			resize( _keys.length * 2 );
+			return slotFor( key );
+		}
+		_keys[i] = key;
+		_size++;
+		return i;
+	}
+
+	/**
+	 * Moves the fields into a table of the given capacity
+	 */
+	private void resize( int capacity ) {
+		String[] keys = new String[ capacity ];
+		Object[] values = new Object[ capacity ];
+		long[] bits = null == _bits ? null : new long[ capacity ];
+		int mask = capacity - 1;
+		for ( int i = 0; i < _keys.length; i++ ) {
+			if ( null != _keys[i] && ABSENT != _values[i] ) {
+				int j = Shape.slotOf( _keys[i], mask );
+				while ( null != keys[j] ) {
+					j = (j + 1) & mask;
+				}
+				keys[j] = _keys[i];
+				values[j] = _values[i];
+				if ( null != bits ) {
+					bits[j] = _bits[i];
+				}
+			}
+		}
+		_keys = keys;
+		_values = values;
+		_bits = bits;
+	}
+
+	/**
+	 * Returns the array of number bits, creating it on first use
+	 */
+	private long[] bits() {
+		if ( null == _bits ) {
+			_bits = new long[ _keys.length ];
+		}
+		return _bits;
+	}
+
+	/**
+	 * Boxes the number held in the given slot
+	 */
+	private Object box( int i ) {
+		Object type = _values[i];
+		long bits = _bits[i];
+		if ( INT == type ) {
+			return Integer.valueOf( (int)bits );
+		} else if ( LONG == type ) {
+			return Long.valueOf( bits );
+		} else if ( FLOAT == type ) {
+			return Float.valueOf( Float.intBitsToFloat( (int)bits ));
+		}
+		return Double.valueOf( Double.longBitsToDouble( bits ));
 	}
 
 	/**
@@ -129,20 +779,29 @@ public final class JSONObject {
 	}
 
 	/**
-	 * Aggregate method to add the given value to the key
+	 * Aggregate method to add the given value to the key. The first value is stored as is, a
+	 * second one turns the field into a List
 	 */
 	@SuppressWarnings("unchecked")
-	private void doAdd( String key, Object value ) {
+	private synchronized void doAdd( String key, Object value ) {
 		if ( null == key ) {
 			throw new NullPointerException( "key cannot be null" );
 		}
-		synchronized ( _map ) {
-			List values = _map.get( key );
-			if ( null == values ) {
-				values = new ArrayList<>(3);
-				_map.put( key, values );
-			}
+		checkMutable();
+		int size = _size;
+		int i = slotFor( key );
+		if ( _size != size ) {
+			_values[i] = value;
+			return;
+		}
+		Object current = valueAt( i );
+		if ( current instanceof Values ) {
+			((Values)current)._list.add( value );
+		} else {
+			List values = new ArrayList<>(3);
+			values.add( current instanceof Primitive ? box( i ) : current );
 			values.add( value );
+			_values[i] = new Values( values );
 		}
 	}
 
@@ -183,7 +842,24 @@ public final class JSONObject {
 	 * @throws  NullPointerException  if the key is null
 	 */
 	public void put( String key, int value ) {
-		doPut( key, value );
+		if ( value >= -128 && value <= 127 ) {
+			// boxes of small integers are shared, so they cost less than a slot of _bits
+			doPut( key, Integer.valueOf( value ));
+		} else {
+			doPut( key, INT, value );
+		}
+	}
+
+	/**
+	 * Store a long
+	 *
+	 * @param   key    the key
+	 * @param   value  the new value for the key
+	 *
+	 * @throws  NullPointerException  if the key is null
+	 */
+	public void put( String key, long value ) {
+		doPut( key, LONG, value );
 	}
 
 	/**
@@ -195,7 +871,7 @@ public final class JSONObject {
 	 * @throws  NullPointerException  if the key is null
 	 */
 	public void put( String key, float value ) {
-		doPut( key, value );
+		doPut( key, FLOAT, Float.floatToRawIntBits( value ));
 	}
 
 	/**
@@ -207,7 +883,7 @@ public final class JSONObject {
 	 * @throws  NullPointerException  if the key is null
 	 */
 	public void put( String key, double value ) {
-		doPut( key, value );
+		doPut( key, DOUBLE, Double.doubleToRawLongBits( value ));
 	}
 
 	/**
@@ -223,18 +899,29 @@ public final class JSONObject {
 	}
 
 	/**
-	 * Aggregate method to replace the value at the given key
+	 * Aggregate method to replace the value at the given key with a number
 	 */
-	@SuppressWarnings("unchecked")
-	private void doPut( String key, Object value ) {
+	private synchronized void doPut( String key, Primitive type, long bits ) {
 		if ( null == key ) {
 			throw new NullPointerException( "key cannot be null" );
 		}
-		synchronized ( _map ) {
-			List values = new ArrayList<>(3);
-			values.add( value );
-			_map.put( key, values );
+		checkMutable();
+		int i = slotFor( key );
+		_values[i] = type;
+		bits()[i] = bits;
+	}
+
+	/**
+	 * Aggregate method to replace the value at the given key
+	 */
+	private synchronized void doPut( String key, Object value ) {
+		if ( null == key ) {
+			throw new NullPointerException( "key cannot be null" );
 		}
+		checkMutable();
+		// the slot first, as claiming it may replace the table
+		int i = slotFor( key );
+		_values[i] = value;
 	}
 
 	// ----------------------------------------
@@ -254,13 +941,13 @@ public final class JSONObject {
 	 * @see     nuvos.core.json.JsonValue. <b>JsonObjects contained in the list
 	 *          will not be cloned by this implementation.</b>
 	 */
-	public void put( String key, List values ) {
+	public synchronized void put( String key, List values ) {
 		if ( null == key ) {
 			throw new NullPointerException( "key cannot be null" );
 		}
-		synchronized ( _map ) {
-			_map.put( key, values );
-		}
+		checkMutable();
+		int i = slotFor( key );
+		_values[i] = new Values( values );
 	}
 
 	// ----------------------------------------
@@ -282,21 +969,72 @@ public final class JSONObject {
 		if ( null == key ) {
 			throw new NullPointerException( "key cannot be null" );
 		}
-		synchronized ( _map ) {
-			List values = _map.get( key );
+		if ( _frozen ) {
+			return (T)single( key );
+		}
+		synchronized ( this ) {
+			indexSource();
+			return (T)single( key );
+		}
+	}
+
+	/**
+	 * Looks up a single value
+	 */
+	private Object single( String key ) {
+		int i = indexOf( _keys, key );
+		if ( i < 0 || ABSENT == _values[i] ) {
+			return null;
+		}
+		Object value = valueAt( i );
+		if ( value instanceof Values ) {
+			List values = ((Values)value)._list;
 			if ( values.isEmpty() ) {
 				return null;
 			} else if ( values.size() > 1 ) {
 				throw new IllegalArgumentException( "Multiple values for "+key );
 			}
-			return (T)values.get(0);
+			return values.get(0);
 		}
+		return value instanceof Primitive ? box( i ) : value;
 	}
 
 	// ----------------------------------------
 	// Multi-accessors
 	// ----------------------------------------
 
+	/**
+	 * Returns true if the key holds a list of values, rather than a single value. A list may hold
+	 * any number of values, including one or none
+	 *
+	 * @param   key  the key to check
+	 *
+	 * @throws  NullPointerException  if the key is null
+	 */
+	public boolean isList( String key ) {
+		if ( null == key ) {
+			throw new NullPointerException( "key cannot be null" );
+		}
+		if ( _frozen ) {
+			return isList( indexOf( _keys, key ));
+		}
+		synchronized ( this ) {
+			indexSource();
+			return isList( indexOf( _keys, key ));
+		}
+	}
+
+	/**
+	 * Returns true if the given slot holds a list
+	 */
+	private boolean isList( int i ) {
+		if ( i >= 0 && RAW == _values[i] ) {
+			// no need to decode, the first byte tells
+			return '[' == _source._bytes[ (int)(_bits[i] >>> 32) ];
+		}
+		return i >= 0 && _values[i] instanceof Values;
+	}
+
 	/**
 	 * Fetches the value for the given key. This method will always return an
 	 * unmodifiable List or null
@@ -307,18 +1045,35 @@ public final class JSONObject {
 	 *
 	 * @throws  NullPointerException  if the key is null
 	 */
-	@SuppressWarnings("unchecked")
 	public List get( String key ) {
 		if ( null == key ) {
 			throw new NullPointerException( "key cannot be null" );
 		}
-		synchronized ( _map ) {
-			List values = _map.get( key );
-			if ( null == values ) {
-				return Collections.emptyList();
-			}
-			return Collections.unmodifiableList( values );
+		if ( _frozen ) {
+			return values( key );
+		}
+		synchronized ( this ) {
+			indexSource();
+			return values( key );
+		}
+	}
+
+	/**
+	 * Looks up all the values of a key
+	 */
+	@SuppressWarnings("unchecked")
+	private List values( String key ) {
+		int i = indexOf( _keys, key );
+		if ( i < 0 || ABSENT == _values[i] ) {
+			return Collections.emptyList();
+		}
+		Object value = valueAt( i );
+		if ( value instanceof Values ) {
+			// the lists of frozen objects are unmodifiable already
+			List values = ((Values)value)._list;
+			return _frozen ? values : Collections.unmodifiableList( values );
 		}
+		return Collections.singletonList( value instanceof Primitive ? box( i ) : value );
 	}
 
 	// ----------------------------------------
@@ -351,7 +1106,27 @@ public final class JSONObject {
 	 * @throws  IllegalArgumentException if the value at the given key is not an integer
 	 */
 	public int getInt( String key ) {
-		Object o = getSingle( key );
+		if ( null == key ) {
+			throw new NullPointerException( "key cannot be null" );
+		}
+		if ( _frozen ) {
+			return intValue( key );
+		}
+		synchronized ( this ) {
+			indexSource();
+			return intValue( key );
+		}
+	}
+
+	/**
+	 * Reads an integer
+	 */
+	private int intValue( String key ) {
+		int i = indexOf( _keys, key );
+		if ( i >= 0 && INT == _values[i] ) {
+			return (int)_bits[i];
+		}
+		Object o = single( key );
 		if ( null == o ) {
 			return 0;
 		}
@@ -362,21 +1137,87 @@ public final class JSONObject {
 	}
 
 	/**
-	 * Returns a double value for the given key
+	 * Returns a long for the given key. Integers are accepted as well
+	 *
+	 * @param  key  the key to fetch
+	 *
+	 * @throws  IllegalArgumentException if the value at the given key is not an integer or a long
+	 */
+	public long getLong( String key ) {
+		if ( null == key ) {
+			throw new NullPointerException( "key cannot be null" );
+		}
+		if ( _frozen ) {
+			return longValue( key );
+		}
+		synchronized ( this ) {
+			indexSource();
+			return longValue( key );
+		}
+	}
+
+	/**
+	 * Reads a long
+	 */
+	private long longValue( String key ) {
+		int i = indexOf( _keys, key );
+		if ( i >= 0 && (LONG == _values[i] || INT == _values[i]) ) {
+			return _bits[i];
+		}
+		Object o = single( key );
+		if ( null == o ) {
+			return 0;
+		}
+		if ( ! (o instanceof Long || o instanceof Integer) ) {
+			throw new IllegalArgumentException( key+ " does not contain a long" );
+		}
+		return ((Number)o).longValue();
+	}
+
+	/**
+	 * Returns a double value for the given key. Any number is accepted, as JSON does not
+	 * distinguish integers from doubles.
 	 *
 	 * @param  key  the key to fetch
 	 *
-	 * @throws  IllegalArgumentException if the value at the given key is not a double
+	 * @throws  IllegalArgumentException if the value at the given key is not a number
 	 */
 	public double getDouble( String key ) {
-		Object o = getSingle( key );
+		if ( null == key ) {
+			throw new NullPointerException( "key cannot be null" );
+		}
+		if ( _frozen ) {
+			return doubleValue( key );
+		}
+		synchronized ( this ) {
+			indexSource();
+			return doubleValue( key );
+		}
+	}
+
+	/**
+	 * Reads any number as a double
+	 */
+	private double doubleValue( String key ) {
+		int i = indexOf( _keys, key );
+		if ( i >= 0 && _values[i] instanceof Primitive ) {
+			Object type = _values[i];
+			long bits = _bits[i];
+			if ( DOUBLE == type ) {
+				return Double.longBitsToDouble( bits );
+			} else if ( FLOAT == type ) {
+				return Float.intBitsToFloat( (int)bits );
+			}
+			return bits;
+		}
+		Object o = single( key );
 		if ( null == o ) {
 			return 0;
 		}
-		if ( ! (o instanceof Double) ) {
+		if ( ! (o instanceof Number) ) {
 			throw new IllegalArgumentException( key+ " does not contain a double" );
 		}
-		return (double)o;
+		return ((Number)o).doubleValue();
 	}
 
 
@@ -417,5 +1258,102 @@ public final class JSONObject {
 		return (JSONObject)o;
 	}
 
+	/**
+	 * The JSON text an object was created from
+	 */
+	private static final class Source {
+
+		final byte[] _bytes;
+		final int _offset;
+		final int _length;
+
+		Source( byte[] bytes, int offset, int length ) {
+			_bytes = bytes;
+			_offset = offset;
+			_length = length;
+		}
+	}
+
+	/**
+	 * Marker for the type of a number held in _bits
+	 */
+	private static final class Primitive {}
+
+	/**
+	 * The values of a multi-valued field
+	 */
+	private static final class Values {
+
+		final List<Object> _list;
+
+		@SuppressWarnings("unchecked")
+		Values( List list ) {
+			_list = list;
+		}
+	}
+
+	/**
+	 * Snapshot of the key table, which keeps its layout so lookups stay cheap. The values are only
+	 * given for shaped objects, to skip the keys they do not contain
+	 */
+	private static final class KeySet extends AbstractSet<String> {
+
+		private final String[] _keys;
+		private final Object[] _values;
+		private final int _size;
+
+		KeySet( String[] keys, Object[] values, int size ) {
+			_keys = keys;
+			_values = values;
+			_size = size;
+		}
+
+		/**
+		 * Returns true if the slot holds a key of the object
+		 */
+		private boolean present( int i ) {
+			return i >= 0 && null != _keys[i] && (null == _values || ABSENT != _values[i]);
+		}
 
+		@Override
+		public int size() {
+			return _size;
+		}
+
+		@Override
+		public boolean contains( Object key ) {
+			return key instanceof String && present( indexOf( _keys, (String)key ));
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			return new Iterator<String>() {
+				private int _next = advance( 0 );
+
+				private int advance( int i ) {
+					while ( i < _keys.length && ! present( i ) ) {
+						i++;
+					}
+					return i;
+				}
+
+				public boolean hasNext() {
+					return _next < _keys.length;
+				}
+
+				public String next() {
+					if ( ! hasNext() ) {
+						throw new NoSuchElementException();
+					}
+					String key = _keys[_next];
+					_next = advance( _next + 1 );
+					return key;
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
 }
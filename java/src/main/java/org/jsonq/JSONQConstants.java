@@ -18,6 +18,12 @@ public final class JSONQConstants {
 		public static final String STORE = "store";
 		public static final String PAYLOAD = "payload";
 		public static final String TXN_ID = "txn_id";
+		/** Optional. Milliseconds the client will wait for the response */
+		public static final String TIMEOUT = "timeout";
+		/** Optional. Time since the epoch, in milliseconds, after which the response is not wanted */
+		public static final String DEADLINE = "deadline";
+		/** Optional. One of the Priority values, assigned from the operation if not given */
+		public static final String PRIORITY = "priority";
 	}
 
 	/** Enumeration of all possible keys in a JSON/q response */
@@ -40,6 +46,14 @@ public final class JSONQConstants {
 		public static final String QUERY = "query";
 	}
 
+	/** Enumeration of request priorities */
+	public static class Priority {
+
+		public static final String HIGH = "high";
+		public static final String NORMAL = "normal";
+		public static final String LOW = "low";
+	}
+
 	/** JSON/q schema keys */
 	public static class Schema {
 
@@ -47,8 +61,28 @@ public final class JSONQConstants {
 		public static final String ID_FIELD = "id_field";
 		public static final String DEFAULT_ID_FIELD = "id";
 		public static final String FIELDS = "fields";
+		public static final String NAME = "name";
 		public static final String MULTI = "multi";
+		public static final String DICTIONARY = "dictionary";
+		public static final String CONCURRENCY = "concurrency";
+		public static final String MEMORY = "memory";
+		public static final String ARENA_SIZE = "arena_size";
+		public static final String LOG = "log";
+		public static final String FILE = "file";
+		public static final String REGION_SIZE = "region_size";
+
+	}
+
+	/** Keys of the log settings of a schema */
+	public static class Log {
 
+		public static final String PATH = "path";
+		/** One of always, interval or os */
+		public static final String SYNC = "sync";
+		/** Milliseconds between syncs for the interval policy */
+		public static final String INTERVAL = "interval";
+		/** Milliseconds between snapshots. No snapshots are taken if not given */
+		public static final String SNAPSHOT = "snapshot";
 	}
 
 }
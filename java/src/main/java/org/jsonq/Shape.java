@@ -0,0 +1,71 @@
+package org.jsonq;
+
+import java.util.*;
+
+/**
+ * The layout shared by JSONObjects with the same set of keys, typically the documents of one store.
+ *
+ * A shape is a table of keys. Objects created with a shape (@see JSONObject#create(Shape)) use it in
+ * place of a key table of their own, and only hold an array of values, one slot per key. An object
+ * which is given a key that is not in its shape moves to a key table of its own, so any key can
+ * still be stored.
+ */
+public final class Shape {
+
+	final String[] _keys;
+	private final int _size;
+
+	/**
+	 * Private constructor. Shapes must be created using the static generator.
+	 */
+	private Shape( String[] keys, int size ) {
+		_keys = keys;
+		_size = size;
+	}
+
+	/**
+	 * Creates a shape for the given keys
+	 *
+	 * @param   keys  the keys. Duplicates are ignored
+	 *
+	 * @throws  NullPointerException  if any key is null
+	 */
+	public static Shape of( Collection<String> keys ) {
+		int capacity = 4;
+		while ( keys.size() * 4 > capacity * 3 ) {
+			capacity <<= 1;
+		}
+		String[] table = new String[ capacity ];
+		int size = 0;
+		int mask = capacity - 1;
+		for ( String key : keys ) {
+			if ( null == key ) {
+				throw new NullPointerException( "key cannot be null" );
+			}
+			int i = slotOf( key, mask );
+			while ( null != table[i] && ! key.equals( table[i] ) ) {
+				i = (i + 1) & mask;
+			}
+			if ( null == table[i] ) {
+				table[i] = key;
+				size++;
+			}
+		}
+		return new Shape( table, size );
+	}
+
+	/**
+	 * Returns the number of keys in this shape
+	 */
+	public int size() {
+		return _size;
+	}
+
+	/**
+	 * Returns the preferred slot of the key in a table of the given size, less one
+	 */
+	static int slotOf( String key, int mask ) {
+		int h = key.hashCode();
+		return (h ^ (h >>> 16)) & mask;
+	}
+}
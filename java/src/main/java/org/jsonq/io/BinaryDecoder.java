@@ -0,0 +1,393 @@
+package org.jsonq.io;
+
+import org.jsonq.*;
+import java.nio.*;
+import java.util.*;
+
+import static org.jsonq.io.BinaryEncoder.*;
+
+/**
+ * Decodes JSONObjects from the binary form written by BinaryEncoder.
+ *
+ * A decoder keeps a small cache of the keys it has seen, so that the keys of similar documents are
+ * not allocated again, and must only be used by one thread at a time.
+ */
+public class BinaryDecoder {
+
+	/** Number of keys remembered between documents. Must be a power of two */
+	private static final int KEY_CACHE_SIZE = 512;
+
+	/** Keys longer than this are not cached */
+	private static final int MAX_CACHED_KEY = 64;
+
+	private byte[] _buf;
+	private int _pos;
+	private int _limit;
+	private int _start;
+	private int _depth;
+	private String[] _dictionary = new String[ 16 ];
+
+	private char[] _chars = new char[ 64 ];
+	private final String[] _cache = new String[ KEY_CACHE_SIZE ];
+
+	/**
+	 * Decodes a document
+	 *
+	 * @param bytes the encoded document
+	 *
+	 * @throws IllegalArgumentException if the bytes are not a valid encoded document
+	 */
+	public JSONObject decode( byte[] bytes ) {
+		return decode( bytes, 0, bytes.length );
+	}
+
+	/**
+	 * Decodes a document held in part of an array
+	 *
+	 * @param bytes the array holding the encoded document
+	 * @param offset the start of the document
+	 * @param length the length of the document
+	 *
+	 * @throws IllegalArgumentException if the bytes are not a valid encoded document
+	 */
+	public JSONObject decode( byte[] bytes, int offset, int length ) {
+		if ( offset < 0 || length < 0 || offset + length > bytes.length ) {
+			throw new IndexOutOfBoundsException();
+		}
+		_buf = bytes;
+		_pos = offset;
+		_start = offset;
+		_limit = offset + length;
+		_depth = 0;
+		try {
+			if ( VERSION != read() ) {
+				_pos--;
+				throw error( "Unknown version" );
+			}
+			readDictionary();
+			JSONObject result = readObject();
+			if ( _pos != _limit ) {
+				throw error( "Unexpected content after the object" );
+			}
+			return result;
+		} finally {
+			// do not hold on to the caller's input or keys
+			_buf = null;
+			Arrays.fill( _dictionary, null );
+		}
+	}
+
+	/**
+	 * Decodes the document between the position and the limit of the buffer. The position is moved
+	 * to the limit.
+	 *
+	 * @param buffer the encoded document
+	 *
+	 * @throws IllegalArgumentException if the bytes are not a valid encoded document
+	 */
+	public JSONObject decode( ByteBuffer buffer ) {
+		JSONObject result;
+		if ( buffer.hasArray() ) {
+			result = decode( buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining() );
+		} else {
+			// direct buffers have no array to read in place
+			byte[] bytes = new byte[ buffer.remaining() ];
+			buffer.duplicate().get( bytes );
+			result = decode( bytes );
+		}
+		buffer.position( buffer.limit() );
+		return result;
+	}
+
+	// ----------------------------------------
+	// Structure
+	// ----------------------------------------
+
+	/**
+	 * Reads the keys of the document
+	 */
+	private void readDictionary() {
+		int count = readLength();
+		// every key takes at least a byte, which keeps a corrupt count from allocating much
+		if ( count > _limit - _pos ) {
+			throw error( "Dictionary runs past the end of the input" );
+		}
+		if ( count > _dictionary.length ) {
+			_dictionary = new String[ Math.max( count, _dictionary.length * 2 ) ];
+		}
+		for ( int i = 0; i < count; i++ ) {
+			_dictionary[i] = readKey();
+		}
+	}
+
+	/**
+	 * Reads an object, checking that its body is as long as it says
+	 */
+	private JSONObject readObject() {
+		if ( ++_depth > MAX_DEPTH ) {
+			throw error( "Too deeply nested" );
+		}
+		int length = readLength();
+		int end = _pos + length;
+		if ( end > _limit || end < 0 ) {
+			throw error( "Object runs past the end of the input" );
+		}
+		JSONObject obj = JSONObject.create();
+		int count = readLength();
+		for ( int i = 0; i < count; i++ ) {
+			int index = readLength();
+			String key = index < _dictionary.length ? _dictionary[index] : null;
+			if ( null == key ) {
+				throw error( "Unknown key" );
+			}
+			readField( obj, key );
+		}
+		if ( _pos != end ) {
+			throw error( "Object length does not match its body" );
+		}
+		_depth--;
+		return obj;
+	}
+
+	/**
+	 * Reads the value of a field, storing it under the right type
+	 */
+	private void readField( JSONObject obj, String key ) {
+		int tag = read();
+		switch ( tag ) {
+			case NULL: obj.put( key, (String)null ); break;
+			case FALSE: obj.put( key, false ); break;
+			case TRUE: obj.put( key, true ); break;
+			case INT: obj.put( key, readInt() ); break;
+			case LONG: obj.put( key, unzigzag( readVarlong() )); break;
+			case FLOAT: obj.put( key, Float.intBitsToFloat( (int)readFixed( 4 ))); break;
+			case DOUBLE: obj.put( key, Double.longBitsToDouble( readFixed( 8 ))); break;
+			case STRING: obj.put( key, readString() ); break;
+			case OBJECT: obj.put( key, readObject() ); break;
+			case LIST: obj.put( key, readList() ); break;
+			default:
+				_pos--;
+				throw error( "Unknown tag "+tag );
+		}
+	}
+
+	/**
+	 * Reads the elements of a list, the tag having been consumed
+	 */
+	private List<Object> readList() {
+		if ( ++_depth > MAX_DEPTH ) {
+			throw error( "Too deeply nested" );
+		}
+		int count = readLength();
+		// every element takes at least a byte, which keeps a corrupt count from allocating much
+		if ( count > _limit - _pos ) {
+			throw error( "List runs past the end of the input" );
+		}
+		List<Object> list = new ArrayList<>( count );
+		for ( int i = 0; i < count; i++ ) {
+			list.add( readValue() );
+		}
+		_depth--;
+		return list;
+	}
+
+	/**
+	 * Reads any value, with its tag
+	 */
+	private Object readValue() {
+		int tag = read();
+		switch ( tag ) {
+			case NULL: return null;
+			case FALSE: return Boolean.FALSE;
+			case TRUE: return Boolean.TRUE;
+			case INT: return readInt();
+			case LONG: return unzigzag( readVarlong() );
+			case FLOAT: return Float.intBitsToFloat( (int)readFixed( 4 ));
+			case DOUBLE: return Double.longBitsToDouble( readFixed( 8 ));
+			case STRING: return readString();
+			case OBJECT: return readObject();
+			case LIST: return readList();
+			default:
+				_pos--;
+				throw error( "Unknown tag "+tag );
+		}
+	}
+
+	// ----------------------------------------
+	// Scalars
+	// ----------------------------------------
+
+	/**
+	 * Creates the exception for malformed input at the current position
+	 */
+	private IllegalArgumentException error( String message ) {
+		return new IllegalArgumentException( message+" at offset "+(_pos - _start) );
+	}
+
+	/**
+	 * Consumes and returns the next byte
+	 */
+	private int read() {
+		if ( _pos >= _limit ) {
+			throw error( "Unexpected end of input" );
+		}
+		return _buf[ _pos++ ] & 0xff;
+	}
+
+	/**
+	 * Reads a varint
+	 */
+	private long readVarlong() {
+		long value = 0;
+		for ( int shift = 0; shift < 64; shift += 7 ) {
+			int b = read();
+			value |= (long)(b & 0x7f) << shift;
+			if ( b < 0x80 ) {
+				return value;
+			}
+		}
+		throw error( "Varint too long" );
+	}
+
+	/**
+	 * Reads a length or count, which must fit in an int
+	 */
+	private int readLength() {
+		long value = readVarlong();
+		if ( value < 0 || value > Integer.MAX_VALUE ) {
+			throw error( "Invalid length" );
+		}
+		return (int)value;
+	}
+
+	/**
+	 * Reads a zigzag encoded int
+	 */
+	private int readInt() {
+		long value = unzigzag( readVarlong() );
+		if ( value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ) {
+			throw error( "Integer out of range" );
+		}
+		return (int)value;
+	}
+
+	/**
+	 * Undoes the zigzag mapping of signed numbers
+	 */
+	private static long unzigzag( long value ) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Reads the given number of bytes, least significant first
+	 */
+	private long readFixed( int length ) {
+		if ( _pos + length > _limit ) {
+			throw error( "Unexpected end of input" );
+		}
+		long bits = 0;
+		for ( int i = 0; i < length; i++ ) {
+			bits |= (long)(_buf[ _pos++ ] & 0xff) << (8 * i);
+		}
+		return bits;
+	}
+
+	/**
+	 * Reads a string
+	 */
+	private String readString() {
+		int length = decodeString();
+		return new String( _chars, 0, length );
+	}
+
+	/**
+	 * Reads a key, returning the cached String if the same key has been seen before
+	 */
+	private String readKey() {
+		int length = decodeString();
+		if ( length > MAX_CACHED_KEY ) {
+			return new String( _chars, 0, length );
+		}
+		int hash = 0;
+		for ( int i = 0; i < length; i++ ) {
+			hash = 31 * hash + _chars[i];
+		}
+		int slot = (hash ^ (hash >>> 16)) & (KEY_CACHE_SIZE - 1);
+		String key = _cache[slot];
+		if ( null != key && key.length() == length && matches( key, length ) ) {
+			return key;
+		}
+		key = new String( _chars, 0, length );
+		_cache[slot] = key;
+		return key;
+	}
+
+	/**
+	 * Returns true if the string decoded into the scratch buffer is equal to the key
+	 */
+	private boolean matches( String key, int length ) {
+		for ( int i = 0; i < length; i++ ) {
+			if ( key.charAt(i) != _chars[i] ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Decodes a length-prefixed UTF-8 string into the scratch buffer
+	 *
+	 * @return the number of chars decoded
+	 */
+	private int decodeString() {
+		int bytes = readLength();
+		int end = _pos + bytes;
+		if ( end > _limit || end < 0 ) {
+			throw error( "String runs past the end of the input" );
+		}
+		// a string never has more chars than bytes
+		if ( bytes > _chars.length ) {
+			_chars = new char[ Math.max( bytes, _chars.length * 2 ) ];
+		}
+		int length = 0;
+		while ( _pos < end ) {
+			int c = _buf[ _pos++ ] & 0xff;
+			if ( c < 0x80 ) {
+				_chars[ length++ ] = (char)c;
+			} else if ( (c & 0xe0) == 0xc0 ) {
+				_chars[ length++ ] = (char)(((c & 0x1f) << 6) | continuation( end ));
+			} else if ( (c & 0xf0) == 0xe0 ) {
+				int code = ((c & 0x0f) << 12) | (continuation( end ) << 6);
+				_chars[ length++ ] = (char)(code | continuation( end ));
+			} else if ( (c & 0xf8) == 0xf0 ) {
+				int code = ((c & 0x07) << 18) | (continuation( end ) << 12);
+				code |= continuation( end ) << 6;
+				code |= continuation( end );
+				if ( code < 0x10000 || code > Character.MAX_CODE_POINT ) {
+					throw error( "Invalid UTF-8" );
+				}
+				_chars[ length++ ] = Character.highSurrogate( code );
+				_chars[ length++ ] = Character.lowSurrogate( code );
+			} else {
+				_pos--;
+				throw error( "Invalid UTF-8" );
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Reads the six bits of a UTF-8 continuation byte
+	 */
+	private int continuation( int end ) {
+		if ( _pos >= end ) {
+			throw error( "Invalid UTF-8" );
+		}
+		int c = _buf[ _pos++ ] & 0xff;
+		if ( (c & 0xc0) != 0x80 ) {
+			_pos--;
+			throw error( "Invalid UTF-8" );
+		}
+		return c & 0x3f;
+	}
+}
@@ -0,0 +1,446 @@
+package org.jsonq.io;
+
+import org.jsonq.*;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Encodes JSONObjects in a compact binary form, for storing documents and sending them between
+ * processes. It is read back by BinaryDecoder.
+ *
+ * An encoded document starts with a version byte and a dictionary of its keys, each of which is
+ * written only once; fields refer to their key by its index. Values are tagged with their type:
+ * integers are zigzag varints, floating point numbers are their raw IEEE bits, strings are UTF-8
+ * with their length in front, and objects carry the length of their body, so that a reader can
+ * skip them without decoding them. All lengths and counts are varints.
+ *
+ * Decoding gives back exactly what was encoded: the same keys, the same multi-valued fields, and
+ * values of the same types, so Integers stay Integers and Longs stay Longs. Shorts and Bytes come
+ * back as Integers and arrays as Lists. Strings are kept char for char, even if they hold unpaired
+ * surrogates.
+ *
+ * An encoder reuses its buffers from one object to the next, and must only be used by one thread
+ * at a time.
+ */
+public class BinaryEncoder {
+
+	/** Version of the encoding, the first byte of every document */
+	static final int VERSION = 1;
+
+	// value tags
+	static final int NULL = 0;
+	static final int FALSE = 1;
+	static final int TRUE = 2;
+	static final int INT = 3;
+	static final int LONG = 4;
+	static final int FLOAT = 5;
+	static final int DOUBLE = 6;
+	static final int STRING = 7;
+	static final int OBJECT = 8;
+	static final int LIST = 9;
+
+	/** Deepest nesting of objects and lists encoded */
+	static final int MAX_DEPTH = 512;
+
+	/** Room left in front of an object for the length of its body, the longest an int varint takes */
+	private static final int LENGTH_ROOM = 5;
+
+	/** Strings of up to this many chars are known to take less than 128 bytes */
+	private static final int SHORT_STRING = 42;
+
+	private byte[] _body = new byte[ 256 ];
+	private int _pos;
+	private int _depth;
+
+	// the key dictionary of the document being encoded, with an open-addressed table to find the
+	// index of a key
+	private byte[] _head = new byte[ 64 ];
+	private int _headPos;
+	private String[] _keys = new String[ 16 ];
+	private int _keyCount;
+	private String[] _table = new String[ 32 ];
+	private int[] _indices = new int[ 32 ];
+
+	/**
+	 * Encodes an object
+	 *
+	 * @param obj the object to encode
+	 *
+	 * @return the encoded object
+	 *
+	 * @throws IllegalArgumentException if the object holds a value which cannot be encoded
+	 */
+	public byte[] encode( JSONObject obj ) {
+		encodeBody( obj );
+		try {
+			byte[] result = new byte[ _headPos + _pos ];
+			System.arraycopy( _head, 0, result, 0, _headPos );
+			System.arraycopy( _body, 0, result, _headPos, _pos );
+			return result;
+		} finally {
+			reset();
+		}
+	}
+
+	/**
+	 * Encodes an object to a buffer, starting at its position. The position is moved past the
+	 * object.
+	 *
+	 * @param obj the object to encode
+	 * @param buffer the buffer to write to
+	 *
+	 * @throws IllegalArgumentException if the object holds a value which cannot be encoded
+	 * @throws BufferOverflowException if the object does not fit in the buffer, in which case
+	 * nothing is written
+	 */
+	public void encode( JSONObject obj, ByteBuffer buffer ) {
+		if ( null == buffer ) {
+			throw new NullPointerException( "buffer cannot be null" );
+		}
+		encodeBody( obj );
+		try {
+			if ( buffer.remaining() < _headPos + _pos ) {
+				throw new BufferOverflowException();
+			}
+			buffer.put( _head, 0, _headPos );
+			buffer.put( _body, 0, _pos );
+		} finally {
+			reset();
+		}
+	}
+
+	/**
+	 * Encodes an object to a stream. The stream is neither flushed nor closed.
+	 *
+	 * @param obj the object to encode
+	 * @param out the stream to write to
+	 *
+	 * @throws IllegalArgumentException if the object holds a value which cannot be encoded
+	 * @throws IOException if the stream cannot be written to
+	 */
+	public void encode( JSONObject obj, OutputStream out ) throws IOException {
+		if ( null == out ) {
+			throw new NullPointerException( "out cannot be null" );
+		}
+		encodeBody( obj );
+		try {
+			out.write( _head, 0, _headPos );
+			out.write( _body, 0, _pos );
+		} finally {
+			reset();
+		}
+	}
+
+	/**
+	 * Encodes the object into the body buffer, and its dictionary into the head buffer
+	 */
+	private void encodeBody( JSONObject obj ) {
+		if ( null == obj ) {
+			throw new NullPointerException( "obj cannot be null" );
+		}
+		_pos = 0;
+		_depth = 0;
+		_headPos = 0;
+		_head[ _headPos++ ] = VERSION;
+		try {
+			writeObject( obj );
+		} catch ( RuntimeException e ) {
+			reset();
+			throw e;
+		}
+
+		// the dictionary goes in front, now that all the keys are known
+		_headPos = writeVarint( head( 5 ), _headPos, _keyCount );
+		for ( int i = 0; i < _keyCount; i++ ) {
+			int length = utf8Length( _keys[i] );
+			_headPos = writeVarint( head( 5 + length ), _headPos, length );
+			_headPos = writeUtf8( _head, _headPos, _keys[i] );
+		}
+	}
+
+	/**
+	 * Forgets the document, so that its keys are not held on to
+	 */
+	private void reset() {
+		Arrays.fill( _keys, 0, _keyCount, null );
+		Arrays.fill( _table, null );
+		_keyCount = 0;
+		_pos = 0;
+		_headPos = 0;
+	}
+
+	/**
+	 * Returns the index of the key in the dictionary, adding it if it is not there yet
+	 */
+	private int indexOf( String key ) {
+		int mask = _table.length - 1;
+		int hash = key.hashCode();
+		int i = (hash ^ (hash >>> 16)) & mask;
+		for ( ; null != _table[i]; i = (i + 1) & mask ) {
+			// keys usually come from shared tables or the parser's cache, so are often the same
+			if ( key == _table[i] || key.equals( _table[i] ) ) {
+				return _indices[i];
+			}
+		}
+		if ( _keyCount == _keys.length ) {
+			_keys = Arrays.copyOf( _keys, _keyCount * 2 );
+		}
+		_keys[ _keyCount ] = key;
+		_table[i] = key;
+		_indices[i] = _keyCount;
+		// keep the table at most half full
+		if ( ++_keyCount * 2 > _table.length ) {
+			_table = new String[ _table.length * 2 ];
+			_indices = new int[ _table.length ];
+			mask = _table.length - 1;
+			for ( int k = 0; k < _keyCount; k++ ) {
+				hash = _keys[k].hashCode();
+				int j = (hash ^ (hash >>> 16)) & mask;
+				while ( null != _table[j] ) {
+					j = (j + 1) & mask;
+				}
+				_table[j] = _keys[k];
+				_indices[j] = k;
+			}
+		}
+		return _keyCount - 1;
+	}
+
+	// ----------------------------------------
+	// Structure
+	// ----------------------------------------
+
+	/**
+	 * Writes an object, with the length of its body in front
+	 */
+	private void writeObject( JSONObject obj ) {
+		enter();
+		int start = _pos;
+		require( LENGTH_ROOM + 5 );
+		_pos += LENGTH_ROOM;
+
+		Set<String> keys = obj.getKeys();
+		_pos = writeVarint( _body, _pos, keys.size() );
+		for ( String key : keys ) {
+			require( 5 );
+			_pos = writeVarint( _body, _pos, indexOf( key ));
+			if ( obj.isList( key ) ) {
+				writeList( obj.get( key ));
+			} else {
+				writeValue( obj.getSingle( key ));
+			}
+		}
+
+		// the body is moved up to the length, which is rarely as long as the room left for it
+		int length = _pos - start - LENGTH_ROOM;
+		int lengthSize = varintSize( length );
+		System.arraycopy( _body, start + LENGTH_ROOM, _body, start + lengthSize, length );
+		writeVarint( _body, start, length );
+		_pos = start + lengthSize + length;
+		_depth--;
+	}
+
+	/**
+	 * Writes the elements of a list, with their count in front
+	 */
+	private void writeList( List<?> values ) {
+		enter();
+		require( 6 );
+		_body[ _pos++ ] = LIST;
+		_pos = writeVarint( _body, _pos, values.size() );
+		for ( Object value : values ) {
+			writeValue( value );
+		}
+		_depth--;
+	}
+
+	/**
+	 * Goes one level deeper, failing if the object is nested too deeply
+	 */
+	private void enter() {
+		if ( ++_depth > MAX_DEPTH ) {
+			throw new IllegalArgumentException( "Too deeply nested" );
+		}
+	}
+
+	/**
+	 * Writes any value, with its tag in front
+	 */
+	private void writeValue( Object value ) {
+		require( 11 );
+		if ( null == value ) {
+			_body[ _pos++ ] = NULL;
+		} else if ( value instanceof String ) {
+			writeString( (String)value );
+		} else if ( value instanceof JSONObject ) {
+			_body[ _pos++ ] = OBJECT;
+			writeObject( (JSONObject)value );
+		} else if ( value instanceof Integer || value instanceof Short || value instanceof Byte ) {
+			_body[ _pos++ ] = INT;
+			_pos = writeVarlong( _body, _pos, zigzag( ((Number)value).longValue() ));
+		} else if ( value instanceof Long ) {
+			_body[ _pos++ ] = LONG;
+			_pos = writeVarlong( _body, _pos, zigzag( (Long)value ));
+		} else if ( value instanceof Double ) {
+			_body[ _pos++ ] = DOUBLE;
+			writeFixed( Double.doubleToRawLongBits( (Double)value ), 8 );
+		} else if ( value instanceof Float ) {
+			_body[ _pos++ ] = FLOAT;
+			writeFixed( Float.floatToRawIntBits( (Float)value ), 4 );
+		} else if ( value instanceof Boolean ) {
+			_body[ _pos++ ] = (byte)((Boolean)value ? TRUE : FALSE);
+		} else if ( value instanceof List ) {
+			writeList( (List<?>)value );
+		} else if ( value instanceof Object[] ) {
+			writeList( Arrays.asList( (Object[])value ));
+		} else {
+			throw new IllegalArgumentException( "Cannot encode a "+value.getClass().getName() );
+		}
+	}
+
+	// ----------------------------------------
+	// Scalars
+	// ----------------------------------------
+
+	/**
+	 * Writes a string, with its tag and length in front
+	 */
+	private void writeString( String s ) {
+		int chars = s.length();
+		if ( chars <= SHORT_STRING ) {
+			// cannot take more than 127 bytes, so its length fits in one byte and can be filled
+			// in once it is known, sparing a pass over the string
+			require( 2 + 3 * chars );
+			_body[ _pos++ ] = STRING;
+			int start = ++_pos;
+			_pos = writeUtf8( _body, _pos, s );
+			_body[ start - 1 ] = (byte)(_pos - start);
+			return;
+		}
+		int length = utf8Length( s );
+		require( 6 + length );
+		_body[ _pos++ ] = STRING;
+		_pos = writeVarint( _body, _pos, length );
+		_pos = writeUtf8( _body, _pos, s );
+	}
+
+	/**
+	 * Makes room for the given number of bytes in the body
+	 */
+	private void require( int length ) {
+		if ( _pos + length > _body.length ) {
+			_body = Arrays.copyOf( _body, Math.max( _body.length * 2, _pos + length ));
+		}
+	}
+
+	/**
+	 * Makes room for the given number of bytes in the head, returning it
+	 */
+	private byte[] head( int length ) {
+		if ( _headPos + length > _head.length ) {
+			_head = Arrays.copyOf( _head, Math.max( _head.length * 2, _headPos + length ));
+		}
+		return _head;
+	}
+
+	/**
+	 * Writes the low bytes of the given bits, least significant first
+	 */
+	private void writeFixed( long bits, int length ) {
+		for ( int i = 0; i < length; i++ ) {
+			_body[ _pos++ ] = (byte)bits;
+			bits >>>= 8;
+		}
+	}
+
+	/**
+	 * Maps signed numbers to unsigned ones, small magnitudes first, so negative numbers stay short
+	 */
+	private static long zigzag( long value ) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	/**
+	 * Returns the number of bytes the varint of a non-negative int takes
+	 */
+	private static int varintSize( int value ) {
+		int size = 1;
+		while ( value >= 0x80 ) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes a non-negative int as a varint, returning the position after it
+	 */
+	private static int writeVarint( byte[] buf, int pos, int value ) {
+		return writeVarlong( buf, pos, value );
+	}
+
+	/**
+	 * Writes an unsigned long as a varint, seven bits at a time, returning the position after it
+	 */
+	private static int writeVarlong( byte[] buf, int pos, long value ) {
+		while ( (value & ~0x7fL) != 0 ) {
+			buf[ pos++ ] = (byte)((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buf[ pos++ ] = (byte)value;
+		return pos;
+	}
+
+	/**
+	 * Returns the number of bytes the string takes in UTF-8. Unpaired surrogates take three bytes,
+	 * like any other char of the same range
+	 */
+	private static int utf8Length( String s ) {
+		int length = s.length();
+		int bytes = length;
+		for ( int i = 0; i < length; i++ ) {
+			char c = s.charAt(i);
+			if ( Character.isHighSurrogate( c ) && i + 1 < length
+					&& Character.isLowSurrogate( s.charAt( i + 1 ))) {
+				// a pair takes four bytes, two for each of its chars
+				bytes += 2;
+				i++;
+			} else if ( c >= 0x800 ) {
+				bytes += 2;
+			} else if ( c >= 0x80 ) {
+				bytes++;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Writes a string as UTF-8, returning the position after it. Unpaired surrogates are encoded
+	 * on their own, so that the string reads back unchanged
+	 */
+	private static int writeUtf8( byte[] buf, int pos, String s ) {
+		int length = s.length();
+		for ( int i = 0; i < length; i++ ) {
+			char c = s.charAt(i);
+			if ( c < 0x80 ) {
+				buf[ pos++ ] = (byte)c;
+			} else if ( c < 0x800 ) {
+				buf[ pos++ ] = (byte)(0xc0 | (c >> 6));
+				buf[ pos++ ] = (byte)(0x80 | (c & 0x3f));
+			} else if ( Character.isHighSurrogate( c ) && i + 1 < length
+					&& Character.isLowSurrogate( s.charAt( i + 1 ))) {
+				int code = Character.toCodePoint( c, s.charAt( ++i ));
+				buf[ pos++ ] = (byte)(0xf0 | (code >> 18));
+				buf[ pos++ ] = (byte)(0x80 | ((code >> 12) & 0x3f));
+				buf[ pos++ ] = (byte)(0x80 | ((code >> 6) & 0x3f));
+				buf[ pos++ ] = (byte)(0x80 | (code & 0x3f));
+			} else {
+				buf[ pos++ ] = (byte)(0xe0 | (c >> 12));
+				buf[ pos++ ] = (byte)(0x80 | ((c >> 6) & 0x3f));
+				buf[ pos++ ] = (byte)(0x80 | (c & 0x3f));
+			}
+		}
+		return pos;
+	}
+}
@@ -0,0 +1,819 @@
+package org.jsonq.io;
+
+import org.jsonq.*;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Parses UTF-8 encoded JSON text straight into JSONObjects.
+ *
+ * The document must be a JSON object. Arrays become multi-valued fields, integers become Integers
+ * (or Longs, if they do not fit), other numbers become Doubles, and <code>null</code> is stored as
+ * a null value.
+ *
+ * A parser reuses its buffers from one document to the next, and keeps a small cache of the keys
+ * it has seen, so that the keys of similar documents are not allocated again. A parser must only be
+ * used by one thread at a time.
+ *
+ * A document can also be indexed instead of parsed (@see #index(byte[], int, int, FieldVisitor)),
+ * which finds where the value of each field lies without decoding any of them. This is what lazy
+ * JSONObjects are built on (@see org.jsonq.JSONObject#wrap(byte[])).
+ */
+public class JSONParser {
+
+	/**
+	 * Receives the fields of an indexed document
+	 */
+	public interface FieldVisitor {
+
+		/**
+		 * Called for each field, in document order
+		 *
+		 * @param key the key of the field
+		 * @param offset the start of the field's value in the array
+		 * @param length the length of the field's value
+		 */
+		void field( String key, int offset, int length );
+	}
+
+	/** Size of the buffer used for reading streams */
+	private static final int BUFFER_SIZE = 8192;
+
+	/** Number of keys remembered between documents. Must be a power of two */
+	private static final int KEY_CACHE_SIZE = 512;
+
+	/** Keys longer than this are not cached */
+	private static final int MAX_CACHED_KEY = 64;
+
+	/** Deepest nesting of objects and arrays accepted */
+	private static final int MAX_DEPTH = 512;
+
+	// the input window
+	private byte[] _buf;
+	private int _pos;
+	private int _limit;
+	private int _consumed;
+
+	// where more input comes from, if it does not all fit in the window
+	private InputStream _stream;
+	private ByteBuffer _source;
+
+	private byte[] _streamBuffer;
+	private char[] _chars = new char[ 64 ];
+	private int _length;
+	private final String[] _keys = new String[ KEY_CACHE_SIZE ];
+	private int _depth;
+
+	/**
+	 * Parses a document
+	 *
+	 * @param bytes the UTF-8 encoded document
+	 *
+	 * @throws IllegalArgumentException if the document is not a valid JSON object
+	 */
+	public JSONObject parse( byte[] bytes ) {
+		return parse( bytes, 0, bytes.length );
+	}
+
+	/**
+	 * Parses a document held in part of an array
+	 *
+	 * @param bytes the array holding the UTF-8 encoded document
+	 * @param offset the start of the document
+	 * @param length the length of the document
+	 *
+	 * @throws IllegalArgumentException if the document is not a valid JSON object
+	 */
+	public JSONObject parse( byte[] bytes, int offset, int length ) {
+		if ( offset < 0 || length < 0 || offset + length > bytes.length ) {
+			throw new IndexOutOfBoundsException();
+		}
+		try {
+			return parse( bytes, offset, offset + length, null, null );
+		} catch ( IOException e ) {
+			// there is no stream to fail
+			throw new IllegalStateException( e );
+		}
+	}
+
+	/**
+	 * Parses the document between the position and the limit of the buffer. The position is moved
+	 * to the limit.
+	 *
+	 * @param buffer the UTF-8 encoded document
+	 *
+	 * @throws IllegalArgumentException if the document is not a valid JSON object
+	 */
+	public JSONObject parse( ByteBuffer buffer ) {
+		try {
+			JSONObject result;
+			if ( buffer.hasArray() ) {
+				int start = buffer.arrayOffset() + buffer.position();
+				result = parse( buffer.array(), start, start + buffer.remaining(), null, null );
+			} else {
+				// direct buffers are copied through the stream buffer a window at a time
+				result = parse( streamBuffer(), 0, 0, null, buffer );
+			}
+			buffer.position( buffer.limit() );
+			return result;
+		} catch ( IOException e ) {
+			throw new IllegalStateException( e );
+		}
+	}
+
+	/**
+	 * Parses a document read from a stream. The stream is read to its end, but not closed.
+	 *
+	 * @param in the stream holding the UTF-8 encoded document
+	 *
+	 * @throws IllegalArgumentException if the document is not a valid JSON object
+	 * @throws IOException if the stream cannot be read
+	 */
+	public JSONObject parse( InputStream in ) throws IOException {
+		return parse( streamBuffer(), 0, 0, in, null );
+	}
+
+	/**
+	 * Finds the fields of a document held in part of an array, without decoding their values. The
+	 * whole document is checked to be well formed.
+	 *
+	 * @param bytes the array holding the UTF-8 encoded document
+	 * @param offset the start of the document
+	 * @param length the length of the document
+	 * @param visitor receives the key and the location of the value of each field
+	 *
+	 * @throws IllegalArgumentException if the document is not a valid JSON object
+	 */
+	public void index( byte[] bytes, int offset, int length, FieldVisitor visitor ) {
+		if ( offset < 0 || length < 0 || offset + length > bytes.length ) {
+			throw new IndexOutOfBoundsException();
+		}
+		start( bytes, offset, offset + length, null, null );
+		try {
+			expect( '{' );
+			_depth = 1;
+			int c = skipWhitespace();
+			if ( '}' == c ) {
+				_pos++;
+			} else {
+				do {
+					expect( '"' );
+					String key = parseKey();
+					expect( ':' );
+					// the input is a single array, so positions in the window are offsets in it
+					skipWhitespace();
+					int start = _pos;
+					skipValue();
+					visitor.field( key, start, _pos - start );
+				} while ( more( '}' ) );
+			}
+			if ( -1 != skipWhitespace() ) {
+				throw error( "Unexpected content after the object" );
+			}
+		} catch ( IOException e ) {
+			// there is no stream to fail
+			throw new IllegalStateException( e );
+		} finally {
+			finish();
+		}
+	}
+
+	/**
+	 * Parses a single value held in part of an array, such as one found by index()
+	 *
+	 * @param bytes the array holding the UTF-8 encoded value
+	 * @param offset the start of the value
+	 * @param length the length of the value
+	 *
+	 * @return a JSONObject, String, Integer, Long, Double, Boolean, a List of these, or null
+	 *
+	 * @throws IllegalArgumentException if the bytes do not hold exactly one valid JSON value
+	 */
+	public Object parseValue( byte[] bytes, int offset, int length ) {
+		if ( offset < 0 || length < 0 || offset + length > bytes.length ) {
+			throw new IndexOutOfBoundsException();
+		}
+		start( bytes, offset, offset + length, null, null );
+		try {
+			Object value = parseValue();
+			if ( -1 != skipWhitespace() ) {
+				throw error( "Unexpected content after the value" );
+			}
+			return value;
+		} catch ( IOException e ) {
+			throw new IllegalStateException( e );
+		} finally {
+			finish();
+		}
+	}
+
+	/**
+	 * Returns the buffer for reading streams, creating it on first use
+	 */
+	private byte[] streamBuffer() {
+		if ( null == _streamBuffer ) {
+			_streamBuffer = new byte[ BUFFER_SIZE ];
+		}
+		return _streamBuffer;
+	}
+
+	/**
+	 * Parses a document from the given window and source
+	 */
+	private JSONObject parse( byte[] buf, int pos, int limit, InputStream stream, ByteBuffer source )
+			throws IOException {
+		start( buf, pos, limit, stream, source );
+		try {
+			if ( '{' != skipWhitespace() ) {
+				throw error( "Expected an object" );
+			}
+			_pos++;
+			JSONObject result = parseObject();
+			if ( -1 != skipWhitespace() ) {
+				throw error( "Unexpected content after the object" );
+			}
+			return result;
+		} finally {
+			finish();
+		}
+	}
+
+	/**
+	 * Sets up the window and source for a new document
+	 */
+	private void start( byte[] buf, int pos, int limit, InputStream stream, ByteBuffer source ) {
+		_buf = buf;
+		_pos = pos;
+		_limit = limit;
+		_consumed = -pos;
+		_stream = stream;
+		_source = source;
+		_depth = 0;
+	}
+
+	/**
+	 * Lets go of the caller's input
+	 */
+	private void finish() {
+		_buf = null;
+		_stream = null;
+		_source = null;
+	}
+
+	// ----------------------------------------
+	// Input
+	// ----------------------------------------
+
+	/**
+	 * Refills the window from the source, returning false if there is no more input
+	 */
+	private boolean fill() throws IOException {
+		if ( null != _stream ) {
+			int read = _stream.read( _buf, 0, _buf.length );
+			if ( read <= 0 ) {
+				return false;
+			}
+			_consumed += _limit;
+			_pos = 0;
+			_limit = read;
+			return true;
+		} else if ( null != _source && _source.hasRemaining() ) {
+			int read = Math.min( _buf.length, _source.remaining() );
+			_source.get( _buf, 0, read );
+			_consumed += _limit;
+			_pos = 0;
+			_limit = read;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the next byte without consuming it, or -1 at the end of the input
+	 */
+	private int peek() throws IOException {
+		if ( _pos == _limit && ! fill() ) {
+			return -1;
+		}
+		return _buf[_pos] & 0xff;
+	}
+
+	/**
+	 * Consumes and returns the next byte
+	 *
+	 * @throws IllegalArgumentException at the end of the input
+	 */
+	private int read() throws IOException {
+		if ( _pos == _limit && ! fill() ) {
+			throw error( "Unexpected end of input" );
+		}
+		return _buf[ _pos++ ] & 0xff;
+	}
+
+	/**
+	 * Skips whitespace, returning the next byte without consuming it, or -1 at the end of the input
+	 */
+	private int skipWhitespace() throws IOException {
+		while ( true ) {
+			int c = peek();
+			if ( ' ' != c && '\n' != c && '\r' != c && '\t' != c ) {
+				return c;
+			}
+			_pos++;
+		}
+	}
+
+	/**
+	 * Consumes the expected byte, after any whitespace
+	 */
+	private void expect( char expected ) throws IOException {
+		if ( expected != skipWhitespace() ) {
+			throw error( "Expected '"+expected+"'" );
+		}
+		_pos++;
+	}
+
+	/**
+	 * Creates the exception for malformed input at the current position
+	 */
+	private IllegalArgumentException error( String message ) {
+		return error( message, _consumed + _pos );
+	}
+
+	/**
+	 * Creates the exception for malformed input at the given offset
+	 */
+	private static IllegalArgumentException error( String message, int offset ) {
+		return new IllegalArgumentException( message+" at offset "+offset );
+	}
+
+	// ----------------------------------------
+	// Structure
+	// ----------------------------------------
+
+	/**
+	 * Parses the members of an object, the opening brace having been consumed
+	 */
+	@SuppressWarnings("unchecked")
+	private JSONObject parseObject() throws IOException {
+		if ( ++_depth > MAX_DEPTH ) {
+			throw error( "Too deeply nested" );
+		}
+		JSONObject obj = JSONObject.create();
+		int c = skipWhitespace();
+		if ( '}' == c ) {
+			_pos++;
+			_depth--;
+			return obj;
+		}
+		while ( true ) {
+			if ( '"' != c ) {
+				throw error( "Expected a key" );
+			}
+			_pos++;
+			String key = parseKey();
+			expect( ':' );
+			Object value = parseValue();
+			if ( value instanceof List ) {
+				obj.put( key, (List)value );
+			} else {
+				put( obj, key, value );
+			}
+
+			c = skipWhitespace();
+			_pos++;
+			if ( '}' == c ) {
+				_depth--;
+				return obj;
+			} else if ( ',' != c ) {
+				_pos--;
+				throw error( "Expected ',' or '}'" );
+			}
+			c = skipWhitespace();
+		}
+	}
+
+	/**
+	 * Stores a single value under the right type
+	 */
+	private static void put( JSONObject obj, String key, Object value ) {
+		if ( value instanceof String ) {
+			obj.put( key, (String)value );
+		} else if ( value instanceof Integer ) {
+			obj.put( key, (int)value );
+		} else if ( value instanceof Boolean ) {
+			obj.put( key, (boolean)value );
+		} else if ( value instanceof JSONObject ) {
+			obj.put( key, (JSONObject)value );
+		} else if ( value instanceof Long ) {
+			obj.put( key, (long)value );
+		} else if ( value instanceof Double ) {
+			obj.put( key, (double)value );
+		} else {
+			obj.put( key, (String)null );
+		}
+	}
+
+	/**
+	 * Parses the elements of an array, the opening bracket having been consumed
+	 */
+	private List<Object> parseArray() throws IOException {
+		if ( ++_depth > MAX_DEPTH ) {
+			throw error( "Too deeply nested" );
+		}
+		List<Object> list = new ArrayList<>();
+		if ( ']' == skipWhitespace() ) {
+			_pos++;
+			_depth--;
+			return list;
+		}
+		while ( true ) {
+			list.add( parseValue() );
+			int c = skipWhitespace();
+			_pos++;
+			if ( ']' == c ) {
+				_depth--;
+				return list;
+			} else if ( ',' != c ) {
+				_pos--;
+				throw error( "Expected ',' or ']'" );
+			}
+		}
+	}
+
+	/**
+	 * Parses any value
+	 */
+	private Object parseValue() throws IOException {
+		int c = skipWhitespace();
+		switch ( c ) {
+			case '{':
+				_pos++;
+				return parseObject();
+			case '[':
+				_pos++;
+				return parseArray();
+			case '"':
+				_pos++;
+				// the length first, as decoding may replace the scratch buffer
+				int length = parseString();
+				return new String( _chars, 0, length );
+			case 't':
+				literal( "true" );
+				return Boolean.TRUE;
+			case 'f':
+				literal( "false" );
+				return Boolean.FALSE;
+			case 'n':
+				literal( "null" );
+				return null;
+			default:
+				if ( '-' == c || (c >= '0' && c <= '9') ) {
+					return parseNumber();
+				}
+				throw error( -1 == c ? "Unexpected end of input" : "Unexpected character" );
+		}
+	}
+
+	/**
+	 * Checks and skips any value, decoding nothing but what it must to check it
+	 */
+	private void skipValue() throws IOException {
+		int c = skipWhitespace();
+		if ( '{' == c || '[' == c ) {
+			_pos++;
+			if ( ++_depth > MAX_DEPTH ) {
+				throw error( "Too deeply nested" );
+			}
+			char close = '{' == c ? '}' : ']';
+			if ( close == skipWhitespace() ) {
+				_pos++;
+			} else {
+				do {
+					if ( '}' == close ) {
+						expect( '"' );
+						parseString();
+						expect( ':' );
+					}
+					skipValue();
+				} while ( more( close ) );
+			}
+			_depth--;
+		} else if ( '"' == c ) {
+			_pos++;
+			parseString();
+		} else if ( 't' == c ) {
+			literal( "true" );
+		} else if ( 'f' == c ) {
+			literal( "false" );
+		} else if ( 'n' == c ) {
+			literal( "null" );
+		} else if ( '-' == c || (c >= '0' && c <= '9') ) {
+			skipNumber();
+		} else {
+			throw error( -1 == c ? "Unexpected end of input" : "Unexpected character" );
+		}
+	}
+
+	/**
+	 * Consumes the separator after a member or element, returning false if it was the closing
+	 * character rather than a comma
+	 */
+	private boolean more( char close ) throws IOException {
+		int c = skipWhitespace();
+		_pos++;
+		if ( close == c ) {
+			return false;
+		} else if ( ',' != c ) {
+			_pos--;
+			throw error( "Expected ',' or '"+close+"'" );
+		}
+		return true;
+	}
+
+	/**
+	 * Consumes a literal
+	 */
+	private void literal( String expected ) throws IOException {
+		for ( int i = 0; i < expected.length(); i++ ) {
+			if ( expected.charAt(i) != read() ) {
+				_pos--;
+				throw error( "Expected "+expected );
+			}
+		}
+	}
+
+	// ----------------------------------------
+	// Scalars
+	// ----------------------------------------
+
+	/**
+	 * Parses a key, returning the cached String if the same key has been seen before
+	 */
+	private String parseKey() throws IOException {
+		int length = parseString();
+		if ( length > MAX_CACHED_KEY ) {
+			return new String( _chars, 0, length );
+		}
+		int hash = 0;
+		for ( int i = 0; i < length; i++ ) {
+			hash = 31 * hash + _chars[i];
+		}
+		int slot = (hash ^ (hash >>> 16)) & (KEY_CACHE_SIZE - 1);
+		String key = _keys[slot];
+		if ( null != key && key.length() == length && matches( key, length ) ) {
+			return key;
+		}
+		key = new String( _chars, 0, length );
+		_keys[slot] = key;
+		return key;
+	}
+
+	/**
+	 * Returns true if the string decoded into the scratch buffer is equal to the key
+	 */
+	private boolean matches( String key, int length ) {
+		for ( int i = 0; i < length; i++ ) {
+			if ( key.charAt(i) != _chars[i] ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Decodes a string into the scratch buffer, the opening quote having been consumed
+	 *
+	 * @return the number of chars decoded
+	 */
+	private int parseString() throws IOException {
+		int length = 0;
+		while ( true ) {
+			// copy plain ASCII straight out of the window
+			int end = Math.min( _limit, _pos + (_chars.length - length) );
+			while ( _pos < end ) {
+				byte b = _buf[_pos];
+				if ( b < 0x20 || '"' == b || '\\' == b ) {
+					break;
+				}
+				_chars[ length++ ] = (char)b;
+				_pos++;
+			}
+			if ( length + 2 > _chars.length ) {
+				_chars = Arrays.copyOf( _chars, _chars.length * 2 );
+			}
+
+			int c = read();
+			if ( '"' == c ) {
+				return length;
+			} else if ( '\\' == c ) {
+				_chars[ length++ ] = escape();
+			} else if ( c >= 0x80 ) {
+				length = decode( c, length );
+			} else if ( c < 0x20 ) {
+				_pos--;
+				throw error( "Unescaped control character in string" );
+			} else {
+				// the window ended within ASCII text
+				_chars[ length++ ] = (char)c;
+			}
+		}
+	}
+
+	/**
+	 * Decodes an escape sequence, the backslash having been consumed
+	 */
+	private char escape() throws IOException {
+		int c = read();
+		switch ( c ) {
+			case '"': return '"';
+			case '\\': return '\\';
+			case '/': return '/';
+			case 'b': return '\b';
+			case 'f': return '\f';
+			case 'n': return '\n';
+			case 'r': return '\r';
+			case 't': return '\t';
+			case 'u':
+				int value = 0;
+				for ( int i = 0; i < 4; i++ ) {
+					int digit = Character.digit( read(), 16 );
+					if ( digit < 0 ) {
+						_pos--;
+						throw error( "Invalid unicode escape" );
+					}
+					value = (value << 4) | digit;
+				}
+				return (char)value;
+			default:
+				_pos--;
+				throw error( "Invalid escape" );
+		}
+	}
+
+	/**
+	 * Decodes a multi-byte UTF-8 sequence starting with the given byte into the scratch buffer.
+	 * Overlong sequences, encoded surrogates and code points past U+10FFFF are rejected, so that
+	 * every string has one encoding and decodes to valid UTF-16
+	 *
+	 * @return the new number of chars decoded
+	 */
+	private int decode( int first, int length ) throws IOException {
+		int start = _consumed + _pos - 1;
+		int extra;
+		int code;
+		int min;
+		if ( (first & 0xe0) == 0xc0 ) {
+			extra = 1;
+			code = first & 0x1f;
+			min = 0x80;
+		} else if ( (first & 0xf0) == 0xe0 ) {
+			extra = 2;
+			code = first & 0x0f;
+			min = 0x800;
+		} else if ( (first & 0xf8) == 0xf0 ) {
+			extra = 3;
+			code = first & 0x07;
+			min = 0x10000;
+		} else {
+			_pos--;
+			throw error( "Invalid UTF-8" );
+		}
+		for ( int i = 0; i < extra; i++ ) {
+			int c = read();
+			if ( (c & 0xc0) != 0x80 ) {
+				_pos--;
+				throw error( "Invalid UTF-8" );
+			}
+			code = (code << 6) | (c & 0x3f);
+		}
+		if ( code < min || code > Character.MAX_CODE_POINT
+				|| (code >= Character.MIN_SURROGATE && code <= Character.MAX_SURROGATE) ) {
+			throw error( "Invalid UTF-8", start );
+		}
+		if ( code < 0x10000 ) {
+			_chars[ length++ ] = (char)code;
+		} else {
+			_chars[ length++ ] = Character.highSurrogate( code );
+			_chars[ length++ ] = Character.lowSurrogate( code );
+		}
+		return length;
+	}
+
+	/**
+	 * Parses a number. Integers of up to 18 digits are accumulated directly; anything with a
+	 * fraction or exponent, or too long for a long, is handed to Double.parseDouble
+	 */
+	private Object parseNumber() throws IOException {
+		_length = 0;
+		boolean negative = accept( '-' );
+		long value = 0;
+		int digits = 0;
+		if ( accept( '0' ) ) {
+			digits = 1;
+		} else {
+			int c = peek();
+			if ( c < '1' || c > '9' ) {
+				throw error( "Invalid number" );
+			}
+			while ( c >= '0' && c <= '9' ) {
+				value = value * 10 + (c - '0');
+				digits++;
+				append( c );
+				c = peek();
+			}
+		}
+
+		boolean integral = true;
+		if ( accept( '.' ) ) {
+			integral = false;
+			digits();
+		}
+		if ( accept( 'e' ) || accept( 'E' ) ) {
+			integral = false;
+			if ( ! accept( '+' ) ) {
+				accept( '-' );
+			}
+			digits();
+		}
+
+		if ( integral && digits <= 18 ) {
+			value = negative ? -value : value;
+			if ( value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE ) {
+				return Integer.valueOf( (int)value );
+			}
+			return Long.valueOf( value );
+		}
+		String text = new String( _chars, 0, _length );
+		if ( integral && 19 == digits ) {
+			// may or may not fit in a long
+			try {
+				return Long.valueOf( text );
+			} catch ( NumberFormatException e ) {
+				// too big, fall through
+			}
+		}
+		return Double.valueOf( text );
+	}
+
+	/**
+	 * Checks and skips a number, without converting it
+	 */
+	private void skipNumber() throws IOException {
+		_length = 0;
+		accept( '-' );
+		if ( ! accept( '0' ) ) {
+			int c = peek();
+			if ( c < '1' || c > '9' ) {
+				throw error( "Invalid number" );
+			}
+			digits();
+		}
+		if ( accept( '.' ) ) {
+			digits();
+		}
+		if ( accept( 'e' ) || accept( 'E' ) ) {
+			if ( ! accept( '+' ) ) {
+				accept( '-' );
+			}
+			digits();
+		}
+	}
+
+	/**
+	 * Consumes one or more digits
+	 */
+	private void digits() throws IOException {
+		int c = peek();
+		if ( c < '0' || c > '9' ) {
+			throw error( "Invalid number" );
+		}
+		while ( c >= '0' && c <= '9' ) {
+			append( c );
+			c = peek();
+		}
+	}
+
+	/**
+	 * Consumes the next byte if it is the given character
+	 */
+	private boolean accept( char expected ) throws IOException {
+		if ( expected != peek() ) {
+			return false;
+		}
+		append( expected );
+		return true;
+	}
+
+	/**
+	 * Consumes the next byte, appending it to the number being parsed
+	 */
+	private void append( int c ) {
+		if ( _length == _chars.length ) {
+			_chars = Arrays.copyOf( _chars, _chars.length * 2 );
+		}
+		_chars[ _length++ ] = (char)c;
+		_pos++;
+	}
+}
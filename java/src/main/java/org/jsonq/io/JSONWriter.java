@@ -0,0 +1,360 @@
+package org.jsonq.io;
+
+import org.jsonq.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Writes JSONObjects as UTF-8 encoded JSON text.
+ *
+ * Output goes through a fixed-size buffer which is handed to the target whenever it fills up, so
+ * writing takes the same amount of extra memory however large the object is; no intermediate
+ * String is built. Multi-valued fields are written as arrays (@see org.jsonq.JSONObject#isList()).
+ *
+ * Values may be JSONObjects, Strings, Booleans, Numbers, Lists or arrays of these, or null.
+ * Numbers which JSON cannot represent, such as NaN, are written as null. Objects which still match
+ * the text they were created from (@see org.jsonq.JSONObject#getSource()) are written by copying
+ * that text, without reading their fields. A writer reuses its buffer from one object to the next,
+ * and must only be used by one thread at a time.
+ */
+public class JSONWriter {
+
+	/** Size of the output buffer */
+	private static final int BUFFER_SIZE = 8192;
+
+	/** Deepest nesting of objects and arrays written */
+	private static final int MAX_DEPTH = 512;
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes( UTF8 );
+	private static final byte[] NULL = "null".getBytes( UTF8 );
+	private static final byte[] TRUE = "true".getBytes( UTF8 );
+	private static final byte[] FALSE = "false".getBytes( UTF8 );
+	private static final byte[] MIN_LONG = Long.toString( Long.MIN_VALUE ).getBytes( UTF8 );
+
+	private final byte[] _buf = new byte[ BUFFER_SIZE ];
+	private int _pos;
+	private int _depth;
+
+	// where the buffer is flushed to
+	private OutputStream _stream;
+	private ByteBuffer _target;
+
+	/**
+	 * Writes an object to a stream. The stream is neither flushed nor closed.
+	 *
+	 * @param obj the object to write
+	 * @param out the stream to write to
+	 *
+	 * @throws IllegalArgumentException if the object holds a value which cannot be written
+	 * @throws IOException if the stream cannot be written to
+	 */
+	public void write( JSONObject obj, OutputStream out ) throws IOException {
+		if ( null == out ) {
+			throw new NullPointerException( "out cannot be null" );
+		}
+		write( obj, out, null );
+	}
+
+	/**
+	 * Writes an object to a buffer, starting at its position. The position is moved past the
+	 * object.
+	 *
+	 * @param obj the object to write
+	 * @param buffer the buffer to write to
+	 *
+	 * @throws IllegalArgumentException if the object holds a value which cannot be written
+	 * @throws BufferOverflowException if the object does not fit in the buffer. Part of the object
+	 * may have been written
+	 */
+	public void write( JSONObject obj, ByteBuffer buffer ) {
+		if ( null == buffer ) {
+			throw new NullPointerException( "buffer cannot be null" );
+		}
+		try {
+			write( obj, null, buffer );
+		} catch ( IOException e ) {
+			// there is no stream to fail
+			throw new IllegalStateException( e );
+		}
+	}
+
+	/**
+	 * Writes an object to the given target
+	 */
+	private void write( JSONObject obj, OutputStream stream, ByteBuffer target ) throws IOException {
+		if ( null == obj ) {
+			throw new NullPointerException( "obj cannot be null" );
+		}
+		_pos = 0;
+		_depth = 0;
+		_stream = stream;
+		_target = target;
+		try {
+			writeObject( obj );
+			flush();
+		} finally {
+			_pos = 0;
+			_stream = null;
+			_target = null;
+		}
+	}
+
+	// ----------------------------------------
+	// Output
+	// ----------------------------------------
+
+	/**
+	 * Hands the buffered bytes to the target
+	 */
+	private void flush() throws IOException {
+		if ( null != _stream ) {
+			_stream.write( _buf, 0, _pos );
+		} else {
+			_target.put( _buf, 0, _pos );
+		}
+		_pos = 0;
+	}
+
+	/**
+	 * Makes room for the given number of bytes, which must be no more than the buffer size
+	 */
+	private void require( int length ) throws IOException {
+		if ( _pos + length > _buf.length ) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes a single ASCII byte
+	 */
+	private void writeByte( char c ) throws IOException {
+		if ( _pos == _buf.length ) {
+			flush();
+		}
+		_buf[ _pos++ ] = (byte)c;
+	}
+
+	/**
+	 * Writes bytes which are known to be short
+	 */
+	private void writeBytes( byte[] bytes ) throws IOException {
+		require( bytes.length );
+		System.arraycopy( bytes, 0, _buf, _pos, bytes.length );
+		_pos += bytes.length;
+	}
+
+	// ----------------------------------------
+	// Structure
+	// ----------------------------------------
+
+	/**
+	 * Writes an object
+	 */
+	private void writeObject( JSONObject obj ) throws IOException {
+		ByteBuffer source = obj.getSource();
+		if ( null != source ) {
+			writeSource( source );
+			return;
+		}
+		enter();
+		writeByte( '{' );
+		boolean first = true;
+		for ( String key : obj.getKeys() ) {
+			if ( ! first ) {
+				writeByte( ',' );
+			}
+			first = false;
+			writeString( key );
+			writeByte( ':' );
+			if ( obj.isList( key ) ) {
+				writeArray( obj.get( key ));
+			} else {
+				writeValue( obj.getSingle( key ));
+			}
+		}
+		writeByte( '}' );
+		_depth--;
+	}
+
+	/**
+	 * Copies the text of an object as it is
+	 */
+	private void writeSource( ByteBuffer source ) throws IOException {
+		while ( source.hasRemaining() ) {
+			if ( _pos == _buf.length ) {
+				flush();
+			}
+			int length = Math.min( source.remaining(), _buf.length - _pos );
+			source.get( _buf, _pos, length );
+			_pos += length;
+		}
+	}
+
+	/**
+	 * Writes the elements of a list as an array
+	 */
+	private void writeArray( List<?> values ) throws IOException {
+		enter();
+		writeByte( '[' );
+		boolean first = true;
+		for ( Object value : values ) {
+			if ( ! first ) {
+				writeByte( ',' );
+			}
+			first = false;
+			writeValue( value );
+		}
+		writeByte( ']' );
+		_depth--;
+	}
+
+	/**
+	 * Goes one level deeper, failing if the object is nested too deeply
+	 */
+	private void enter() {
+		if ( ++_depth > MAX_DEPTH ) {
+			throw new IllegalArgumentException( "Too deeply nested" );
+		}
+	}
+
+	/**
+	 * Writes any value
+	 */
+	private void writeValue( Object value ) throws IOException {
+		if ( null == value ) {
+			writeBytes( NULL );
+		} else if ( value instanceof String ) {
+			writeString( (String)value );
+		} else if ( value instanceof JSONObject ) {
+			writeObject( (JSONObject)value );
+		} else if ( value instanceof Integer || value instanceof Long
+				|| value instanceof Short || value instanceof Byte ) {
+			writeLong( ((Number)value).longValue() );
+		} else if ( value instanceof Double ) {
+			writeDouble( (Double)value, false );
+		} else if ( value instanceof Float ) {
+			writeDouble( (Float)value, true );
+		} else if ( value instanceof Boolean ) {
+			writeBytes( (Boolean)value ? TRUE : FALSE );
+		} else if ( value instanceof List ) {
+			writeArray( (List<?>)value );
+		} else if ( value instanceof Object[] ) {
+			writeArray( Arrays.asList( (Object[])value ));
+		} else {
+			throw new IllegalArgumentException( "Cannot write a "+value.getClass().getName() );
+		}
+	}
+
+	// ----------------------------------------
+	// Scalars
+	// ----------------------------------------
+
+	/**
+	 * Writes an integer, digit by digit
+	 */
+	private void writeLong( long value ) throws IOException {
+		if ( Long.MIN_VALUE == value ) {
+			// cannot be negated
+			writeBytes( MIN_LONG );
+			return;
+		}
+		require( 20 );
+		if ( value < 0 ) {
+			_buf[ _pos++ ] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for ( long v = value / 10; v > 0; v /= 10 ) {
+			digits++;
+		}
+		for ( int i = _pos + digits - 1; i >= _pos; i-- ) {
+			_buf[i] = (byte)('0' + value % 10);
+			value /= 10;
+		}
+		_pos += digits;
+	}
+
+	/**
+	 * Writes a floating point number. Whole numbers keep their fraction, so that they are read back
+	 * as doubles
+	 */
+	private void writeDouble( double value, boolean single ) throws IOException {
+		if ( Double.isNaN( value ) || Double.isInfinite( value ) ) {
+			writeBytes( NULL );
+		} else {
+			// floats are printed as floats, so they do not gain digits
+			String text = single ? Float.toString( (float)value ) : Double.toString( value );
+			require( text.length() );
+			for ( int i = 0; i < text.length(); i++ ) {
+				_buf[ _pos++ ] = (byte)text.charAt(i);
+			}
+		}
+	}
+
+	/**
+	 * Writes a quoted, escaped string, encoding it as UTF-8 as it goes
+	 */
+	private void writeString( String s ) throws IOException {
+		writeByte( '"' );
+		int length = s.length();
+		for ( int i = 0; i < length; i++ ) {
+			char c = s.charAt(i);
+			if ( c >= 0x20 && c < 0x80 && '"' != c && '\\' != c ) {
+				if ( _pos == _buf.length ) {
+					flush();
+				}
+				_buf[ _pos++ ] = (byte)c;
+			} else if ( c < 0x80 ) {
+				writeEscape( c );
+			} else {
+				require( 4 );
+				if ( c < 0x800 ) {
+					_buf[ _pos++ ] = (byte)(0xc0 | (c >> 6));
+					_buf[ _pos++ ] = (byte)(0x80 | (c & 0x3f));
+				} else if ( Character.isHighSurrogate( c ) && i + 1 < length
+						&& Character.isLowSurrogate( s.charAt( i + 1 ))) {
+					int code = Character.toCodePoint( c, s.charAt( ++i ));
+					_buf[ _pos++ ] = (byte)(0xf0 | (code >> 18));
+					_buf[ _pos++ ] = (byte)(0x80 | ((code >> 12) & 0x3f));
+					_buf[ _pos++ ] = (byte)(0x80 | ((code >> 6) & 0x3f));
+					_buf[ _pos++ ] = (byte)(0x80 | (code & 0x3f));
+				} else if ( Character.isSurrogate( c ) ) {
+					// a lone surrogate cannot be encoded as UTF-8
+					writeEscape( c );
+				} else {
+					_buf[ _pos++ ] = (byte)(0xe0 | (c >> 12));
+					_buf[ _pos++ ] = (byte)(0x80 | ((c >> 6) & 0x3f));
+					_buf[ _pos++ ] = (byte)(0x80 | (c & 0x3f));
+				}
+			}
+		}
+		writeByte( '"' );
+	}
+
+	/**
+	 * Writes an escape sequence for the given character
+	 */
+	private void writeEscape( char c ) throws IOException {
+		require( 6 );
+		_buf[ _pos++ ] = '\\';
+		switch ( c ) {
+			case '"': _buf[ _pos++ ] = '"'; break;
+			case '\\': _buf[ _pos++ ] = '\\'; break;
+			case '\n': _buf[ _pos++ ] = 'n'; break;
+			case '\r': _buf[ _pos++ ] = 'r'; break;
+			case '\t': _buf[ _pos++ ] = 't'; break;
+			case '\b': _buf[ _pos++ ] = 'b'; break;
+			case '\f': _buf[ _pos++ ] = 'f'; break;
+			default:
+				_buf[ _pos++ ] = 'u';
+				_buf[ _pos++ ] = HEX[ (c >> 12) & 0xf ];
+				_buf[ _pos++ ] = HEX[ (c >> 8) & 0xf ];
+				_buf[ _pos++ ] = HEX[ (c >> 4) & 0xf ];
+				_buf[ _pos++ ] = HEX[ c & 0xf ];
+		}
+	}
+}
@@ -0,0 +1,10 @@
+package org.jsonq.provider;
+
+/**
+ * Marker for stores whose single-document operations never block, such as in-memory stores. The
+ * database may call such a store directly on the thread handling the request, rather than
+ * scheduling the call.
+ */
+public interface NonBlockingStore extends Store {
+
+}
@@ -7,12 +7,14 @@ import java.util.*;
 import static org.jsonq.JSONQConstants.*;
 
 /**
- * Base class for DB commands
+ * Base class for DB commands. A command whose future has been cancelled, or whose request deadline
+ * has passed by the time it runs, is not executed.
  */
-public abstract class Command<T> implements Runnable {
+public abstract class Command<T> implements Task {
 
 	protected final FutureImpl<T,JSONObject> _future;
 	protected final JSONObject _request;
+	protected final long _deadline;
 
 	/**
 	 * Constructor 
@@ -20,6 +22,145 @@ public abstract class Command<T> implements Runnable {
 	protected Command( FutureImpl<T,JSONObject> future, JSONObject request ) {
 		_future = future;
 		_request = request;
+		_deadline = deadlineOf( request );
+	}
+
+	/**
+	 * Returns the deadline of a request, or 0 if it has none. A relative timeout is counted from
+	 * when the command is created, so it covers the time the command spends queued
+	 */
+	private static long deadlineOf( JSONObject request ) {
+		if ( request.containsKey( Request.DEADLINE ) ) {
+			return (long)request.getDouble( Request.DEADLINE );
+		} else if ( request.containsKey( Request.TIMEOUT ) ) {
+			return System.currentTimeMillis() + (long)request.getDouble( Request.TIMEOUT );
+		}
+		return 0;
+	}
+
+	/**
+	 * Runs the command, unless it has been aborted
+	 */
+	@Override
+	public final void run() {
+		if ( ! isAborted() ) {
+			execute();
+		}
+	}
+
+	/**
+	 * Called to execute this command
+	 */
+	protected abstract void execute();
+
+	/**
+	 * Returns true if the result of this command is no longer wanted, either because its future
+	 * has been cancelled or because the request deadline has passed. Commands doing long-running
+	 * work should check this periodically and stop early. A command which has expired is failed
+	 * with <code>err.timeout</code>.
+	 */
+	protected boolean isAborted() {
+		if ( _future.isCancelled() ) {
+			return true;
+		}
+		if ( 0 != _deadline && System.currentTimeMillis() > _deadline ) {
+			fail( "err.timeout", "The request deadline has passed" );
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Runs this command. Commands which never block are run directly on the current thread, all
+	 * others are handed to the Scheduler. If the Scheduler is overloaded the command fails with
+	 * <code>err.overloaded</code>.
+	 *
+	 * Scheduled commands are ordered in their lane (@see #getLane()). Commands run directly are
+	 * not, as they have run by the time dispatch() returns: commands a thread dispatches run in the
+	 * order it dispatches them, while commands dispatched by different threads at once are only
+	 * ordered by the store they run against.
+	 */
+	public void dispatch() {
+		if ( isDirect() ) {
+			run();
+		} else if ( ! Scheduler.runAsync( this ) ) {
+			fail( "err.overloaded", "Too many requests are waiting to run" );
+		}
+	}
+
+	/**
+	 * Returns true if this command never blocks, so it can be run without being scheduled
+	 */
+	protected boolean isDirect() {
+		return false;
+	}
+
+	/**
+	 * Returns the lane this command must be ordered in when it is scheduled. By default commands
+	 * may run in any order
+	 */
+	@Override
+	public String getLane() {
+		return null;
+	}
+
+	/**
+	 * Returns the priority class named in the request. Requests without a valid priority get one
+	 * from their operation: reads are latency-sensitive, writes are normal, and scans and
+	 * provisioning are background work
+	 */
+	@Override
+	public int getPriority() {
+		String priority = idOf( _request, Request.PRIORITY );
+		if ( Priority.HIGH.equals( priority ) ) {
+			return PRIORITY_HIGH;
+		} else if ( Priority.NORMAL.equals( priority ) ) {
+			return PRIORITY_NORMAL;
+		} else if ( Priority.LOW.equals( priority ) ) {
+			return PRIORITY_LOW;
+		}
+		String op = idOf( _request, Request.OP );
+		if ( Op.FETCH.equals( op ) ) {
+			return PRIORITY_HIGH;
+		} else if ( Op.SAVE.equals( op ) || Op.DELETE.equals( op ) ) {
+			return PRIORITY_NORMAL;
+		}
+		return PRIORITY_LOW;
+	}
+
+	/**
+	 * Returns the String value of the given key, or null if there isn't a single String there. Used
+	 * to pick document IDs and other hints out of requests without failing on malformed input.
+	 *
+	 * @param obj the object to look in
+	 * @param key the key to look up
+	 */
+	protected static String idOf( JSONObject obj, String key ) {
+		if ( null == obj || ! obj.containsKey( key ) ) {
+			return null;
+		}
+		try {
+			return obj.getString( key );
+		} catch ( IllegalArgumentException e ) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the JSONObject value of the given key, or null if there isn't a single object there
+	 *
+	 * @param obj the object to look in
+	 * @param key the key to look up
+	 */
+	protected static JSONObject objectOf( JSONObject obj, String key ) {
+		if ( null == obj || ! obj.containsKey( key ) ) {
+			return null;
+		}
+		try {
+			return obj.getObject( key );
+		} catch ( IllegalArgumentException e ) {
+			return null;
+		}
 	}
 
 	/**
@@ -65,10 +206,11 @@ public abstract class Command<T> implements Runnable {
 	 */
 	@SuppressWarnings("unchecked")
 	protected void complete( Object payload, boolean success ) {
+		// the future may already have been cancelled or timed out
 		if ( success ) {
-			_future.complete( (T)payload );
+			_future.tryComplete( (T)payload );
 		} else {
-			_future.fail( (JSONObject)payload );
+			_future.tryFail( (JSONObject)payload );
 		}
 	}
 }
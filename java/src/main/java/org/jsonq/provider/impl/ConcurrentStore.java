@@ -0,0 +1,88 @@
+package org.jsonq.provider.impl;
+
+import org.jsonq.*;
+import org.jsonq.provider.*;
+import org.jsonq.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.jsonq.JSONQConstants.*;
+
+/**
+ * In-memory store provider for stores used by many threads at once. Documents are kept in a
+ * ConcurrentHashMap, so fetches and listings never lock, and saves and deletes only lock the
+ * stripe of the map holding the document, where SimpleStore locks its whole map for every
+ * operation. Documents are otherwise handled as they are by SimpleStore, and the same schema
+ * settings apply.
+ *
+ * The schema may give the number of threads expected to write at once as "concurrency", which
+ * sets the number of stripes. It defaults to the number of available processors.
+ */
+public class ConcurrentStore extends SimpleStore {
+
+	public static final StoreFactory<ConcurrentStore> FACTORY = new Factory();
+
+	/**
+	 * Factory for creating ConcurrentStores
+	 */
+	private static class Factory implements StoreFactory<ConcurrentStore> {
+
+		public Future<ConcurrentStore,JSONObject> create( JSONObject schema ) {
+			FutureImpl<ConcurrentStore,JSONObject> future = new FutureImpl<>();
+			future.complete( new ConcurrentStore( schema ) );
+			return future;
+		}
+	}
+
+	/** The documents by ID. The map of SimpleStore is left empty */
+	protected final ConcurrentMap<String,JSONObject> _documents;
+
+	/**
+	 * Protected Constructor. Only subclasses and the factory should be able to create a
+	 * ConcurrentStore
+	 */
+	protected ConcurrentStore( JSONObject schema ) {
+		super( schema );
+		int concurrency = Runtime.getRuntime().availableProcessors();
+		Object setting = schema.containsKey( Schema.CONCURRENCY )
+				? schema.getSingle( Schema.CONCURRENCY )
+				: null;
+		if ( setting instanceof Number ) {
+			concurrency = Math.max( 1, ((Number)setting).intValue() );
+		}
+		_documents = new ConcurrentHashMap<>( 16, 0.75f, concurrency );
+	}
+
+	//----------------------------------------
+	// Storage
+	//----------------------------------------
+
+	@Override
+	protected boolean putDocument( String id, JSONObject document ) {
+		_documents.put( id, document );
+		return true;
+	}
+
+	@Override
+	protected JSONObject getDocument( String id ) {
+		return _documents.get( id );
+	}
+
+	@Override
+	protected void removeDocument( String id ) {
+		_documents.remove( id );
+	}
+
+	@Override
+	protected int countDocuments() {
+		return _documents.size();
+	}
+
+	/**
+	 * Returns a live view of the IDs, which does not copy them
+	 */
+	@Override
+	protected Iterable<String> documentIds() {
+		return _documents.keySet();
+	}
+}
@@ -46,7 +46,7 @@ public class DefaultDatabase implements Database {
 	@Override
 	public Future<JSONObject,JSONObject> provision( JSONObject request ) {
 		FutureImpl<JSONObject,JSONObject> future = new FutureImpl<JSONObject,JSONObject>();
-		Scheduler.runAsync( new ProvisionCommand( future, request ) );
+		new ProvisionCommand( future, request ).dispatch();
 		return future;
 	}
 
@@ -60,7 +60,7 @@ public class DefaultDatabase implements Database {
 	@Override
 	public Future<JSONObject,JSONObject> save( JSONObject request ) {
 		FutureImpl<JSONObject,JSONObject> future = new FutureImpl<JSONObject,JSONObject>();
-		Scheduler.runAsync( new SaveCommand( future, request ) );
+		new SaveCommand( future, request ).dispatch();
 		return future;
 	}
 
@@ -74,7 +74,7 @@ public class DefaultDatabase implements Database {
 	@Override
 	public Future<JSONObject,JSONObject> fetch( JSONObject request ) {
 		FutureImpl<JSONObject,JSONObject> future = new FutureImpl<JSONObject,JSONObject>();
-		Scheduler.runAsync( new FetchCommand( future, request ) );
+		new FetchCommand( future, request ).dispatch();
 		return future;
 	}
 
@@ -88,7 +88,7 @@ public class DefaultDatabase implements Database {
 	@Override
 	public Future<JSONObject,JSONObject> delete( JSONObject request ) {
 		FutureImpl<JSONObject,JSONObject> future = new FutureImpl<JSONObject,JSONObject>();
-		Scheduler.runAsync( new DeleteCommand( future, request ) );
+		new DeleteCommand( future, request ).dispatch();
 		return future;
 	}
 
@@ -102,7 +102,7 @@ public class DefaultDatabase implements Database {
 	@Override
 	public Future<JSONObject,JSONObject> list( JSONObject request ) {
 		FutureImpl<JSONObject,JSONObject> future = new FutureImpl<JSONObject,JSONObject>();
-		Scheduler.runAsync( new ListCommand( future, request ) );
+		new ListCommand( future, request ).dispatch();
 		return future;
 	}
 
@@ -189,7 +189,7 @@ public class DefaultDatabase implements Database {
 		 * Called to execute this command
 		 */
 		@SuppressWarnings("unchecked")
-		public void run() {
+		protected void execute() {
 			final String storeName = _request.getString( Request.STORE );
 
 			synchronized ( _storeMap ) {
@@ -249,18 +249,55 @@ public class DefaultDatabase implements Database {
 		}
 
 		/**
-		 * Method Description
+		 * Commands on the same document are ordered in a lane named after the store and the document
+		 * ID, unless they are run directly. Commands which do not address a single document may run
+		 * in any order.
 		 */
 		@Override
-		public final void run() {
-			final String storeName = _request.getString( Request.STORE );
+		public String getLane() {
+			String id = getDocumentId();
+			if ( null == id ) {
+				return null;
+			}
+			return _request.getString( Request.STORE )+"/"+id;
+		}
+
+		/**
+		 * Returns the ID of the document this command operates on, or null if it is not known
+		 */
+		protected String getDocumentId() {
+			return null;
+		}
+
+		/**
+		 * Commands against non-blocking stores are run directly, and only hand the request on to
+		 * the store, which orders the commands it schedules itself
+		 */
+		@Override
+		protected boolean isDirect() {
+			return getStore() instanceof NonBlockingStore;
+		}
+
+		/**
+		 * Returns the store named in the request, or null if it does not exist
+		 */
+		protected Store getStore() {
 			synchronized ( _storeMap ) {
-				if ( ! _storeMap.containsKey( storeName )) {
-					fail( "err.invalid.store", "Cannot find store {0}", storeName );
-					return;
-				}
+				return _storeMap.get( _request.getString( Request.STORE ));
+			}
+		}
+
+		/**
+		 * Looks up the store and runs the command against it
+		 */
+		@Override
+		protected final void execute() {
+			Store store = getStore();
+			if ( null == store ) {
+				fail( "err.invalid.store", "Cannot find store {0}", _request.getString( Request.STORE ));
+				return;
 			}
-			run( _storeMap.get( storeName ));
+			run( store );
 		}
 
 		/**
@@ -282,11 +319,24 @@ public class DefaultDatabase implements Database {
 			super( future, request );
 		}
 
+		/**
+		 * Returns the ID of the document being saved, if it has one
+		 */
+		@Override
+		protected String getDocumentId() {
+			Store store = getStore();
+			if ( null == store ) {
+				return null;
+			}
+			return idOf( objectOf( _request, Request.PAYLOAD ), store.getIdField() );
+		}
+
 		/**
 		 * Called to execute this command
 		 */
 		protected void run( final Store store ) {
 			Future<String,JSONObject> future = store.save( _request );
+			_future.setUpstream( future );
 			future.then(
 					new Closure<String>() {
 						public void apply( String id ) {
@@ -312,11 +362,20 @@ public class DefaultDatabase implements Database {
 			super( future, request );
 		}
 
+		/**
+		 * Returns the ID of the document being fetched
+		 */
+		@Override
+		protected String getDocumentId() {
+			return idOf( _request, Request.PAYLOAD );
+		}
+
 		/**
 		 * Called to execute this command
 		 */
 		protected void run( final Store store ) {
 			Future<JSONObject,JSONObject> future = store.fetch( _request );
+			_future.setUpstream( future );
 			future.then(
 					new Closure<JSONObject>() {
 						public void apply( JSONObject object ) { complete( object ); }
@@ -340,11 +399,20 @@ public class DefaultDatabase implements Database {
 			super( future, request );
 		}
 
+		/**
+		 * Returns the ID of the document being deleted
+		 */
+		@Override
+		protected String getDocumentId() {
+			return idOf( _request, Request.PAYLOAD );
+		}
+
 		/**
 		 * Called to execute this command
 		 */
 		protected void run( final Store store ) {
 			Future<Void,JSONObject> future = store.delete( _request );
+			_future.setUpstream( future );
 			future.then(
 					new Closure<Void>() {
 						public void apply( Void obj ) { complete( (String)null ); }
@@ -373,6 +441,7 @@ public class DefaultDatabase implements Database {
 		 */
 		protected void run( final Store store ) {
 			Future<List<JSONObject>,JSONObject> future = store.list( _request );
+			_future.setUpstream( future );
 			future.then(
 					new Closure<List<JSONObject>>() {
 						public void apply( List<JSONObject> objects ) { complete( objects ); }
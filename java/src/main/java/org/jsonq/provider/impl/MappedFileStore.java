@@ -0,0 +1,954 @@
+package org.jsonq.provider.impl;
+
+import org.jsonq.*;
+import org.jsonq.io.*;
+import org.jsonq.provider.*;
+import org.jsonq.provider.log.*;
+import org.jsonq.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
+
+import static org.jsonq.JSONQConstants.*;
+
+/**
+ * Persistent store provider keeping its documents in a file which is memory-mapped, so that
+ * fetching documents the operating system has cached is a read from memory, with no system call.
+ * Documents are encoded (@see org.jsonq.io.BinaryEncoder) and appended to the file, and the index
+ * from IDs to documents is made of arrays of primitives, as in OffHeapStore.
+ *
+ * The schema gives the path of the file as "file". The file is mapped in regions of
+ * "region_size" bytes (64 MiB by default, and fixed when the file is created), and grows by a
+ * region at a time; documents larger than a region cannot be saved. Saves and deletes append to
+ * the file, leaving the records they replace behind, and the file is compacted into a new one when
+ * more than half of it is left behind.
+ *
+ * The index is saved next to the file (users.db.index) by flush() and close(), and loaded when the
+ * store is opened again, after which only the records appended since are read. Without a usable
+ * index the whole file is read. Every record carries a CRC32, so records torn by a crash are cut
+ * off.
+ *
+ * Changes reach the disk when the operating system writes the mapped pages back, and at the
+ * latest when flush() or close() is called. Stores which must not lose acknowledged changes can be
+ * logged (@see org.jsonq.provider.log.LoggedStore).
+ *
+ * Saves may have to grow the file, map a new region or compact the file, so commands on single
+ * documents are scheduled in the lane of their document rather than run on the calling thread.
+ * Calling the store still never blocks.
+ *
+ * Every fetch decodes the document anew, so fetched documents are not frozen and belong to the
+ * caller. The schema settings for fields and dictionaries have no effect.
+ */
+public class MappedFileStore extends SimpleStore implements Closeable {
+
+	public static final StoreFactory<MappedFileStore> FACTORY = new Factory();
+
+	/** Size of the regions of new files unless the schema says otherwise */
+	public static final int DEFAULT_REGION_SIZE = 1 << 26;
+
+	/** Extension of the index file */
+	public static final String INDEX_SUFFIX = ".index";
+
+	private static final int MAGIC = 0x4a514d46;
+	private static final int VERSION = 1;
+
+	/** Bytes at the start of the file, for the magic number, version, region size and generation */
+	private static final int FILE_HEADER = 20;
+
+	/** Bytes in front of every record, for its CRC and the lengths of the ID and of the document */
+	private static final int RECORD_HEADER = 12;
+
+	/** Document length of the records of deletes */
+	private static final int DELETED = -1;
+
+	/** Location of an index slot which has never been used */
+	private static final long EMPTY = 0;
+
+	/** Location of an index slot whose document has been removed */
+	private static final long REMOVED = -1;
+
+	private static final ThreadLocal<BinaryEncoder> ENCODER = new ThreadLocal<BinaryEncoder>() {
+		@Override
+		protected BinaryEncoder initialValue() {
+			return new BinaryEncoder();
+		}
+	};
+
+	private static final ThreadLocal<Reader> READER = new ThreadLocal<Reader>() {
+		@Override
+		protected Reader initialValue() {
+			return new Reader();
+		}
+	};
+
+	/**
+	 * Factory for creating MappedFileStores
+	 */
+	private static class Factory implements StoreFactory<MappedFileStore> {
+
+		public Future<MappedFileStore,JSONObject> create( JSONObject schema ) {
+			FutureImpl<MappedFileStore,JSONObject> future = new FutureImpl<>();
+			try {
+				future.complete( new MappedFileStore( schema ) );
+			} catch ( IOException | IllegalArgumentException e ) {
+				JSONObject error = JSONObject.create();
+				error.put( "code", "err.store.open" );
+				error.put( "message", "Cannot open the store file: {0}" );
+				error.add( "args", String.valueOf( e.getMessage() ));
+				future.fail( error );
+			}
+			return future;
+		}
+	}
+
+	/**
+	 * The decoder of a thread, with a buffer to copy records out of the file into
+	 */
+	private static final class Reader {
+
+		final BinaryDecoder _decoder = new BinaryDecoder();
+		byte[] _bytes = new byte[ 1024 ];
+
+		/**
+		 * Returns the buffer, large enough for the given number of bytes
+		 */
+		byte[] buffer( int length ) {
+			if ( length > _bytes.length ) {
+				_bytes = new byte[ Math.max( length, _bytes.length * 2 ) ];
+			}
+			return _bytes;
+		}
+	}
+
+	/**
+	 * A data file and its mapped regions. Records are appended at the tail, in the tail region or
+	 * the ones after it, and never span two regions
+	 */
+	private static final class DataFile {
+
+		final RandomAccessFile _raf;
+		final int _regionSize;
+		final long _generation;
+		MappedByteBuffer[] _regions = new MappedByteBuffer[ 4 ];
+		int _regionCount;
+		int _tailRegion;
+		int _tail;
+
+		/**
+		 * Opens a data file, mapping all its regions
+		 *
+		 * @param create true to start a new file, with the given region size
+		 */
+		DataFile( File file, boolean create, int regionSize ) throws IOException {
+			_raf = new RandomAccessFile( file, "rw" );
+			try {
+				if ( create ) {
+					_raf.setLength( 0 );
+					_regionSize = regionSize;
+					_generation = new Random().nextLong();
+					grow();
+					_regions[0].putInt( 0, MAGIC ).putInt( 4, VERSION ).putInt( 8, _regionSize ).putLong( 12, _generation );
+				} else {
+					if ( _raf.readInt() != MAGIC || _raf.readInt() != VERSION ) {
+						throw new IOException( file+" is not a store file" );
+					}
+					_regionSize = _raf.readInt();
+					_generation = _raf.readLong();
+					if ( _regionSize < FILE_HEADER + RECORD_HEADER || _raf.length() % _regionSize != 0 ) {
+						throw new IOException( file+" is damaged" );
+					}
+					for ( long i = _raf.length() / _regionSize; i > 0; i-- ) {
+						grow();
+					}
+				}
+			} catch ( IOException | RuntimeException e ) {
+				_raf.close();
+				throw e;
+			}
+			_tail = FILE_HEADER;
+		}
+
+		/**
+		 * Maps the next region of the file, making the file longer if it does not have the region
+		 */
+		void grow() throws IOException {
+			if ( _regionCount == _regions.length ) {
+				_regions = Arrays.copyOf( _regions, _regionCount * 2 );
+			}
+			long start = (long)_regionCount * _regionSize;
+			if ( _raf.length() < start + _regionSize ) {
+				_raf.setLength( start + _regionSize );
+			}
+			_regions[ _regionCount ] = _raf.getChannel().map( FileChannel.MapMode.READ_WRITE, start, _regionSize );
+			_regionCount++;
+		}
+
+		/**
+		 * Takes room for a record at the tail, adding a region if the tail region has too little
+		 *
+		 * @return the location of the room, or EMPTY if the record is larger than a region
+		 */
+		long allocate( int size ) throws IOException {
+			if ( size > _regionSize - FILE_HEADER ) {
+				return EMPTY;
+			}
+			if ( _tail + size > _regionSize ) {
+				if ( _tailRegion + 1 == _regionCount ) {
+					grow();
+				}
+				_tailRegion++;
+				_tail = 0;
+			}
+			long location = locationOf( _tailRegion, _tail );
+			_tail += size;
+			return location;
+		}
+
+		/**
+		 * Returns true if the tail region is the last one and the record would not fit in it
+		 */
+		boolean mustGrow( int size ) {
+			return _tailRegion + 1 == _regionCount && _tail + size > _regionSize;
+		}
+
+		/**
+		 * Returns the bytes of the file holding records, up to the tail
+		 */
+		long length() {
+			return (long)_tailRegion * _regionSize + _tail;
+		}
+
+		/**
+		 * Writes the mapped regions to the disk
+		 */
+		void force() {
+			for ( int i = 0; i < _regionCount; i++ ) {
+				_regions[i].force();
+			}
+		}
+	}
+
+	private final File _file;
+	private final File _indexFile;
+	private final ReadWriteLock _lock = new ReentrantReadWriteLock();
+
+	// the data file, which compaction replaces, with the bytes of its records and the number of
+	// those belonging to stored documents
+	private DataFile _data;
+	private long _written;
+	private long _live;
+	private long _compactions;
+	private boolean _closed;
+
+	// the index, an open-addressed table of the locations of records, (region + 1) << 32 | offset,
+	// with the hashes of their IDs. The IDs themselves are only kept in the records
+	private long[] _locations = new long[ 16 ];
+	private int[] _hashes = new int[ 16 ];
+	private int _count;
+	private int _removed;
+
+	/**
+	 * Protected Constructor. Only subclasses and the factory should be able to create a
+	 * MappedFileStore. Opens the file given by the schema, creating it if need be
+	 *
+	 * @throws IOException if the file cannot be read or written
+	 * @throws IllegalArgumentException if the schema gives no file
+	 */
+	protected MappedFileStore( JSONObject schema ) throws IOException {
+		super( schema );
+		Object path = schema.containsKey( Schema.FILE ) ? schema.getSingle( Schema.FILE ) : null;
+		if ( ! (path instanceof String) ) {
+			throw new IllegalArgumentException( "No store file given" );
+		}
+		_file = new File( (String)path );
+		_indexFile = new File( _file.getPath()+INDEX_SUFFIX );
+		// a compaction cut short by a crash left the file as it was
+		compactionFile().delete();
+
+		int regionSize = DEFAULT_REGION_SIZE;
+		Object setting = schema.containsKey( Schema.REGION_SIZE ) ? schema.getSingle( Schema.REGION_SIZE ) : null;
+		if ( setting instanceof Number && ((Number)setting).intValue() > FILE_HEADER + RECORD_HEADER ) {
+			regionSize = ((Number)setting).intValue();
+		}
+		_data = new DataFile( _file, ! _file.exists() || 0 == _file.length(), regionSize );
+		if ( ! readIndex() ) {
+			_locations = new long[ 16 ];
+			_hashes = new int[ 16 ];
+			_count = 0;
+			_removed = 0;
+			_written = 0;
+			_live = 0;
+			_data._tailRegion = 0;
+			_data._tail = FILE_HEADER;
+		}
+		scan();
+	}
+
+	/**
+	 * Returns the data file of the store
+	 */
+	public File getFile() {
+		return _file;
+	}
+
+	/**
+	 * Returns the size of the regions the file is mapped in, in bytes
+	 */
+	public int getRegionSize() {
+		return _data._regionSize;
+	}
+
+	/**
+	 * Returns the size of the data file, in bytes
+	 */
+	public long getFileSize() {
+		_lock.readLock().lock();
+		try {
+			return (long)_data._regionCount * _data._regionSize;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the bytes of the file holding stored documents. The rest is either free or taken by
+	 * records which have been replaced or deleted
+	 */
+	public long getDataSize() {
+		_lock.readLock().lock();
+		try {
+			return _live;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of times the file has been compacted
+	 */
+	public long getCompactions() {
+		_lock.readLock().lock();
+		try {
+			return _compactions;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes the file to the disk and saves the index, so that the store opens quickly
+	 *
+	 * @throws IOException if the index cannot be written
+	 */
+	public synchronized void flush() throws IOException {
+		_lock.readLock().lock();
+		try {
+			if ( ! _closed ) {
+				_data.force();
+				writeIndex();
+			}
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Rewrites the file with only the records of stored documents
+	 *
+	 * @throws IOException if the new file cannot be written. The store is left as it was
+	 */
+	public synchronized void compact() throws IOException {
+		_lock.writeLock().lock();
+		try {
+			if ( ! _closed ) {
+				rewrite();
+			}
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Flushes the store and closes its file. The store cannot be used afterwards
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		_lock.writeLock().lock();
+		try {
+			if ( _closed ) {
+				return;
+			}
+			_data.force();
+			writeIndex();
+			_data._raf.close();
+			_closed = true;
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	//----------------------------------------
+	// Storage
+	//----------------------------------------
+
+	/**
+	 * Saves may wait for the disk
+	 */
+	@Override
+	protected boolean isStorageBlocking() {
+		return true;
+	}
+
+	/**
+	 * Documents are encoded as they are, so they are neither copied nor frozen
+	 */
+	@Override
+	protected JSONObject toDocument( JSONObject payload ) {
+		return payload;
+	}
+
+	@Override
+	protected boolean putDocument( String id, JSONObject document ) {
+		// build the record before locking, so that saves only hold the lock to copy it
+		byte[] record = record( id, ENCODER.get().encode( document ));
+		int hash = hash( id );
+
+		_lock.writeLock().lock();
+		try {
+			long location = append( record );
+			if ( EMPTY == location ) {
+				return false;
+			}
+			_live += record.length;
+			// the slot is looked up last, as making room may have moved the record being replaced
+			int slot = find( id, hash );
+			if ( slot >= 0 ) {
+				release( _locations[ slot ] );
+				_locations[ slot ] = location;
+			} else {
+				insert( hash, location );
+			}
+			return true;
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	protected JSONObject getDocument( String id ) {
+		int hash = hash( id );
+		Reader reader = READER.get();
+		byte[] bytes;
+		int length;
+
+		_lock.readLock().lock();
+		try {
+			int slot = find( id, hash );
+			if ( slot < 0 ) {
+				return null;
+			}
+			long location = _locations[ slot ];
+			ByteBuffer region = _data._regions[ regionOf( location ) ];
+			int offset = offsetOf( location );
+			length = region.getInt( offset + 8 );
+			bytes = reader.buffer( length );
+			ByteBuffer source = region.duplicate();
+			source.position( offset + RECORD_HEADER + 2 * id.length() );
+			source.get( bytes, 0, length );
+		} finally {
+			_lock.readLock().unlock();
+		}
+		// decode outside the lock, from the copy
+		return reader._decoder.decode( bytes, 0, length );
+	}
+
+	@Override
+	protected void removeDocument( String id ) {
+		byte[] record = record( id, null );
+		int hash = hash( id );
+		_lock.writeLock().lock();
+		try {
+			int slot = find( id, hash );
+			if ( slot < 0 ) {
+				return;
+			}
+			// without room for the record of the delete, the delete lasts until the next restart
+			// unless the index is saved first
+			append( record );
+			release( _locations[ slot ] );
+			_locations[ slot ] = REMOVED;
+			_count--;
+			_removed++;
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	protected int countDocuments() {
+		_lock.readLock().lock();
+		try {
+			return _count;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the IDs, read out of the records
+	 */
+	@Override
+	protected Iterable<String> documentIds() {
+		_lock.readLock().lock();
+		try {
+			List<String> ids = new ArrayList<>( _count );
+			char[] chars = new char[ 16 ];
+			for ( long location : _locations ) {
+				if ( EMPTY == location || REMOVED == location ) {
+					continue;
+				}
+				ByteBuffer region = _data._regions[ regionOf( location ) ];
+				int offset = offsetOf( location );
+				int idLength = region.getInt( offset + 4 );
+				if ( idLength > chars.length ) {
+					chars = new char[ Math.max( idLength, chars.length * 2 ) ];
+				}
+				for ( int i = 0; i < idLength; i++ ) {
+					chars[i] = region.getChar( offset + RECORD_HEADER + 2 * i );
+				}
+				ids.add( new String( chars, 0, idLength ));
+			}
+			return ids;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	//----------------------------------------
+	// Records
+	//----------------------------------------
+
+	/**
+	 * Returns the region of a location
+	 */
+	private static int regionOf( long location ) {
+		return (int)(location >>> 32) - 1;
+	}
+
+	/**
+	 * Returns the offset of a location in its region
+	 */
+	private static int offsetOf( long location ) {
+		return (int)location;
+	}
+
+	/**
+	 * Returns the location of an offset in a region
+	 */
+	private static long locationOf( int region, int offset ) {
+		return ((long)(region + 1) << 32) | offset;
+	}
+
+	/**
+	 * Builds the record of a save, or of a delete if there is no document
+	 */
+	private static byte[] record( String id, byte[] document ) {
+		int idLength = id.length();
+		int length = null == document ? 0 : document.length;
+		ByteBuffer record = ByteBuffer.allocate( RECORD_HEADER + 2 * idLength + length );
+		record.position( 4 );
+		record.putInt( idLength );
+		record.putInt( null == document ? DELETED : length );
+		for ( int i = 0; i < idLength; i++ ) {
+			record.putChar( id.charAt(i) );
+		}
+		if ( null != document ) {
+			record.put( document );
+		}
+		byte[] bytes = record.array();
+		record.putInt( 0, checksum( bytes, bytes.length ));
+		return bytes;
+	}
+
+	/**
+	 * Returns the CRC32 of a record, which covers all of it but the CRC itself
+	 */
+	private static int checksum( byte[] record, int size ) {
+		CRC32 crc = new CRC32();
+		crc.update( record, 4, size - 4 );
+		return (int)crc.getValue();
+	}
+
+	/**
+	 * Returns the size of the record at the given offset of the region
+	 */
+	private static int recordSize( ByteBuffer region, int offset ) {
+		return RECORD_HEADER + 2 * region.getInt( offset + 4 ) + Math.max( 0, region.getInt( offset + 8 ));
+	}
+
+	/**
+	 * Appends a record to the file, compacting the file first if it would otherwise grow while
+	 * mostly made of records left behind. Must be called with the write lock held.
+	 *
+	 * @return the location of the record, or EMPTY if there is no room for it
+	 */
+	private long append( byte[] record ) {
+		if ( _closed ) {
+			return EMPTY;
+		}
+		try {
+			if ( _data.mustGrow( record.length ) && _written - _live > _live ) {
+				rewrite();
+			}
+			long location = _data.allocate( record.length );
+			if ( EMPTY == location ) {
+				return EMPTY;
+			}
+			ByteBuffer target = _data._regions[ regionOf( location ) ].duplicate();
+			target.position( offsetOf( location ));
+			target.put( record );
+			_written += record.length;
+			return location;
+		} catch ( IOException e ) {
+			// the disk is full or the file cannot be mapped any further
+			return EMPTY;
+		}
+	}
+
+	/**
+	 * Gives back the room taken by a record which is no longer stored
+	 */
+	private void release( long location ) {
+		_live -= recordSize( _data._regions[ regionOf( location ) ], offsetOf( location ));
+	}
+
+	/**
+	 * Reads the records appended after the tail, adding them to the index. Reading stops at the
+	 * first record which is not whole, which is cleared along with anything after it
+	 */
+	private void scan() throws IOException {
+		DataFile data = _data;
+		Reader reader = READER.get();
+		int region = data._tailRegion;
+		int offset = data._tail;
+		while ( region < data._regionCount ) {
+			ByteBuffer buffer = data._regions[ region ];
+			if ( offset + RECORD_HEADER > data._regionSize || isEnd( buffer, offset )) {
+				// the rest of the region was left empty
+				region++;
+				offset = 0;
+				continue;
+			}
+			int idLength = buffer.getInt( offset + 4 );
+			int length = buffer.getInt( offset + 8 );
+			long size = RECORD_HEADER + 2L * idLength + Math.max( 0, length );
+			// IDs may be empty, so whether the record is whole is up to its CRC
+			boolean whole = idLength >= 0 && length >= DELETED && offset + size <= data._regionSize;
+			byte[] bytes = null;
+			if ( whole ) {
+				bytes = reader.buffer( (int)size );
+				ByteBuffer source = buffer.duplicate();
+				source.position( offset );
+				source.get( bytes, 0, (int)size );
+				whole = checksum( bytes, (int)size ) == buffer.getInt( offset );
+			}
+			if ( ! whole ) {
+				clear( region, offset );
+				break;
+			}
+			data._tailRegion = region;
+			data._tail = offset + (int)size;
+			_written += size;
+			apply( new String( bytes, RECORD_HEADER, 2 * idLength, "UTF-16BE" ), locationOf( region, offset ), length, (int)size );
+			offset += size;
+		}
+	}
+
+	/**
+	 * Returns true if there is no record at the given offset of the region. No record has a header
+	 * of zeros, since records of saves hold a document of at least one byte and records of deletes
+	 * have a length of DELETED
+	 */
+	private static boolean isEnd( ByteBuffer region, int offset ) {
+		return 0 == region.getInt( offset ) && 0 == region.getInt( offset + 4 ) && 0 == region.getInt( offset + 8 );
+	}
+
+	/**
+	 * Applies a record read from the file to the index
+	 */
+	private void apply( String id, long location, int length, int size ) {
+		int hash = hash( id );
+		int slot = find( id, hash );
+		if ( slot >= 0 ) {
+			release( _locations[ slot ] );
+		}
+		if ( DELETED == length ) {
+			if ( slot >= 0 ) {
+				_locations[ slot ] = REMOVED;
+				_count--;
+				_removed++;
+			}
+			return;
+		}
+		_live += size;
+		if ( slot >= 0 ) {
+			_locations[ slot ] = location;
+		} else {
+			insert( hash, location );
+		}
+	}
+
+	/**
+	 * Zeroes a region from the given offset, and drops the regions after it, so that what is left
+	 * of a torn record is not read again
+	 */
+	private void clear( int region, int offset ) throws IOException {
+		DataFile data = _data;
+		ByteBuffer target = data._regions[ region ].duplicate();
+		target.position( offset );
+		byte[] zeros = new byte[ 8192 ];
+		while ( target.hasRemaining() ) {
+			target.put( zeros, 0, Math.min( zeros.length, target.remaining() ));
+		}
+		for ( int i = region + 1; i < data._regionCount; i++ ) {
+			data._regions[i] = null;
+		}
+		data._regionCount = region + 1;
+		data._raf.setLength( (long)data._regionCount * data._regionSize );
+		data._tailRegion = region;
+		data._tail = offset;
+	}
+
+	/**
+	 * Writes the records of the stored documents to a new file, which then replaces the file. Must
+	 * be called with the write lock held.
+	 */
+	private void rewrite() throws IOException {
+		File file = compactionFile();
+		DataFile data = new DataFile( file, true, _data._regionSize );
+		try {
+			long[] locations = new long[ _locations.length ];
+			long written = 0;
+			for ( int i = 0; i < _locations.length; i++ ) {
+				long location = _locations[i];
+				if ( EMPTY == location || REMOVED == location ) {
+					locations[i] = location;
+					continue;
+				}
+				ByteBuffer source = _data._regions[ regionOf( location ) ].duplicate();
+				int size = recordSize( source, offsetOf( location ));
+				source.position( offsetOf( location ));
+				source.limit( offsetOf( location ) + size );
+				locations[i] = data.allocate( size );
+				ByteBuffer target = data._regions[ regionOf( locations[i] ) ].duplicate();
+				target.position( offsetOf( locations[i] ));
+				target.put( source );
+				written += size;
+			}
+			data.force();
+			if ( ! file.renameTo( _file )) {
+				throw new IOException( "Cannot rename "+file+" to "+_file );
+			}
+			_data._raf.close();
+			_data = data;
+			_locations = locations;
+			_written = written;
+			_live = written;
+			_compactions++;
+		} catch ( IOException | RuntimeException e ) {
+			data._raf.close();
+			file.delete();
+			throw e;
+		}
+		// the new file must survive a crash before the index saying it is there
+		WriteAheadLog.syncDirectory( _file );
+		// the old index no longer matches the file
+		writeIndex();
+	}
+
+	private File compactionFile() {
+		return new File( _file.getPath()+".compact" );
+	}
+
+	//----------------------------------------
+	// Index file
+	//----------------------------------------
+
+	/**
+	 * Saves the index, with the generation of the file and the tail it covers. Must be called with
+	 * a lock held.
+	 */
+	private void writeIndex() throws IOException {
+		File temporary = new File( _indexFile.getPath()+".tmp" );
+		try ( FileOutputStream stream = new FileOutputStream( temporary ) ) {
+			CheckedOutputStream checked = new CheckedOutputStream( new BufferedOutputStream( stream, 1 << 16 ), new CRC32() );
+			DataOutputStream out = new DataOutputStream( checked );
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeLong( _data._generation );
+			out.writeInt( _data._tailRegion );
+			out.writeInt( _data._tail );
+			out.writeLong( _written );
+			out.writeLong( _live );
+			out.writeInt( _count );
+			for ( int i = 0; i < _locations.length; i++ ) {
+				if ( EMPTY != _locations[i] && REMOVED != _locations[i] ) {
+					out.writeLong( _locations[i] );
+					out.writeInt( _hashes[i] );
+				}
+			}
+			out.flush();
+			out.writeLong( checked.getChecksum().getValue() );
+			out.flush();
+			stream.getChannel().force( false );
+		}
+		if ( ! temporary.renameTo( _indexFile )) {
+			temporary.delete();
+			throw new IOException( "Cannot rename "+temporary+" to "+_indexFile );
+		}
+	}
+
+	/**
+	 * Loads the saved index, if there is one matching the file
+	 *
+	 * @return false if there is none
+	 */
+	private boolean readIndex() {
+		if ( ! _indexFile.exists() ) {
+			return false;
+		}
+		try ( InputStream stream = new FileInputStream( _indexFile ) ) {
+			CheckedInputStream checked = new CheckedInputStream( new BufferedInputStream( stream, 1 << 16 ), new CRC32() );
+			DataInputStream in = new DataInputStream( checked );
+			if ( in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != _data._generation ) {
+				return false;
+			}
+			int tailRegion = in.readInt();
+			int tail = in.readInt();
+			if ( tailRegion >= _data._regionCount || tail > _data._regionSize ) {
+				return false;
+			}
+			_data._tailRegion = tailRegion;
+			_data._tail = tail;
+			_written = in.readLong();
+			_live = in.readLong();
+			int count = in.readInt();
+			_count = 0;
+			int capacity = 16;
+			while ( (count + 1) * 2L * 4 > capacity * 3L ) {
+				capacity <<= 1;
+			}
+			_locations = new long[ capacity ];
+			_hashes = new int[ capacity ];
+			for ( int i = 0; i < count; i++ ) {
+				long location = in.readLong();
+				int hash = in.readInt();
+				if ( regionOf( location ) >= _data._regionCount ) {
+					return false;
+				}
+				insert( hash, location );
+			}
+			long checksum = checked.getChecksum().getValue();
+			return in.readLong() == checksum;
+		} catch ( IOException e ) {
+			return false;
+		}
+	}
+
+	//----------------------------------------
+	// Index
+	//----------------------------------------
+
+	/**
+	 * Returns the hash of an ID
+	 */
+	private static int hash( String id ) {
+		int h = id.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Returns true if the record at the given location has the given ID
+	 */
+	private boolean matches( long location, String id ) {
+		ByteBuffer region = _data._regions[ regionOf( location ) ];
+		int offset = offsetOf( location );
+		int idLength = id.length();
+		if ( region.getInt( offset + 4 ) != idLength ) {
+			return false;
+		}
+		for ( int i = 0; i < idLength; i++ ) {
+			if ( region.getChar( offset + RECORD_HEADER + 2 * i ) != id.charAt(i) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the slot of the document with the given ID, or -1 if there is none
+	 */
+	private int find( String id, int hash ) {
+		int mask = _locations.length - 1;
+		for ( int i = hash & mask; ; i = (i + 1) & mask ) {
+			long location = _locations[i];
+			if ( EMPTY == location ) {
+				return -1;
+			}
+			if ( REMOVED != location && _hashes[i] == hash && matches( location, id )) {
+				return i;
+			}
+		}
+	}
+
+	/**
+	 * Adds the location of a document which is not in the index yet
+	 */
+	private void insert( int hash, long location ) {
+		if ( (_count + _removed + 1) * 4L > _locations.length * 3L ) {
+			rehash();
+		}
+		int mask = _locations.length - 1;
+		int i = hash & mask;
+		while ( EMPTY != _locations[i] && REMOVED != _locations[i] ) {
+			i = (i + 1) & mask;
+		}
+		if ( REMOVED == _locations[i] ) {
+			_removed--;
+		}
+		_locations[i] = location;
+		_hashes[i] = hash;
+		_count++;
+	}
+
+	/**
+	 * Rebuilds the index without its removed slots, at a size leaving room for as many documents
+	 * again
+	 */
+	private void rehash() {
+		int capacity = 16;
+		while ( (_count + 1) * 2L * 4 > capacity * 3L ) {
+			capacity <<= 1;
+		}
+		long[] locations = _locations;
+		int[] hashes = _hashes;
+		_locations = new long[ capacity ];
+		_hashes = new int[ capacity ];
+		int mask = capacity - 1;
+		for ( int j = 0; j < locations.length; j++ ) {
+			if ( EMPTY == locations[j] || REMOVED == locations[j] ) {
+				continue;
+			}
+			int i = hashes[j] & mask;
+			while ( EMPTY != _locations[i] ) {
+				i = (i + 1) & mask;
+			}
+			_locations[i] = locations[j];
+			_hashes[i] = hashes[j];
+		}
+		_removed = 0;
+	}
+}
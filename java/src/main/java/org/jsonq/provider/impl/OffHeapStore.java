@@ -0,0 +1,624 @@
+package org.jsonq.provider.impl;
+
+import org.jsonq.*;
+import org.jsonq.io.*;
+import org.jsonq.provider.*;
+import org.jsonq.util.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import static org.jsonq.JSONQConstants.*;
+
+/**
+ * In-memory store provider keeping its documents outside the Java heap, for stores of millions of
+ * documents. Documents are encoded (@see org.jsonq.io.BinaryEncoder) into large direct buffers,
+ * the arenas, and the index from IDs to documents is made of arrays of primitives, so the garbage
+ * collector has next to nothing to trace however many documents are stored.
+ *
+ * Every fetch decodes the document anew, so fetched documents are not frozen and belong to the
+ * caller. The schema settings for fields and dictionaries have no effect, as the encoding has a
+ * dictionary of its own.
+ *
+ * The schema may set the most memory the store may take, in bytes, as "memory" (1 GiB by default)
+ * and the size of each arena as "arena_size" (16 MiB by default). Saves and deletes leave holes in
+ * the arenas, which are compacted when the store runs out of room; saves which still do not fit
+ * fail with <code>err.store.full</code>. Direct memory is also limited by the JVM, through
+ * -XX:MaxDirectMemorySize.
+ *
+ * Fetches and listings may run at the same time as each other, while saves and deletes run one at
+ * a time.
+ */
+public class OffHeapStore extends SimpleStore {
+
+	public static final StoreFactory<OffHeapStore> FACTORY = new Factory();
+
+	/** Most memory taken by a store unless the schema says otherwise */
+	public static final long DEFAULT_MEMORY = 1L << 30;
+
+	/** Size of the arenas unless the schema says otherwise */
+	public static final int DEFAULT_ARENA_SIZE = 1 << 24;
+
+	/** Location of an index slot which has never been used */
+	private static final long EMPTY = 0;
+
+	/** Location of an index slot whose document has been removed */
+	private static final long REMOVED = -1;
+
+	/** Bytes in front of every record, for the lengths of the ID and of the document */
+	private static final int RECORD_HEADER = 8;
+
+	/** Most bytes moved at a time when compacting */
+	private static final int MOVE_CHUNK = 1 << 16;
+
+	private static final ThreadLocal<BinaryEncoder> ENCODER = new ThreadLocal<BinaryEncoder>() {
+		@Override
+		protected BinaryEncoder initialValue() {
+			return new BinaryEncoder();
+		}
+	};
+
+	private static final ThreadLocal<Reader> READER = new ThreadLocal<Reader>() {
+		@Override
+		protected Reader initialValue() {
+			return new Reader();
+		}
+	};
+
+	/**
+	 * Factory for creating OffHeapStores
+	 */
+	private static class Factory implements StoreFactory<OffHeapStore> {
+
+		public Future<OffHeapStore,JSONObject> create( JSONObject schema ) {
+			FutureImpl<OffHeapStore,JSONObject> future = new FutureImpl<>();
+			future.complete( new OffHeapStore( schema ) );
+			return future;
+		}
+	}
+
+	/**
+	 * The decoder of a thread, with a buffer to copy documents out of the arenas into
+	 */
+	private static final class Reader {
+
+		final BinaryDecoder _decoder = new BinaryDecoder();
+		byte[] _bytes = new byte[ 1024 ];
+
+		/**
+		 * Returns the buffer, large enough for the given number of bytes
+		 */
+		byte[] buffer( int length ) {
+			if ( length > _bytes.length ) {
+				_bytes = new byte[ Math.max( length, _bytes.length * 2 ) ];
+			}
+			return _bytes;
+		}
+	}
+
+	private final long _memory;
+	private final int _arenaSize;
+	private final ReadWriteLock _lock = new ReentrantReadWriteLock();
+
+	// the arenas, with the number of bytes written to the start of each and the number of those
+	// which belong to stored documents. Records are an ID, as its length and chars, followed by a
+	// document, as its length and encoded bytes
+	private ByteBuffer[] _arenas = new ByteBuffer[ 4 ];
+	private int[] _used = new int[ 4 ];
+	private int[] _live = new int[ 4 ];
+	private int _arenaCount;
+	private int _current;
+	private long _allocated;
+	private long _compactions;
+	private byte[] _scratch;
+
+	// the index, an open-addressed table of the locations of records, (arena + 1) << 32 | offset,
+	// with the hashes of their IDs. The IDs themselves are only kept in the records
+	private long[] _locations = new long[ 16 ];
+	private int[] _hashes = new int[ 16 ];
+	private int _count;
+	private int _removed;
+
+	/**
+	 * Protected Constructor. Only subclasses and the factory should be able to create an
+	 * OffHeapStore
+	 */
+	protected OffHeapStore( JSONObject schema ) {
+		super( schema );
+		_memory = longOf( schema, Schema.MEMORY, DEFAULT_MEMORY );
+		_arenaSize = (int)Math.min( Integer.MAX_VALUE, longOf( schema, Schema.ARENA_SIZE, DEFAULT_ARENA_SIZE ));
+	}
+
+	/**
+	 * Returns the positive number the schema gives for the key, or the default
+	 */
+	private static long longOf( JSONObject schema, String key, long defaultValue ) {
+		Object setting = schema.containsKey( key ) ? schema.getSingle( key ) : null;
+		if ( setting instanceof Number && ((Number)setting).longValue() > 0 ) {
+			return ((Number)setting).longValue();
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Returns the most memory the store may take for its arenas, in bytes
+	 */
+	public long getMemory() {
+		return _memory;
+	}
+
+	/**
+	 * Returns the memory taken by the arenas, in bytes
+	 */
+	public long getMemoryAllocated() {
+		_lock.readLock().lock();
+		try {
+			return _allocated;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the memory of the arenas holding stored documents, in bytes. The rest is either free
+	 * or in holes left by saves and deletes
+	 */
+	public long getMemoryUsed() {
+		_lock.readLock().lock();
+		try {
+			long live = 0;
+			for ( int i = 0; i < _arenaCount; i++ ) {
+				live += _live[i];
+			}
+			return live;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of times an arena has been compacted
+	 */
+	public long getCompactions() {
+		_lock.readLock().lock();
+		try {
+			return _compactions;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Closes up the holes in every arena, so that their free memory is all at their end
+	 */
+	public void compact() {
+		_lock.writeLock().lock();
+		try {
+			for ( int i = 0; i < _arenaCount; i++ ) {
+				if ( _live[i] < _used[i] ) {
+					compact( i );
+				}
+			}
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	//----------------------------------------
+	// Storage
+	//----------------------------------------
+
+	/**
+	 * Documents are encoded as they are, so they are neither copied nor frozen
+	 */
+	@Override
+	protected JSONObject toDocument( JSONObject payload ) {
+		return payload;
+	}
+
+	@Override
+	protected boolean putDocument( String id, JSONObject document ) {
+		// encode before locking, so that saves only hold the lock to copy the bytes
+		byte[] bytes = ENCODER.get().encode( document );
+		int idLength = id.length();
+		int size = RECORD_HEADER + 2 * idLength + bytes.length;
+		int hash = hash( id );
+
+		_lock.writeLock().lock();
+		try {
+			long location = allocate( size );
+			if ( EMPTY == location ) {
+				return false;
+			}
+			int a = arenaOf( location );
+			int offset = offsetOf( location );
+			ByteBuffer arena = _arenas[a];
+			arena.putInt( offset, idLength );
+			for ( int i = 0; i < idLength; i++ ) {
+				arena.putChar( offset + 4 + 2 * i, id.charAt(i) );
+			}
+			arena.putInt( offset + 4 + 2 * idLength, bytes.length );
+			ByteBuffer target = arena.duplicate();
+			target.position( offset + RECORD_HEADER + 2 * idLength );
+			target.put( bytes );
+			_live[a] += size;
+
+			// the slot is looked up last, as making room may have moved the record being replaced
+			int slot = find( id, hash );
+			if ( slot >= 0 ) {
+				release( _locations[ slot ] );
+				_locations[ slot ] = location;
+			} else {
+				insert( hash, location );
+			}
+			return true;
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	protected JSONObject getDocument( String id ) {
+		int hash = hash( id );
+		Reader reader = READER.get();
+		byte[] bytes;
+		int length;
+
+		_lock.readLock().lock();
+		try {
+			int slot = find( id, hash );
+			if ( slot < 0 ) {
+				return null;
+			}
+			long location = _locations[ slot ];
+			ByteBuffer arena = _arenas[ arenaOf( location ) ];
+			int offset = offsetOf( location ) + 4 + 2 * id.length();
+			length = arena.getInt( offset );
+			bytes = reader.buffer( length );
+			ByteBuffer source = arena.duplicate();
+			source.position( offset + 4 );
+			source.get( bytes, 0, length );
+		} finally {
+			_lock.readLock().unlock();
+		}
+		// decode outside the lock, from the copy
+		return reader._decoder.decode( bytes, 0, length );
+	}
+
+	@Override
+	protected void removeDocument( String id ) {
+		int hash = hash( id );
+		_lock.writeLock().lock();
+		try {
+			int slot = find( id, hash );
+			if ( slot >= 0 ) {
+				release( _locations[ slot ] );
+				_locations[ slot ] = REMOVED;
+				_count--;
+				_removed++;
+			}
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	protected int countDocuments() {
+		_lock.readLock().lock();
+		try {
+			return _count;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the IDs, read out of the records
+	 */
+	@Override
+	protected Iterable<String> documentIds() {
+		_lock.readLock().lock();
+		try {
+			List<String> ids = new ArrayList<>( _count );
+			char[] chars = new char[ 16 ];
+			for ( long location : _locations ) {
+				if ( EMPTY == location || REMOVED == location ) {
+					continue;
+				}
+				ByteBuffer arena = _arenas[ arenaOf( location ) ];
+				int offset = offsetOf( location );
+				int idLength = arena.getInt( offset );
+				if ( idLength > chars.length ) {
+					chars = new char[ Math.max( idLength, chars.length * 2 ) ];
+				}
+				for ( int i = 0; i < idLength; i++ ) {
+					chars[i] = arena.getChar( offset + 4 + 2 * i );
+				}
+				ids.add( new String( chars, 0, idLength ));
+			}
+			return ids;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	//----------------------------------------
+	// Arenas
+	//----------------------------------------
+
+	/**
+	 * Returns the arena of a location
+	 */
+	private static int arenaOf( long location ) {
+		return (int)(location >>> 32) - 1;
+	}
+
+	/**
+	 * Returns the offset of a location in its arena
+	 */
+	private static int offsetOf( long location ) {
+		return (int)location;
+	}
+
+	/**
+	 * Returns the location of an offset in an arena
+	 */
+	private static long locationOf( int arena, int offset ) {
+		return ((long)(arena + 1) << 32) | offset;
+	}
+
+	/**
+	 * Returns the size of the record at the given offset of the arena
+	 */
+	private static int recordSize( ByteBuffer arena, int offset ) {
+		int idLength = arena.getInt( offset );
+		return RECORD_HEADER + 2 * idLength + arena.getInt( offset + 4 + 2 * idLength );
+	}
+
+	/**
+	 * Finds room for a record of the given size at the end of an arena, adding or compacting an
+	 * arena if none has room. Must be called with the write lock held.
+	 *
+	 * @return the location of the room, or EMPTY if there is none
+	 */
+	private long allocate( int size ) {
+		// the arena written to last, then any other with room at its end
+		if ( fits( _current, size ) ) {
+			return take( _current, size );
+		}
+		for ( int i = 0; i < _arenaCount; i++ ) {
+			if ( fits( i, size ) ) {
+				_current = i;
+				return take( i, size );
+			}
+		}
+		int capacity = Math.max( _arenaSize, size );
+		if ( _allocated + capacity <= _memory && addArena( capacity ) ) {
+			_current = _arenaCount - 1;
+			return take( _current, size );
+		}
+		// holes are only worth closing in arenas where they make enough room
+		for ( int i = 0; i < _arenaCount; i++ ) {
+			if ( _live[i] < _used[i] && _arenas[i].capacity() - _live[i] >= size ) {
+				compact( i );
+				_current = i;
+				return take( i, size );
+			}
+		}
+		return EMPTY;
+	}
+
+	/**
+	 * Returns true if the arena has room for the given number of bytes at its end
+	 */
+	private boolean fits( int arena, int size ) {
+		return arena < _arenaCount && _arenas[ arena ].capacity() - _used[ arena ] >= size;
+	}
+
+	/**
+	 * Takes the given number of bytes at the end of an arena, which has room for them
+	 */
+	private long take( int arena, int size ) {
+		long location = locationOf( arena, _used[ arena ] );
+		_used[ arena ] += size;
+		return location;
+	}
+
+	/**
+	 * Adds an arena of the given size
+	 *
+	 * @return false if the JVM is out of direct memory
+	 */
+	private boolean addArena( int capacity ) {
+		ByteBuffer arena;
+		try {
+			arena = ByteBuffer.allocateDirect( capacity );
+		} catch ( OutOfMemoryError e ) {
+			// direct memory is limited separately from the heap, so the rest of the JVM is fine
+			return false;
+		}
+		if ( _arenaCount == _arenas.length ) {
+			_arenas = Arrays.copyOf( _arenas, _arenaCount * 2 );
+			_used = Arrays.copyOf( _used, _arenaCount * 2 );
+			_live = Arrays.copyOf( _live, _arenaCount * 2 );
+		}
+		_arenas[ _arenaCount++ ] = arena;
+		_allocated += capacity;
+		return true;
+	}
+
+	/**
+	 * Gives back the room taken by a record which is no longer stored. The room stays a hole until
+	 * its arena is compacted
+	 */
+	private void release( long location ) {
+		int a = arenaOf( location );
+		_live[a] -= recordSize( _arenas[a], offsetOf( location ));
+	}
+
+	/**
+	 * Moves the records of an arena which are still stored to its start, in order, closing the
+	 * holes between them. Must be called with the write lock held.
+	 */
+	private void compact( int a ) {
+		ByteBuffer arena = _arenas[a];
+		int end = _used[a];
+		int write = 0;
+		for ( int read = 0; read < end; ) {
+			int size = recordSize( arena, read );
+			int slot = slotOf( locationOf( a, read ), hashAt( arena, read ));
+			if ( slot >= 0 ) {
+				if ( write != read ) {
+					move( arena, read, write, size );
+					_locations[ slot ] = locationOf( a, write );
+				}
+				write += size;
+			}
+			read += size;
+		}
+		_used[a] = write;
+		_compactions++;
+	}
+
+	/**
+	 * Moves bytes of an arena to a lower offset. The ranges may overlap
+	 */
+	private void move( ByteBuffer arena, int from, int to, int length ) {
+		if ( null == _scratch ) {
+			_scratch = new byte[ MOVE_CHUNK ];
+		}
+		ByteBuffer source = arena.duplicate();
+		ByteBuffer target = arena.duplicate();
+		source.position( from );
+		target.position( to );
+		// moving down a chunk at a time never overwrites bytes which are still to be read
+		while ( length > 0 ) {
+			int chunk = Math.min( length, MOVE_CHUNK );
+			source.get( _scratch, 0, chunk );
+			target.put( _scratch, 0, chunk );
+			length -= chunk;
+		}
+	}
+
+	//----------------------------------------
+	// Index
+	//----------------------------------------
+
+	/**
+	 * Returns the hash of an ID
+	 */
+	private static int hash( String id ) {
+		int h = id.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Returns the hash of the ID of the record at the given offset of the arena, the same as hash()
+	 */
+	private static int hashAt( ByteBuffer arena, int offset ) {
+		int idLength = arena.getInt( offset );
+		int h = 0;
+		for ( int i = 0; i < idLength; i++ ) {
+			h = 31 * h + arena.getChar( offset + 4 + 2 * i );
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Returns true if the record at the given location has the given ID
+	 */
+	private boolean matches( long location, String id ) {
+		ByteBuffer arena = _arenas[ arenaOf( location ) ];
+		int offset = offsetOf( location );
+		int idLength = id.length();
+		if ( arena.getInt( offset ) != idLength ) {
+			return false;
+		}
+		for ( int i = 0; i < idLength; i++ ) {
+			if ( arena.getChar( offset + 4 + 2 * i ) != id.charAt(i) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the slot of the document with the given ID, or -1 if there is none
+	 */
+	private int find( String id, int hash ) {
+		int mask = _locations.length - 1;
+		for ( int i = hash & mask; ; i = (i + 1) & mask ) {
+			long location = _locations[i];
+			if ( EMPTY == location ) {
+				return -1;
+			}
+			if ( REMOVED != location && _hashes[i] == hash && matches( location, id )) {
+				return i;
+			}
+		}
+	}
+
+	/**
+	 * Returns the slot holding the given location, or -1 if there is none
+	 */
+	private int slotOf( long location, int hash ) {
+		int mask = _locations.length - 1;
+		for ( int i = hash & mask; ; i = (i + 1) & mask ) {
+			long found = _locations[i];
+			if ( EMPTY == found ) {
+				return -1;
+			}
+			if ( location == found ) {
+				return i;
+			}
+		}
+	}
+
+	/**
+	 * Adds the location of a document which is not in the index yet
+	 */
+	private void insert( int hash, long location ) {
+		if ( (_count + _removed + 1) * 4L > _locations.length * 3L ) {
+			rehash();
+		}
+		int mask = _locations.length - 1;
+		int i = hash & mask;
+		while ( EMPTY != _locations[i] && REMOVED != _locations[i] ) {
+			i = (i + 1) & mask;
+		}
+		if ( REMOVED == _locations[i] ) {
+			_removed--;
+		}
+		_locations[i] = location;
+		_hashes[i] = hash;
+		_count++;
+	}
+
+	/**
+	 * Rebuilds the index without its removed slots, at a size leaving room for as many documents
+	 * again
+	 */
+	private void rehash() {
+		int capacity = 16;
+		while ( (_count + 1) * 2L * 4 > capacity * 3L ) {
+			capacity <<= 1;
+		}
+		long[] locations = _locations;
+		int[] hashes = _hashes;
+		_locations = new long[ capacity ];
+		_hashes = new int[ capacity ];
+		int mask = capacity - 1;
+		for ( int j = 0; j < locations.length; j++ ) {
+			if ( EMPTY == locations[j] || REMOVED == locations[j] ) {
+				continue;
+			}
+			int i = hashes[j] & mask;
+			while ( EMPTY != _locations[i] ) {
+				i = (i + 1) & mask;
+			}
+			_locations[i] = locations[j];
+			_hashes[i] = hashes[j];
+		}
+		_removed = 0;
+	}
+}
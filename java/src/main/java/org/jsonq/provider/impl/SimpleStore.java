@@ -8,12 +8,40 @@ import java.util.*;
 import static org.jsonq.JSONQConstants.*;
 
 /**
- * API for a virtual store provider
+ * In-memory store provider. Single-document operations never block, so they run directly on the
+ * calling thread, in the order the thread calls them; listing the store is still scheduled.
+ * Subclasses whose storage may block have their single-document operations scheduled instead, in
+ * a lane per document (@see #isStorageBlocking()).
+ *
+ * Documents are stored frozen (@see org.jsonq.JSONObject#freeze()), and fetched documents are the
+ * stored instances themselves. Callers wanting to change a fetched document must copy it, which
+ * is cheap: the copy shares the stored document's structure and only copies the parts it changes.
+ * Saving such a copy shares its unchanged parts with the document it came from in turn.
+ *
+ * If the schema lists its fields, the stored documents share a Shape made of those fields and the
+ * ID field, so that each document only holds its values. Documents with other fields are still
+ * accepted, but keep a key table of their own.
+ *
+ * If the schema asks for a dictionary, the keys and short string values of saved documents are
+ * looked up in a dictionary of the store (@see org.jsonq.util.StringDictionary), so that documents
+ * repeating the same strings share them. Only strings seen repeatedly are interned, so unique
+ * values such as e-mail addresses are left as they are. The setting is either true, for a dictionary of the
+ * default capacity, or the number of strings it may hold.
+ *
+ * Documents saved as wrapped JSON text (@see org.jsonq.JSONObject#wrap(byte[])) are copied and
+ * frozen without decoding their values, so fields nobody reads are never built, and fetched
+ * documents are written back out as the text they were saved with.
+ *
+ * Documents are kept in a JSONObject, which locks for every operation. Subclasses keeping them
+ * elsewhere override the storage methods (@see #putDocument(String, JSONObject)).
  */
-public class SimpleStore implements Store {
+public class SimpleStore implements NonBlockingStore {
 
 	public static final StoreFactory<SimpleStore> FACTORY = new Factory();
 
+	/** Scans check whether they have been aborted every time this many documents are read */
+	private static final int SCAN_CHECK_MASK = 0xff;
+
 	/**
 	 * Factory for creating SimpleStores
 	 */
@@ -31,6 +59,9 @@ public class SimpleStore implements Store {
 	protected final JSONObject _map;
 	protected final String _idField;
 	protected final JSONObject _schema;
+	protected final Shape _shape;
+	protected final StringDictionary _dictionary;
+	protected final String _lane;
 
 	/**
 	 * Protected Constructor. Only subclasses and the factory should be able to create a SimpleStore
@@ -43,6 +74,60 @@ public class SimpleStore implements Store {
 			idField = Schema.DEFAULT_ID_FIELD;
 		}
 		_idField = idField;
+		_shape = shapeOf( schema, idField );
+		_dictionary = dictionaryOf( schema );
+		_lane = "mem@"+Integer.toHexString( System.identityHashCode( this ))+"/";
+	}
+
+	/**
+	 * Creates the shape of the documents from the fields listed in the schema. Fields are given
+	 * either by name or as objects with a name
+	 *
+	 * @return the shape, or null if the schema does not list any fields
+	 */
+	protected static Shape shapeOf( JSONObject schema, String idField ) {
+		if ( ! schema.containsKey( Schema.FIELDS ) ) {
+			return null;
+		}
+		Set<String> names = new LinkedHashSet<>();
+		names.add( idField );
+		for ( Object field : schema.get( Schema.FIELDS ) ) {
+			if ( field instanceof String ) {
+				names.add( (String)field );
+			} else if ( field instanceof JSONObject ) {
+				String name = Command.idOf( (JSONObject)field, Schema.NAME );
+				if ( null != name ) {
+					names.add( name );
+				}
+			}
+		}
+		return Shape.of( names );
+	}
+
+	/**
+	 * Creates the string dictionary asked for by the schema
+	 *
+	 * @return the dictionary, or null if the schema does not ask for one
+	 */
+	protected static StringDictionary dictionaryOf( JSONObject schema ) {
+		if ( ! schema.containsKey( Schema.DICTIONARY ) ) {
+			return null;
+		}
+		Object setting = schema.getSingle( Schema.DICTIONARY );
+		if ( setting instanceof Number ) {
+			return new StringDictionary( ((Number)setting).intValue() );
+		}
+		if ( Boolean.TRUE.equals( setting ) ) {
+			return new StringDictionary( StringDictionary.DEFAULT_CAPACITY );
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the string dictionary of this store, or null if it does not have one
+	 */
+	public StringDictionary getDictionary() {
+		return _dictionary;
 	}
 
 	/**
@@ -63,7 +148,7 @@ public class SimpleStore implements Store {
 	@Override
 	public Future<String,JSONObject> save( JSONObject request ) {
 		FutureImpl<String,JSONObject> future = new FutureImpl<>();
-		Scheduler.runAsync( new SaveCommand( future, request ) );
+		new SaveCommand( future, request ).dispatch();
 		return future;
 	}
 
@@ -77,7 +162,7 @@ public class SimpleStore implements Store {
 	@Override
 	public Future<JSONObject,JSONObject> fetch( JSONObject request ) {
 		FutureImpl<JSONObject,JSONObject> future = new FutureImpl<>();
-		Scheduler.runAsync( new FetchCommand( future, request ) );
+		new FetchCommand( future, request ).dispatch();
 		return future;
 	}
 
@@ -91,7 +176,7 @@ public class SimpleStore implements Store {
 	@Override
 	public Future<Void,JSONObject> delete( JSONObject request ) {
 		FutureImpl<Void,JSONObject> future = new FutureImpl<>();
-		Scheduler.runAsync( new DeleteCommand( future, request ) );
+		new DeleteCommand( future, request ).dispatch();
 		return future;
 	}
 
@@ -105,18 +190,125 @@ public class SimpleStore implements Store {
 	@Override
 	public Future<List<JSONObject>,JSONObject> list( JSONObject request ) {
 		FutureImpl<List<JSONObject>,JSONObject> future = new FutureImpl<>();
-		Scheduler.runAsync( new ListCommand( future, request ) );
+		new ListCommand( future, request ).dispatch();
 		return future;
 	}
 
+	//----------------------------------------
+	// Storage
+	//----------------------------------------
+
+	/**
+	 * Returns true if the storage methods may block, for instance on the disk. Commands on single
+	 * documents are then scheduled, ordered in a lane named after this store and the document ID,
+	 * rather than run directly on the calling thread
+	 */
+	protected boolean isStorageBlocking() {
+		return false;
+	}
+
+	/**
+	 * Returns the document to store for a saved payload. Documents are kept frozen and in the
+	 * store's shape, so that fetches can hand them out without locking or copying. Callers who save
+	 * such a document spare the store a copy
+	 */
+	protected JSONObject toDocument( JSONObject payload ) {
+		if ( payload.isFrozen() && payload.getShape() == _shape ) {
+			return payload;
+		}
+		JSONObject document = payload.copy( _shape );
+		if ( null != _dictionary ) {
+			document.intern( _dictionary );
+		}
+		return document.freeze();
+	}
+
+	/**
+	 * Stores a document under its ID, replacing any document with the same ID
+	 *
+	 * @param id the ID of the document
+	 * @param document the document, as given by toDocument()
+	 *
+	 * @return false if there is no room for the document, in which case the store is unchanged
+	 */
+	protected boolean putDocument( String id, JSONObject document ) {
+		_map.put( id, document );
+		return true;
+	}
+
+	/**
+	 * Returns the document with the given ID, or null if there is none
+	 */
+	protected JSONObject getDocument( String id ) {
+		return _map.getObject( id );
+	}
+
+	/**
+	 * Removes the document with the given ID, if there is one
+	 */
+	protected void removeDocument( String id ) {
+		_map.remove( id );
+	}
+
+	/**
+	 * Returns the number of documents stored
+	 */
+	protected int countDocuments() {
+		return _map.size();
+	}
+
+	/**
+	 * Returns the IDs of the documents stored. Documents saved or deleted while the IDs are being
+	 * read may or may not be included
+	 */
+	protected Iterable<String> documentIds() {
+		return _map.getKeys();
+	}
+
 	//----------------------------------------
 	// Commands
 	//----------------------------------------
 
+	/**
+	 * Base class for commands on a single document. These are run directly unless the storage may
+	 * block, in which case they are ordered in a lane named after this store and the document ID.
+	 */
+	public abstract class DocumentCommand<T> extends Command<T> {
+
+		/**
+		 * Constructor 
+		 */
+		protected DocumentCommand( FutureImpl<T,JSONObject> future, JSONObject request ) {
+			super( future, request );
+		}
+
+		/**
+		 * Document operations which only touch memory are run directly
+		 */
+		@Override
+		protected boolean isDirect() {
+			return ! isStorageBlocking();
+		}
+
+		/**
+		 * Returns the lane for the document, or null if the ID is not known
+		 */
+		@Override
+		public String getLane() {
+			String id = getDocumentId();
+			return null == id ? null : _lane+id;
+		}
+
+		/**
+		 * Returns the ID of the document this command operates on, or null if it is not known
+		 */
+		protected abstract String getDocumentId();
+	}
+
 	/**
 	 * Runnable for saving an object
 	 */
-	public class SaveCommand extends Command<String> {
+	public class SaveCommand extends DocumentCommand<String> {
 
 		/**
 		 * Constructor 
@@ -125,20 +317,34 @@ public class SimpleStore implements Store {
 			super( future, request );
 		}
 
+		/**
+		 * Returns the ID of the document being saved, if it has one
+		 */
+		@Override
+		protected String getDocumentId() {
+			return idOf( objectOf( _request, Request.PAYLOAD ), _idField );
+		}
+
 		/**
 		 * Called to execute this command
 		 */
-		public void run() {
+		protected void execute() {
 			JSONObject payload = _request.getObject( Request.PAYLOAD );
 
 			String id = payload.getString( _idField );
 			if ( null == id ) {
 				id = org.jsonq.util.UUID.uuid();
+				if ( payload.isFrozen() ) {
+					payload = payload.copy();
+				}
 				payload.put( _idField, id );
 			}
 
 			// TODO: validate against schema
-			_map.put( id, payload );
+			if ( ! putDocument( id, toDocument( payload ))) {
+				fail( "err.store.full", "Store has no room for document {0}", id );
+				return;
+			}
 			complete( id );
 		}
 	}
@@ -146,7 +352,7 @@ public class SimpleStore implements Store {
 	/**
 	 * Runnable for fetching an object
 	 */
-	public class FetchCommand extends Command<JSONObject> {
+	public class FetchCommand extends DocumentCommand<JSONObject> {
 
 		/**
 		 * Constructor 
@@ -155,19 +361,27 @@ public class SimpleStore implements Store {
 			super( future, request );
 		}
 
+		/**
+		 * Returns the ID of the requested document
+		 */
+		@Override
+		protected String getDocumentId() {
+			return idOf( _request, Request.PAYLOAD );
+		}
+
 		/**
 		 * Called to execute this command
 		 */
-		public void run() {
+		protected void execute() {
 			String id = _request.getString( Request.PAYLOAD );
-			complete( _map.getObject( id ));
+			complete( getDocument( id ));
 		}
 	}
 
 	/**
 	 * Runnable for deleting an object
 	 */
-	public class DeleteCommand extends Command<Void> {
+	public class DeleteCommand extends DocumentCommand<Void> {
 
 		/**
 		 * Constructor 
@@ -176,12 +390,20 @@ public class SimpleStore implements Store {
 			super( future, request );
 		}
 
+		/**
+		 * Returns the ID of the requested document
+		 */
+		@Override
+		protected String getDocumentId() {
+			return idOf( _request, Request.PAYLOAD );
+		}
+
 		/**
 		 * Called to execute this command
 		 */
-		public void run() {
+		protected void execute() {
 			String id = _request.getString( Request.PAYLOAD );
-			_map.remove( id );
+			removeDocument( id );
 			complete( null );
 		}
 	}
@@ -201,10 +423,18 @@ public class SimpleStore implements Store {
 		/**
 		 * Called to execute this command
 		 */
-		public void run() {
-			List<JSONObject> list = new ArrayList<>( _map.size() );
-			for ( String key : _map.getKeys()) {
-				list.add( _map.getObject( key ) );
+		protected void execute() {
+			List<JSONObject> list = new ArrayList<>( countDocuments() );
+			for ( String id : documentIds() ) {
+				// stop scanning if nobody is waiting for the result any more
+				if ( 0 == (list.size() & SCAN_CHECK_MASK) && isAborted() ) {
+					return;
+				}
+				// the document may have been deleted since the IDs were read
+				JSONObject document = getDocument( id );
+				if ( null != document ) {
+					list.add( document );
+				}
 			}
 			complete( list );
 		}
@@ -0,0 +1,551 @@
+package org.jsonq.provider.log;
+
+import org.jsonq.*;
+import org.jsonq.io.*;
+import org.jsonq.provider.*;
+import org.jsonq.util.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.jsonq.JSONQConstants.*;
+
+/**
+ * Store which logs the saves and deletes of another store to a WriteAheadLog, so that its
+ * contents survive a restart: when the store is created, its latest snapshot is loaded and the
+ * log written since is replayed into it.
+ *
+ * Any provider can offer logging by being registered through factory(), after which each store
+ * opts in through its provision schema:
+ *
+ * <pre>
+ *   "log": { "path": "/var/lib/jsonq/users.log", "sync": "always" }
+ * </pre>
+ *
+ * The sync policy is one of <code>always</code> (the default), <code>interval</code> and
+ * <code>os</code> (@see WriteAheadLog.Sync). The interval policy syncs every "interval"
+ * milliseconds, 10 by default.
+ *
+ * Snapshots keep restarts short. When "snapshot" gives a number of milliseconds, the store writes
+ * a snapshot of its documents that often, in the background while writes continue, and deletes
+ * the log segments and snapshots the new snapshot covers. snapshot() writes one at any time.
+ * Recovery and snapshots run on a pool shared by all logged stores, so stores created together
+ * recover in parallel; getRecoveryTime() tells how long each took.
+ *
+ * The store is only handed out once it has applied every change replayed into it. If it fails one,
+ * for instance because it is too small for the documents, it is not handed out at all, and the
+ * factory fails with the store's error (@see ReplayException).
+ *
+ * Saves and deletes complete once the store has applied them and the log has made them durable.
+ * Changes are logged once the store has applied them, so fetches may see a change before it is
+ * durable. No lock is held while the store applies a change, so changes to different documents
+ * do not wait for each other; the log orders the records as they are appended. Changes to one
+ * document are logged in the order the store applies them as long as they are ordered: stores
+ * which block run them in the document's lane, and callers of stores which never block order
+ * them by waiting for one before making the next. Changes the store fails, for instance because
+ * their deadline has passed or the store is full, are not logged, so they do not come back when
+ * the log is replayed.
+ *
+ * Snapshots rely on changes being logged only once the store has applied them, so that the
+ * changes logged before a snapshot starts are all in it, whether or not the store applies changes
+ * before its save or delete returns.
+ */
+public class LoggedStore implements Store {
+
+	/** Default time between syncs for the interval policy, in milliseconds */
+	public static final long DEFAULT_INTERVAL = 10;
+
+	// types of the records in the log
+	static final int SAVE = 1;
+	static final int DELETE = 2;
+
+	static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	// runs recoveries and snapshots, created when first needed
+	private static ScheduledExecutorService _executor;
+
+	private static final ThreadLocal<BinaryEncoder> ENCODER = new ThreadLocal<BinaryEncoder>() {
+		@Override
+		protected BinaryEncoder initialValue() {
+			return new BinaryEncoder();
+		}
+	};
+
+	/** Fails a change which could not be logged */
+	private static final Function<RuntimeException,JSONObject> THROWN =
+			new Function<RuntimeException,JSONObject>() {
+				public JSONObject apply( RuntimeException e ) {
+					return error( "err.log.append", "Cannot log the change: {0}", e );
+				}
+			};
+
+	/**
+	 * Thrown when opening a logged store if the store fails a change replayed into it, which would
+	 * leave it missing data
+	 */
+	@SuppressWarnings("serial")
+	public static class ReplayException extends IOException {
+
+		private final JSONObject _error;
+
+		ReplayException( JSONObject error ) {
+			super( "The store failed a replayed change: "+error.getString( "code" ));
+			_error = error;
+		}
+
+		/**
+		 * Returns the error the store failed the change with
+		 */
+		public JSONObject getError() {
+			return _error;
+		}
+	}
+
+	/**
+	 * LoggedStore of a store which never blocks, which does not block either: the log is written
+	 * by its own thread
+	 */
+	private static final class NonBlocking extends LoggedStore implements NonBlockingStore {
+
+		NonBlocking( Store store, WriteAheadLog log ) {
+			super( store, log );
+		}
+	}
+
+	/**
+	 * Replays snapshots and logs into a store, and counts what it replays. Changes the store has
+	 * not applied yet are counted as pending, so that recovery can wait for them
+	 */
+	private static final class Recovery implements WriteAheadLog.Handler {
+
+		/** Most changes replay hands to the store before waiting for it to apply them */
+		private static final int MAX_PENDING = 1024;
+
+		private final Store _store;
+		private int _pending;
+		private JSONObject _error;
+		private final BinaryDecoder _decoder = new BinaryDecoder();
+		private final long _start = System.currentTimeMillis();
+		private long _restored;
+		private long _replayed;
+		private long _time;
+
+		Recovery( Store store ) {
+			_store = store;
+		}
+
+		/**
+		 * Loads a snapshot, whose documents are all saved
+		 */
+		void restore( File snapshot ) throws IOException {
+			_restored = Snapshot.read( snapshot, new WriteAheadLog.Handler() {
+				public void record( int type, byte[] payload ) throws IOException {
+					save( payload );
+				}
+			});
+		}
+
+		public void record( int type, byte[] payload ) throws IOException {
+			if ( SAVE == type ) {
+				save( payload );
+			} else if ( DELETE == type ) {
+				JSONObject request = JSONObject.create();
+				request.put( Request.PAYLOAD, new String( payload, UTF8 ));
+				track( _store.delete( request ));
+			} else {
+				throw new IOException( "Unknown record type "+type );
+			}
+			_replayed++;
+		}
+
+		private void save( byte[] payload ) throws IOException {
+			JSONObject request = JSONObject.create();
+			request.put( Request.PAYLOAD, _decoder.decode( payload ));
+			track( _store.save( request ));
+		}
+
+		/**
+		 * Counts a change as pending until the store has applied it, first waiting for the store
+		 * to catch up if it has too many pending, so that stores which schedule their changes are
+		 * not flooded
+		 */
+		private <T> void track( Future<T,JSONObject> change ) throws IOException {
+			synchronized ( this ) {
+				while ( _pending >= MAX_PENDING ) {
+					waitForStore();
+				}
+				_pending++;
+			}
+			change.then(
+					new Closure<T>() {
+						public void apply( T result ) { applied( null ); }
+					},
+					new Closure<JSONObject>() {
+						public void apply( JSONObject error ) { applied( error ); }
+					},
+					null );
+		}
+
+		private synchronized void applied( JSONObject error ) {
+			if ( null == _error ) {
+				_error = error;
+			}
+			_pending--;
+			notifyAll();
+		}
+
+		private void waitForStore() throws IOException {
+			try {
+				wait();
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException( "Interrupted while replaying the log" );
+			}
+		}
+
+		/**
+		 * Waits for the store to apply every change replayed into it
+		 *
+		 * @throws ReplayException if the store failed one of them
+		 */
+		synchronized void finish() throws IOException {
+			while ( _pending > 0 ) {
+				waitForStore();
+			}
+			_time = System.currentTimeMillis() - _start;
+			if ( null != _error ) {
+				throw new ReplayException( _error );
+			}
+		}
+	}
+
+	protected final Store _store;
+	protected final WriteAheadLog _log;
+	private long _recoveryTime;
+	private long _restored;
+	private long _replayed;
+	private ScheduledFuture<?> _schedule;
+	private FutureImpl<Integer,JSONObject> _snapshot;
+
+	/**
+	 * Protected Constructor. Stores are created by the factory, or by open()
+	 */
+	protected LoggedStore( Store store, WriteAheadLog log ) {
+		_store = store;
+		_log = log;
+	}
+
+	/**
+	 * Wraps a factory so that the stores it creates are logged when their schema asks for it.
+	 * Stores without a log setting are left as they are. Logged stores are recovered on the shared
+	 * pool, so that stores created together recover in parallel
+	 *
+	 * @param factory the factory creating the stores to log
+	 */
+	public static <T extends Store> StoreFactory<Store> factory( final StoreFactory<T> factory ) {
+		return new StoreFactory<Store>() {
+			public Future<Store,JSONObject> create( final JSONObject schema ) {
+				final FutureImpl<Store,JSONObject> future = new FutureImpl<>();
+				factory.create( schema ).then(
+						new Closure<T>() {
+							public void apply( final T store ) {
+								if ( ! schema.containsKey( Schema.LOG )) {
+									future.complete( store );
+									return;
+								}
+								executor().execute( new Runnable() {
+									public void run() {
+										try {
+											future.complete( open( store, schema.getObject( Schema.LOG )));
+										} catch ( ReplayException e ) {
+											future.fail( e.getError() );
+										} catch ( IOException | RuntimeException e ) {
+											future.fail( error( "err.log", "Cannot open the log: {0}", e ));
+										}
+									}
+								});
+							}
+						},
+						new Closure<JSONObject>() {
+							public void apply( JSONObject error ) { future.fail( error ); }
+						},
+						null );
+				return future;
+			}
+		};
+	}
+
+	/**
+	 * Opens the log given by the settings, and recovers the store from its latest snapshot and the
+	 * log written since
+	 *
+	 * @param store the store to log
+	 * @param settings the log settings of the schema
+	 *
+	 * @return the logged store
+	 *
+	 * @throws ReplayException if the store fails a change replayed into it
+	 * @throws IOException if the log cannot be read or written
+	 * @throws IllegalArgumentException if the settings are not valid
+	 */
+	public static LoggedStore open( final Store store, JSONObject settings ) throws IOException {
+		String path = settings.containsKey( Log.PATH ) ? settings.getString( Log.PATH ) : null;
+		if ( null == path ) {
+			throw new IllegalArgumentException( "No log path given" );
+		}
+		WriteAheadLog.Sync sync = settings.containsKey( Log.SYNC )
+				? WriteAheadLog.Sync.parse( settings.getString( Log.SYNC ))
+				: WriteAheadLog.Sync.ALWAYS;
+		long interval = settings.containsKey( Log.INTERVAL )
+				? (long)settings.getDouble( Log.INTERVAL )
+				: DEFAULT_INTERVAL;
+
+		long every = settings.containsKey( Log.SNAPSHOT )
+				? (long)settings.getDouble( Log.SNAPSHOT )
+				: 0;
+
+		File file = new File( path );
+		Recovery recovery = new Recovery( store );
+		// snapshots left unfinished by a crash are of no use
+		Snapshot.truncate( file, 0 );
+		List<Integer> snapshots = Snapshot.segments( file );
+		int from = 0;
+		if ( ! snapshots.isEmpty() ) {
+			from = snapshots.get( snapshots.size() - 1 );
+			recovery.restore( Snapshot.file( file, from ));
+		}
+		WriteAheadLog log = new WriteAheadLog( file, sync, interval, from, recovery );
+		try {
+			recovery.finish();
+		} catch ( IOException e ) {
+			log.close();
+			throw e;
+		}
+
+		final LoggedStore logged = store instanceof NonBlockingStore
+				? new NonBlocking( store, log )
+				: new LoggedStore( store, log );
+		logged._recoveryTime = recovery._time;
+		logged._restored = recovery._restored;
+		logged._replayed = recovery._replayed;
+		if ( every > 0 ) {
+			logged._schedule = executor().scheduleWithFixedDelay( new Runnable() {
+				public void run() {
+					// a snapshot still being written is left to finish
+					logged.snapshot();
+				}
+			}, every, every, TimeUnit.MILLISECONDS );
+		}
+		return logged;
+	}
+
+	/**
+	 * Writes a snapshot of the store, then deletes the log segments and snapshots it covers. The
+	 * store takes writes as usual meanwhile. If a snapshot is already being written, that one is
+	 * returned
+	 *
+	 * @return a Future with the number of the first log segment not covered by the snapshot
+	 */
+	public Future<Integer,JSONObject> snapshot() {
+		final FutureImpl<Integer,JSONObject> future;
+		final int segment;
+		synchronized ( this ) {
+			if ( null != _snapshot && ! _snapshot.isComplete() ) {
+				return _snapshot;
+			}
+			future = _snapshot = new FutureImpl<>();
+			// every change logged before the new segment is already applied to the store
+			segment = _log.roll();
+		}
+		_store.list( JSONObject.create() ).then(
+				new Closure<List<JSONObject>>() {
+					public void apply( final List<JSONObject> documents ) {
+						executor().execute( new Runnable() {
+							public void run() {
+								try {
+									File file = _log.getFile();
+									Snapshot.write( file, segment, documents );
+									Snapshot.truncate( file, segment );
+									_log.truncate( segment );
+									future.complete( segment );
+								} catch ( IOException | RuntimeException e ) {
+									future.fail( error( "err.log.snapshot", "Cannot write the snapshot: {0}", e ));
+								}
+							}
+						});
+					}
+				},
+				new Closure<JSONObject>() {
+					public void apply( JSONObject error ) { future.fail( error ); }
+				},
+				null );
+		return future;
+	}
+
+	/**
+	 * Stops taking snapshots and closes the log. The store cannot be changed afterwards
+	 */
+	public void close() throws IOException {
+		synchronized ( this ) {
+			if ( null != _schedule ) {
+				_schedule.cancel( false );
+			}
+		}
+		_log.close();
+	}
+
+	/**
+	 * Returns the time it took to recover the store when it was opened, in milliseconds
+	 */
+	public long getRecoveryTime() {
+		return _recoveryTime;
+	}
+
+	/**
+	 * Returns the number of documents loaded from the snapshot when the store was opened
+	 */
+	public long getRestoredDocuments() {
+		return _restored;
+	}
+
+	/**
+	 * Returns the number of log records replayed when the store was opened
+	 */
+	public long getReplayedRecords() {
+		return _replayed;
+	}
+
+	/**
+	 * Returns the log of this store
+	 */
+	public WriteAheadLog getLog() {
+		return _log;
+	}
+
+	/**
+	 * Returns the ID field of the logged store
+	 */
+	@Override
+	public String getIdField() {
+		return _store.getIdField();
+	}
+
+	/**
+	 * Logs and saves the given object. Objects without an ID are given one first, so that the
+	 * logged object is the one saved
+	 *
+	 * @param request the valid JSON/q request
+	 *
+	 * @return a Future representing the eventual result of the save
+	 */
+	@Override
+	public Future<String,JSONObject> save( JSONObject request ) {
+		JSONObject payload = request.getObject( Request.PAYLOAD );
+		String idField = _store.getIdField();
+		if ( null == payload.getString( idField )) {
+			if ( payload.isFrozen() ) {
+				payload = payload.copy();
+			}
+			payload.put( idField, org.jsonq.util.UUID.uuid() );
+			if ( request.isFrozen() ) {
+				request = request.copy();
+			}
+			request.put( Request.PAYLOAD, payload );
+		}
+		byte[] record = ENCODER.get().encode( payload );
+		return whenLogged( _store.save( request ), SAVE, record );
+	}
+
+	/**
+	 * Retrieves an item by its ID
+	 *
+	 * @param request the valid JSON/q request
+	 *
+	 * @return a Future representing the result of the fetch operation
+	 */
+	@Override
+	public Future<JSONObject,JSONObject> fetch( JSONObject request ) {
+		return _store.fetch( request );
+	}
+
+	/**
+	 * Logs and deletes an item by its ID
+	 *
+	 * @param request the valid JSON/q request
+	 *
+	 * @return a Future representing the result of the delete operation
+	 */
+	@Override
+	public Future<Void,JSONObject> delete( JSONObject request ) {
+		byte[] record = request.getString( Request.PAYLOAD ).getBytes( UTF8 );
+		return whenLogged( _store.delete( request ), DELETE, record );
+	}
+
+	/**
+	 * List all the items in a given store
+	 *
+	 * @param request the valid JSON/q request
+	 *
+	 * @return a Future representing the result of the list operation
+	 */
+	@Override
+	public Future<List<JSONObject>,JSONObject> list( JSONObject request ) {
+		return _store.list( request );
+	}
+
+	/**
+	 * Returns the pool running recoveries and snapshots
+	 */
+	private static synchronized ScheduledExecutorService executor() {
+		if ( null == _executor ) {
+			_executor = Executors.newScheduledThreadPool(
+					Runtime.getRuntime().availableProcessors(),
+					new ThreadFactory() {
+						public Thread newThread( Runnable runnable ) {
+							Thread thread = new Thread( runnable, "jsonq-log" );
+							thread.setDaemon( true );
+							return thread;
+						}
+					});
+		}
+		return _executor;
+	}
+
+	private static JSONObject error( String code, String message, Exception e ) {
+		JSONObject error = JSONObject.create();
+		error.put( "code", code );
+		error.put( "message", message );
+		error.add( "args", String.valueOf( e.getMessage() ));
+		return error;
+	}
+
+	/**
+	 * Returns a Future with the result of the change, which logs the change once the store has
+	 * applied it and completes once the log has made it durable. Changes the store fails are not
+	 * logged
+	 *
+	 * @param change the result of the change, from the store
+	 * @param type the type of the record of the change
+	 * @param record the record of the change
+	 */
+	private <T> Future<T,JSONObject> whenLogged(
+			Future<T,JSONObject> change,
+			final int type,
+			final byte[] record ) {
+		return Futures.compose( change, new Function<T,Future<T,JSONObject>>() {
+			public Future<T,JSONObject> apply( final T result ) {
+				// the log takes its own lock, once the store is done with the change
+				return Futures.map(
+						_log.append( type, record ),
+						new Function<Void,T>() {
+							public T apply( Void value ) { return result; }
+						});
+			}
+		}, THROWN );
+	}
+}
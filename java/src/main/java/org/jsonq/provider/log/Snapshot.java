@@ -0,0 +1,144 @@
+package org.jsonq.provider.log;
+
+import org.jsonq.*;
+import org.jsonq.io.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Snapshots of the documents of a logged store. A snapshot holds the documents the store had
+ * when the log was at the start of a segment, and is named after the log and that segment
+ * (users.log.12.snapshot). Restoring the store then only takes the snapshot and the segments from
+ * that one on.
+ *
+ * The documents are listed while writes continue, so a snapshot may already hold some of the
+ * changes of the segments after it. Replaying those changes again is harmless, as every record of
+ * the log replaces or deletes a whole document.
+ *
+ * A snapshot is a series of records in the format of the log, one per document, followed by a
+ * record counting them. It is written to a temporary file and renamed once it has been synced, so
+ * a snapshot file is always whole, and its directory is synced after the rename, so that the
+ * snapshot is durable before anything it covers is deleted.
+ */
+final class Snapshot {
+
+	// types of the records of a snapshot
+	static final int DOCUMENT = 1;
+	static final int END = 2;
+
+	private static final String SUFFIX = ".snapshot";
+	private static final String TEMPORARY = ".tmp";
+
+	/**
+	 * Private Constructor - static utility
+	 */
+	private Snapshot() {}
+
+	/**
+	 * Returns the file of the snapshot of a log at the given segment
+	 */
+	static File file( File log, int segment ) {
+		return new File( log.getPath()+"."+segment+SUFFIX );
+	}
+
+	/**
+	 * Returns the segments of a log which have a snapshot, in order
+	 */
+	static List<Integer> segments( File log ) {
+		List<Integer> segments = new ArrayList<>();
+		File dir = log.getAbsoluteFile().getParentFile();
+		String[] names = null == dir ? null : dir.list();
+		if ( null == names ) {
+			return segments;
+		}
+		String prefix = log.getName()+".";
+		for ( String name : names ) {
+			if ( name.startsWith( prefix ) && name.endsWith( SUFFIX )) {
+				int segment = WriteAheadLog.parseNumber(
+						name.substring( prefix.length(), name.length() - SUFFIX.length() ));
+				if ( segment >= 0 ) {
+					segments.add( segment );
+				}
+			}
+		}
+		Collections.sort( segments );
+		return segments;
+	}
+
+	/**
+	 * Writes a snapshot
+	 *
+	 * @param log the file of the log
+	 * @param segment the segment the snapshot was taken at
+	 * @param documents the documents of the store
+	 */
+	static void write( File log, int segment, Collection<JSONObject> documents ) throws IOException {
+		File file = file( log, segment );
+		File temporary = new File( file.getPath()+TEMPORARY );
+		BinaryEncoder encoder = new BinaryEncoder();
+		try ( FileOutputStream stream = new FileOutputStream( temporary ) ) {
+			DataOutputStream out = new DataOutputStream( new BufferedOutputStream( stream, 1 << 16 ));
+			for ( JSONObject document : documents ) {
+				WriteAheadLog.write( out, DOCUMENT, encoder.encode( document ));
+			}
+			WriteAheadLog.write( out, END, ByteBuffer.allocate( 8 ).putLong( documents.size() ).array() );
+			out.flush();
+			stream.getChannel().force( false );
+		}
+		if ( ! temporary.renameTo( file )) {
+			temporary.delete();
+			throw new IOException( "Cannot rename "+temporary+" to "+file );
+		}
+		// the snapshot must survive a crash before the segments it covers are deleted
+		WriteAheadLog.syncDirectory( file );
+	}
+
+	/**
+	 * Reads a snapshot, handing its documents to the handler
+	 *
+	 * @return the number of documents read
+	 *
+	 * @throws IOException if the snapshot cannot be read or is not whole
+	 */
+	static long read( File file, final WriteAheadLog.Handler handler ) throws IOException {
+		final long[] count = new long[ 2 ];
+		try ( FileChannel channel = new RandomAccessFile( file, "r" ).getChannel() ) {
+			WriteAheadLog.read( channel, new WriteAheadLog.Handler() {
+				public void record( int type, byte[] payload ) throws IOException {
+					if ( DOCUMENT == type ) {
+						handler.record( type, payload );
+						count[0]++;
+					} else if ( END == type ) {
+						count[1] = ByteBuffer.wrap( payload ).getLong();
+					}
+				}
+			});
+		}
+		if ( 0 == count[1] && 0 != count[0] || count[0] != count[1] ) {
+			throw new IOException( "Snapshot "+file+" is damaged" );
+		}
+		return count[0];
+	}
+
+	/**
+	 * Deletes the snapshots before the given segment, and any left unfinished
+	 */
+	static void truncate( File log, int segment ) {
+		for ( int old : segments( log )) {
+			if ( old < segment ) {
+				file( log, old ).delete();
+			}
+		}
+		File dir = log.getAbsoluteFile().getParentFile();
+		String[] names = null == dir ? null : dir.list();
+		if ( null != names ) {
+			for ( String name : names ) {
+				if ( name.startsWith( log.getName()+"." ) && name.endsWith( SUFFIX+TEMPORARY )) {
+					new File( dir, name ).delete();
+				}
+			}
+		}
+	}
+}
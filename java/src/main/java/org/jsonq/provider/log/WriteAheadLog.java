@@ -0,0 +1,568 @@
+package org.jsonq.provider.log;
+
+import org.jsonq.*;
+import org.jsonq.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Append-only log of records, for making changes durable before they are acknowledged.
+ *
+ * Appended records are buffered in memory and written out by a thread of the log, which then
+ * makes them durable according to its Sync policy. Their futures are completed by one Scheduler
+ * task per round, so that what continues from them never runs on the writer. Records appended
+ * while the log is writing or syncing go out together in the next round, so concurrent writers
+ * share the cost of each sync (group commit).
+ *
+ * The log is kept in numbered segment files, named after the log with the number of the segment
+ * appended (users.log.1, users.log.2...). Rolling the log starts a new segment, and segments which
+ * are no longer needed, for instance because a snapshot covers them, can then be deleted.
+ *
+ * Every record carries its length and a CRC32 of its contents. When a log is opened, its records
+ * are replayed in order, and anything after the last whole record of the last segment, such as a
+ * record torn by a crash, is cut off.
+ */
+public class WriteAheadLog implements Closeable {
+
+	/**
+	 * When the log syncs the file to the disk
+	 */
+	public static enum Sync {
+
+		/** Sync after every round of writes. Records are durable once their future completes */
+		ALWAYS,
+
+		/**
+		 * Write and sync once every interval. Records are durable once their future completes, but
+		 * may wait up to the interval for it
+		 */
+		INTERVAL,
+
+		/**
+		 * Leave syncing to the operating system. Futures complete once the record is written to the
+		 * file, which survives the process crashing but not the machine
+		 */
+		OS;
+
+		/**
+		 * Parses a policy name, ignoring case
+		 *
+		 * @throws IllegalArgumentException if the name is not a known policy
+		 */
+		public static Sync parse( String name ) {
+			for ( Sync sync : values() ) {
+				if ( sync.name().equalsIgnoreCase( name )) {
+					return sync;
+				}
+			}
+			throw new IllegalArgumentException( "Unknown sync policy: "+name );
+		}
+	}
+
+	/**
+	 * Receives the records of a log being opened
+	 */
+	public interface Handler {
+
+		/**
+		 * Called for every record of the log, in order
+		 *
+		 * @param type the type the record was appended with
+		 * @param payload the contents of the record
+		 *
+		 * @throws IOException if the record cannot be handled, which fails opening the log
+		 */
+		void record( int type, byte[] payload ) throws IOException;
+	}
+
+	/** Longest record accepted. Longer lengths found when replaying are taken to be corruption */
+	public static final int MAX_RECORD = 1 << 30;
+
+	/** Bytes in front of every record, for the length and CRC of its payload and its type */
+	private static final int HEADER = 9;
+
+	private final File _file;
+	private final Sync _sync;
+	private final long _interval;
+	private final Thread _writer;
+
+	// the segment being written, which only the writer touches once the log is open
+	private FileChannel _channel;
+
+	// records appended but not yet written, and the futures waiting on them. The writer swaps them
+	// with its own buffers, so that appends are not held up by writing. If the log has been rolled
+	// since the last round, the records from _rollOffset on go to segment _rollSegment
+	private byte[] _pending = new byte[ 8192 ];
+	private int _pendingLength;
+	private List<FutureImpl<Void,JSONObject>> _waiting = new ArrayList<>();
+	private int _rollOffset = -1;
+	private int _rollSegment;
+	private int _lastSegment;
+	private int _segment;
+	private boolean _closed;
+	private JSONObject _error;
+	private long _syncs;
+
+	/**
+	 * Opens a log, replaying the records of its segments from the given one on. A segment is
+	 * created if there is none
+	 *
+	 * @param file the file of the log, which the segment files are named after
+	 * @param sync when to sync the file to the disk
+	 * @param interval the time between syncs for the INTERVAL policy, in milliseconds
+	 * @param from the first segment to replay. Earlier segments are ignored
+	 * @param handler receives the records already in the log
+	 *
+	 * @throws IOException if the segments cannot be read or written, or the handler fails
+	 */
+	public WriteAheadLog( File file, Sync sync, long interval, int from, Handler handler ) throws IOException {
+		if ( null == sync ) {
+			throw new NullPointerException( "sync cannot be null" );
+		}
+		if ( Sync.INTERVAL == sync && interval <= 0 ) {
+			throw new IllegalArgumentException( "interval must be positive" );
+		}
+		_file = file;
+		_sync = sync;
+		_interval = interval;
+
+		List<Integer> segments = new ArrayList<>();
+		for ( int segment : segments( file )) {
+			if ( segment >= from ) {
+				segments.add( segment );
+			}
+		}
+		for ( int i = 0; i < segments.size(); i++ ) {
+			File segmentFile = segmentFile( segments.get(i) );
+			boolean last = i == segments.size() - 1;
+			try ( FileChannel channel = new RandomAccessFile( segmentFile, last ? "rw" : "r" ).getChannel() ) {
+				long end = read( channel, handler );
+				if ( end < channel.size() ) {
+					if ( ! last ) {
+						throw new IOException( "Log segment "+segmentFile+" is damaged at offset "+end );
+					}
+					// cut off the record torn by a crash
+					channel.truncate( end );
+				}
+			}
+		}
+		_segment = segments.isEmpty() ? Math.max( from, 1 ) : segments.get( segments.size() - 1 );
+		_lastSegment = _segment;
+		File segmentFile = segmentFile( _segment );
+		boolean created = ! segmentFile.exists();
+		_channel = new RandomAccessFile( segmentFile, "rw" ).getChannel();
+		_channel.position( _channel.size() );
+		if ( created ) {
+			syncDirectory( segmentFile );
+		}
+
+		_writer = new Thread( "jsonq-log-"+file.getName() ) {
+			@Override
+			public void run() {
+				write();
+			}
+		};
+		_writer.setDaemon( true );
+		_writer.start();
+	}
+
+	/**
+	 * Returns the numbers of the segments of a log, in order
+	 *
+	 * @param file the file of the log
+	 */
+	public static List<Integer> segments( File file ) {
+		List<Integer> segments = new ArrayList<>();
+		File dir = file.getAbsoluteFile().getParentFile();
+		String[] names = null == dir ? null : dir.list();
+		if ( null == names ) {
+			return segments;
+		}
+		String prefix = file.getName()+".";
+		for ( String name : names ) {
+			if ( name.startsWith( prefix )) {
+				int segment = parseNumber( name.substring( prefix.length() ));
+				if ( segment >= 0 ) {
+					segments.add( segment );
+				}
+			}
+		}
+		Collections.sort( segments );
+		return segments;
+	}
+
+	/**
+	 * Returns the non-negative number written in the string, or -1 if it is not a plain number
+	 */
+	static int parseNumber( String digits ) {
+		if ( digits.isEmpty() || digits.length() > 9 ) {
+			return -1;
+		}
+		for ( int i = 0; i < digits.length(); i++ ) {
+			if ( digits.charAt(i) < '0' || digits.charAt(i) > '9' ) {
+				return -1;
+			}
+		}
+		return Integer.parseInt( digits );
+	}
+
+	/**
+	 * Returns the file of a segment of this log
+	 */
+	public File segmentFile( int segment ) {
+		return new File( _file.getPath()+"."+segment );
+	}
+
+	/**
+	 * Reads the records of a file from its position, handing them to the handler
+	 *
+	 * @return the end of the last whole record
+	 */
+	static long read( FileChannel channel, Handler handler ) throws IOException {
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream( Channels.newInputStream( channel ), 1 << 16 ));
+		long end = channel.position();
+		long size = channel.size();
+		CRC32 crc = new CRC32();
+		while ( size - end >= HEADER ) {
+			int length = in.readInt();
+			int checksum = in.readInt();
+			int type = in.readUnsignedByte();
+			if ( length < 0 || length > MAX_RECORD || length > size - end - HEADER ) {
+				break;
+			}
+			byte[] payload = new byte[ length ];
+			in.readFully( payload );
+			crc.reset();
+			crc.update( type );
+			crc.update( payload, 0, length );
+			if ( (int)crc.getValue() != checksum ) {
+				break;
+			}
+			handler.record( type, payload );
+			end += HEADER + length;
+		}
+		return end;
+	}
+
+	/**
+	 * Syncs the directory holding a file, so that the creation or renaming of the file survives a
+	 * crash
+	 *
+	 * @throws IOException if the directory cannot be synced
+	 */
+	public static void syncDirectory( File file ) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open( file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ );
+		} catch ( AccessDeniedException e ) {
+			// some platforms, such as Windows, do not open directories, and make such changes
+			// durable themselves
+			return;
+		}
+		try {
+			channel.force( true );
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes a record in the format of the log
+	 */
+	static void write( DataOutput out, int type, byte[] payload ) throws IOException {
+		out.writeInt( payload.length );
+		out.writeInt( checksum( type, payload ));
+		out.writeByte( type );
+		out.write( payload );
+	}
+
+	/**
+	 * Returns the CRC of a record
+	 */
+	private static int checksum( int type, byte[] payload ) {
+		CRC32 crc = new CRC32();
+		crc.update( type );
+		crc.update( payload, 0, payload.length );
+		return (int)crc.getValue();
+	}
+
+	/**
+	 * Appends a record to the log
+	 *
+	 * @param type the type of the record, from 0 to 255
+	 * @param payload the contents of the record
+	 *
+	 * @return a Future which completes once the record is durable according to the sync policy, or
+	 * fails if it cannot be written
+	 */
+	public Future<Void,JSONObject> append( int type, byte[] payload ) {
+		if ( type < 0 || type > 0xff ) {
+			throw new IllegalArgumentException( "type must be between 0 and 255" );
+		}
+		if ( payload.length > MAX_RECORD ) {
+			throw new IllegalArgumentException( "payload is too long" );
+		}
+		int checksum = checksum( type, payload );
+
+		FutureImpl<Void,JSONObject> future = new FutureImpl<>();
+		synchronized ( this ) {
+			if ( null != _error ) {
+				future.fail( _error );
+				return future;
+			}
+			if ( _closed ) {
+				future.fail( error( "err.log.closed", "Log {0} is closed", null ));
+				return future;
+			}
+			int length = _pendingLength + HEADER + payload.length;
+			if ( length > _pending.length ) {
+				_pending = Arrays.copyOf( _pending, Math.max( length, _pending.length * 2 ));
+			}
+			ByteBuffer header = ByteBuffer.wrap( _pending, _pendingLength, HEADER );
+			header.putInt( payload.length ).putInt( checksum ).put( (byte)type );
+			System.arraycopy( payload, 0, _pending, _pendingLength + HEADER, payload.length );
+			_pendingLength = length;
+			_waiting.add( future );
+			if ( 1 == _waiting.size() ) {
+				notifyAll();
+			}
+		}
+		return future;
+	}
+
+	/**
+	 * Starts a new segment. Records appended before the call stay in the earlier segments, and
+	 * records appended afterwards go to the new one. If the log has been rolled but the writer has
+	 * not started the new segment yet, the log is not rolled again
+	 *
+	 * @return the number of the segment holding the records appended from now on
+	 */
+	public synchronized int roll() {
+		if ( _rollOffset < 0 ) {
+			_rollOffset = _pendingLength;
+			_rollSegment = ++_lastSegment;
+			notifyAll();
+		}
+		return _rollSegment;
+	}
+
+	/**
+	 * Deletes the segments before the given one, except the one still being written
+	 *
+	 * @param segment the first segment to keep
+	 */
+	public void truncate( int segment ) {
+		int current;
+		synchronized ( this ) {
+			current = _segment;
+		}
+		for ( int old : segments( _file )) {
+			if ( old < segment && old < current ) {
+				segmentFile( old ).delete();
+			}
+		}
+	}
+
+	/**
+	 * Writes out the remaining records, syncs the file and closes it. Records appended afterwards
+	 * fail
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized ( this ) {
+			if ( _closed ) {
+				return;
+			}
+			_closed = true;
+			notifyAll();
+		}
+		try {
+			_writer.join();
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+		_channel.close();
+	}
+
+	/**
+	 * Returns the file of this log
+	 */
+	public File getFile() {
+		return _file;
+	}
+
+	/**
+	 * Returns the sync policy of this log
+	 */
+	public Sync getSync() {
+		return _sync;
+	}
+
+	/**
+	 * Returns the number of the segment being written
+	 */
+	public synchronized int getSegment() {
+		return _segment;
+	}
+
+	/**
+	 * Returns the number of times the file has been synced to the disk
+	 */
+	public synchronized long getSyncs() {
+		return _syncs;
+	}
+
+	//----------------------------------------
+	// Writer
+	//----------------------------------------
+
+	/**
+	 * Body of the writer thread: writes out rounds of appended records until the log is closed
+	 */
+	private void write() {
+		byte[] buffer = new byte[ _pending.length ];
+		List<FutureImpl<Void,JSONObject>> waiting = new ArrayList<>();
+		long nextSync = System.currentTimeMillis() + _interval;
+		while ( true ) {
+			int length;
+			int rollOffset;
+			int rollSegment;
+			boolean closed;
+			synchronized ( this ) {
+				try {
+					while ( _waiting.isEmpty() && _rollOffset < 0 && ! _closed ) {
+						wait();
+					}
+					// the interval policy lets records gather until the next sync is due
+					long now;
+					while ( Sync.INTERVAL == _sync && ! _closed && (now = System.currentTimeMillis()) < nextSync ) {
+						wait( nextSync - now );
+					}
+				} catch ( InterruptedException e ) {
+					// only close() stops the writer
+					continue;
+				}
+				closed = _closed;
+				if ( _waiting.isEmpty() && _rollOffset < 0 && closed ) {
+					break;
+				}
+				byte[] swap = _pending;
+				_pending = buffer;
+				buffer = swap;
+				length = _pendingLength;
+				_pendingLength = 0;
+				rollOffset = _rollOffset;
+				rollSegment = _rollSegment;
+				_rollOffset = -1;
+				List<FutureImpl<Void,JSONObject>> futures = _waiting;
+				_waiting = waiting;
+				waiting = futures;
+			}
+
+			try {
+				if ( rollOffset >= 0 ) {
+					// the records of the old segment are synced whatever the policy, as later
+					// segments must only ever follow whole ones
+					writeFully( buffer, 0, rollOffset );
+					_channel.force( false );
+					_channel.close();
+					_channel = new RandomAccessFile( segmentFile( rollSegment ), "rw" ).getChannel();
+					// the new segment must not vanish in a crash once older ones may be deleted
+					syncDirectory( segmentFile( rollSegment ));
+					synchronized ( this ) {
+						_segment = rollSegment;
+					}
+					writeFully( buffer, rollOffset, length - rollOffset );
+				} else {
+					writeFully( buffer, 0, length );
+				}
+				if ( Sync.OS != _sync || closed ) {
+					_channel.force( false );
+					synchronized ( this ) {
+						_syncs++;
+					}
+				}
+			} catch ( IOException e ) {
+				fail( waiting, e );
+				return;
+			}
+			nextSync = System.currentTimeMillis() + _interval;
+			settle( waiting, null );
+			waiting = new ArrayList<>();
+		}
+
+		try {
+			// records written under the OS policy are made durable when the log is closed
+			_channel.force( false );
+		} catch ( IOException e ) {
+			// nothing is waiting on them any more
+		}
+	}
+
+	/**
+	 * Writes part of a buffer to the segment
+	 */
+	private void writeFully( byte[] buffer, int offset, int length ) throws IOException {
+		ByteBuffer out = ByteBuffer.wrap( buffer, offset, length );
+		while ( out.hasRemaining() ) {
+			_channel.write( out );
+		}
+	}
+
+	/**
+	 * Fails the records being written and every record appended since, and any later appends
+	 */
+	private void fail( List<FutureImpl<Void,JSONObject>> writing, IOException e ) {
+		List<FutureImpl<Void,JSONObject>> waiting;
+		JSONObject error = error( "err.log.io", "Cannot write to log {0}: {1}", e.getMessage() );
+		synchronized ( this ) {
+			_error = error;
+			waiting = _waiting;
+			_waiting = new ArrayList<>();
+			_pendingLength = 0;
+		}
+		settle( writing, error );
+		settle( waiting, error );
+	}
+
+	/**
+	 * Completes a batch of futures, or fails them with the given error, on the Scheduler rather
+	 * than the writer, so that whatever continues from them does not hold up the next round
+	 */
+	private static void settle( final List<FutureImpl<Void,JSONObject>> futures, final JSONObject error ) {
+		if ( futures.isEmpty() ) {
+			return;
+		}
+		Scheduler.runAsync( new Runnable() {
+			public void run() {
+				for ( FutureImpl<Void,JSONObject> future : futures ) {
+					if ( null == error ) {
+						future.tryComplete( null );
+					} else {
+						future.tryFail( error );
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Creates an error naming the file of the log and the given detail, if any
+	 */
+	private JSONObject error( String code, String message, String detail ) {
+		JSONObject error = JSONObject.create();
+		error.put( "code", code );
+		error.put( "message", message );
+		error.add( "args", _file.getPath() );
+		if ( null != detail ) {
+			error.add( "args", detail );
+		}
+		return error;
+	}
+}
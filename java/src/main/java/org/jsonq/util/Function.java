@@ -0,0 +1,17 @@
+package org.jsonq.util;
+
+/**
+ * Interface for a function transforming one value into another
+ */
+public interface Function<A,B> {
+
+	/**
+	 * Called to transform the given value
+	 *
+	 * @param value the value to be transformed
+	 *
+	 * @return the result
+	 */
+	public B apply( A value );
+
+}
@@ -39,6 +39,31 @@ public interface Future<T,E> {
 	 */
 	public boolean isFailure();
 
+	/**
+	 * Cancels this future, failing it with the given error unless it has already completed. Work
+	 * which has not started yet will not be run.
+	 *
+	 * @param error the error to fail with
+	 *
+	 * @return true if the future was cancelled by this call
+	 */
+	public boolean cancel( E error );
+
+	/**
+	 * Returns true if this future was cancelled
+	 */
+	public boolean isCancelled();
+
+	/**
+	 * Blocks the calling thread until this future completes or the timeout elapses. Only
+	 * supported on the JVM; in JavaScript this returns immediately.
+	 *
+	 * @param timeout the maximum time to wait, in milliseconds
+	 *
+	 * @return true if the future has completed
+	 */
+	public boolean await( long timeout );
+
 	/**
 	 * Retrieves the value of this future in a synchronous fashion. If the future is completed in an
 	 * error state, the resultant Exception will be thrown from the invocation of this method.
@@ -8,15 +8,17 @@ package org.jsonq.util;
  */
 public abstract class FutureBase<T,E> implements Future<T,E> {
 
-	protected final String _id;
+	protected volatile String _id;
 
-	protected boolean _complete = false;
+	protected volatile boolean _complete = false;
 	protected T _result;
 	protected E _error;
 	protected double _progress;
 
 	/**
 	 * Constructor 
+	 *
+	 * @param id the transaction ID, or null to generate one the first time it is asked for
 	 */
 	protected FutureBase( String id ) {
 		_id = id;
@@ -26,7 +28,16 @@ public abstract class FutureBase<T,E> implements Future<T,E> {
 	 * Returns the transaction ID for this future. This method should always return instantly.
 	 */
 	public String getId() {
-		return _id;
+		String id = _id;
+		if ( null == id ) {
+			synchronized ( this ) {
+				if ( null == _id ) {
+					_id = UUID.uuid();
+				}
+				id = _id;
+			}
+		}
+		return id;
 	}
 
 	/**
@@ -40,7 +51,7 @@ public abstract class FutureBase<T,E> implements Future<T,E> {
 	 * Returns true if this future has completed in a failure state
 	 */
 	public boolean isFailure() {
-		return _complete && null != _error;
+		return isComplete() && null != _error;
 	}
 
 	/**
@@ -50,7 +61,7 @@ public abstract class FutureBase<T,E> implements Future<T,E> {
 	 * @throws IllegalStateException if the Future is not complete
 	 */
 	public T get() {
-		if ( ! _complete ) {
+		if ( ! isComplete() ) {
 			throw new IllegalStateException( "Future has not completed" );
 		}
 		if ( null != _error ) {
@@ -72,7 +83,7 @@ public abstract class FutureBase<T,E> implements Future<T,E> {
 	 * @throws IllegalStateException if the Future is not complete
 	 */
 	public E getError() {
-		if ( ! _complete ) {
+		if ( ! isComplete() ) {
 			throw new IllegalStateException( "Future has not completede" );
 		}
 		return _error;
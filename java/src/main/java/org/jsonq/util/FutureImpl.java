@@ -1,23 +1,49 @@
 package org.jsonq.util;
 
+import java.util.concurrent.atomic.*;
+
 /**
- * Basic, thread-safe implementation of Future
+ * Basic, thread-safe implementation of Future.
+ *
+ * The state of the future is held in a single atomic word, so registering handlers and completing
+ * never take a lock. Whichever of the two happens last fires the handlers, on its own thread. The
+ * chained Future returned by <code>then()</code> is completed inline right after the handlers, unless
+ * the chain is already too deep on the current stack, in which case it is handed to the Scheduler.
  */
 public class FutureImpl<T,E> extends FutureBase<T,E> {
 
+	// state bits
+	protected static final int COMPLETING = 1;
+	protected static final int COMPLETE = 2;
+	protected static final int HANDLERS = 4;
+	protected static final int WAITERS = 8;
+	protected static final int CANCELLED = 16;
+
+	/** Maximum number of futures fired inline on one stack before deferring to the Scheduler */
+	private static final int MAX_INLINE_DEPTH = 32;
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<FutureImpl> STATE =
+			AtomicIntegerFieldUpdater.newUpdater( FutureImpl.class, "_state" );
+
+	private static final ThreadLocal<int[]> DEPTH = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() { return new int[1]; }
+	};
+
 	protected FutureImpl<T,E> _next;
 	protected Closure<T> _successHandler;
 	protected Closure<E> _errorHandler;
 	protected Closure<Double> _progressHandler;
-	protected boolean _handlersSet;
 
-	protected boolean _fired;
+	private volatile Future<?,E> _upstream;
+	private volatile int _state;
 
 	/**
-	 * Constructor 
+	 * Constructor
 	 */
 	public FutureImpl() {
-		super( UUID.uuid() );
+		super( null );
 	}
 
 	/**
@@ -34,71 +60,237 @@ public class FutureImpl<T,E> extends FutureBase<T,E> {
 	 *
 	 * @throws IllegalStateException if this method has been called before
 	 */
-	public synchronized Future<T,E> then(
+	public Future<T,E> then(
 			Closure<T> successHandler,
 			Closure<E> failureHandler,
 			Closure<Double> progressHandler ) {
 
-		if ( _handlersSet ) {
+		if ( 0 != (_state & HANDLERS) ) {
 			throw new IllegalStateException( "Cannot call then() twice!" );
 		}
 
+		FutureImpl<T,E> next = new FutureImpl<T,E>();
 		_successHandler = successHandler;
 		_errorHandler = failureHandler;
 		_progressHandler = progressHandler;
-		_handlersSet = true;
+		_next = next;
 
-		if ( isComplete() ) {
+		// publishes the handlers
+		int prev = set( HANDLERS );
+		if ( 0 != (prev & HANDLERS) ) {
+			throw new IllegalStateException( "Cannot call then() twice!" );
+		}
+		if ( 0 != (prev & COMPLETE) ) {
 			finish();
 		}
-		_next = new FutureImpl<T,E>();
-		return _next;
+		return next;
 	}
 
 	/**
 	 * Complete in a successful fashion
+	 *
+	 * @throws IllegalStateException if the future has already completed
 	 */
-	public synchronized void complete( T result ) {
+	public void complete( T result ) {
 		setResults( result, null );
-		finish();
 	}
 
 	/**
 	 * Complete in an erroneous fashion
+	 *
+	 * @throws IllegalStateException if the future has already completed
 	 */
-	public synchronized void fail( E error ) {
+	public void fail( E error ) {
 		setResults( null, error );
-		finish();
 	}
 
 	/**
-	 * Finish execution, firing any handlers necessary based on the state of completion
+	 * Complete in a successful fashion, unless the future has already completed
+	 *
+	 * @return true if this call completed the future
+	 */
+	public boolean tryComplete( T result ) {
+		return trySetResults( result, null );
+	}
+
+	/**
+	 * Complete in an erroneous fashion, unless the future has already completed
+	 *
+	 * @return true if this call completed the future
+	 */
+	public boolean tryFail( E error ) {
+		return trySetResults( null, error );
+	}
+
+	/**
+	 * Blocks the calling thread until this future completes or the timeout elapses. If the thread
+	 * is interrupted, this returns early with the interrupt flag set.
+	 *
+	 * @param timeout the maximum time to wait, in milliseconds
+	 *
+	 * @return true if the future has completed
+	 */
+	public boolean await( long timeout ) {
+		if ( isComplete() ) {
+			return true;
+		}
+		set( WAITERS );
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized ( this ) {
+			while ( ! isComplete() ) {
+				long remaining = deadline - System.currentTimeMillis();
+				if ( remaining <= 0 ) {
+					return false;
+				}
+				try {
+					wait( remaining );
+				} catch ( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+					return isComplete();
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Cancels this future, failing it with the given error unless it has already completed. Any
+	 * upstream future is cancelled too.
+	 *
+	 * @param error the error to fail with
+	 *
+	 * @return true if this call cancelled the future
+	 */
+	public boolean cancel( E error ) {
+		if ( ! trySetResults( null, error, CANCELLED ) ) {
+			return false;
+		}
+		Future<?,E> upstream = _upstream;
+		if ( null != upstream ) {
+			upstream.cancel( error );
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if this future was cancelled
+	 */
+	public boolean isCancelled() {
+		return 0 != (_state & CANCELLED);
+	}
+
+	/**
+	 * Links the future of the work this future is waiting on, so that cancelling this future
+	 * cancels that work as well. If this future has already been cancelled, the upstream future is
+	 * cancelled immediately.
+	 *
+	 * @param upstream the future to cancel along with this one
+	 */
+	public void setUpstream( Future<?,E> upstream ) {
+		_upstream = upstream;
+		if ( isCancelled() ) {
+			upstream.cancel( _error );
+		}
+	}
+
+	/**
+	 * Returns true if this future is completed (success or failure)
+	 */
+	@Override
+	public boolean isComplete() {
+		return 0 != (_state & COMPLETE);
+	}
+
+	/**
+	 * Sets the results of this future and fires the handlers if they have been registered
+	 *
+	 * @throws IllegalStateException if the future has already completed
+	 */
+	@Override
+	protected void setResults( T result, E error ) {
+		if ( ! trySetResults( result, error ) ) {
+			throw new IllegalStateException( "Future has already completed" );
+		}
+	}
+
+	/**
+	 * Sets the results of this future unless it has already completed
+	 *
+	 * @return true if the results were set
+	 */
+	protected boolean trySetResults( T result, E error ) {
+		return trySetResults( result, error, 0 );
+	}
+
+	/**
+	 * Sets the results of this future unless it has already completed
+	 *
+	 * @param flags additional state bits to set along with the results
+	 *
+	 * @return true if the results were set
 	 */
-	private synchronized void finish() {
-		if ( ! isComplete() ) {
-			throw new IllegalStateException( "Cannot call finish() if not complete" );
+	private boolean trySetResults( T result, E error, int flags ) {
+		// claim the right to complete before writing, so a racing completer can't clobber the results
+		if ( 0 != (set( COMPLETING ) & COMPLETING) ) {
+			return false;
 		}
-		if ( _fired ) {
-			throw new IllegalStateException( "Cannot fire Future when it has already fired" );
+		_result = result;
+		_error = error;
+
+		// publishes the results
+		int prev = set( COMPLETE | flags );
+		if ( 0 != (prev & WAITERS) ) {
+			synchronized ( this ) {
+				notifyAll();
+			}
+		}
+		if ( 0 != (prev & HANDLERS) ) {
+			finish();
 		}
+		return true;
+	}
 
-		// nothing to do (yet)
-		if ( ! _handlersSet ) {
+	/**
+	 * Atomically sets the given state bits, unless any of them are already set
+	 *
+	 * @return the state before the bits were set
+	 */
+	protected final int set( int bit ) {
+		while ( true ) {
+			int state = _state;
+			if ( 0 != (state & bit) || STATE.compareAndSet( this, state, state | bit ) ) {
+				return state;
+			}
+		}
+	}
+
+	/**
+	 * Finish execution, firing any handlers necessary based on the state of completion. Only called
+	 * once, by whichever thread supplied the last of the results and the handlers.
+	 */
+	private void finish() {
+		int[] depth = DEPTH.get();
+		if ( depth[0] >= MAX_INLINE_DEPTH ) {
+			// unwind the stack before continuing the chain
+			Scheduler.runAsync(
+					new Runnable() {
+						public void run() { finish(); }
+					});
 			return;
 		}
 
-		if ( isFailure() && null != _errorHandler ) {
-			_errorHandler.apply( _error );
-		} else if ( ! isFailure() && null != _successHandler ) {
-			_successHandler.apply( _result );
+		depth[0]++;
+		try {
+			if ( null != _error ) {
+				if ( null != _errorHandler ) {
+					_errorHandler.apply( _error );
+				}
+			} else if ( null != _successHandler ) {
+				_successHandler.apply( _result );
+			}
+			_next.setResults( _result, _error );
+		} finally {
+			depth[0]--;
 		}
-		_fired = true;
-
-		Scheduler.runAsync(
-				new Runnable() {
-					public void run() {
-						_next.setResults( _result, _error );
-					}
-				});
 	}
 }
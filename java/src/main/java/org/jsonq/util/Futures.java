@@ -0,0 +1,330 @@
+package org.jsonq.util;
+
+import org.jsonq.*;
+import java.util.*;
+
+/**
+ * Combinators for building Futures out of other Futures.
+ *
+ * Each combinator registers handlers on the Futures it is given, so those Futures must not have
+ * had <code>then()</code> called on them and cannot have it called afterwards. Chain off the
+ * returned Future instead.
+ *
+ * The combinators taking a function are also given a function mapping the RuntimeExceptions it
+ * throws to errors, so that the returned Future fails instead of never completing. For Futures
+ * failing with JSON/q errors this may be left out, in which case such an exception fails the
+ * returned Future with <code>err.internal</code>.
+ *
+ * Cancelling a returned Future cancels the Futures it is waiting on, so that work whose result is
+ * no longer wanted is not run. For the same reason, allOf() and anyOf() cancel the Futures still
+ * running once their own result is decided.
+ */
+public final class Futures {
+
+	/** Fails with <code>err.internal</code> when a function throws */
+	private static final Function<RuntimeException,JSONObject> INTERNAL =
+			new Function<RuntimeException,JSONObject>() {
+				public JSONObject apply( RuntimeException e ) {
+					JSONObject error = JSONObject.create();
+					error.put( "code", "err.internal" );
+					error.put( "message", "Unexpected error: {0}" );
+					error.add( "args", String.valueOf( e ));
+					return error;
+				}
+			};
+
+	/**
+	 * Private Constructor - static utility
+	 */
+	private Futures() {}
+
+	/**
+	 * Returns a Future which completes with the result of applying the function to the result of
+	 * the given Future. Failures are passed through untouched, and an exception thrown by the
+	 * function fails the Future with <code>err.internal</code>.
+	 *
+	 * @param future the source future
+	 * @param function the function to apply to the result
+	 */
+	public static <A,B> Future<B,JSONObject> map( Future<A,JSONObject> future, Function<A,B> function ) {
+		return map( future, function, INTERNAL );
+	}
+
+	/**
+	 * Returns a Future which completes with the result of applying the function to the result of
+	 * the given Future. Failures are passed through untouched.
+	 *
+	 * @param future the source future
+	 * @param function the function to apply to the result
+	 * @param thrown maps an exception thrown by the function to the error to fail with
+	 */
+	public static <A,B,E> Future<B,E> map(
+			Future<A,E> future,
+			final Function<A,B> function,
+			final Function<RuntimeException,E> thrown ) {
+		final FutureImpl<B,E> result = new FutureImpl<>();
+		result.setUpstream( future );
+		future.then(
+				new Closure<A>() {
+					public void apply( A value ) {
+						B mapped;
+						try {
+							mapped = function.apply( value );
+						} catch ( RuntimeException e ) {
+							result.tryFail( thrown.apply( e ));
+							return;
+						}
+						result.tryComplete( mapped );
+					}
+				},
+				failTo( result ),
+				null );
+		return result;
+	}
+
+	/**
+	 * Returns a Future which completes with the result of the Future returned by applying the
+	 * function to the result of the given Future. An exception thrown by the function, or a null
+	 * Future returned by it, fails the Future with <code>err.internal</code>.
+	 *
+	 * @param future the source future
+	 * @param function the function starting the next asynchronous call
+	 */
+	public static <A,B> Future<B,JSONObject> compose(
+			Future<A,JSONObject> future,
+			Function<A,Future<B,JSONObject>> function ) {
+		return compose( future, function, INTERNAL );
+	}
+
+	/**
+	 * Returns a Future which completes with the result of the Future returned by applying the
+	 * function to the result of the given Future. Use this to chain dependent asynchronous calls.
+	 *
+	 * @param future the source future
+	 * @param function the function starting the next asynchronous call
+	 * @param thrown maps an exception thrown by the function to the error to fail with. A
+	 * function returning null is treated as throwing a NullPointerException
+	 */
+	public static <A,B,E> Future<B,E> compose(
+			Future<A,E> future,
+			final Function<A,Future<B,E>> function,
+			final Function<RuntimeException,E> thrown ) {
+		final FutureImpl<B,E> result = new FutureImpl<>();
+		result.setUpstream( future );
+		future.then(
+				new Closure<A>() {
+					public void apply( A value ) {
+						Future<B,E> next;
+						try {
+							next = function.apply( value );
+							if ( null == next ) {
+								throw new NullPointerException( "compose() function returned null" );
+							}
+						} catch ( RuntimeException e ) {
+							result.tryFail( thrown.apply( e ));
+							return;
+						}
+						// the source is done, what is left to cancel is the next call
+						result.setUpstream( next );
+						next.then( completeTo( result ), failTo( result ), null );
+					}
+				},
+				failTo( result ),
+				null );
+		return result;
+	}
+
+	/**
+	 * Returns a Future which completes once all of the given Futures have completed successfully,
+	 * with their results in the same order. It fails as soon as any of them fails, and then
+	 * cancels the others with the same error.
+	 *
+	 * @param futures the futures to wait for
+	 */
+	public static <T,E> Future<List<T>,E> allOf( final List<? extends Future<T,E>> futures ) {
+		final FutureImpl<List<T>,E> result = new FutureImpl<>();
+		final int size = futures.size();
+		if ( 0 == size ) {
+			result.complete( new ArrayList<T>( 0 ));
+			return result;
+		}
+
+		result.setUpstream( group( futures ));
+		final List<T> values = new ArrayList<>( Collections.<T>nCopies( size, null ));
+		final int[] remaining = { size };
+		for ( int i = 0; i < size; i++ ) {
+			final int index = i;
+			futures.get(i).then(
+					new Closure<T>() {
+						public void apply( T value ) {
+							boolean done;
+							synchronized ( values ) {
+								values.set( index, value );
+								done = 0 == --remaining[0];
+							}
+							if ( done ) {
+								result.tryComplete( values );
+							}
+						}
+					},
+					new Closure<E>() {
+						public void apply( E error ) {
+							if ( result.tryFail( error ) ) {
+								cancelAll( futures, error );
+							}
+						}
+					},
+					null );
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a Future which completes with the result of the first of the given Futures to
+	 * complete successfully, and then cancels the others. As there is no error to cancel them with,
+	 * they fail with null. It only fails if all of them fail, with the last error.
+	 *
+	 * @param futures the futures to wait for
+	 *
+	 * @throws IllegalArgumentException if no futures are given
+	 */
+	public static <T,E> Future<T,E> anyOf( final List<? extends Future<T,E>> futures ) {
+		final int size = futures.size();
+		if ( 0 == size ) {
+			throw new IllegalArgumentException( "anyOf() requires at least one future" );
+		}
+
+		final FutureImpl<T,E> result = new FutureImpl<>();
+		result.setUpstream( group( futures ));
+		final int[] remaining = { size };
+		for ( Future<T,E> future : futures ) {
+			future.then(
+					new Closure<T>() {
+						public void apply( T value ) {
+							if ( result.tryComplete( value ) ) {
+								cancelAll( futures, null );
+							}
+						}
+					},
+					new Closure<E>() {
+						public void apply( E error ) {
+							boolean done;
+							synchronized ( remaining ) {
+								done = 0 == --remaining[0];
+							}
+							if ( done ) {
+								result.tryFail( error );
+							}
+						}
+					},
+					null );
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a Future which completes like the given Future, unless it takes longer than the
+	 * timeout, in which case it fails with the given error and the given Future is cancelled.
+	 *
+	 * @param future the source future
+	 * @param timeout the time to wait, in milliseconds
+	 * @param error the error to fail with on timeout
+	 */
+	public static <T,E> Future<T,E> timeout( final Future<T,E> future, long timeout, final E error ) {
+		final FutureImpl<T,E> result = new FutureImpl<>();
+		result.setUpstream( future );
+		// the source may complete before the timer is started, which then cancels it right away
+		final Runnable[] timer = new Runnable[ 1 ];
+		final boolean[] done = new boolean[ 1 ];
+		future.then(
+				new Closure<T>() {
+					public void apply( T value ) {
+						result.tryComplete( value );
+						stop( timer, done );
+					}
+				},
+				new Closure<E>() {
+					public void apply( E value ) {
+						result.tryFail( value );
+						stop( timer, done );
+					}
+				},
+				null );
+		if ( ! result.isComplete() ) {
+			Runnable cancel = Scheduler.runLater(
+					new Runnable() {
+						public void run() {
+							if ( result.tryFail( error ) ) {
+								// nobody is waiting for the result any more
+								future.cancel( error );
+							}
+						}
+					},
+					timeout );
+			synchronized ( done ) {
+				if ( done[0] ) {
+					cancel.run();
+				} else {
+					timer[0] = cancel;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Cancels the timer of a timeout once its source has completed
+	 */
+	private static void stop( Runnable[] timer, boolean[] done ) {
+		synchronized ( done ) {
+			done[0] = true;
+			if ( null != timer[0] ) {
+				timer[0].run();
+			}
+		}
+	}
+
+	/**
+	 * Returns a Future which cancels all of the given Futures when it is cancelled, to link them
+	 * upstream of a Future waiting on all of them
+	 */
+	private static <E> Future<Void,E> group( final List<? extends Future<?,E>> futures ) {
+		return new FutureImpl<Void,E>() {
+			@Override
+			public boolean cancel( E error ) {
+				if ( ! super.cancel( error ) ) {
+					return false;
+				}
+				cancelAll( futures, error );
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Cancels those of the given Futures which have not completed yet
+	 */
+	private static <E> void cancelAll( List<? extends Future<?,E>> futures, E error ) {
+		for ( Future<?,E> future : futures ) {
+			future.cancel( error );
+		}
+	}
+
+	/**
+	 * Returns a Closure which completes the given future with its value
+	 */
+	private static <T,E> Closure<T> completeTo( final FutureImpl<T,E> future ) {
+		return new Closure<T>() {
+			public void apply( T value ) { future.tryComplete( value ); }
+		};
+	}
+
+	/**
+	 * Returns a Closure which fails the given future with its value
+	 */
+	private static <T,E> Closure<E> failTo( final FutureImpl<T,E> future ) {
+		return new Closure<E>() {
+			public void apply( E error ) { future.tryFail( error ); }
+		};
+	}
+}
@@ -1,27 +1,323 @@
 package org.jsonq.util;
 
+import org.jsonq.util.concurrent.*;
 import java.util.concurrent.*;
 import java.util.*;
 
 /**
- * Rudimentary scheduler for executing things in the future
+ * Rudimentary scheduler for executing things in the future.
+ *
+ * The executor backing the scheduler is pluggable. It may be set explicitly through
+ * <code>setExecutor()</code> before the first task is scheduled, otherwise it is created on first
+ * use according to the <code>jsonq.scheduler</code> system property.
+ *
+ * Tasks which name a lane (@see org.jsonq.util.Task) are run in order with respect to the other
+ * tasks in their lane, even when the executor is multi-threaded. Lanes only order what is
+ * scheduled: work which is run without being scheduled, such as JSON/q commands against stores
+ * which never block (@see org.jsonq.provider.impl.Command#dispatch()), runs on the caller's thread
+ * in the order the caller runs it.
+ *
+ * Tasks are queued by priority class (@see org.jsonq.util.Task#getPriority()). Worker threads
+ * pick between the classes by weighted round robin, so background work only uses the capacity
+ * left over by latency-sensitive work, without being starved. Queued tasks are run in batches by
+ * a drain loop per executor thread, rather than handing each one to the executor separately. The
+ * virtual thread mode is the exception: each task is run on a thread of its own right away, so a
+ * task which blocks does not hold up any other.
+ *
+ * Tasks are also subject to admission control: the number of tasks waiting to run can be bounded,
+ * in which case tasks which do not fit are rejected or run by the caller. A task which does not fit
+ * is only run by the caller if its lane is idle; otherwise it is queued in its lane regardless of
+ * the bound, so that it still runs after the tasks before it. Plain Runnables, which
+ * JSON/q uses to continue work that has already been admitted, are never rejected.
  */
 public final class Scheduler {
 
+	/** System property selecting the scheduler mode */
+	public static final String MODE_PROPERTY = "jsonq.scheduler";
+
+	/** System property setting the parallelism of the fork-join mode */
+	public static final String PARALLELISM_PROPERTY = "jsonq.scheduler.parallelism";
+
+	/** System property setting the number of ordered lanes */
+	public static final String LANES_PROPERTY = "jsonq.scheduler.lanes";
+
+	/** System property setting the weights of the high, normal and low priority classes */
+	public static final String WEIGHTS_PROPERTY = "jsonq.scheduler.weights";
+
+	/** System property bounding the number of tasks waiting to run. Unbounded by default */
+	public static final String QUEUE_PROPERTY = "jsonq.scheduler.queue";
+
+	/** System property selecting the AdmissionControl.Policy for tasks which do not fit */
+	public static final String QUEUE_POLICY_PROPERTY = "jsonq.scheduler.queue.policy";
+
+	/** System property setting how long the reject policy waits for room, in milliseconds */
+	public static final String QUEUE_TIMEOUT_PROPERTY = "jsonq.scheduler.queue.timeout";
+
+	/** Runs everything on a single thread. This is the default */
+	public static final String MODE_SINGLE = "single";
+
+	/** Runs everything on a work-stealing fork-join pool */
+	public static final String MODE_FORK_JOIN = "forkjoin";
+
+	/** Runs every task on its own virtual thread. Requires a Java 21 or newer runtime */
+	public static final String MODE_VIRTUAL = "virtual";
+
 	// member variables
-	private static final Executor _executor = Executors.newSingleThreadExecutor();
+	private static volatile PriorityExecutor _executor;
+	private static ScheduledExecutorService _timer;
+	private static LaneExecutor _lanes;
+	private static AdmissionControl _admission;
 
 	/**
-	 * Private Constructor - singleton 
+	 * Private Constructor - singleton
 	 */
 	private Scheduler() {}
 
+	/**
+	 * Sets the executor used to run all scheduled code. This method must be called before anything
+	 * has been scheduled
+	 *
+	 * @param executor the executor to use
+	 *
+	 * @throws IllegalStateException if the executor has already been set or created
+	 */
+	public static synchronized void setExecutor( Executor executor ) {
+		if ( null != _executor ) {
+			throw new IllegalStateException( "Scheduler has already been initialized" );
+		}
+		if ( null == executor ) {
+			throw new NullPointerException( "executor cannot be null" );
+		}
+		if ( null == _admission ) {
+			_admission = new AdmissionControl(
+					Integer.getInteger( QUEUE_PROPERTY, Integer.MAX_VALUE ),
+					AdmissionControl.Policy.parse( System.getProperty( QUEUE_POLICY_PROPERTY, "fail_fast" )),
+					Long.getLong( QUEUE_TIMEOUT_PROPERTY, 100 ));
+		}
+		PriorityExecutor prioritized = new PriorityExecutor(
+				executor,
+				threadsOf( executor ),
+				parseWeights( System.getProperty( WEIGHTS_PROPERTY, "8,4,1" )));
+		_lanes = new LaneExecutor( prioritized, Integer.getInteger( LANES_PROPERTY, 256 ));
+		_executor = prioritized;
+	}
+
+	/**
+	 * Returns the number of threads the executor can run tasks on at once, which is the number of
+	 * drain loops worth keeping busy. Executors of unknown size, such as the virtual thread
+	 * executor, are treated as starting a thread for every task.
+	 */
+	private static int threadsOf( Executor executor ) {
+		if ( executor instanceof ForkJoinPool ) {
+			return ((ForkJoinPool)executor).getParallelism();
+		} else if ( executor instanceof ThreadPoolExecutor ) {
+			return ((ThreadPoolExecutor)executor).getMaximumPoolSize();
+		}
+		return PriorityExecutor.UNBOUNDED;
+	}
+
+	/**
+	 * Parses the weights of the priority classes
+	 *
+	 * @throws IllegalArgumentException if there is not one number per priority class
+	 */
+	private static int[] parseWeights( String value ) {
+		String[] parts = value.split( "," );
+		if ( 3 != parts.length ) {
+			throw new IllegalArgumentException( "Expected 3 priority weights: "+value );
+		}
+		int[] weights = new int[ parts.length ];
+		for ( int i = 0; i < parts.length; i++ ) {
+			weights[i] = Integer.parseInt( parts[i].trim() );
+		}
+		return weights;
+	}
+
+	/**
+	 * Sets the admission control for scheduled tasks. This method must be called before anything
+	 * has been scheduled
+	 *
+	 * @param admission the admission control to use
+	 *
+	 * @throws IllegalStateException if the scheduler has already been initialized
+	 */
+	public static synchronized void setAdmissionControl( AdmissionControl admission ) {
+		if ( null != _executor ) {
+			throw new IllegalStateException( "Scheduler has already been initialized" );
+		}
+		if ( null == admission ) {
+			throw new NullPointerException( "admission cannot be null" );
+		}
+		_admission = admission;
+	}
+
+	/**
+	 * Returns the number of tasks which have been scheduled but have not started running. Load
+	 * balancers can use this to shed load before latency suffers.
+	 */
+	public static int getQueueDepth() {
+		return null == _executor ? 0 : _admission.getDepth();
+	}
+
+	/**
+	 * Returns the maximum number of tasks which may wait to run
+	 */
+	public static int getQueueCapacity() {
+		if ( null == _executor ) {
+			return Integer.getInteger( QUEUE_PROPERTY, Integer.MAX_VALUE );
+		}
+		return _admission.getCapacity();
+	}
+
+	/**
+	 * Creates an executor for the given mode
+	 *
+	 * @param mode one of the <code>MODE_*</code> constants
+	 * @param parallelism the number of threads to use, if the mode supports it
+	 *
+	 * @throws IllegalArgumentException if the mode is unknown
+	 */
+	public static Executor createExecutor( String mode, int parallelism ) {
+		if ( MODE_SINGLE.equals( mode ) ) {
+			// not Executors.newSingleThreadExecutor(), which hides its size behind a wrapper
+			return new ThreadPoolExecutor( 1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>() );
+		} else if ( MODE_FORK_JOIN.equals( mode ) ) {
+			return newForkJoinExecutor( parallelism );
+		} else if ( MODE_VIRTUAL.equals( mode ) ) {
+			return newVirtualThreadExecutor();
+		} else {
+			throw new IllegalArgumentException( "Unknown scheduler mode: "+mode );
+		}
+	}
+
+	/**
+	 * Creates a work-stealing executor. Tasks are taken in FIFO order, since scheduled code is
+	 * event-style and never joined.
+	 *
+	 * @param parallelism the number of worker threads
+	 */
+	public static Executor newForkJoinExecutor( int parallelism ) {
+		return new ForkJoinPool(
+				parallelism,
+				ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+				null,
+				true );
+	}
+
+	/**
+	 * Creates an executor which starts a new virtual thread for every task. This suits stores whose
+	 * commands block on I/O, since a blocked command does not hold on to a platform thread.
+	 *
+	 * @throws IllegalStateException if the runtime does not support virtual threads
+	 */
+	public static Executor newVirtualThreadExecutor() {
+		// looked up reflectively so that the library still builds and runs on older runtimes
+		try {
+			return (Executor)Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+		} catch ( NoSuchMethodException e ) {
+			throw new IllegalStateException( "Virtual threads are not supported by this runtime" );
+		} catch ( ReflectiveOperationException e ) {
+			throw new IllegalStateException( "Could not create virtual thread executor", e );
+		}
+	}
+
+	/**
+	 * Returns the executor, creating it from the system properties if it has not been set
+	 */
+	private static synchronized PriorityExecutor init() {
+		if ( null == _executor ) {
+			int parallelism = Integer.getInteger(
+					PARALLELISM_PROPERTY,
+					Runtime.getRuntime().availableProcessors() );
+			setExecutor( createExecutor( System.getProperty( MODE_PROPERTY, MODE_SINGLE ), parallelism ));
+		}
+		return _executor;
+	}
+
 	/**
 	 * Runs the given code on another thread
 	 *
 	 * @param runnable the Runnable to execute
+	 *
+	 * @return false if the runnable is a Task and was rejected because the queue is full
+	 */
+	public static boolean runAsync( Runnable runnable ) {
+		PriorityExecutor executor = _executor;
+		if ( null == executor ) {
+			executor = init();
+		}
+		if ( ! (runnable instanceof Task) ) {
+			executor.execute( Task.PRIORITY_NORMAL, runnable );
+			return true;
+		}
+
+		// _lanes and _admission are always assigned before _executor
+		Runnable admitted = _admission.admit( runnable );
+		if ( null == admitted ) {
+			if ( AdmissionControl.Policy.CALLER_RUNS != _admission.getPolicy() ) {
+				return false;
+			}
+			Task task = (Task)runnable;
+			String lane = task.getLane();
+			if ( null == lane ) {
+				runnable.run();
+			} else if ( ! _lanes.runIfIdle( lane, task.getPriority(), runnable ) ) {
+				// running it now would overtake the tasks queued before it in its lane, so it
+				// waits in the lane, outside the bound
+				_lanes.execute( lane, task.getPriority(), runnable );
+			}
+			return true;
+		}
+
+		Task task = (Task)runnable;
+		String lane = task.getLane();
+		if ( null != lane ) {
+			_lanes.execute( lane, task.getPriority(), admitted );
+		} else {
+			executor.execute( task.getPriority(), admitted );
+		}
+		return true;
+	}
+
+	/**
+	 * Runs the given code on another thread once the delay has elapsed
+	 *
+	 * @param runnable the Runnable to execute
+	 * @param delay the delay in milliseconds
+	 *
+	 * @return a Runnable which cancels the runnable, unless it is already due
+	 */
+	public static Runnable runLater( final Runnable runnable, long delay ) {
+		final ScheduledFuture<?> scheduled = timer().schedule(
+				new Runnable() {
+					// keep the timer thread free, it only hands tasks over
+					public void run() { runAsync( runnable ); }
+				},
+				delay,
+				TimeUnit.MILLISECONDS );
+		return new Runnable() {
+			public void run() { scheduled.cancel( false ); }
+		};
+	}
+
+	/**
+	 * Returns the timer for delayed tasks, creating it on first use
 	 */
-	public static void runAsync( Runnable runnable ) {
-		_executor.execute( runnable );
+	private static synchronized ScheduledExecutorService timer() {
+		if ( null == _timer ) {
+			ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(
+					1,
+					new ThreadFactory() {
+						public Thread newThread( Runnable runnable ) {
+							Thread thread = new Thread( runnable, "jsonq-timer" );
+							thread.setDaemon( true );
+							return thread;
+						}
+					});
+			// timeouts are mostly cancelled, don't let them pile up until they are due
+			timer.setRemoveOnCancelPolicy( true );
+			_timer = timer;
+		}
+		return _timer;
 	}
 }
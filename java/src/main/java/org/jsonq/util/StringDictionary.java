@@ -0,0 +1,282 @@
+package org.jsonq.util;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Dictionary of canonical Strings, so that equal strings held by many documents can be one
+ * instance. Besides saving the memory of the duplicates, this makes comparing two interned strings
+ * a matter of comparing references, which String.equals() tries first.
+ *
+ * The dictionary only takes strings up to a maximum length which it has seen repeat: every lookup
+ * is counted in a small frequency sketch, and a string is only taken once it has been looked up a
+ * few times, so that values which are unique by nature, such as e-mail addresses and IDs, do not
+ * use up its room. Once the dictionary is full, strings it already holds are still handed out.
+ *
+ * The counts are halved every time the dictionary has seen ten times as many strings as it may
+ * hold, and strings no longer looked up are then let go, so that the room taken by values which
+ * have gone out of use, for instance along with the documents holding them, is given to others.
+ * Documents holding a string which is let go keep it.
+ *
+ * The dictionary is safe for use by several threads, and does not lock when looking strings up.
+ */
+public class StringDictionary implements Function<String,String> {
+
+	/** Number of strings held unless told otherwise */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/** Longest string taken unless told otherwise */
+	public static final int DEFAULT_MAX_LENGTH = 32;
+
+	/** Number of lookups of a string after which it is taken, unless told otherwise */
+	public static final int DEFAULT_ADMISSION = 3;
+
+	/** Estimated size of a String and its array, without the chars themselves */
+	private static final int STRING_OVERHEAD = 40;
+
+	/** Counts of the sketch stop here, so that lookups of common strings only read them */
+	private static final int MAX_COUNT = 15;
+
+	/** Number of counts each string is counted in */
+	private static final int HASHES = 4;
+
+	/** Seeds of the hashes picking the counts of a string */
+	private static final int[] SEEDS = { 0x97cb3127, 0xb3e5e21f, 0x6b0e7d3d, 0xd3a3ba5b };
+
+	private final ConcurrentMap<String,String> _strings = new ConcurrentHashMap<>();
+	private final int _capacity;
+	private final int _maxLength;
+	private final int _admission;
+
+	// the frequency sketch, a table of 4-bit counts packed sixteen to a long, each string being
+	// counted in four of them, and the number of lookups after which the counts are halved
+	private final AtomicLongArray _counts;
+	private final int _mask;
+	private final int _period;
+	private final Lock _aging = new ReentrantLock();
+
+	// statistics
+	private final AtomicLong _lookups = new AtomicLong();
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _bytesSaved = new AtomicLong();
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity the number of strings to hold at most
+	 */
+	public StringDictionary( int capacity ) {
+		this( capacity, DEFAULT_MAX_LENGTH );
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity the number of strings to hold at most
+	 * @param maxLength the length of the longest string to take
+	 */
+	public StringDictionary( int capacity, int maxLength ) {
+		this( capacity, maxLength, DEFAULT_ADMISSION );
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity the number of strings to hold at most
+	 * @param maxLength the length of the longest string to take
+	 * @param admission the number of lookups of a string after which it is taken, at most 15
+	 */
+	public StringDictionary( int capacity, int maxLength, int admission ) {
+		if ( capacity < 0 || maxLength < 0 ) {
+			throw new IllegalArgumentException( "capacity and maxLength cannot be negative" );
+		}
+		if ( admission < 1 || admission > MAX_COUNT ) {
+			throw new IllegalArgumentException( "admission must be between 1 and "+MAX_COUNT );
+		}
+		_capacity = capacity;
+		_maxLength = maxLength;
+		_admission = admission;
+		_period = (int)Math.min( Math.max( 10L * capacity, 1024 ), 1 << 24 );
+		// four counts for each lookup of a period, so that strings seen once rarely look repeated
+		int width = 64;
+		while ( width < _period / 4 ) {
+			width <<= 1;
+		}
+		_counts = new AtomicLongArray( width );
+		_mask = width - 1;
+	}
+
+	/**
+	 * Returns the canonical instance of the given string, adding it to the dictionary if it has
+	 * been seen often enough and there is room. Other strings, and those which are too long, are
+	 * returned as they are.
+	 *
+	 * @param value the string to look up, may be null
+	 */
+	public String intern( String value ) {
+		if ( null == value || value.length() > _maxLength ) {
+			return value;
+		}
+		int count = count( value.hashCode() );
+		if ( 0 == _lookups.incrementAndGet() % _period ) {
+			age();
+		}
+
+		String canonical = _strings.get( value );
+		if ( null == canonical ) {
+			if ( count < _admission || _strings.size() >= _capacity ) {
+				return value;
+			}
+			// another thread may have taken the same string meanwhile
+			canonical = _strings.putIfAbsent( value, value );
+			if ( null == canonical ) {
+				return value;
+			}
+		}
+		_hits.incrementAndGet();
+		if ( canonical != value ) {
+			// the duplicate can now be collected
+			_bytesSaved.addAndGet( STRING_OVERHEAD + 2 * value.length() );
+		}
+		return canonical;
+	}
+
+	/**
+	 * Same as intern()
+	 */
+	@Override
+	public String apply( String value ) {
+		return intern( value );
+	}
+
+	/**
+	 * Counts a lookup of a string in the sketch. Only the smallest of its counts are increased, as
+	 * the others also count other strings
+	 *
+	 * @return the estimated number of lookups of the string, this one included
+	 */
+	private int count( int hash ) {
+		int min = MAX_COUNT;
+		for ( int i = 0; i < HASHES; i++ ) {
+			min = Math.min( min, countAt( slot( hash, i )));
+		}
+		if ( MAX_COUNT == min ) {
+			return min;
+		}
+		for ( int i = 0; i < HASHES; i++ ) {
+			int slot = slot( hash, i );
+			int shift = (slot & 15) << 2;
+			long word;
+			do {
+				word = _counts.get( slot >>> 4 );
+				// the count may be larger, or have been counted by another thread meanwhile
+				if ( ((word >>> shift) & MAX_COUNT) != min ) {
+					break;
+				}
+			} while ( ! _counts.compareAndSet( slot >>> 4, word, word + (1L << shift) ));
+		}
+		return min + 1;
+	}
+
+	/**
+	 * Returns the estimated number of lookups of a string, without counting one
+	 */
+	private int estimate( int hash ) {
+		int min = MAX_COUNT;
+		for ( int i = 0; i < HASHES; i++ ) {
+			min = Math.min( min, countAt( slot( hash, i )));
+		}
+		return min;
+	}
+
+	/**
+	 * Returns the count in the given slot
+	 */
+	private int countAt( int slot ) {
+		return (int)(_counts.get( slot >>> 4 ) >>> ((slot & 15) << 2)) & MAX_COUNT;
+	}
+
+	/**
+	 * Returns one of the slots a string is counted in, the long holding it and the count in it
+	 */
+	private int slot( int hash, int i ) {
+		int h = (hash + SEEDS[i]) * SEEDS[i];
+		h ^= h >>> 16;
+		return ((h & _mask) << 4) | ((h >>> 28) & 15);
+	}
+
+	/**
+	 * Halves the counts, and lets go of the strings which have not been looked up since the last
+	 * time. Threads finding another one at it carry on with their lookup
+	 */
+	private void age() {
+		if ( ! _aging.tryLock() ) {
+			return;
+		}
+		try {
+			for ( int i = 0; i <= _mask; i++ ) {
+				// lookups counted meanwhile may be lost, which only delays their admission
+				_counts.set( i, (_counts.get( i ) >>> 1) & 0x7777777777777777L );
+			}
+			for ( String value : _strings.keySet() ) {
+				if ( 0 == estimate( value.hashCode() ) ) {
+					_strings.remove( value );
+				}
+			}
+		} finally {
+			_aging.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of strings held
+	 */
+	public int getSize() {
+		return _strings.size();
+	}
+
+	/**
+	 * Returns the number of strings which may be held
+	 */
+	public int getCapacity() {
+		return _capacity;
+	}
+
+	/**
+	 * Returns the number of lookups of a string after which it is taken
+	 */
+	public int getAdmission() {
+		return _admission;
+	}
+
+	/**
+	 * Returns the number of strings looked up, leaving out those too long to be taken
+	 */
+	public long getLookups() {
+		return _lookups.get();
+	}
+
+	/**
+	 * Returns the number of lookups which found the string in the dictionary
+	 */
+	public long getHits() {
+		return _hits.get();
+	}
+
+	/**
+	 * Returns the share of lookups which found the string in the dictionary, between 0 and 1
+	 */
+	public double getHitRate() {
+		long lookups = _lookups.get();
+		return 0 == lookups ? 0 : (double)_hits.get() / lookups;
+	}
+
+	/**
+	 * Returns an estimate of the memory saved by handing out canonical strings in place of equal
+	 * ones, in bytes. Strings are taken to hold two bytes a char
+	 */
+	public long getBytesSaved() {
+		return _bytesSaved.get();
+	}
+}
@@ -0,0 +1,28 @@
+package org.jsonq.util;
+
+/**
+ * A Runnable which carries hints on how the Scheduler should run it
+ */
+public interface Task extends Runnable {
+
+	/** Latency-sensitive work, such as fetching a document */
+	public static final int PRIORITY_HIGH = 0;
+
+	/** Ordinary work, such as saving a document */
+	public static final int PRIORITY_NORMAL = 1;
+
+	/** Background work, such as scans and provisioning */
+	public static final int PRIORITY_LOW = 2;
+
+	/**
+	 * Returns the lane this task must be ordered in, or null if it may run in any order. Tasks
+	 * sharing a lane are run one at a time, in the order they were scheduled.
+	 */
+	public String getLane();
+
+	/**
+	 * Returns the priority class of this task, one of the <code>PRIORITY_*</code> constants
+	 */
+	public int getPriority();
+
+}
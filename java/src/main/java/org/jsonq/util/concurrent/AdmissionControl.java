@@ -0,0 +1,131 @@
+package org.jsonq.util.concurrent;
+
+import java.util.concurrent.*;
+
+/**
+ * Bounds the number of tasks which have been scheduled but not yet started. Each admitted task
+ * holds a permit until it starts running; when none are left, new tasks are handled according to
+ * the Policy.
+ */
+public class AdmissionControl {
+
+	/**
+	 * What to do with a task when the queue is full
+	 */
+	public static enum Policy {
+
+		/** Reject the task straight away */
+		FAIL_FAST,
+
+		/**
+		 * Run the task on the thread which scheduled it. The Scheduler only does so for tasks whose
+		 * lane is idle, and queues the others in their lane
+		 */
+		CALLER_RUNS,
+
+		/**
+		 * Wait up to the timeout for room in the queue, then reject the task. Tasks scheduled from
+		 * the threads running queued tasks are rejected straight away, as waiting would hold up
+		 * the very threads which make room
+		 */
+		REJECT;
+
+		/**
+		 * Parses a policy name, ignoring case and underscores
+		 *
+		 * @throws IllegalArgumentException if the name is not a known policy
+		 */
+		public static Policy parse( String name ) {
+			for ( Policy policy : values() ) {
+				if ( policy.name().replace( "_", "" ).equalsIgnoreCase( name.replace( "_", "" ))) {
+					return policy;
+				}
+			}
+			throw new IllegalArgumentException( "Unknown queue policy: "+name );
+		}
+	}
+
+	private final Semaphore _permits;
+	private final int _capacity;
+	private final Policy _policy;
+	private final long _timeout;
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity the maximum number of queued tasks
+	 * @param policy what to do with tasks once the queue is full
+	 * @param timeout how long the REJECT policy waits for room, in milliseconds
+	 */
+	public AdmissionControl( int capacity, Policy policy, long timeout ) {
+		if ( capacity <= 0 ) {
+			throw new IllegalArgumentException( "capacity must be positive" );
+		}
+		if ( null == policy ) {
+			throw new NullPointerException( "policy cannot be null" );
+		}
+		_permits = new Semaphore( capacity );
+		_capacity = capacity;
+		_policy = policy;
+		_timeout = timeout;
+	}
+
+	/**
+	 * Admits a task to the queue, waiting for room if the policy allows it
+	 *
+	 * @param task the task to admit
+	 *
+	 * @return the Runnable to queue in place of the task, which gives the permit back when it
+	 * starts, or null if there is no room for the task
+	 */
+	public Runnable admit( final Runnable task ) {
+		if ( ! acquire() ) {
+			return null;
+		}
+		return new Runnable() {
+			public void run() {
+				_permits.release();
+				task.run();
+			}
+		};
+	}
+
+	/**
+	 * Takes a permit according to the policy
+	 */
+	private boolean acquire() {
+		if ( _permits.tryAcquire() ) {
+			return true;
+		}
+		if ( Policy.REJECT != _policy || PriorityExecutor.isWorkerThread() ) {
+			return false;
+		}
+		try {
+			return _permits.tryAcquire( _timeout, TimeUnit.MILLISECONDS );
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the policy for tasks which do not fit in the queue
+	 */
+	public Policy getPolicy() {
+		return _policy;
+	}
+
+	/**
+	 * Returns the number of tasks which have been admitted but not started
+	 */
+	public int getDepth() {
+		return _capacity - _permits.availablePermits();
+	}
+
+	/**
+	 * Returns the maximum number of queued tasks
+	 */
+	public int getCapacity() {
+		return _capacity;
+	}
+}
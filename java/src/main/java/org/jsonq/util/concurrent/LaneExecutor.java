@@ -0,0 +1,149 @@
+package org.jsonq.util.concurrent;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.*;
+
+/**
+ * Runs tasks in ordered lanes on top of another Executor. Tasks submitted to the same lane run one
+ * at a time in submission order, while different lanes run in parallel. Lanes are striped: each
+ * lane key is hashed onto a fixed number of serial queues, so unrelated keys may occasionally
+ * share a queue but keys are never split across queues. An idle lane is started in the priority
+ * class of the task which wakes it.
+ */
+public class LaneExecutor {
+
+	/** Maximum number of tasks a lane runs before yielding its thread to other work */
+	private static final int BATCH = 64;
+
+	private final PriorityExecutor _executor;
+	private final Lane[] _lanes;
+	private final int _mask;
+
+	/**
+	 * Constructor
+	 *
+	 * @param executor the executor which runs the lanes
+	 * @param stripes the number of serial queues. Rounded up to a power of two
+	 */
+	public LaneExecutor( PriorityExecutor executor, int stripes ) {
+		if ( null == executor ) {
+			throw new NullPointerException( "executor cannot be null" );
+		}
+		int size = 1;
+		while ( size < stripes ) {
+			size <<= 1;
+		}
+		_executor = executor;
+		_lanes = new Lane[size];
+		for ( int i = 0; i < size; i++ ) {
+			_lanes[i] = new Lane();
+		}
+		_mask = size - 1;
+	}
+
+	/**
+	 * Runs the given task after all tasks previously submitted to the same lane
+	 *
+	 * @param lane the lane key
+	 * @param priority the priority class of the task
+	 * @param runnable the task to run
+	 */
+	public void execute( String lane, int priority, Runnable runnable ) {
+		laneOf( lane ).add( priority, runnable );
+	}
+
+	/**
+	 * Runs the given task on the calling thread if its lane has no task queued or running, so that
+	 * it cannot overtake earlier tasks of the lane. Tasks submitted to the lane meanwhile run after
+	 * it
+	 *
+	 * @param lane the lane key
+	 * @param priority the priority class of the task
+	 * @param runnable the task to run
+	 *
+	 * @return false if the lane is busy, in which case the task has not been run
+	 */
+	public boolean runIfIdle( String lane, int priority, Runnable runnable ) {
+		return laneOf( lane ).runIfIdle( priority, runnable );
+	}
+
+	/**
+	 * Returns the serial queue of a lane key
+	 */
+	private Lane laneOf( String lane ) {
+		int h = lane.hashCode();
+		return _lanes[ (h ^ (h >>> 16)) & _mask ];
+	}
+
+	/**
+	 * A serial queue. The counter holds the number of tasks which have been queued but not run; the
+	 * thread which moves it away from zero is responsible for getting the lane running.
+	 */
+	@SuppressWarnings("serial")
+	private final class Lane extends AtomicInteger implements Runnable {
+
+		private final Queue<Runnable> _queue = new ConcurrentLinkedQueue<>();
+		private int _priority;
+
+		/**
+		 * Queues a task, starting the lane if it is idle
+		 */
+		void add( int priority, Runnable runnable ) {
+			_queue.add( runnable );
+			if ( 0 == getAndIncrement() ) {
+				// only the thread starting the lane writes this, and it is read by the lane itself
+				_priority = priority;
+				_executor.execute( priority, this );
+			}
+		}
+
+		/**
+		 * Runs a task in place if the lane is idle. The lane counts the task as queued while it
+		 * runs, so that tasks added meanwhile are queued behind it and started once it is done
+		 */
+		boolean runIfIdle( int priority, Runnable runnable ) {
+			if ( ! compareAndSet( 0, 1 ) ) {
+				return false;
+			}
+			_priority = priority;
+			try {
+				runnable.run();
+			} finally {
+				if ( 0 != decrementAndGet() ) {
+					_executor.execute( _priority, this );
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Drains the lane
+		 */
+		public void run() {
+			for ( int i = 0; i < BATCH; i++ ) {
+				Runnable runnable = _queue.poll();
+				boolean returned = false;
+				try {
+					runnable.run();
+					returned = true;
+				} catch ( RuntimeException e ) {
+					returned = true;
+					// a failing task must not stall the rest of its lane
+					Thread thread = Thread.currentThread();
+					thread.getUncaughtExceptionHandler().uncaughtException( thread, e );
+				} finally {
+					if ( ! returned && 0 != decrementAndGet() ) {
+						// an Error is on its way up to the executor, the rest of the lane runs after
+						_executor.execute( _priority, this );
+					}
+				}
+				if ( 0 == decrementAndGet() ) {
+					return;
+				}
+			}
+			// still busy, go to the back of the line to let other work through
+			_executor.execute( _priority, this );
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package org.jsonq.util.concurrent;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.*;
+
+/**
+ * Queues tasks by priority class in front of another Executor. Each task is chosen by weighted
+ * round robin across the classes, so higher classes get most of the capacity without starving the
+ * lower ones. When the preferred class is empty, the highest class with work is used instead.
+ *
+ * Tasks are not handed to the underlying executor one by one. Instead up to <code>workers</code>
+ * drain loops are kept running, each of which runs queued tasks in batches for every time it is
+ * woken. The batch grows with the depth of the queue, so wake-up and hand-off costs are spread
+ * over more tasks as load rises, while a lightly loaded loop gives its thread back quickly.
+ *
+ * An executor without a bound on its threads, such as one which starts a virtual thread for every
+ * task, is handed each task directly instead. Every task then gets a thread of its own at once, so
+ * there is nothing to prioritize, and a task which blocks never holds up the tasks behind it.
+ */
+public class PriorityExecutor implements Executor {
+
+	/** Smallest and largest number of tasks run per wake-up */
+	private static final int MIN_BATCH = 4;
+	private static final int MAX_BATCH = 256;
+
+	/** Number of workers of an executor which starts a thread for every task */
+	public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+	/** Set on the threads running a drain loop, while they run it */
+	private static final ThreadLocal<Boolean> WORKER = new ThreadLocal<>();
+
+	private final Executor _executor;
+	private final Queue<Runnable>[] _queues;
+	private final int[] _schedule;
+	private final int _maxWorkers;
+	private final AtomicInteger _ticket = new AtomicInteger();
+	private final AtomicInteger _pending = new AtomicInteger();
+	private final AtomicInteger _workers = new AtomicInteger();
+
+	private final Runnable _drain = new Runnable() {
+		public void run() { drain(); }
+	};
+
+	/**
+	 * Constructor
+	 *
+	 * @param executor the executor which runs the tasks
+	 * @param workers the maximum number of drain loops to run at once. This should match the
+	 * number of threads of the executor, or be UNBOUNDED if it starts a thread for every task
+	 * @param weights the share of the tasks run from each priority class, highest class first
+	 */
+	@SuppressWarnings("unchecked")
+	public PriorityExecutor( Executor executor, int workers, int... weights ) {
+		if ( null == executor ) {
+			throw new NullPointerException( "executor cannot be null" );
+		}
+		if ( workers <= 0 ) {
+			throw new IllegalArgumentException( "workers must be positive" );
+		}
+		_executor = executor;
+		_maxWorkers = workers;
+		_queues = new Queue[ weights.length ];
+		for ( int i = 0; i < weights.length; i++ ) {
+			if ( weights[i] <= 0 ) {
+				throw new IllegalArgumentException( "weights must be positive" );
+			}
+			_queues[i] = new ConcurrentLinkedQueue<>();
+		}
+		_schedule = schedule( weights );
+	}
+
+	/**
+	 * Spreads the classes over one round in proportion to their weights, interleaving them as
+	 * evenly as possible (smooth weighted round robin)
+	 */
+	private static int[] schedule( int[] weights ) {
+		int total = 0;
+		for ( int weight : weights ) {
+			total += weight;
+		}
+		int[] schedule = new int[ total ];
+		int[] current = new int[ weights.length ];
+		for ( int slot = 0; slot < total; slot++ ) {
+			int best = 0;
+			for ( int i = 0; i < weights.length; i++ ) {
+				current[i] += weights[i];
+				if ( current[i] > current[best] ) {
+					best = i;
+				}
+			}
+			current[best] -= total;
+			schedule[slot] = best;
+		}
+		return schedule;
+	}
+
+	/**
+	 * Runs the task in the middle priority class
+	 */
+	@Override
+	public void execute( Runnable runnable ) {
+		execute( _queues.length / 2, runnable );
+	}
+
+	/**
+	 * Runs the task in the given priority class
+	 *
+	 * @param priority the class, 0 being the highest. Out of range values are clamped
+	 * @param runnable the task to run
+	 */
+	public void execute( int priority, final Runnable runnable ) {
+		if ( UNBOUNDED == _maxWorkers ) {
+			_pending.incrementAndGet();
+			_executor.execute( new Runnable() {
+				public void run() { runDirect( runnable ); }
+			});
+			return;
+		}
+		int index = Math.max( 0, Math.min( priority, _queues.length - 1 ));
+		_queues[index].add( runnable );
+		_pending.incrementAndGet();
+		if ( startWorker() ) {
+			_executor.execute( _drain );
+		}
+	}
+
+	/**
+	 * Returns true if the current thread is running the tasks of a PriorityExecutor. Such a thread
+	 * must not wait for queued tasks to start, as it may be the one which would run them
+	 */
+	public static boolean isWorkerThread() {
+		return null != WORKER.get();
+	}
+
+	/**
+	 * Returns the number of tasks waiting to run
+	 */
+	public int getPending() {
+		return _pending.get();
+	}
+
+	/**
+	 * Claims a worker slot, if one is free
+	 */
+	private boolean startWorker() {
+		while ( true ) {
+			int workers = _workers.get();
+			if ( workers >= _maxWorkers ) {
+				return false;
+			}
+			if ( _workers.compareAndSet( workers, workers + 1 )) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Runs a task handed to the executor directly
+	 */
+	private void runDirect( Runnable runnable ) {
+		_pending.decrementAndGet();
+		boolean nested = isWorkerThread();
+		WORKER.set( Boolean.TRUE );
+		try {
+			runnable.run();
+		} finally {
+			if ( ! nested ) {
+				WORKER.remove();
+			}
+		}
+	}
+
+	/**
+	 * Runs queued tasks until the queue is empty or the batch is used up. A loop which uses up its
+	 * batch goes to the back of the executor's queue, keeping its worker slot; a loop which runs
+	 * out of work gives its slot up.
+	 */
+	private void drain() {
+		boolean nested = isWorkerThread();
+		WORKER.set( Boolean.TRUE );
+		try {
+			drainLoop();
+		} finally {
+			if ( ! nested ) {
+				WORKER.remove();
+			}
+		}
+	}
+
+	/**
+	 * Runs the drain loop, once the thread is marked as a worker
+	 */
+	private void drainLoop() {
+		while ( true ) {
+			// share the backlog out between the loops running now
+			int share = _pending.get() / Math.max( 1, _workers.get() );
+			int batch = Math.max( MIN_BATCH, Math.min( MAX_BATCH, share ));
+			for ( int i = 0; i < batch; i++ ) {
+				Runnable task = poll();
+				if ( null == task ) {
+					break;
+				}
+				_pending.decrementAndGet();
+				try {
+					task.run();
+				} catch ( Throwable t ) {
+					// a failing task must not take the loop, and its worker slot, down with it
+					Thread thread = Thread.currentThread();
+					thread.getUncaughtExceptionHandler().uncaughtException( thread, t );
+				}
+				if ( i == batch - 1 && _pending.get() > 0 ) {
+					_executor.execute( _drain );
+					return;
+				}
+			}
+
+			_workers.decrementAndGet();
+			// a task queued while this loop was stopping may have found no free slot
+			if ( 0 == _pending.get() || ! startWorker() ) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Takes the next task to run, or returns null if there is none
+	 */
+	private Runnable poll() {
+		int slot = (_ticket.getAndIncrement() & Integer.MAX_VALUE) % _schedule.length;
+		Runnable task = _queues[ _schedule[slot] ].poll();
+		for ( int i = 0; null == task && i < _queues.length; i++ ) {
+			task = _queues[i].poll();
+		}
+		return task;
+	}
+}
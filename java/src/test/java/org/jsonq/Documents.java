@@ -0,0 +1,89 @@
+package org.jsonq;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Helpers for comparing documents in tests. JSONObjects do not implement equals(), and the order of
+ * their keys depends on how they were built, so they are compared in a canonical form.
+ */
+public final class Documents {
+
+	/**
+	 * Private Constructor - static utility
+	 */
+	private Documents() {}
+
+	/**
+	 * Returns a value with its objects turned into sorted maps, and its whole numbers into Longs
+	 */
+	public static Object canonical( Object value ) {
+		if ( value instanceof JSONObject ) {
+			JSONObject obj = (JSONObject)value;
+			Map<String,Object> map = new TreeMap<>();
+			for ( String key : obj.getKeys() ) {
+				map.put( key, obj.isList( key ) ? canonical( obj.get( key )) : canonical( obj.getSingle( key )));
+			}
+			return map;
+		}
+		if ( value instanceof List ) {
+			List<Object> list = new ArrayList<>();
+			for ( Object element : (List<?>)value ) {
+				list.add( canonical( element ));
+			}
+			return list;
+		}
+		if ( value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte ) {
+			return ((Number)value).longValue();
+		}
+		if ( value instanceof Float ) {
+			return ((Float)value).doubleValue();
+		}
+		return value;
+	}
+
+	/**
+	 * Asserts that two documents hold the same fields and values
+	 */
+	public static void assertSameDocument( JSONObject expected, JSONObject actual ) {
+		assertNotNull( "document is missing", actual );
+		assertEquals( canonical( expected ), canonical( actual ));
+	}
+
+	/**
+	 * Returns a document with the given ID and a few fields of different types
+	 */
+	public static JSONObject document( String id, int n ) {
+		JSONObject doc = JSONObject.create();
+		doc.put( "id", id );
+		doc.put( "n", n );
+		doc.put( "big", (long)n << 40 );
+		doc.put( "ratio", n / 4.0 );
+		doc.put( "name", "user "+id );
+		doc.put( "active", 0 == n % 2 );
+		JSONObject address = JSONObject.create();
+		address.put( "city", "Z\u00fcrich" );
+		address.put( "zip", 8000 + n % 100 );
+		doc.put( "address", address );
+		doc.add( "tags", "a" );
+		doc.add( "tags", "b"+n );
+		return doc;
+	}
+
+	/**
+	 * Returns true if two objects hold their values in the same table, which only happens while
+	 * one is an unchanged copy of the other, or both are of the same frozen object
+	 */
+	public static boolean sharesTable( JSONObject a, JSONObject b ) {
+		try {
+			Field values = JSONObject.class.getDeclaredField( "_values" );
+			values.setAccessible( true );
+			Object table = values.get( a );
+			return null != table && table == values.get( b );
+		} catch ( ReflectiveOperationException e ) {
+			throw new AssertionError( e );
+		}
+	}
+}
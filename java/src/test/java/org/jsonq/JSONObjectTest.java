@@ -0,0 +1,412 @@
+package org.jsonq;
+
+import org.jsonq.io.*;
+import org.junit.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+import static org.jsonq.Documents.*;
+
+public class JSONObjectTest {
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	private static final String WRAPPED =
+			"{ \"id\" : \"w\", \"n\" : 5, \"tags\" : [ \"a\", \"b\" ], \"inner\" : { \"x\" : 1.5 } }";
+
+	private static byte[] write( JSONObject obj ) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new JSONWriter().write( obj, out );
+		return out.toByteArray();
+	}
+
+	@Test
+	public void freezesNestedObjects() {
+		JSONObject doc = document( "a", 1 );
+		JSONObject tagged = JSONObject.create();
+		doc.add( "children", tagged );
+		assertSame( doc, doc.freeze() );
+		assertTrue( doc.isFrozen() );
+		assertTrue( doc.getObject( "address" ).isFrozen() );
+		assertTrue( tagged.isFrozen() );
+
+		try {
+			doc.put( "n", 2 );
+			fail( "changed a frozen object" );
+		} catch ( UnsupportedOperationException e ) {
+			// expected
+		}
+		try {
+			doc.getObject( "address" ).remove( "city" );
+			fail( "changed an object within a frozen object" );
+		} catch ( UnsupportedOperationException e ) {
+			// expected
+		}
+		try {
+			@SuppressWarnings("unchecked")
+			List<Object> tags = doc.get( "tags" );
+			tags.add( "c" );
+			fail( "changed a list within a frozen object" );
+		} catch ( UnsupportedOperationException e ) {
+			// expected
+		}
+		assertSameDocument( document( "a", 1 ), withoutChildren( doc ));
+	}
+
+	@Test
+	public void freezingKeepsCallersList() {
+		List<Object> tags = new ArrayList<>();
+		tags.add( "a" );
+		JSONObject doc = JSONObject.create();
+		doc.put( "tags", tags );
+		doc.freeze();
+
+		// the list handed in is still the caller's to change
+		tags.add( "b" );
+		assertEquals( Arrays.asList( "a" ), doc.get( "tags" ));
+	}
+
+	@Test
+	public void copiesOnWrite() {
+		JSONObject frozen = document( "a", 1 ).freeze();
+		JSONObject copy = frozen.copy();
+		assertFalse( copy.isFrozen() );
+		assertSameDocument( frozen, copy );
+
+		copy.put( "n", 2 );
+		copy.getObject( "address" ).put( "city", "Bern" );
+		copy.add( "tags", "c" );
+		assertEquals( 1, frozen.getInt( "n" ));
+		assertEquals( "Z\u00fcrich", frozen.getObject( "address" ).getString( "city" ));
+		assertEquals( 2, frozen.get( "tags" ).size() );
+		assertEquals( 2, copy.getInt( "n" ));
+		assertEquals( "Bern", copy.getObject( "address" ).getString( "city" ));
+		assertEquals( 3, copy.get( "tags" ).size() );
+
+		// copies of an unchanged copy still share the frozen table, and are changed apart from it
+		JSONObject second = frozen.copy().copy();
+		second.remove( "name" );
+		assertTrue( frozen.containsKey( "name" ));
+		assertFalse( second.containsKey( "name" ));
+	}
+
+	@Test
+	public void sharesTableUntilFirstWrite() {
+		JSONObject frozen = document( "a", 1 ).freeze();
+		JSONObject copy = frozen.copy();
+		JSONObject other = frozen.copy();
+		JSONObject copyOfCopy = copy.copy();
+		assertTrue( sharesTable( frozen, copy ));
+		assertTrue( sharesTable( frozen, other ));
+		assertTrue( sharesTable( frozen, copyOfCopy ));
+
+		// reading values which cannot be changed keeps the table shared
+		assertEquals( "user a", copy.getString( "name" ));
+		assertEquals( 1L << 40, copy.getLong( "big" ));
+		assertEquals( 8, copy.size() );
+		assertTrue( copy.containsKey( "tags" ));
+		assertTrue( sharesTable( frozen, copy ));
+
+		// the first write gives the copy a table of its own, and only that copy
+		copy.put( "n", 2 );
+		assertFalse( sharesTable( frozen, copy ));
+		assertTrue( sharesTable( frozen, other ));
+		assertTrue( sharesTable( frozen, copyOfCopy ));
+	}
+
+	@Test
+	public void keepsWritesToCopiesApart() {
+		JSONObject frozen = document( "a", 1 ).freeze();
+		JSONObject first = frozen.copy();
+		JSONObject second = frozen.copy();
+		JSONObject third = second.copy();
+
+		first.put( "n", 2 );
+		first.getObject( "address" ).put( "city", "Bern" );
+		first.add( "tags", "first" );
+		second.remove( "name" );
+		second.add( "tags", "second" );
+		third.getObject( "address" ).remove( "zip" );
+
+		assertSameDocument( document( "a", 1 ), frozen );
+
+		JSONObject expected = document( "a", 1 );
+		expected.put( "n", 2 );
+		expected.getObject( "address" ).put( "city", "Bern" );
+		expected.add( "tags", "first" );
+		assertSameDocument( expected, first );
+
+		expected = document( "a", 1 );
+		expected.remove( "name" );
+		expected.add( "tags", "second" );
+		assertSameDocument( expected, second );
+
+		expected = document( "a", 1 );
+		expected.getObject( "address" ).remove( "zip" );
+		assertSameDocument( expected, third );
+	}
+
+	@Test
+	public void copiesObjectsHandedOut() {
+		JSONObject frozen = document( "a", 1 ).freeze();
+		JSONObject copy = frozen.copy();
+
+		// an object read from the copy belongs to the copy, not to the frozen original
+		JSONObject address = copy.getObject( "address" );
+		assertNotSame( frozen.getObject( "address" ), address );
+		assertFalse( address.isFrozen() );
+		address.put( "zip", 1234 );
+		assertEquals( 1234, copy.getObject( "address" ).getInt( "zip" ));
+		assertEquals( 8001, frozen.getObject( "address" ).getInt( "zip" ));
+	}
+
+	@Test
+	public void sharesShapeKeys() {
+		Shape shape = Shape.of( Arrays.asList( "id", "n", "name" ));
+		assertEquals( 3, shape.size() );
+		JSONObject first = JSONObject.create( shape );
+		JSONObject second = JSONObject.create( shape );
+		first.put( "id", "a" );
+		first.put( "n", 1 );
+		second.put( "id", "b" );
+		assertSame( shape, first.getShape() );
+		assertSame( shape, second.getShape() );
+
+		// keys of the shape which are not set are not there
+		assertEquals( new HashSet<>( Arrays.asList( "id", "n" )), first.getKeys() );
+		assertEquals( 2, first.size() );
+		assertFalse( second.containsKey( "n" ));
+		first.remove( "n" );
+		assertFalse( first.containsKey( "n" ));
+		assertSame( shape, first.getShape() );
+
+		// a key outside the shape moves the object to a table of its own
+		second.put( "other", true );
+		assertNull( second.getShape() );
+		assertEquals( "b", second.getString( "id" ));
+		assertTrue( second.getBoolean( "other" ));
+		assertSame( shape, first.getShape() );
+		assertFalse( first.containsKey( "other" ));
+	}
+
+	@Test
+	public void copiesIntoShape() {
+		Shape shape = Shape.of( Arrays.asList( "id", "n", "big", "ratio", "name", "active", "address", "tags" ));
+		JSONObject doc = document( "a", 1 );
+		JSONObject shaped = doc.copy( shape );
+		assertSame( shape, shaped.getShape() );
+		assertSameDocument( doc, shaped );
+
+		JSONObject extra = doc.copy();
+		extra.put( "other", "x" );
+		JSONObject unshaped = extra.copy( shape );
+		assertNull( unshaped.getShape() );
+		assertSameDocument( extra, unshaped );
+	}
+
+	@Test
+	public void keepsNumbersExact() {
+		JSONObject obj = JSONObject.create();
+		obj.put( "int", Integer.MIN_VALUE );
+		obj.put( "long", Long.MAX_VALUE );
+		obj.put( "float", 0.1f );
+		obj.put( "double", Math.PI );
+		obj.freeze();
+
+		assertEquals( Integer.MIN_VALUE, obj.getInt( "int" ));
+		assertEquals( Integer.MIN_VALUE, obj.getLong( "int" ));
+		assertEquals( Long.MAX_VALUE, obj.getLong( "long" ));
+		assertEquals( 0.1f, (float)obj.getDouble( "float" ), 0 );
+		assertEquals( Math.PI, obj.getDouble( "double" ), 0 );
+		assertEquals( Integer.MIN_VALUE, obj.getDouble( "int" ), 0 );
+
+		// boxed on the way out only, as the type they were stored with
+		assertEquals( Integer.valueOf( Integer.MIN_VALUE ), obj.getSingle( "int" ));
+		assertEquals( Long.valueOf( Long.MAX_VALUE ), obj.getSingle( "long" ));
+		assertEquals( Float.valueOf( 0.1f ), obj.getSingle( "float" ));
+		assertEquals( Double.valueOf( Math.PI ), obj.getSingle( "double" ));
+
+		try {
+			obj.getInt( "long" );
+			fail( "read a long as an int" );
+		} catch ( IllegalArgumentException e ) {
+			// expected
+		}
+	}
+
+	@Test
+	public void replacesNumbersWithOtherValues() {
+		Shape shape = Shape.of( Arrays.asList( "n" ));
+		JSONObject obj = JSONObject.create( shape );
+		obj.put( "n", 5 );
+		obj.put( "n", "five" );
+		assertEquals( "five", obj.getString( "n" ));
+		obj.put( "n", 5L << 40 );
+		assertEquals( 5L << 40, obj.getLong( "n" ));
+		obj.add( "n", 6 );
+		assertEquals( Arrays.<Object>asList( 5L << 40, 6 ), obj.get( "n" ));
+		obj.remove( "n" );
+		assertEquals( 0, obj.getInt( "n" ));
+	}
+
+	@Test
+	public void putsLongsAsLongs() {
+		// a long argument used to widen to the float overload, which loses digits past 2^24
+		long big = (1L << 53) + 1;
+		JSONObject obj = JSONObject.create();
+		obj.put( "n", big );
+		assertEquals( big, obj.getLong( "n" ));
+		assertEquals( Long.valueOf( big ), obj.getSingle( "n" ));
+		obj.put( "n", 16777217L );
+		assertEquals( Long.valueOf( 16777217L ), obj.getSingle( "n" ));
+
+		// int arguments still pick the int overload
+		obj.put( "n", 7 );
+		assertEquals( Integer.valueOf( 7 ), obj.getSingle( "n" ));
+	}
+
+	@Test
+	public void readsAnyNumberAsDouble() {
+		JSONObject obj = JSONObject.create();
+		obj.put( "int", 3 );
+		obj.put( "long", 1L << 40 );
+		obj.put( "float", 0.5f );
+		obj.put( "double", 0.25 );
+		obj.add( "boxed", 9 );
+		assertEquals( 3, obj.getDouble( "int" ), 0 );
+		assertEquals( 1L << 40, obj.getDouble( "long" ), 0 );
+		assertEquals( 0.5, obj.getDouble( "float" ), 0 );
+		assertEquals( 0.25, obj.getDouble( "double" ), 0 );
+		assertEquals( 9, obj.getDouble( "boxed" ), 0 );
+
+		obj.put( "text", "3" );
+		try {
+			obj.getDouble( "text" );
+			fail( "read a String as a double" );
+		} catch ( IllegalArgumentException e ) {
+			// expected
+		}
+	}
+
+	@Test
+	public void readsMissingKeysAsEmpty() {
+		JSONObject obj = JSONObject.create();
+		assertNull( obj.getSingle( "missing" ));
+		obj.put( "n", 1L );
+		assertNull( obj.getSingle( "missing" ));
+		assertNull( obj.getString( "missing" ));
+		assertEquals( 0, obj.getLong( "missing" ));
+		assertEquals( 0, obj.getDouble( "missing" ), 0 );
+
+		// and the same once frozen, which reads without the lock
+		obj.freeze();
+		assertNull( obj.getSingle( "missing" ));
+		assertEquals( 0, obj.getDouble( "missing" ), 0 );
+	}
+
+	@Test
+	public void decodesWrappedValuesOnFirstRead() {
+		// nothing is read until the object is first used
+		JSONObject broken = JSONObject.wrap( "{ \"a\" : ".getBytes( UTF8 ));
+		try {
+			broken.getString( "a" );
+			fail( "read a truncated object" );
+		} catch ( IllegalArgumentException e ) {
+			// expected
+		}
+
+		// each value is only decoded once it is read, so a value changed in the text before its
+		// first read shows through. Callers must not do this; it only tells what has been decoded
+		byte[] text = "{\"a\":\"xy\",\"b\":\"xy\"}".getBytes( UTF8 );
+		JSONObject obj = JSONObject.wrap( text );
+		assertEquals( "xy", obj.getString( "a" ));
+		text[6] = 'z';
+		text[15] = 'z';
+		assertEquals( "xy", obj.getString( "a" ));
+		assertEquals( "zy", obj.getString( "b" ));
+	}
+
+	@Test
+	public void writesUntouchedWrappedObjectsVerbatim() throws IOException {
+		byte[] text = WRAPPED.getBytes( UTF8 );
+		JSONObject obj = JSONObject.wrap( text );
+		assertArrayEquals( text, write( obj ));
+
+		// reading scalars leaves the text as it is
+		assertEquals( "w", obj.getString( "id" ));
+		assertEquals( 5, obj.getInt( "n" ));
+		assertEquals( 4, obj.size() );
+		assertNotNull( obj.getSource() );
+		assertArrayEquals( text, write( obj ));
+	}
+
+	@Test
+	public void decodesFullyOnceChanged() throws IOException {
+		JSONObject obj = JSONObject.wrap( WRAPPED.getBytes( UTF8 ));
+		obj.put( "m", 6 );
+		assertNull( obj.getSource() );
+		obj.remove( "id" );
+
+		// the values not read yet are still found after the table changed
+		assertEquals( 5, obj.getInt( "n" ));
+		assertEquals( Arrays.<Object>asList( "a", "b" ), obj.get( "tags" ));
+		assertEquals( 1.5, obj.getObject( "inner" ).getDouble( "x" ), 0 );
+
+		JSONObject expected = new JSONParser().parse( WRAPPED.getBytes( UTF8 ));
+		expected.put( "m", 6 );
+		expected.remove( "id" );
+		byte[] written = write( obj );
+		assertSameDocument( expected, new JSONParser().parse( written ));
+		// the nested object was only read, so that part is still copied
+		assertTrue( new String( written, UTF8 ).startsWith( "{\"" ));
+		assertTrue( new String( written, UTF8 ).contains( "{ \"x\" : 1.5 }" ));
+
+		// handing out a nested object may let it change, so the text is no longer written
+		JSONObject other = JSONObject.wrap( WRAPPED.getBytes( UTF8 ));
+		other.getObject( "inner" ).put( "x", 2.5 );
+		assertNull( other.getSource() );
+		assertEquals( 2.5, new JSONParser().parse( write( other )).getObject( "inner" ).getDouble( "x" ), 0 );
+	}
+
+	@Test
+	public void readsFrozenWrappedObjectsConcurrently() throws Exception {
+		for ( int round = 0; round < 50; round++ ) {
+			final JSONObject obj = JSONObject.wrap( WRAPPED.getBytes( UTF8 )).freeze();
+			final int threads = 8;
+			final CyclicBarrier start = new CyclicBarrier( threads );
+			ExecutorService pool = Executors.newFixedThreadPool( threads );
+			try {
+				List<Future<JSONObject>> reads = new ArrayList<>();
+				for ( int t = 0; t < threads; t++ ) {
+					reads.add( pool.submit( new Callable<JSONObject>() {
+						public JSONObject call() throws Exception {
+							start.await();
+							assertEquals( "w", obj.getString( "id" ));
+							assertEquals( Arrays.<Object>asList( "a", "b" ), obj.get( "tags" ));
+							return obj.getObject( "inner" );
+						}
+					}));
+				}
+				// every reader sees the one decoded value
+				JSONObject inner = reads.get( 0 ).get( 10, TimeUnit.SECONDS );
+				assertTrue( inner.isFrozen() );
+				assertEquals( 1.5, inner.getDouble( "x" ), 0 );
+				for ( Future<JSONObject> read : reads ) {
+					assertSame( inner, read.get( 10, TimeUnit.SECONDS ));
+				}
+			} finally {
+				pool.shutdownNow();
+			}
+			assertNotNull( obj.getSource() );
+		}
+	}
+
+	private static JSONObject withoutChildren( JSONObject doc ) {
+		JSONObject copy = doc.copy();
+		copy.remove( "children" );
+		return copy;
+	}
+}
@@ -0,0 +1,80 @@
+package org.jsonq;
+
+import org.jsonq.provider.impl.*;
+import org.jsonq.util.*;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static org.jsonq.Documents.*;
+import static org.jsonq.JSONQConstants.*;
+
+public class JSONQTest {
+
+	private static final String STORE = "jsonq-test";
+
+	@BeforeClass
+	public static void setUp() {
+		DefaultDatabase db = new DefaultDatabase();
+		db.registerProvider( "memory", SimpleStore.FACTORY );
+		JSONQ.setDatabase( db );
+
+		JSONObject schema = JSONObject.create();
+		schema.put( Schema.PROVIDER, "memory" );
+		assertTrue( succeeds( JSONQ.exec( request( Op.PROVISION, schema ))));
+	}
+
+	private static JSONObject request( String op, JSONObject payload ) {
+		JSONObject request = JSONObject.create();
+		request.put( Request.ID, "r1" );
+		request.put( Request.OP, op );
+		request.put( Request.STORE, STORE );
+		request.put( Request.PAYLOAD, payload );
+		return request;
+	}
+
+	private static JSONObject request( String op, String payload ) {
+		JSONObject request = JSONObject.create();
+		request.put( Request.ID, "r2" );
+		request.put( Request.OP, op );
+		request.put( Request.STORE, STORE );
+		request.put( Request.PAYLOAD, payload );
+		return request;
+	}
+
+	private static boolean succeeds( Future<JSONObject,JSONObject> future ) {
+		assertTrue( "timed out", future.await( 10000 ));
+		return ! future.isFailure() && future.get().getBoolean( Response.SUCCESS );
+	}
+
+	@Test
+	public void runsFrozenRequests() {
+		JSONObject save = request( Op.SAVE, document( "frozen", 1 )).freeze();
+		assertTrue( succeeds( JSONQ.exec( save )));
+
+		JSONObject fetch = request( Op.FETCH, "frozen" ).freeze();
+		Future<JSONObject,JSONObject> fetched = JSONQ.exec( fetch );
+		assertTrue( succeeds( fetched ));
+		assertSameDocument( document( "frozen", 1 ), fetched.get().getObject( Response.PAYLOAD ));
+	}
+
+	@Test
+	public void leavesRequestsAsTheyAre() {
+		JSONObject save = request( Op.SAVE, document( "mine", 2 ));
+		save.put( Request.TIMEOUT, 10000 );
+		assertTrue( succeeds( JSONQ.exec( save )));
+		assertFalse( save.containsKey( Request.PRIORITY ));
+		assertFalse( save.containsKey( Request.DEADLINE ));
+	}
+
+	@Test
+	public void failsRequestsPastTheirTimeout() {
+		JSONObject fetch = request( Op.FETCH, "mine" );
+		fetch.put( Request.TIMEOUT, -1 );
+		fetch.freeze();
+		Future<JSONObject,JSONObject> fetched = JSONQ.exec( fetch );
+		assertTrue( fetched.await( 10000 ));
+		assertTrue( fetched.isFailure() );
+		JSONObject error = fetched.getError().getObject( Response.PAYLOAD );
+		assertEquals( "err.timeout", error.getString( "code" ));
+	}
+}
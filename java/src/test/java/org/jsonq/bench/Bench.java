@@ -0,0 +1,126 @@
+package org.jsonq.bench;
+
+import org.jsonq.*;
+import org.jsonq.util.*;
+import java.io.*;
+import java.nio.file.*;
+
+import static org.jsonq.JSONQConstants.*;
+
+/**
+ * Helpers for the benchmarks in this package.
+ *
+ * The benchmarks are plain programs rather than JMH benchmarks, so that they run from the test
+ * classes without further dependencies (<code>gradle benchmark -Pbenchmark=&lt;class&gt;</code>).
+ * Each case is run once to warm up, then timed over a number of rounds set by the
+ * <code>bench.rounds</code> system property, and the best round is reported. Numbers are only
+ * comparable between runs on the same machine and JVM.
+ */
+final class Bench {
+
+	/** Number of timed rounds of each case */
+	static final int ROUNDS = Integer.getInteger( "bench.rounds", 15 );
+
+	/** Folder holding the example messages */
+	static final String EXAMPLES = System.getProperty( "bench.examples", "../examples" );
+
+	/**
+	 * A case to time, running the given number of operations
+	 */
+	interface Case {
+		void run( int ops ) throws Exception;
+	}
+
+	/**
+	 * Private Constructor - static utility
+	 */
+	private Bench() {}
+
+	/**
+	 * Returns the time per operation of the best round of the case, in nanoseconds
+	 */
+	static double nanosPerOp( int ops, Case c ) throws Exception {
+		c.run( ops );
+		long best = Long.MAX_VALUE;
+		for ( int round = 0; round < ROUNDS; round++ ) {
+			long start = System.nanoTime();
+			c.run( ops );
+			best = Math.min( best, System.nanoTime() - start );
+		}
+		return (double)best / ops;
+	}
+
+	/**
+	 * Returns the heap in use once the garbage collector has settled, in bytes
+	 */
+	static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for ( int i = 0; i < 5; i++ ) {
+			System.gc();
+			Thread.sleep( 50 );
+			used = Math.min( used, runtime.totalMemory() - runtime.freeMemory() );
+		}
+		return used;
+	}
+
+	/**
+	 * Returns the example message with the given name, as read from its file
+	 */
+	static byte[] example( String name ) throws IOException {
+		return Files.readAllBytes( Paths.get( EXAMPLES, name+".json" ));
+	}
+
+	/**
+	 * Waits for a future and returns its result
+	 *
+	 * @throws IllegalStateException if the future fails or does not complete within a minute
+	 */
+	static <T> T await( Future<T,JSONObject> future ) {
+		if ( ! future.await( 60000 ) ) {
+			throw new IllegalStateException( "Timed out" );
+		}
+		if ( future.isFailure() ) {
+			throw new IllegalStateException( "Failed with "+future.getError().getString( "code" ));
+		}
+		return future.get();
+	}
+
+	/**
+	 * Returns a store request with the given payload
+	 */
+	static JSONObject request( JSONObject payload ) {
+		JSONObject request = JSONObject.create();
+		request.put( Request.PAYLOAD, payload );
+		return request;
+	}
+
+	/**
+	 * Returns a store request for the document with the given ID
+	 */
+	static JSONObject request( String id ) {
+		JSONObject request = JSONObject.create();
+		request.put( Request.PAYLOAD, id );
+		return request;
+	}
+
+	/**
+	 * Returns a document with the given ID and a few scalar fields
+	 */
+	static JSONObject document( String id, int n ) {
+		JSONObject doc = JSONObject.create();
+		doc.put( "id", id );
+		doc.put( "n", n );
+		doc.put( "name", "user "+n );
+		doc.put( "score", n / 3.0 );
+		doc.put( "active", 0 == n % 2 );
+		return doc;
+	}
+
+	/**
+	 * Prints a line of results
+	 */
+	static void report( String format, Object... args ) {
+		System.out.println( String.format( format, args ));
+	}
+}
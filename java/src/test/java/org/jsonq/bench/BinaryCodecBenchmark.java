@@ -0,0 +1,68 @@
+package org.jsonq.bench;
+
+import org.jsonq.*;
+import org.jsonq.io.*;
+import java.io.*;
+
+import static org.jsonq.bench.Bench.*;
+
+/**
+ * Compares the binary encoding with compact JSON on the example messages: the size of each, and
+ * the time to write and parse JSON against the time to encode and decode the binary form.
+ */
+public class BinaryCodecBenchmark {
+
+	private static final String[] NAMES = { "error", "fetch", "list", "provision", "save" };
+	private static final int OPS = 200000;
+
+	static volatile Object _sink;
+
+	public static void main( String[] args ) throws Exception {
+		final JSONParser parser = new JSONParser();
+		final JSONWriter writer = new JSONWriter();
+		final BinaryEncoder encoder = new BinaryEncoder();
+		final BinaryDecoder decoder = new BinaryDecoder();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		report( "%-10s %6s %6s %9s %9s %9s %9s", "example", "json", "binary", "write", "encode", "parse", "decode" );
+		for ( String name : NAMES ) {
+			final JSONObject obj = parser.parse( example( name ));
+			writer.write( obj, out );
+			final byte[] json = out.toByteArray();
+			final byte[] binary = encoder.encode( obj );
+
+			double write = nanosPerOp( OPS, new Case() {
+				public void run( int ops ) throws IOException {
+					for ( int i = 0; i < ops; i++ ) {
+						out.reset();
+						writer.write( obj, out );
+					}
+				}
+			});
+			double encode = nanosPerOp( OPS, new Case() {
+				public void run( int ops ) {
+					for ( int i = 0; i < ops; i++ ) {
+						_sink = encoder.encode( obj );
+					}
+				}
+			});
+			double parse = nanosPerOp( OPS, new Case() {
+				public void run( int ops ) {
+					for ( int i = 0; i < ops; i++ ) {
+						_sink = parser.parse( json );
+					}
+				}
+			});
+			double decode = nanosPerOp( OPS, new Case() {
+				public void run( int ops ) {
+					for ( int i = 0; i < ops; i++ ) {
+						_sink = decoder.decode( binary );
+					}
+				}
+			});
+			report( "%-10s %5dB %5dB %6.0f ns %6.0f ns %6.0f ns %6.0f ns",
+					name, json.length, binary.length, write, encode, parse, decode );
+			out.reset();
+		}
+	}
+}
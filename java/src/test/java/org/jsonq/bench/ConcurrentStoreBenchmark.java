@@ -0,0 +1,91 @@
+package org.jsonq.bench;
+
+import org.jsonq.*;
+import org.jsonq.provider.*;
+import org.jsonq.provider.impl.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import static org.jsonq.bench.Bench.*;
+
+/**
+ * Compares the concurrent store with SimpleStore, which locks for every operation: the time of a
+ * fetch from 100k documents on one thread, and the throughput of a 90/10 mix of fetches and saves
+ * from 1 to 8 threads. Contention only shows on a machine with several processors.
+ */
+public class ConcurrentStoreBenchmark {
+
+	private static final int DOCUMENTS = 100000;
+	private static final int FETCHES = 2000000;
+
+	/** Milliseconds each thread count runs the mix for */
+	private static final int DURATION = Integer.getInteger( "bench.duration", 1000 );
+
+	static volatile Object _sink;
+
+	public static void main( String[] args ) throws Exception {
+		report( "%-16s %10s %10s %10s %10s %10s", "store", "fetch", "1 thread", "2 threads", "4 threads", "8 threads" );
+		run( "SimpleStore", await( SimpleStore.FACTORY.create( JSONObject.create() )));
+		run( "ConcurrentStore", await( ConcurrentStore.FACTORY.create( JSONObject.create() )));
+	}
+
+	private static void run( String name, final Store store ) throws Exception {
+		final JSONObject[] saves = new JSONObject[ DOCUMENTS ];
+		final JSONObject[] fetches = new JSONObject[ DOCUMENTS ];
+		for ( int i = 0; i < DOCUMENTS; i++ ) {
+			saves[i] = request( document( "k"+i, i ));
+			fetches[i] = request( "k"+i );
+			await( store.save( saves[i] ));
+		}
+
+		double fetch = nanosPerOp( FETCHES, new Case() {
+			public void run( int ops ) {
+				int k = 0;
+				for ( int i = 0; i < ops; i++ ) {
+					k = (k + 7919) % DOCUMENTS;
+					_sink = store.fetch( fetches[k] ).get();
+				}
+			}
+		});
+
+		StringBuilder mix = new StringBuilder();
+		for ( int threads = 1; threads <= 8; threads *= 2 ) {
+			mix.append( String.format( " %6.2f M/s", mix( store, saves, fetches, threads ) / 1e6 ));
+		}
+		report( "%-16s %7.0f ns%s", name, fetch, mix );
+	}
+
+	/**
+	 * Returns the number of operations per second of the threads running the mix at once
+	 */
+	private static double mix( final Store store, final JSONObject[] saves, final JSONObject[] fetches, int threads )
+			throws Exception {
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicLong total = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch( threads );
+		for ( int t = 0; t < threads; t++ ) {
+			final int seed = t;
+			new Thread() {
+				public void run() {
+					long ops = 0;
+					int i = seed * 1000;
+					while ( ! stop.get() ) {
+						i = (i + 7919) % DOCUMENTS;
+						if ( 0 == ops % 10 ) {
+							store.save( saves[i] );
+						} else {
+							_sink = store.fetch( fetches[i] );
+						}
+						ops++;
+					}
+					total.addAndGet( ops );
+					done.countDown();
+				}
+			}.start();
+		}
+		Thread.sleep( DURATION );
+		stop.set( true );
+		done.await();
+		return total.get() * 1000.0 / DURATION;
+	}
+}
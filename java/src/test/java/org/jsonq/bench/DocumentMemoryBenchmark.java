@@ -0,0 +1,83 @@
+package org.jsonq.bench;
+
+import org.jsonq.*;
+import org.jsonq.io.*;
+import org.jsonq.provider.impl.*;
+import java.util.*;
+
+import static org.jsonq.JSONQConstants.*;
+import static org.jsonq.bench.Bench.*;
+
+/**
+ * Measures the heap taken by JSONObjects, and the time to read their fields. The heap is measured
+ * after garbage collection, across 100k documents: the user document of examples/save.json, a
+ * document of five scalar fields, and the latter saved into a SimpleStore.
+ *
+ * Run with a heap of at least 1 GB.
+ */
+public class DocumentMemoryBenchmark {
+
+	private static final int DOCUMENTS = 100000;
+	private static final int READS = 10000000;
+
+	static volatile Object _sink;
+
+	public static void main( String[] args ) throws Exception {
+		final JSONObject user = new JSONParser().parse( example( "save" )).getObject( Request.PAYLOAD );
+
+		report( "%-20s %6d bytes per document", "user document", bytesPerDocument( new Factory() {
+			public Object create( int n ) {
+				JSONObject copy = user.copy();
+				copy.put( "username", "user"+n );
+				return copy;
+			}
+		}));
+		report( "%-20s %6d bytes per document", "five scalar fields", bytesPerDocument( new Factory() {
+			public Object create( int n ) {
+				return document( "k"+n, n );
+			}
+		}));
+		final SimpleStore store = await( SimpleStore.FACTORY.create( JSONObject.create() ));
+		report( "%-20s %6d bytes per document", "SimpleStore entry", bytesPerDocument( new Factory() {
+			public Object create( int n ) {
+				await( store.save( request( document( "k"+n, n ))));
+				return null;
+			}
+		}));
+
+		final JSONObject small = document( "k1", 1 );
+		report( "%-20s %6.1f ns", "read 2 fields", nanosPerOp( READS, new Case() {
+			public void run( int ops ) {
+				for ( int i = 0; i < ops; i++ ) {
+					_sink = small.getString( "name" );
+					_sink = small.getInt( "n" );
+				}
+			}
+		}));
+		_sink = store;
+	}
+
+	/**
+	 * Creates the documents to measure
+	 */
+	interface Factory {
+		Object create( int n );
+	}
+
+	/**
+	 * Returns the heap taken by each of the documents made by the factory, which are kept
+	 * reachable while the heap is measured
+	 */
+	private static long bytesPerDocument( Factory factory ) throws InterruptedException {
+		long before = usedHeap();
+		List<Object> documents = new ArrayList<>( DOCUMENTS );
+		for ( int n = 0; n < DOCUMENTS; n++ ) {
+			documents.add( factory.create( n ));
+		}
+		long after = usedHeap();
+		// the list itself takes a reference per document
+		long bytes = (after - before) / DOCUMENTS - 4;
+		_sink = documents;
+		return bytes;
+	}
+}
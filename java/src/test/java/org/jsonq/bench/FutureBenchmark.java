@@ -0,0 +1,103 @@
+package org.jsonq.bench;
+
+import org.jsonq.*;
+import org.jsonq.provider.impl.*;
+import org.jsonq.util.*;
+import java.io.*;
+
+import static org.jsonq.JSONQConstants.*;
+import static org.jsonq.bench.Bench.*;
+
+/**
+ * Measures the cost of completing futures, and of the futures of a save and fetch loop through
+ * the database. Stores which never block complete their futures on the calling thread, while
+ * mapped file stores complete them on the Scheduler, so the loop is run against both.
+ *
+ * The Scheduler mode is taken from <code>jsonq.scheduler</code>.
+ */
+public class FutureBenchmark {
+
+	private static final int FUTURES = 1000000;
+	private static final int REQUESTS = 200000;
+
+	private static final Closure<Integer> IGNORE = new Closure<Integer>() {
+		public void apply( Integer value ) {}
+	};
+
+	public static void main( String[] args ) throws Exception {
+		final Integer value = 1;
+		report( "%-28s %8.1f ns", "complete, then then()", nanosPerOp( FUTURES, new Case() {
+			public void run( int ops ) {
+				for ( int i = 0; i < ops; i++ ) {
+					FutureImpl<Integer,String> future = new FutureImpl<>();
+					future.complete( value );
+					future.then( IGNORE, null, null );
+				}
+			}
+		}));
+		report( "%-28s %8.1f ns", "then(), then complete", nanosPerOp( FUTURES, new Case() {
+			public void run( int ops ) {
+				for ( int i = 0; i < ops; i++ ) {
+					FutureImpl<Integer,String> future = new FutureImpl<>();
+					future.then( IGNORE, null, null );
+					future.complete( value );
+				}
+			}
+		}));
+		report( "%-28s %8.1f ns", "chain of 3 then()", nanosPerOp( FUTURES, new Case() {
+			public void run( int ops ) {
+				for ( int i = 0; i < ops; i++ ) {
+					FutureImpl<Integer,String> future = new FutureImpl<>();
+					future.then( IGNORE, null, null ).then( IGNORE, null, null ).then( IGNORE, null, null );
+					future.complete( value );
+				}
+			}
+		}));
+
+		File file = File.createTempFile( "jsonq-bench", ".db" );
+		file.delete();
+		try {
+			DefaultDatabase db = new DefaultDatabase();
+			db.registerProvider( "memory", SimpleStore.FACTORY );
+			db.registerProvider( "file", MappedFileStore.FACTORY );
+			JSONObject schema = JSONObject.create();
+			schema.put( Schema.PROVIDER, "file" );
+			schema.put( Schema.FILE, file.getPath() );
+			loop( db, "memory", JSONObject.create() );
+			loop( db, "file", schema );
+		} finally {
+			file.delete();
+		}
+		// the Scheduler's threads would keep the JVM running
+		System.exit( 0 );
+	}
+
+	/**
+	 * Times saving and fetching documents one after another through the database
+	 */
+	private static void loop( final DefaultDatabase db, final String store, JSONObject schema ) throws Exception {
+		if ( ! schema.containsKey( Schema.PROVIDER ) ) {
+			schema.put( Schema.PROVIDER, store );
+		}
+		JSONObject provision = JSONObject.create();
+		provision.put( Request.STORE, store );
+		provision.put( Request.PAYLOAD, schema );
+		await( db.provision( provision ));
+
+		double nanos = nanosPerOp( REQUESTS, new Case() {
+			public void run( int ops ) {
+				for ( int i = 0; i < ops; i += 2 ) {
+					String id = "k"+(i & 1023);
+					JSONObject save = request( document( id, i ));
+					save.put( Request.STORE, store );
+					await( db.save( save ));
+					JSONObject fetch = request( id );
+					fetch.put( Request.STORE, store );
+					await( db.fetch( fetch ));
+				}
+			}
+		});
+		report( "%-28s %8.1f ns per request, %s mode", "save/fetch, "+store, nanos,
+				System.getProperty( Scheduler.MODE_PROPERTY, Scheduler.MODE_SINGLE ));
+	}
+}
@@ -0,0 +1,41 @@
+package org.jsonq.bench;
+
+import org.jsonq.*;
+import org.jsonq.io.*;
+import java.io.*;
+
+import static org.jsonq.bench.Bench.*;
+
+/**
+ * Measures parse throughput on the example messages, from byte arrays and from streams
+ */
+public class JSONParserBenchmark {
+
+	private static final String[] NAMES = { "fetch", "list", "error", "provision", "save" };
+	private static final int PARSES = 200000;
+
+	static volatile JSONObject _sink;
+
+	public static void main( String[] args ) throws Exception {
+		final JSONParser parser = new JSONParser();
+		report( "%-10s %6s %10s %10s %10s", "example", "bytes", "array", "MB/s", "stream" );
+		for ( String name : NAMES ) {
+			final byte[] json = example( name );
+			double array = nanosPerOp( PARSES, new Case() {
+				public void run( int ops ) {
+					for ( int i = 0; i < ops; i++ ) {
+						_sink = parser.parse( json );
+					}
+				}
+			});
+			double stream = nanosPerOp( PARSES, new Case() {
+				public void run( int ops ) throws IOException {
+					for ( int i = 0; i < ops; i++ ) {
+						_sink = parser.parse( new ByteArrayInputStream( json ));
+					}
+				}
+			});
+			report( "%-10s %6d %7.0f ns %10.0f %7.0f ns", name, json.length, array, json.length * 1e3 / array, stream );
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package org.jsonq.bench;
+
+import org.jsonq.*;
+import org.jsonq.provider.*;
+import org.jsonq.provider.impl.*;
+
+import static org.jsonq.JSONQConstants.*;
+import static org.jsonq.bench.Bench.*;
+
+/**
+ * Compares the off-heap store with SimpleStore holding many documents: the heap each leaves in
+ * use, the memory the off-heap store takes outside the heap, the time of a full garbage collection,
+ * and the time per operation of a 90/10 mix of fetches and saves.
+ *
+ * The number of documents is set by <code>bench.documents</code>, one million by default. Give
+ * the store to measure, <code>simple</code> or <code>offheap</code>, as the argument, to measure
+ * each in a fresh JVM; both are measured one after the other otherwise. Run with the serial
+ * collector and a heap large enough for SimpleStore, e.g. -XX:+UseSerialGC -Xmx4g.
+ */
+public class OffHeapStoreBenchmark {
+
+	private static final int DOCUMENTS = Integer.getInteger( "bench.documents", 1000000 );
+	private static final int OPS = 2000000;
+
+	static volatile Object _sink;
+
+	public static void main( String[] args ) throws Exception {
+		String which = args.length > 0 ? args[0] : null;
+		report( "%d documents", DOCUMENTS );
+		report( "%-14s %10s %10s %10s %10s", "store", "heap", "off heap", "full GC", "90/10 mix" );
+		if ( null == which || "simple".equals( which ) ) {
+			run( "SimpleStore", await( SimpleStore.FACTORY.create( JSONObject.create() )));
+		}
+		if ( null == which || "offheap".equals( which ) ) {
+			JSONObject schema = JSONObject.create();
+			schema.put( Schema.MEMORY, Math.max( 1L << 26, DOCUMENTS * 256L ));
+			run( "OffHeapStore", await( OffHeapStore.FACTORY.create( schema )));
+		}
+	}
+
+	private static void run( String name, final Store store ) throws Exception {
+		long before = usedHeap();
+		for ( int i = 0; i < DOCUMENTS; i++ ) {
+			await( store.save( request( document( "k"+i, i ))));
+		}
+		long heap = usedHeap() - before;
+		long offHeap = store instanceof OffHeapStore ? ((OffHeapStore)store).getMemoryAllocated() : 0;
+
+		long start = System.nanoTime();
+		System.gc();
+		long gc = System.nanoTime() - start;
+
+		double mix = nanosPerOp( OPS, new Case() {
+			public void run( int ops ) {
+				int k = 0;
+				for ( int i = 0; i < ops; i++ ) {
+					k = (k + 7919) % DOCUMENTS;
+					if ( 0 == i % 10 ) {
+						await( store.save( request( document( "k"+k, i ))));
+					} else {
+						_sink = await( store.fetch( request( "k"+k )));
+					}
+				}
+			}
+		});
+		report( "%-14s %7d MB %7d MB %7d ms %7.0f ns", name, heap >> 20, offHeap >> 20, gc / 1000000, mix );
+		// let the store go before the next one is measured
+		_sink = null;
+	}
+}
@@ -0,0 +1,75 @@
+package org.jsonq.bench;
+
+import org.jsonq.*;
+import org.jsonq.provider.impl.*;
+import org.jsonq.provider.log.*;
+import java.io.*;
+import java.nio.file.*;
+
+import static org.jsonq.JSONQConstants.*;
+import static org.jsonq.bench.Bench.*;
+
+/**
+ * Measures how long a logged store takes to reopen, replaying its whole log against loading a
+ * snapshot and replaying only the changes made after it. The store is filled with documents
+ * which are then each saved over several times, so the log holds many more records than the
+ * store holds documents.
+ *
+ * The number of documents is set by <code>bench.documents</code>, 100k by default.
+ */
+public class RecoveryBenchmark {
+
+	private static final int DOCUMENTS = Integer.getInteger( "bench.documents", 100000 );
+
+	/** Number of times each document is saved */
+	private static final int VERSIONS = 5;
+
+	/** Share of the documents changed after the snapshot, in percent */
+	private static final int TAIL = 5;
+
+	public static void main( String[] args ) throws Exception {
+		File folder = Files.createTempDirectory( "jsonq-bench" ).toFile();
+		try {
+			JSONObject log = JSONObject.create();
+			log.put( Log.PATH, new File( folder, "bench.log" ).getPath() );
+			log.put( Log.SYNC, "os" );
+			JSONObject schema = JSONObject.create();
+			schema.put( Schema.LOG, log );
+
+			LoggedStore store = open( schema );
+			for ( int version = 0; version < VERSIONS; version++ ) {
+				for ( int i = 0; i < DOCUMENTS; i++ ) {
+					await( store.save( request( document( "k"+i, version ))));
+				}
+			}
+			store.close();
+			report( "%d documents, %d records", DOCUMENTS, DOCUMENTS * VERSIONS );
+			report( "%-10s %10s %10s %10s", "", "restored", "replayed", "time" );
+			reportRecovery( store = open( schema ), "full log" );
+
+			await( store.snapshot() );
+			for ( int i = 0; i < DOCUMENTS * TAIL / 100; i++ ) {
+				await( store.save( request( document( "k"+i, VERSIONS ))));
+			}
+			store.close();
+			reportRecovery( store = open( schema ), "snapshot" );
+			store.close();
+		} finally {
+			for ( File file : folder.listFiles() ) {
+				file.delete();
+			}
+			folder.delete();
+		}
+		// the Scheduler's threads would keep the JVM running
+		System.exit( 0 );
+	}
+
+	private static LoggedStore open( JSONObject schema ) {
+		return (LoggedStore)await( LoggedStore.factory( SimpleStore.FACTORY ).create( schema ));
+	}
+
+	private static void reportRecovery( LoggedStore store, String name ) {
+		report( "%-10s %10d %10d %7d ms", name,
+				store.getRestoredDocuments(), store.getReplayedRecords(), store.getRecoveryTime() );
+	}
+}
@@ -0,0 +1,76 @@
+package org.jsonq.bench;
+
+import org.jsonq.util.*;
+import org.jsonq.util.concurrent.*;
+import java.util.concurrent.*;
+
+import static org.jsonq.bench.Bench.*;
+
+/**
+ * Measures the cost of scheduling short tasks in the single and fork-join scheduler modes, both
+ * unordered and spread over ordered lanes. Each task does a little work, so that the modes which
+ * run tasks in parallel have something to gain.
+ *
+ * Parallelism is taken from <code>jsonq.scheduler.parallelism</code>, and defaults to the number
+ * of processors.
+ */
+public class SchedulerBenchmark {
+
+	private static final int TASKS = 200000;
+
+	/** Iterations of the busy work each task does */
+	private static final int WORK = Integer.getInteger( "bench.work", 200 );
+
+	static volatile long _sink;
+
+	public static void main( String[] args ) throws Exception {
+		int parallelism = Integer.getInteger(
+				Scheduler.PARALLELISM_PROPERTY,
+				Runtime.getRuntime().availableProcessors() );
+		report( "%d tasks of %d iterations, parallelism %d", TASKS, WORK, parallelism );
+		report( "%-10s %12s %12s", "mode", "unordered", "256 lanes" );
+		for ( String mode : new String[] { Scheduler.MODE_SINGLE, Scheduler.MODE_FORK_JOIN } ) {
+			Executor executor = Scheduler.createExecutor( mode, parallelism );
+			int workers = Scheduler.MODE_SINGLE.equals( mode ) ? 1 : parallelism;
+			final PriorityExecutor prioritized = new PriorityExecutor( executor, workers, 8, 4, 1 );
+			final LaneExecutor lanes = new LaneExecutor( prioritized, 256 );
+
+			double unordered = nanosPerOp( TASKS, new Case() {
+				public void run( int ops ) throws Exception {
+					CountDownLatch done = new CountDownLatch( ops );
+					for ( int i = 0; i < ops; i++ ) {
+						prioritized.execute( Task.PRIORITY_NORMAL, work( done ));
+					}
+					done.await();
+				}
+			});
+			double laned = nanosPerOp( TASKS, new Case() {
+				public void run( int ops ) throws Exception {
+					CountDownLatch done = new CountDownLatch( ops );
+					for ( int i = 0; i < ops; i++ ) {
+						lanes.execute( "lane"+(i & 255), Task.PRIORITY_NORMAL, work( done ));
+					}
+					done.await();
+				}
+			});
+			report( "%-10s %9.0f ns %9.0f ns", mode, unordered, laned );
+			((ExecutorService)executor).shutdown();
+		}
+	}
+
+	/**
+	 * Returns a task doing the busy work, then counting down
+	 */
+	static Runnable work( final CountDownLatch done ) {
+		return new Runnable() {
+			public void run() {
+				long x = 0;
+				for ( int i = 0; i < WORK; i++ ) {
+					x = x * 31 + i;
+				}
+				_sink = x;
+				done.countDown();
+			}
+		};
+	}
+}
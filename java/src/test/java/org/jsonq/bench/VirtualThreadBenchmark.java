@@ -0,0 +1,62 @@
+package org.jsonq.bench;
+
+import org.jsonq.util.*;
+import org.jsonq.util.concurrent.*;
+import java.util.concurrent.*;
+
+import static org.jsonq.bench.Bench.*;
+
+/**
+ * Measures tasks which block, as store commands waiting on the disk do, in the fork-join and
+ * virtual thread scheduler modes. Each task sleeps for a millisecond. A fork-join pool can only
+ * have as many of them waiting as it has threads, while every virtual thread waits on its own.
+ *
+ * The virtual mode is skipped on runtimes older than Java 21.
+ */
+public class VirtualThreadBenchmark {
+
+	private static final int TASKS = 10000;
+
+	/** Milliseconds each task blocks for */
+	private static final int BLOCK = Integer.getInteger( "bench.block", 1 );
+
+	public static void main( String[] args ) throws Exception {
+		int parallelism = Integer.getInteger(
+				Scheduler.PARALLELISM_PROPERTY,
+				Runtime.getRuntime().availableProcessors() );
+		report( "%d tasks blocking %d ms, parallelism %d", TASKS, BLOCK, parallelism );
+		run( Scheduler.MODE_FORK_JOIN, Scheduler.createExecutor( Scheduler.MODE_FORK_JOIN, parallelism ), parallelism );
+		Executor virtual;
+		try {
+			virtual = Scheduler.newVirtualThreadExecutor();
+		} catch ( IllegalStateException e ) {
+			report( "%-10s %s", Scheduler.MODE_VIRTUAL, e.getMessage() );
+			return;
+		}
+		run( Scheduler.MODE_VIRTUAL, virtual, Integer.MAX_VALUE );
+	}
+
+	private static void run( String mode, Executor executor, int workers ) throws Exception {
+		final PriorityExecutor prioritized = new PriorityExecutor( executor, workers, 8, 4, 1 );
+		double nanos = nanosPerOp( TASKS, new Case() {
+			public void run( int ops ) throws Exception {
+				final CountDownLatch done = new CountDownLatch( ops );
+				for ( int i = 0; i < ops; i++ ) {
+					prioritized.execute( Task.PRIORITY_NORMAL, new Runnable() {
+						public void run() {
+							try {
+								Thread.sleep( BLOCK );
+							} catch ( InterruptedException e ) {
+								Thread.currentThread().interrupt();
+							}
+							done.countDown();
+						}
+					});
+				}
+				done.await();
+			}
+		});
+		report( "%-10s %9.1f us per task, %8.0f tasks/s", mode, nanos / 1000, 1e9 / nanos );
+		((ExecutorService)executor).shutdown();
+	}
+}
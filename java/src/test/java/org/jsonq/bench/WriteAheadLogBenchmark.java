@@ -0,0 +1,85 @@
+package org.jsonq.bench;
+
+import org.jsonq.*;
+import org.jsonq.provider.impl.*;
+import org.jsonq.provider.log.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import static org.jsonq.JSONQConstants.*;
+import static org.jsonq.bench.Bench.*;
+
+/**
+ * Measures the throughput of saves into a logged store, for each sync policy and a growing number
+ * of writers, each of which waits for its save to be durable before saving again. Group commit
+ * shows as the number of saves made durable by each sync.
+ *
+ * The log is written to a temporary folder, which can be moved to the disk to measure with
+ * <code>java.io.tmpdir</code>.
+ */
+public class WriteAheadLogBenchmark {
+
+	private static final int[] WRITERS = { 1, 4, 16, 64 };
+
+	/** Milliseconds each run saves for */
+	private static final int DURATION = Integer.getInteger( "bench.duration", 1000 );
+
+	/** Milliseconds between syncs of the interval policy */
+	private static final int INTERVAL = Integer.getInteger( "bench.interval", 5 );
+
+	public static void main( String[] args ) throws Exception {
+		report( "%-10s %8s %12s %14s", "sync", "writers", "saves/s", "saves/sync" );
+		for ( String sync : new String[] { "always", "interval", "os" } ) {
+			for ( int writers : WRITERS ) {
+				run( sync, writers );
+			}
+		}
+		// the Scheduler's threads would keep the JVM running
+		System.exit( 0 );
+	}
+
+	private static void run( String sync, int writers ) throws Exception {
+		File folder = Files.createTempDirectory( "jsonq-bench" ).toFile();
+		JSONObject log = JSONObject.create();
+		log.put( Log.PATH, new File( folder, "bench.log" ).getPath() );
+		log.put( Log.SYNC, sync );
+		log.put( Log.INTERVAL, INTERVAL );
+		JSONObject schema = JSONObject.create();
+		schema.put( Schema.LOG, log );
+		final LoggedStore store = (LoggedStore)await( LoggedStore.factory( SimpleStore.FACTORY ).create( schema ));
+
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicLong saves = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch( writers );
+		for ( int w = 0; w < writers; w++ ) {
+			final int writer = w;
+			new Thread() {
+				public void run() {
+					long count = 0;
+					while ( ! stop.get() ) {
+						await( store.save( request( document( writer+"-"+(count & 1023), (int)count ))));
+						count++;
+					}
+					saves.addAndGet( count );
+					done.countDown();
+				}
+			}.start();
+		}
+		long syncs = store.getLog().getSyncs();
+		Thread.sleep( DURATION );
+		stop.set( true );
+		done.await();
+		syncs = store.getLog().getSyncs() - syncs;
+		store.close();
+
+		double perSecond = saves.get() * 1000.0 / DURATION;
+		report( "%-10s %8d %12.0f %14s", sync, writers, perSecond,
+				0 == syncs ? "-" : String.format( "%.1f", (double)saves.get() / syncs ));
+		for ( File file : folder.listFiles() ) {
+			file.delete();
+		}
+		folder.delete();
+	}
+}
@@ -0,0 +1,117 @@
+package org.jsonq.io;
+
+import org.jsonq.*;
+import org.junit.*;
+import java.nio.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.jsonq.Documents.*;
+
+public class BinaryCodecTest {
+
+	private final BinaryEncoder _encoder = new BinaryEncoder();
+	private final BinaryDecoder _decoder = new BinaryDecoder();
+
+	@Test
+	public void roundTrip() {
+		for ( int i = 0; i < 100; i++ ) {
+			JSONObject doc = document( "k"+i, i );
+			assertSameDocument( doc, _decoder.decode( _encoder.encode( doc )));
+		}
+	}
+
+	@Test
+	public void roundTripEmptyAndNested() {
+		JSONObject empty = JSONObject.create();
+		assertSameDocument( empty, _decoder.decode( _encoder.encode( empty )));
+
+		JSONObject doc = JSONObject.create();
+		JSONObject inner = document( "inner", 7 );
+		doc.put( "inner", inner );
+		doc.add( "list", 1 );
+		doc.add( "list", 2.5 );
+		doc.add( "list", "three" );
+		doc.add( "list", inner );
+		doc.put( "nothing", (String)null );
+		doc.put( "unicode", "\u00e9\u4e2d\ud83d\ude00" );
+		assertSameDocument( doc, _decoder.decode( _encoder.encode( doc )));
+	}
+
+	@Test
+	public void decodeFromBuffers() {
+		JSONObject doc = document( "buffered", 3 );
+		byte[] bytes = _encoder.encode( doc );
+		ByteBuffer heap = ByteBuffer.allocate( bytes.length + 8 );
+		heap.position( 4 );
+		heap.put( bytes ).flip().position( 4 );
+		assertSameDocument( doc, _decoder.decode( heap ));
+		assertEquals( heap.limit(), heap.position() );
+
+		ByteBuffer direct = ByteBuffer.allocateDirect( bytes.length );
+		direct.put( bytes ).flip();
+		assertSameDocument( doc, _decoder.decode( direct ));
+	}
+
+	@Test( timeout = 10000 )
+	public void rejectsHugeDictionaryCount() {
+		// version 1, then a dictionary count of Integer.MAX_VALUE
+		assertRejected( new byte[] { 0x01, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, 0x07 } );
+	}
+
+	@Test
+	public void rejectsUnknownVersion() {
+		byte[] bytes = _encoder.encode( document( "v", 1 ));
+		bytes[0] = 99;
+		assertRejected( bytes );
+	}
+
+	@Test
+	public void rejectsTruncatedInput() {
+		byte[] bytes = _encoder.encode( document( "truncated", 42 ));
+		for ( int length = 0; length < bytes.length; length++ ) {
+			assertRejected( Arrays.copyOf( bytes, length ));
+		}
+	}
+
+	@Test
+	public void rejectsTrailingContent() {
+		byte[] bytes = _encoder.encode( document( "trailing", 1 ));
+		assertRejected( Arrays.copyOf( bytes, bytes.length + 1 ));
+	}
+
+	@Test( timeout = 10000 )
+	public void rejectsGarbage() {
+		Random random = new Random( 42 );
+		byte[] valid = _encoder.encode( document( "garbage", 5 ));
+		for ( int i = 0; i < 10000; i++ ) {
+			byte[] bytes;
+			if ( 0 == i % 2 ) {
+				bytes = new byte[ random.nextInt( 64 ) ];
+				random.nextBytes( bytes );
+			} else {
+				// corrupt a few bytes of a valid document
+				bytes = valid.clone();
+				for ( int j = random.nextInt( 4 ); j >= 0; j-- ) {
+					bytes[ random.nextInt( bytes.length ) ] = (byte)random.nextInt();
+				}
+			}
+			try {
+				_decoder.decode( bytes );
+			} catch ( IllegalArgumentException e ) {
+				// rejected, as it should be unless the corruption happened to be valid
+			}
+		}
+		// the decoder is still usable afterwards
+		assertSameDocument( document( "after", 1 ), _decoder.decode( _encoder.encode( document( "after", 1 ))));
+	}
+
+	private void assertRejected( byte[] bytes ) {
+		try {
+			_decoder.decode( bytes );
+			fail( "accepted "+Arrays.toString( bytes ));
+		} catch ( IllegalArgumentException e ) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package org.jsonq.io;
+
+import org.jsonq.*;
+import org.junit.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.jsonq.Documents.*;
+
+public class JSONParserTest {
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	private static byte[] write( JSONObject obj ) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new JSONWriter().write( obj, out );
+		return out.toByteArray();
+	}
+
+	/**
+	 * Returns a document with values that need escaping or are at the edges of their types
+	 */
+	private static JSONObject awkward() {
+		JSONObject doc = document( "awkward", 3 );
+		doc.put( "escaped", "quote \" backslash \\ newline \n tab \t control \u0001 slash /" );
+		doc.put( "unicode", "\u00e9\u4e2d\ud83d\ude00" );
+		doc.put( "empty", "" );
+		doc.put( "min", Long.MIN_VALUE );
+		doc.put( "max", Integer.MAX_VALUE );
+		doc.put( "negative", -1.5e-7 );
+		doc.put( "nothing", JSONObject.create() );
+		JSONObject inner = JSONObject.create();
+		inner.add( "list", 1 );
+		inner.add( "list", "two" );
+		inner.add( "list", false );
+		doc.add( "objects", inner );
+		doc.add( "objects", JSONObject.create() );
+		return doc;
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		JSONParser parser = new JSONParser();
+		for ( JSONObject doc : new JSONObject[] { document( "k", 1 ), awkward(), JSONObject.create() } ) {
+			byte[] bytes = write( doc );
+			assertSameDocument( doc, parser.parse( bytes ));
+			// and once more, through what was read
+			assertSameDocument( doc, parser.parse( write( parser.parse( bytes ))));
+		}
+	}
+
+	@Test
+	public void parsesEverySource() throws IOException {
+		JSONObject doc = awkward();
+		// large enough for the windows over streams and direct buffers to move
+		for ( int i = 0; i < 2000; i++ ) {
+			doc.add( "padding", "value "+i );
+		}
+		byte[] bytes = write( doc );
+		assertTrue( bytes.length > 3 * 8192 );
+		JSONParser parser = new JSONParser();
+
+		byte[] framed = new byte[ bytes.length + 10 ];
+		System.arraycopy( bytes, 0, framed, 5, bytes.length );
+		assertSameDocument( doc, parser.parse( framed, 5, bytes.length ));
+
+		assertSameDocument( doc, parser.parse( ByteBuffer.wrap( bytes )));
+		ByteBuffer direct = ByteBuffer.allocateDirect( bytes.length );
+		direct.put( bytes ).flip();
+		assertSameDocument( doc, parser.parse( direct ));
+		assertEquals( direct.limit(), direct.position() );
+
+		// a stream handing out a few bytes at a time
+		InputStream trickle = new FilterInputStream( new ByteArrayInputStream( bytes )) {
+			@Override
+			public int read( byte[] b, int off, int len ) throws IOException {
+				return super.read( b, off, Math.min( len, 7 ));
+			}
+		};
+		assertSameDocument( doc, parser.parse( trickle ));
+	}
+
+	@Test
+	public void parsesWhitespaceAndEscapes() {
+		String text = " {\n\t\"a\" : [ 1 , 2.5e3 , -0 , null , true ] ,\r\n \"\\u0041\\n\" : \"\\ud83d\\ude00\\/\" } ";
+		JSONObject obj = new JSONParser().parse( text.getBytes( UTF8 ));
+		assertTrue( obj.isList( "a" ));
+		assertEquals( 5, obj.get( "a" ).size() );
+		assertEquals( 2500.0, ((Number)obj.get( "a" ).get( 1 )).doubleValue(), 0 );
+		assertNull( obj.get( "a" ).get( 3 ));
+		assertEquals( "\ud83d\ude00/", obj.getString( "A\n" ));
+	}
+
+	@Test
+	public void rejectsTruncatedInput() throws IOException {
+		byte[] bytes = write( awkward() );
+		JSONParser parser = new JSONParser();
+		for ( int length = 0; length < bytes.length; length++ ) {
+			try {
+				parser.parse( bytes, 0, length );
+				fail( "parsed the first "+length+" bytes" );
+			} catch ( IllegalArgumentException e ) {
+				// expected
+			}
+		}
+		// the parser is still usable afterwards
+		assertSameDocument( awkward(), parser.parse( bytes ));
+	}
+
+	@Test
+	public void rejectsMalformedInput() {
+		String[] texts = {
+			"", "[]", "\"text\"", "{", "}", "{\"a\"}", "{\"a\":}", "{\"a\":1,}", "{a:1}", "{\"a\":01}",
+			"{\"a\":1.}", "{\"a\":tru}", "{\"a\":\"\\x\"}", "{\"a\":\"\\u12\"}", "{\"a\":\"\u0001\"}",
+			"{\"a\":[1,]}", "{\"a\":1} x", "{\"a\":1}{}", "{\"a\":NaN}"
+		};
+		JSONParser parser = new JSONParser();
+		for ( String text : texts ) {
+			try {
+				parser.parse( text.getBytes( UTF8 ));
+				fail( "parsed "+text );
+			} catch ( IllegalArgumentException e ) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void rejectsMalformedUTF8() {
+		int[][] sequences = {
+			{ 0x80 }, // continuation without a lead byte
+			{ 0xc3 }, // truncated
+			{ 0xc3, 0x28 }, // bad continuation
+			{ 0xf8, 0x88, 0x80, 0x80, 0x80 }, // five byte form
+			{ 0xc0, 0xaf }, // overlong '/'
+			{ 0xc1, 0xbf }, // overlong U+007F
+			{ 0xe0, 0x80, 0xaf }, // overlong '/'
+			{ 0xe0, 0x9f, 0xbf }, // overlong U+07FF
+			{ 0xf0, 0x80, 0x80, 0xaf }, // overlong '/'
+			{ 0xf0, 0x8f, 0xbf, 0xbf }, // overlong U+FFFF
+			{ 0xed, 0xa0, 0x80 }, // encoded high surrogate U+D800
+			{ 0xed, 0xbf, 0xbf }, // encoded low surrogate U+DFFF
+			{ 0xed, 0xa0, 0xbd, 0xed, 0xb8, 0x80 }, // surrogate pair encoded as two sequences
+			{ 0xf4, 0x90, 0x80, 0x80 }, // U+110000
+			{ 0xf7, 0xbf, 0xbf, 0xbf } // U+1FFFFF
+		};
+		JSONParser parser = new JSONParser();
+		for ( int[] sequence : sequences ) {
+			// {"a":"x...x"}, with the sequence at offset 7
+			byte[] text = new byte[ 9 + sequence.length ];
+			System.arraycopy( "{\"a\":\"x".getBytes( UTF8 ), 0, text, 0, 7 );
+			for ( int i = 0; i < sequence.length; i++ ) {
+				text[ 7 + i ] = (byte)sequence[i];
+			}
+			text[ text.length - 2 ] = '"';
+			text[ text.length - 1 ] = '}';
+			try {
+				parser.parse( text );
+				fail( "parsed "+Arrays.toString( sequence ));
+			} catch ( IllegalArgumentException e ) {
+				assertTrue( e.getMessage(), e.getMessage().startsWith( "Invalid UTF-8 at offset " ));
+			}
+			// values are checked when a wrapped object is first read, too
+			try {
+				JSONObject.wrap( text ).getString( "a" );
+				fail( "read "+Arrays.toString( sequence ));
+			} catch ( IllegalArgumentException e ) {
+				// expected
+			}
+		}
+
+		// the limits of each form are still taken
+		String edges = "\u0080\u07ff\u0800\ud7ff\ue000\uffff\ud800\udc00\udbff\udfff";
+		JSONObject obj = parser.parse( ("{\"a\":\""+edges+"\"}").getBytes( UTF8 ));
+		assertEquals( edges, obj.getString( "a" ));
+	}
+
+	@Test
+	public void reportsOffsetOfMalformedUTF8() {
+		byte[] text = { '{', '"', 'a', '"', ':', '"', 'x', 'y', (byte)0xe0, (byte)0x80, (byte)0xaf, '"', '}' };
+		try {
+			new JSONParser().parse( text );
+			fail( "parsed an overlong sequence" );
+		} catch ( IllegalArgumentException e ) {
+			assertEquals( "Invalid UTF-8 at offset 8", e.getMessage() );
+		}
+	}
+
+	@Test
+	public void rejectsDeepNesting() {
+		StringBuilder text = new StringBuilder();
+		for ( int i = 0; i < 10000; i++ ) {
+			text.append( "{\"a\":" );
+		}
+		try {
+			new JSONParser().parse( text.toString().getBytes( UTF8 ));
+			fail( "parsed deeply nested input" );
+		} catch ( IllegalArgumentException e ) {
+			// expected, rather than a StackOverflowError
+		}
+	}
+}
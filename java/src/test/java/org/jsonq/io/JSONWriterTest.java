@@ -0,0 +1,132 @@
+package org.jsonq.io;
+
+import org.jsonq.*;
+import org.junit.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class JSONWriterTest {
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	private static String write( JSONObject obj ) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new JSONWriter().write( obj, out );
+		return new String( out.toByteArray(), UTF8 );
+	}
+
+	private static JSONObject single( String key, String value ) {
+		JSONObject obj = JSONObject.create();
+		obj.put( key, value );
+		return obj;
+	}
+
+	@Test
+	public void escapesStrings() throws IOException {
+		assertEquals( "{\"s\":\"quote \\\" backslash \\\\ slash /\"}", write( single( "s", "quote \" backslash \\ slash /" )));
+		assertEquals( "{\"s\":\"\\n\\r\\t\\b\\f\"}", write( single( "s", "\n\r\t\b\f" )));
+		// keys are escaped too
+		assertEquals( "{\"a\\\"b\":\"\"}", write( single( "a\"b", "" )));
+	}
+
+	@Test
+	public void escapesControlCharacters() throws IOException {
+		assertEquals( "{\"s\":\"\\u0000\\u0001\\u001f\"}", write( single( "s", "\u0000\u0001\u001f" )));
+		// DEL is not a control character to JSON
+		assertEquals( "{\"s\":\" \u007f\"}", write( single( "s", " \u007f" )));
+	}
+
+	@Test
+	public void encodesSurrogatePairs() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new JSONWriter().write( single( "s", "\ud83d\ude00" ), out );
+		byte[] bytes = out.toByteArray();
+		byte[] expected = { '{', '"', 's', '"', ':', '"', (byte)0xf0, (byte)0x9f, (byte)0x98, (byte)0x80, '"', '}' };
+		assertArrayEquals( expected, bytes );
+
+		assertEquals( "{\"s\":\"\u00e9\u4e2d\"}", write( single( "s", "\u00e9\u4e2d" )));
+
+		// lone and reversed surrogates cannot be encoded as UTF-8, so they are escaped
+		assertEquals( "{\"s\":\"\\ud83d!\"}", write( single( "s", "\ud83d!" )));
+		assertEquals( "{\"s\":\"\\ude00\\ud83d\"}", write( single( "s", "\ude00\ud83d" )));
+	}
+
+	@Test
+	public void writesNumbersJSONCannotHoldAsNull() throws IOException {
+		JSONObject obj = JSONObject.create();
+		obj.put( "n", Double.NaN );
+		assertEquals( "{\"n\":null}", write( obj ));
+		obj.put( "n", Double.POSITIVE_INFINITY );
+		assertEquals( "{\"n\":null}", write( obj ));
+		obj.put( "n", Float.NEGATIVE_INFINITY );
+		assertEquals( "{\"n\":null}", write( obj ));
+
+		// whole doubles keep their fraction, and floats do not gain digits
+		obj.put( "n", 2.0 );
+		assertEquals( "{\"n\":2.0}", write( obj ));
+		obj.put( "n", 0.1f );
+		assertEquals( "{\"n\":0.1}", write( obj ));
+		obj.put( "n", Long.MIN_VALUE );
+		assertEquals( "{\"n\":"+Long.MIN_VALUE+"}", write( obj ));
+	}
+
+	@Test
+	public void flushesAcrossTheBuffer() throws IOException {
+		// characters of every encoded length, and an escape, cut by the 8 KB buffer at each offset
+		StringBuilder text = new StringBuilder();
+		while ( text.length() < 3 * 8192 ) {
+			text.append( "a\u00e9\u4e2d\ud83d\ude00\n" );
+		}
+		JSONWriter writer = new JSONWriter();
+		for ( int pad = 0; pad < 12; pad++ ) {
+			String value = "xxxxxxxxxxx".substring( 0, pad )+text;
+			String expected = "{\"s\":\""+value.replace( "\n", "\\n" )+"\"}";
+			assertEquals( expected, write( single( "s", value )));
+
+			ByteBuffer buffer = ByteBuffer.allocate( 8 * 8192 );
+			writer.write( single( "s", value ), buffer );
+			buffer.flip();
+			assertEquals( expected, UTF8.decode( buffer ).toString() );
+		}
+	}
+
+	@Test
+	public void failsWhenTheBufferIsFull() {
+		ByteBuffer buffer = ByteBuffer.allocate( 16 );
+		try {
+			new JSONWriter().write( single( "s", "longer than sixteen bytes" ), buffer );
+			fail( "wrote past the end of the buffer" );
+		} catch ( BufferOverflowException e ) {
+			// expected
+		}
+	}
+
+	@Test
+	public void copiesSourceText() throws IOException {
+		// spacing and escapes the writer would not produce itself
+		byte[] text = "{ \"a\" : [ 1 , 2 ] ,\n \"b\" : \"\\u0041\" }".getBytes( UTF8 );
+		byte[] framed = new byte[ text.length + 4 ];
+		System.arraycopy( text, 0, framed, 2, text.length );
+
+		JSONObject wrapped = JSONObject.wrap( framed, 2, text.length );
+		assertEquals( new String( text, UTF8 ), write( wrapped ));
+		assertEquals( "A", wrapped.getString( "b" ));
+		assertEquals( new String( text, UTF8 ), write( wrapped ));
+
+		// nested objects which still match their text are copied as well
+		JSONObject outer = single( "x", "y" );
+		outer.put( "inner", JSONObject.wrap( text ));
+		assertTrue( write( outer ).contains( "\"inner\":"+new String( text, UTF8 )));
+
+		// once changed, the object is written from its fields
+		wrapped.put( "b", "B" );
+		JSONObject read = new JSONParser().parse( write( wrapped ).getBytes( UTF8 ));
+		assertEquals( "B", read.getString( "b" ));
+		assertEquals( Arrays.<Object>asList( 1, 2 ), read.get( "a" ));
+		assertFalse( write( wrapped ).contains( " " ));
+	}
+}
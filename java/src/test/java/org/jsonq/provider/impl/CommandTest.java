@@ -0,0 +1,132 @@
+package org.jsonq.provider.impl;
+
+import org.jsonq.*;
+import org.jsonq.util.*;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static org.jsonq.JSONQConstants.*;
+
+public class CommandTest {
+
+	/**
+	 * Command which counts how often it is executed
+	 */
+	private static class Counted extends Command<String> {
+
+		int executed;
+
+		Counted( FutureImpl<String,JSONObject> future, JSONObject request ) {
+			super( future, request );
+		}
+
+		@Override
+		protected void execute() {
+			executed++;
+			complete( "done" );
+		}
+	}
+
+	private static JSONObject error( String code ) {
+		JSONObject error = JSONObject.create();
+		error.put( "code", code );
+		return error;
+	}
+
+	private static int priorityOf( String op ) {
+		JSONObject request = JSONObject.create();
+		if ( null != op ) {
+			request.put( Request.OP, op );
+		}
+		return new Counted( new FutureImpl<String,JSONObject>(), request ).getPriority();
+	}
+
+	@Test
+	public void runsBeforeDeadline() {
+		FutureImpl<String,JSONObject> future = new FutureImpl<>();
+		JSONObject request = JSONObject.create();
+		request.put( Request.DEADLINE, System.currentTimeMillis() + 60000 );
+		Counted command = new Counted( future, request );
+		command.run();
+		assertEquals( 1, command.executed );
+		assertEquals( "done", future.get() );
+	}
+
+	@Test
+	public void failsPastDeadline() {
+		FutureImpl<String,JSONObject> future = new FutureImpl<>();
+		JSONObject request = JSONObject.create();
+		request.put( Request.DEADLINE, System.currentTimeMillis() - 1 );
+		Counted command = new Counted( future, request );
+		command.run();
+		assertEquals( 0, command.executed );
+		assertTrue( future.isFailure() );
+		assertEquals( "err.timeout", future.getError().getString( "code" ));
+	}
+
+	@Test
+	public void skipsCancelledCommands() {
+		FutureImpl<String,JSONObject> future = new FutureImpl<>();
+		Counted command = new Counted( future, JSONObject.create() );
+		assertTrue( future.cancel( error( "err.cancelled" )));
+		command.run();
+		assertEquals( 0, command.executed );
+		assertEquals( "err.cancelled", future.getError().getString( "code" ));
+	}
+
+	@Test
+	public void cancelsUpstream() {
+		// cancelling the caller's future reaches the work it is waiting on
+		FutureImpl<String,JSONObject> future = new FutureImpl<>();
+		FutureImpl<String,JSONObject> upstream = new FutureImpl<>();
+		future.setUpstream( upstream );
+		future.cancel( error( "err.cancelled" ));
+		assertTrue( upstream.isCancelled() );
+
+		// and work linked after the cancel is cancelled right away
+		FutureImpl<String,JSONObject> late = new FutureImpl<>();
+		future.setUpstream( late );
+		assertTrue( late.isCancelled() );
+	}
+
+	@Test
+	public void readsPriority() {
+		JSONObject request = JSONObject.create();
+		request.put( Request.OP, Op.LIST );
+		request.put( Request.PRIORITY, Priority.HIGH );
+		assertEquals( Task.PRIORITY_HIGH, new Counted( new FutureImpl<String,JSONObject>(), request ).getPriority() );
+		request.put( Request.PRIORITY, Priority.NORMAL );
+		assertEquals( Task.PRIORITY_NORMAL, new Counted( new FutureImpl<String,JSONObject>(), request ).getPriority() );
+		request.put( Request.OP, Op.FETCH );
+		request.put( Request.PRIORITY, Priority.LOW );
+		assertEquals( Task.PRIORITY_LOW, new Counted( new FutureImpl<String,JSONObject>(), request ).getPriority() );
+	}
+
+	@Test
+	public void defaultsPriorityByOperation() {
+		assertEquals( Task.PRIORITY_HIGH, priorityOf( Op.FETCH ));
+		assertEquals( Task.PRIORITY_NORMAL, priorityOf( Op.SAVE ));
+		assertEquals( Task.PRIORITY_NORMAL, priorityOf( Op.DELETE ));
+		assertEquals( Task.PRIORITY_LOW, priorityOf( Op.LIST ));
+		assertEquals( Task.PRIORITY_LOW, priorityOf( Op.PROVISION ));
+		assertEquals( Task.PRIORITY_LOW, priorityOf( null ));
+
+		// malformed priorities are ignored
+		JSONObject request = JSONObject.create();
+		request.put( Request.OP, Op.FETCH );
+		request.put( Request.PRIORITY, 3 );
+		assertEquals( Task.PRIORITY_HIGH, new Counted( new FutureImpl<String,JSONObject>(), request ).getPriority() );
+	}
+
+	@Test
+	public void countsTimeoutFromCreation() {
+		FutureImpl<String,JSONObject> future = new FutureImpl<>();
+		JSONObject request = JSONObject.create();
+		request.put( Request.TIMEOUT, -1 );
+		Counted command = new Counted( future, request );
+		command.run();
+		assertEquals( 0, command.executed );
+		assertEquals( "err.timeout", future.getError().getString( "code" ));
+		assertFalse( request.containsKey( Request.DEADLINE ));
+	}
+}
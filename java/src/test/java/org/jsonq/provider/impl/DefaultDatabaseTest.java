@@ -0,0 +1,84 @@
+package org.jsonq.provider.impl;
+
+import org.jsonq.*;
+import org.jsonq.util.*;
+import org.junit.*;
+import org.junit.rules.*;
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.jsonq.JSONQConstants.*;
+import static org.jsonq.provider.impl.MappedFileStoreTest.*;
+
+public class DefaultDatabaseTest {
+
+	@Rule
+	public TemporaryFolder _folder = new TemporaryFolder();
+
+	private DefaultDatabase _db;
+
+	@Before
+	public void setUp() {
+		_db = new DefaultDatabase();
+		_db.registerProvider( "memory", SimpleStore.FACTORY );
+		_db.registerProvider( "file", MappedFileStore.FACTORY );
+	}
+
+	private void provision( String store, JSONObject schema ) {
+		JSONObject request = request( store, "provision" );
+		request.put( Request.PAYLOAD, schema );
+		await( _db.provision( request ));
+	}
+
+	private static JSONObject request( String store, String id ) {
+		JSONObject request = JSONObject.create();
+		request.put( Request.ID, id );
+		request.put( Request.STORE, store );
+		return request;
+	}
+
+	/**
+	 * Saves a document over and over, fetching it after each save without waiting for either.
+	 * Fetches are given a higher priority, so that only the lanes keep them behind the saves
+	 */
+	private void savesAndFetchesInOrder( String store ) {
+		List<Future<JSONObject,JSONObject>> fetches = new ArrayList<>();
+		for ( int i = 0; i < 500; i++ ) {
+			JSONObject doc = JSONObject.create();
+			doc.put( "id", "doc" );
+			doc.put( "n", i );
+			JSONObject save = request( store, "s"+i );
+			save.put( Request.PAYLOAD, doc );
+			save.put( Request.PRIORITY, Priority.LOW );
+			_db.save( save );
+
+			JSONObject fetch = request( store, "f"+i );
+			fetch.put( Request.PAYLOAD, "doc" );
+			fetch.put( Request.PRIORITY, Priority.HIGH );
+			fetches.add( _db.fetch( fetch ));
+		}
+		for ( int i = 0; i < 500; i++ ) {
+			JSONObject response = await( fetches.get(i) );
+			assertEquals( i, response.getObject( Response.PAYLOAD ).getInt( "n" ));
+		}
+	}
+
+	@Test
+	public void runsDirectCommandsInCallOrder() {
+		JSONObject schema = JSONObject.create();
+		schema.put( Schema.PROVIDER, "memory" );
+		provision( "memory", schema );
+		savesAndFetchesInOrder( "memory" );
+	}
+
+	@Test
+	public void runsScheduledCommandsInLaneOrder() throws IOException {
+		JSONObject schema = JSONObject.create();
+		schema.put( Schema.PROVIDER, "file" );
+		schema.put( Schema.FILE, new File( _folder.getRoot(), "docs.db" ).getPath() );
+		schema.put( Schema.REGION_SIZE, 1 << 16 );
+		provision( "file", schema );
+		savesAndFetchesInOrder( "file" );
+	}
+}
@@ -0,0 +1,236 @@
+package org.jsonq.provider.impl;
+
+import org.jsonq.*;
+import org.jsonq.util.*;
+import org.junit.*;
+import org.junit.rules.*;
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.jsonq.Documents.*;
+import static org.jsonq.JSONQConstants.*;
+
+public class MappedFileStoreTest {
+
+	private static final int REGION_SIZE = 1 << 16;
+
+	@Rule
+	public TemporaryFolder _folder = new TemporaryFolder();
+
+	private File _file;
+
+	@Before
+	public void setUp() {
+		_file = new File( _folder.getRoot(), "users.db" );
+	}
+
+	private MappedFileStore open() {
+		JSONObject schema = JSONObject.create();
+		schema.put( Schema.FILE, _file.getPath() );
+		schema.put( Schema.REGION_SIZE, REGION_SIZE );
+		return await( MappedFileStore.FACTORY.create( schema ));
+	}
+
+	static <T> T await( Future<T,JSONObject> future ) {
+		assertTrue( "timed out", future.await( 10000 ));
+		if ( future.isFailure() ) {
+			fail( "failed with "+future.getError().getString( "code" ));
+		}
+		return future.get();
+	}
+
+	static JSONObject request( JSONObject payload ) {
+		JSONObject request = JSONObject.create();
+		request.put( Request.PAYLOAD, payload );
+		return request;
+	}
+
+	static JSONObject request( String id ) {
+		JSONObject request = JSONObject.create();
+		request.put( Request.PAYLOAD, id );
+		return request;
+	}
+
+	/**
+	 * Saves documents k0 to k(count - 1), with every other one saved twice, and deletes every
+	 * seventh one
+	 */
+	private static void fill( MappedFileStore store, int count ) {
+		for ( int i = 0; i < count; i++ ) {
+			await( store.save( request( document( "k"+i, i ))));
+		}
+		for ( int i = 0; i < count; i += 2 ) {
+			await( store.save( request( document( "k"+i, -i ))));
+		}
+		for ( int i = 0; i < count; i += 7 ) {
+			await( store.delete( request( "k"+i )));
+		}
+	}
+
+	private static void check( MappedFileStore store, int count ) {
+		for ( int i = 0; i < count; i++ ) {
+			JSONObject doc = await( store.fetch( request( "k"+i )));
+			if ( 0 == i % 7 ) {
+				assertNull( "k"+i, doc );
+			} else {
+				assertSameDocument( document( "k"+i, 0 == i % 2 ? -i : i ), doc );
+			}
+		}
+		assertEquals( count - (count + 6) / 7, await( store.list( JSONObject.create() )).size() );
+	}
+
+	@Test
+	public void reopensWithIndex() throws IOException {
+		MappedFileStore store = open();
+		fill( store, 2000 );
+		assertTrue( store.getFileSize() > REGION_SIZE );
+		store.close();
+		assertTrue( new File( _file.getPath()+MappedFileStore.INDEX_SUFFIX ).exists() );
+
+		MappedFileStore reopened = open();
+		check( reopened, 2000 );
+		reopened.close();
+	}
+
+	@Test
+	public void reopensWithoutIndex() throws IOException {
+		MappedFileStore store = open();
+		fill( store, 2000 );
+		store.close();
+		assertTrue( new File( _file.getPath()+MappedFileStore.INDEX_SUFFIX ).delete() );
+
+		MappedFileStore reopened = open();
+		check( reopened, 2000 );
+		reopened.close();
+	}
+
+	@Test
+	public void reopensWithoutClose() throws IOException {
+		MappedFileStore store = open();
+		fill( store, 1000 );
+		store.flush();
+		// changes after the index was saved are only in the file, as after a crash
+		for ( int i = 1000; i < 1100; i++ ) {
+			await( store.save( request( document( "k"+i, 0 == i % 2 ? -i : i ))));
+			if ( 0 == i % 7 ) {
+				await( store.delete( request( "k"+i )));
+			}
+		}
+
+		MappedFileStore reopened = open();
+		check( reopened, 1100 );
+		reopened.close();
+		store.close();
+	}
+
+	@Test
+	public void cutsOffTornRecord() throws IOException {
+		MappedFileStore store = open();
+		for ( int i = 0; i < 10; i++ ) {
+			await( store.save( request( document( "k"+i, i ))));
+		}
+		// nothing was replaced, so the records follow the 20 byte file header back to back
+		assertEquals( REGION_SIZE, store.getFileSize() );
+		long tail = 20 + store.getDataSize();
+		store.close();
+		try ( RandomAccessFile file = new RandomAccessFile( _file, "rw" ) ) {
+			file.seek( tail - 1 );
+			int last = file.read();
+			file.seek( tail - 1 );
+			file.write( last ^ 0xff );
+		}
+		assertTrue( new File( _file.getPath()+MappedFileStore.INDEX_SUFFIX ).delete() );
+
+		MappedFileStore reopened = open();
+		for ( int i = 0; i < 9; i++ ) {
+			assertSameDocument( document( "k"+i, i ), await( reopened.fetch( request( "k"+i ))));
+		}
+		assertNull( await( reopened.fetch( request( "k9" ))));
+		// the next record takes the place of the torn one
+		await( reopened.save( request( document( "k10", 10 ))));
+		reopened.close();
+		assertTrue( new File( _file.getPath()+MappedFileStore.INDEX_SUFFIX ).delete() );
+
+		MappedFileStore again = open();
+		assertSameDocument( document( "k10", 10 ), await( again.fetch( request( "k10" ))));
+		assertEquals( 10, await( again.list( JSONObject.create() )).size() );
+		again.close();
+	}
+
+	@Test
+	public void reopensWithEmptyId() throws IOException {
+		MappedFileStore store = open();
+		await( store.save( request( document( "", 0 ))));
+		for ( int i = 1; i < 6; i++ ) {
+			await( store.save( request( document( "k"+i, i ))));
+		}
+
+		// without an index, the records are all read back
+		MappedFileStore reopened = open();
+		assertSameDocument( document( "", 0 ), await( reopened.fetch( request( "" ))));
+		for ( int i = 1; i < 6; i++ ) {
+			assertSameDocument( document( "k"+i, i ), await( reopened.fetch( request( "k"+i ))));
+		}
+		assertEquals( 6, await( reopened.list( JSONObject.create() )).size() );
+		reopened.close();
+		store.close();
+	}
+
+	@Test
+	public void schedulesDocumentCommands() throws IOException {
+		JSONObject schema = JSONObject.create();
+		schema.put( Schema.FILE, _file.getPath() );
+		schema.put( Schema.REGION_SIZE, REGION_SIZE );
+		final List<Thread> threads = Collections.synchronizedList( new ArrayList<Thread>() );
+		MappedFileStore store = new MappedFileStore( schema ) {
+			@Override
+			protected boolean putDocument( String id, JSONObject document ) {
+				threads.add( Thread.currentThread() );
+				return super.putDocument( id, document );
+			}
+		};
+		List<Future<String,JSONObject>> saves = new ArrayList<>();
+		for ( int i = 0; i < 100; i++ ) {
+			saves.add( store.save( request( document( "k", i ))));
+		}
+		for ( Future<String,JSONObject> save : saves ) {
+			await( save );
+		}
+		assertEquals( 100, threads.size() );
+		assertFalse( threads.contains( Thread.currentThread() ));
+		// saves of the same document run in the order they were made
+		assertSameDocument( document( "k", 99 ), await( store.fetch( request( "k" ))));
+		store.close();
+	}
+
+	@Test
+	public void compacts() throws IOException {
+		MappedFileStore store = open();
+		fill( store, 1000 );
+		long size = store.getFileSize();
+		store.compact();
+		assertTrue( store.getFileSize() <= size );
+		assertEquals( 1, store.getCompactions() );
+		check( store, 1000 );
+
+		// overwriting the same documents leaves most of the file behind
+		for ( int round = 0; round < 20; round++ ) {
+			for ( int i = 1; i < 1000; i += 7 ) {
+				await( store.save( request( document( "k"+i, 0 == i % 2 ? -i : i ))));
+			}
+		}
+		assertTrue( store.getCompactions() > 1 );
+		check( store, 1000 );
+		store.close();
+
+		MappedFileStore reopened = open();
+		check( reopened, 1000 );
+		reopened.close();
+		assertTrue( new File( _file.getPath()+MappedFileStore.INDEX_SUFFIX ).delete() );
+
+		reopened = open();
+		check( reopened, 1000 );
+		reopened.close();
+	}
+}
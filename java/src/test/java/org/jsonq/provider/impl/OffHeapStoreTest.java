@@ -0,0 +1,99 @@
+package org.jsonq.provider.impl;
+
+import org.jsonq.*;
+import org.jsonq.util.*;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static org.jsonq.Documents.*;
+import static org.jsonq.JSONQConstants.*;
+import static org.jsonq.provider.impl.MappedFileStoreTest.*;
+
+public class OffHeapStoreTest {
+
+	private static OffHeapStore open( long memory, int arenaSize ) {
+		JSONObject schema = JSONObject.create();
+		schema.put( Schema.MEMORY, memory );
+		schema.put( Schema.ARENA_SIZE, arenaSize );
+		return await( OffHeapStore.FACTORY.create( schema ));
+	}
+
+	@Test
+	public void savesFetchesAndDeletes() {
+		OffHeapStore store = open( 1 << 20, 1 << 14 );
+		for ( int i = 0; i < 500; i++ ) {
+			await( store.save( request( document( "k"+i, i ))));
+		}
+		for ( int i = 0; i < 500; i += 3 ) {
+			await( store.delete( request( "k"+i )));
+		}
+		for ( int i = 0; i < 500; i++ ) {
+			JSONObject doc = await( store.fetch( request( "k"+i )));
+			if ( 0 == i % 3 ) {
+				assertNull( doc );
+			} else {
+				assertSameDocument( document( "k"+i, i ), doc );
+			}
+		}
+		assertEquals( 500 - 167, await( store.list( JSONObject.create() )).size() );
+		assertTrue( store.getMemoryAllocated() > 1 << 14 );
+	}
+
+	@Test
+	public void compactsWhenFull() {
+		// room for a few hundred documents, which are saved over and over
+		OffHeapStore store = open( 1 << 16, 1 << 13 );
+		for ( int round = 0; round < 20; round++ ) {
+			for ( int i = 0; i < 200; i++ ) {
+				await( store.save( request( document( "k"+i, round * 1000 + i ))));
+			}
+		}
+		assertTrue( store.getCompactions() > 0 );
+		assertTrue( store.getMemoryAllocated() <= store.getMemory() );
+		for ( int i = 0; i < 200; i++ ) {
+			assertSameDocument( document( "k"+i, 19000 + i ), await( store.fetch( request( "k"+i ))));
+		}
+	}
+
+	@Test
+	public void compactsOnRequest() {
+		OffHeapStore store = open( 1 << 20, 1 << 14 );
+		for ( int i = 0; i < 500; i++ ) {
+			await( store.save( request( document( "k"+i, i ))));
+		}
+		for ( int i = 0; i < 500; i += 2 ) {
+			await( store.delete( request( "k"+i )));
+		}
+		long used = store.getMemoryUsed();
+		store.compact();
+		assertTrue( store.getCompactions() > 0 );
+		assertEquals( used, store.getMemoryUsed() );
+		for ( int i = 1; i < 500; i += 2 ) {
+			assertSameDocument( document( "k"+i, i ), await( store.fetch( request( "k"+i ))));
+		}
+		// the room closed up is used again
+		for ( int i = 500; i < 700; i++ ) {
+			await( store.save( request( document( "k"+i, i ))));
+		}
+		assertEquals( 450, await( store.list( JSONObject.create() )).size() );
+	}
+
+	@Test
+	public void failsWhenFull() {
+		OffHeapStore store = open( 1 << 13, 1 << 12 );
+		Future<String,JSONObject> future = null;
+		int saved = 0;
+		for ( int i = 0; i < 1000; i++ ) {
+			future = store.save( request( document( "k"+i, i )));
+			assertTrue( future.await( 10000 ));
+			if ( future.isFailure() ) {
+				break;
+			}
+			saved++;
+		}
+		assertTrue( future.isFailure() );
+		assertEquals( "err.store.full", future.getError().getString( "code" ));
+		assertTrue( saved > 0 );
+		assertEquals( saved, await( store.list( JSONObject.create() )).size() );
+	}
+}
@@ -0,0 +1,103 @@
+package org.jsonq.provider.impl;
+
+import org.jsonq.*;
+import org.junit.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.jsonq.Documents.*;
+import static org.jsonq.JSONQConstants.*;
+import static org.jsonq.provider.impl.MappedFileStoreTest.*;
+
+public class SimpleStoreTest {
+
+	private static SimpleStore open( String... fields ) {
+		JSONObject schema = JSONObject.create();
+		if ( fields.length > 0 ) {
+			schema.put( Schema.FIELDS, Arrays.asList( (Object[])fields ));
+		}
+		return await( SimpleStore.FACTORY.create( schema ));
+	}
+
+	@Test
+	public void storesFrozenDocuments() {
+		SimpleStore store = open();
+		JSONObject saved = document( "a", 1 );
+		await( store.save( request( saved )));
+
+		// the caller's document is copied, and still theirs to change
+		saved.put( "n", 2 );
+		JSONObject fetched = await( store.fetch( request( "a" )));
+		assertTrue( fetched.isFrozen() );
+		assertSame( fetched, await( store.fetch( request( "a" ))));
+		assertEquals( 1, fetched.getInt( "n" ));
+
+		// a changed copy is saved without touching the document it came from
+		JSONObject changed = fetched.copy();
+		changed.getObject( "address" ).put( "city", "Bern" );
+		await( store.save( request( changed )));
+		assertEquals( "Z\u00fcrich", fetched.getObject( "address" ).getString( "city" ));
+		assertEquals( "Bern", await( store.fetch( request( "a" ))).getObject( "address" ).getString( "city" ));
+	}
+
+	@Test
+	public void sharesShapeBetweenDocuments() {
+		SimpleStore store = open( "n", "big", "ratio", "name", "active", "address", "tags" );
+		for ( int i = 0; i < 10; i++ ) {
+			await( store.save( request( document( "k"+i, i ))));
+		}
+		JSONObject first = await( store.fetch( request( "k0" )));
+		Shape shape = first.getShape();
+		assertNotNull( shape );
+		for ( int i = 0; i < 10; i++ ) {
+			JSONObject doc = await( store.fetch( request( "k"+i )));
+			assertSame( shape, doc.getShape() );
+			assertSameDocument( document( "k"+i, i ), doc );
+		}
+
+		// a frozen document in the store's shape is stored as it is
+		await( store.save( request( first )));
+		assertSame( first, await( store.fetch( request( "k0" ))));
+
+		// documents with other fields are still taken
+		JSONObject other = document( "x", 1 );
+		other.put( "other", true );
+		await( store.save( request( other )));
+		JSONObject fetched = await( store.fetch( request( "x" )));
+		assertNull( fetched.getShape() );
+		assertSameDocument( other, fetched );
+	}
+
+	@Test
+	public void sharesStoredDocumentsWithCopies() {
+		SimpleStore store = open( "n", "big", "ratio", "name", "active", "address", "tags" );
+		await( store.save( request( document( "a", 1 ))));
+		JSONObject stored = await( store.fetch( request( "a" )));
+
+		// copies of what a fetch returns share the stored table until they are written to
+		JSONObject first = stored.copy();
+		JSONObject second = stored.copy();
+		assertTrue( sharesTable( stored, first ));
+		assertTrue( sharesTable( stored, second ));
+		assertSame( stored.getShape(), first.getShape() );
+
+		first.put( "n", 2 );
+		assertFalse( sharesTable( stored, first ));
+		assertTrue( sharesTable( stored, second ));
+		assertEquals( 1, stored.getInt( "n" ));
+		assertEquals( 1, second.getInt( "n" ));
+
+		// saving the changed copy replaces the stored document, without touching the old one
+		await( store.save( request( first )));
+		JSONObject saved = await( store.fetch( request( "a" )));
+		assertNotSame( stored, saved );
+		assertTrue( saved.isFrozen() );
+		assertEquals( 2, saved.getInt( "n" ));
+		assertEquals( 1, stored.getInt( "n" ));
+		assertSameDocument( document( "a", 1 ), second );
+
+		// and the saved document is copied, so the caller's copy is still theirs
+		first.put( "n", 3 );
+		assertEquals( 2, await( store.fetch( request( "a" ))).getInt( "n" ));
+	}
+}
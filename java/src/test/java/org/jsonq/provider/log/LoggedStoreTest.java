@@ -0,0 +1,217 @@
+package org.jsonq.provider.log;
+
+import org.jsonq.*;
+import org.jsonq.provider.*;
+import org.jsonq.provider.impl.*;
+import org.jsonq.util.*;
+import org.junit.*;
+import org.junit.rules.*;
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.jsonq.Documents.*;
+import static org.jsonq.JSONQConstants.*;
+
+public class LoggedStoreTest {
+
+	private static final StoreFactory<Store> FACTORY = LoggedStore.factory( SimpleStore.FACTORY );
+
+	@Rule
+	public TemporaryFolder _folder = new TemporaryFolder();
+
+	private String _path;
+
+	@Before
+	public void setUp() {
+		_path = new File( _folder.getRoot(), "users.log" ).getPath();
+	}
+
+	private LoggedStore open() {
+		Store store = await( FACTORY.create( schema() ));
+		assertTrue( store instanceof NonBlockingStore );
+		return (LoggedStore)store;
+	}
+
+	static <T> T await( Future<T,JSONObject> future ) {
+		assertTrue( "timed out", future.await( 10000 ));
+		if ( future.isFailure() ) {
+			fail( "failed with "+future.getError().getString( "code" ));
+		}
+		return future.get();
+	}
+
+	static JSONObject request( JSONObject payload ) {
+		JSONObject request = JSONObject.create();
+		request.put( Request.PAYLOAD, payload );
+		return request;
+	}
+
+	static JSONObject request( String id ) {
+		JSONObject request = JSONObject.create();
+		request.put( Request.PAYLOAD, id );
+		return request;
+	}
+
+	@Test
+	public void replaysSavesAndDeletes() throws IOException {
+		LoggedStore store = open();
+		for ( int i = 0; i < 50; i++ ) {
+			await( store.save( request( document( "k"+i, i ))));
+		}
+		for ( int i = 0; i < 50; i += 5 ) {
+			await( store.delete( request( "k"+i )));
+		}
+		String generated = await( store.save( request( JSONObject.create() )));
+		store.close();
+
+		LoggedStore reopened = open();
+		assertEquals( 50 + 10 + 1, reopened.getReplayedRecords() );
+		for ( int i = 0; i < 50; i++ ) {
+			JSONObject doc = await( reopened.fetch( request( "k"+i )));
+			if ( 0 == i % 5 ) {
+				assertNull( doc );
+			} else {
+				assertSameDocument( document( "k"+i, i ), doc );
+			}
+		}
+		assertNotNull( await( reopened.fetch( request( generated ))));
+		reopened.close();
+	}
+
+	@Test
+	public void replaysConcurrentWriters() throws Exception {
+		final LoggedStore store = open();
+		Thread[] writers = new Thread[ 8 ];
+		final List<Throwable> errors = Collections.synchronizedList( new ArrayList<Throwable>() );
+		for ( int w = 0; w < writers.length; w++ ) {
+			final int writer = w;
+			writers[w] = new Thread() {
+				public void run() {
+					try {
+						// each writer saves its documents twice, the second time over the first
+						for ( int i = 0; i < 200; i++ ) {
+							await( store.save( request( document( writer+"-"+(i % 100), i ))));
+						}
+					} catch ( Throwable t ) {
+						errors.add( t );
+					}
+				}
+			};
+			writers[w].start();
+		}
+		for ( Thread writer : writers ) {
+			writer.join();
+		}
+		assertEquals( Collections.emptyList(), errors );
+		store.close();
+
+		LoggedStore reopened = open();
+		assertEquals( 8 * 200, reopened.getReplayedRecords() );
+		for ( int w = 0; w < writers.length; w++ ) {
+			for ( int i = 0; i < 100; i++ ) {
+				assertSameDocument( document( w+"-"+i, i + 100 ), await( reopened.fetch( request( w+"-"+i ))));
+			}
+		}
+		reopened.close();
+	}
+
+	@Test
+	public void doesNotReplayFailedChanges() throws IOException {
+		LoggedStore store = open();
+		await( store.save( request( document( "kept", 1 ))));
+
+		// a save whose deadline has passed is failed by the store
+		JSONObject late = request( document( "late", 2 ));
+		late.put( Request.DEADLINE, System.currentTimeMillis() - 1000 );
+		Future<String,JSONObject> failed = store.save( late );
+		assertTrue( failed.await( 10000 ));
+		assertTrue( failed.isFailure() );
+		assertEquals( "err.timeout", failed.getError().getString( "code" ));
+		assertNull( await( store.fetch( request( "late" ))));
+		store.close();
+
+		LoggedStore reopened = open();
+		assertEquals( 1, reopened.getReplayedRecords() );
+		assertNotNull( await( reopened.fetch( request( "kept" ))));
+		assertNull( await( reopened.fetch( request( "late" ))));
+		reopened.close();
+	}
+
+	private void fill( int count ) throws IOException {
+		LoggedStore store = open();
+		for ( int i = 0; i < count; i++ ) {
+			await( store.save( request( document( "k"+i, i ))));
+		}
+		store.close();
+	}
+
+	private JSONObject schema() {
+		JSONObject log = JSONObject.create();
+		log.put( Log.PATH, _path );
+		JSONObject schema = JSONObject.create();
+		schema.put( Schema.LOG, log );
+		return schema;
+	}
+
+	@Test
+	public void waitsForScheduledReplay() throws IOException {
+		fill( 3000 );
+
+		// mapped file stores schedule their saves
+		JSONObject schema = schema();
+		schema.put( Schema.FILE, new File( _folder.getRoot(), "users.db" ).getPath() );
+		schema.put( Schema.REGION_SIZE, 1 << 20 );
+		LoggedStore reopened = (LoggedStore)await( LoggedStore.factory( MappedFileStore.FACTORY ).create( schema ));
+		assertEquals( 3000, reopened.getReplayedRecords() );
+		assertEquals( 3000, await( reopened.list( JSONObject.create() )).size() );
+		reopened.close();
+	}
+
+	@Test
+	public void failsWhenReplayFails() throws IOException {
+		fill( 500 );
+
+		// too small for the documents
+		JSONObject schema = schema();
+		schema.put( Schema.MEMORY, 1 << 14 );
+		schema.put( Schema.ARENA_SIZE, 1 << 13 );
+		Future<Store,JSONObject> future = LoggedStore.factory( OffHeapStore.FACTORY ).create( schema );
+		assertTrue( future.await( 10000 ));
+		assertTrue( future.isFailure() );
+		assertEquals( "err.store.full", future.getError().getString( "code" ));
+	}
+
+	@Test
+	public void restoresSnapshotAndReplaysTail() throws IOException {
+		LoggedStore store = open();
+		for ( int i = 0; i < 30; i++ ) {
+			await( store.save( request( document( "k"+i, i ))));
+		}
+		int segment = await( store.snapshot() );
+		for ( int i = 0; i < 30; i += 3 ) {
+			await( store.delete( request( "k"+i )));
+		}
+		await( store.save( request( document( "k1", 100 ))));
+		await( store.save( request( document( "k30", 30 ))));
+		store.close();
+
+		// the snapshot covers everything before its segment, which is gone with older snapshots
+		File log = new File( _path );
+		assertEquals( Arrays.asList( segment ), Snapshot.segments( log ));
+		assertEquals( segment, (int)WriteAheadLog.segments( log ).get( 0 ));
+
+		LoggedStore reopened = open();
+		assertEquals( 30, reopened.getRestoredDocuments() );
+		assertEquals( 10 + 2, reopened.getReplayedRecords() );
+		for ( int i = 0; i <= 30; i++ ) {
+			JSONObject doc = await( reopened.fetch( request( "k"+i )));
+			if ( 0 == i % 3 && 30 != i ) {
+				assertNull( doc );
+			} else {
+				assertSameDocument( document( "k"+i, 1 == i ? 100 : i ), doc );
+			}
+		}
+		reopened.close();
+	}
+}
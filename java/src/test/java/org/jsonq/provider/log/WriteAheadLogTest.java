@@ -0,0 +1,198 @@
+package org.jsonq.provider.log;
+
+import org.jsonq.*;
+import org.jsonq.util.*;
+import org.junit.*;
+import org.junit.rules.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class WriteAheadLogTest {
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	@Rule
+	public TemporaryFolder _folder = new TemporaryFolder();
+
+	/**
+	 * Handler collecting the records replayed, as "type:payload"
+	 */
+	private static class Records implements WriteAheadLog.Handler {
+
+		final List<String> _records = new ArrayList<>();
+
+		public void record( int type, byte[] payload ) {
+			_records.add( type+":"+new String( payload, UTF8 ));
+		}
+	}
+
+	private File _file;
+
+	@Before
+	public void setUp() {
+		_file = new File( _folder.getRoot(), "test.log" );
+	}
+
+	private WriteAheadLog open( Records records ) throws IOException {
+		return new WriteAheadLog( _file, WriteAheadLog.Sync.ALWAYS, 0, 0, records );
+	}
+
+	private static void append( WriteAheadLog log, int type, String payload ) {
+		Future<Void,JSONObject> future = log.append( type, payload.getBytes( UTF8 ));
+		assertTrue( "append timed out", future.await( 10000 ));
+		assertFalse( "append failed", future.isFailure() );
+	}
+
+	@Test
+	public void replaysRecordsInOrder() throws IOException {
+		WriteAheadLog log = open( new Records() );
+		for ( int i = 0; i < 100; i++ ) {
+			append( log, 1 + i % 2, "record "+i );
+		}
+		log.close();
+
+		Records records = new Records();
+		open( records ).close();
+		assertEquals( 100, records._records.size() );
+		for ( int i = 0; i < 100; i++ ) {
+			assertEquals( (1 + i % 2)+":record "+i, records._records.get(i) );
+		}
+	}
+
+	@Test
+	public void truncatesTornLastRecord() throws IOException {
+		WriteAheadLog log = open( new Records() );
+		append( log, 1, "first" );
+		append( log, 1, "second" );
+		log.close();
+		File segment = log.segmentFile( 1 );
+		long length = segment.length();
+
+		// half a record, as a crash in the middle of a write leaves it
+		try ( FileOutputStream out = new FileOutputStream( segment, true ) ) {
+			out.write( new byte[] { 0, 0, 0, 50, 1, 2, 3, 4, 1, 'x', 'y' } );
+		}
+		Records records = new Records();
+		log = open( records );
+		assertEquals( Arrays.asList( "1:first", "1:second" ), records._records );
+		assertEquals( length, segment.length() );
+
+		// the log carries on after the last whole record
+		append( log, 2, "third" );
+		log.close();
+		records = new Records();
+		open( records ).close();
+		assertEquals( Arrays.asList( "1:first", "1:second", "2:third" ), records._records );
+	}
+
+	@Test
+	public void truncatesRecordWithBadChecksum() throws IOException {
+		WriteAheadLog log = open( new Records() );
+		append( log, 1, "first" );
+		append( log, 1, "second" );
+		log.close();
+		File segment = log.segmentFile( 1 );
+		try ( RandomAccessFile file = new RandomAccessFile( segment, "rw" ) ) {
+			// flip the last byte of the payload of the second record
+			file.seek( file.length() - 1 );
+			file.write( 'X' );
+		}
+		Records records = new Records();
+		open( records ).close();
+		assertEquals( Arrays.asList( "1:first" ), records._records );
+	}
+
+	@Test
+	public void rollsAndTruncatesSegments() throws IOException {
+		WriteAheadLog log = open( new Records() );
+		append( log, 1, "a" );
+		int second = log.roll();
+		append( log, 1, "b" );
+		int third = log.roll();
+		append( log, 1, "c" );
+		assertEquals( 3, third );
+		assertEquals( third, log.getSegment() );
+		assertEquals( Arrays.asList( 1, 2, 3 ), WriteAheadLog.segments( _file ));
+
+		log.truncate( second );
+		assertEquals( Arrays.asList( 2, 3 ), WriteAheadLog.segments( _file ));
+		log.close();
+
+		Records records = new Records();
+		open( records ).close();
+		assertEquals( Arrays.asList( "1:b", "1:c" ), records._records );
+
+		// replaying from a later segment skips the earlier ones
+		records = new Records();
+		new WriteAheadLog( _file, WriteAheadLog.Sync.ALWAYS, 0, third, records ).close();
+		assertEquals( Arrays.asList( "1:c" ), records._records );
+	}
+
+	@Test
+	public void rejectsDamagedEarlierSegment() throws IOException {
+		WriteAheadLog log = open( new Records() );
+		append( log, 1, "a" );
+		log.roll();
+		append( log, 1, "b" );
+		log.close();
+		try ( FileOutputStream out = new FileOutputStream( log.segmentFile( 1 ), true ) ) {
+			out.write( new byte[] { 0, 0, 0, 50, 1, 2, 3, 4, 1 } );
+		}
+		try {
+			open( new Records() );
+			fail( "damaged segment accepted" );
+		} catch ( IOException e ) {
+			// only the last segment may end in a torn record
+		}
+	}
+
+	@Test
+	public void groupsConcurrentAppends() throws Exception {
+		final WriteAheadLog log = open( new Records() );
+		final int threads = 8;
+		final int appends = 200;
+		Thread[] writers = new Thread[ threads ];
+		for ( int t = 0; t < threads; t++ ) {
+			final int id = t;
+			writers[t] = new Thread() {
+				@Override
+				public void run() {
+					for ( int i = 0; i < appends; i++ ) {
+						append( log, 1, id+"-"+i );
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for ( Thread writer : writers ) {
+			writer.join();
+		}
+		assertTrue( log.getSyncs() <= threads * appends );
+		log.close();
+
+		Records records = new Records();
+		open( records ).close();
+		assertEquals( threads * appends, records._records.size() );
+		assertEquals( threads * appends, new HashSet<>( records._records ).size() );
+	}
+
+	@Test
+	public void completesAppendsOffTheWriter() throws Exception {
+		WriteAheadLog log = open( new Records() );
+		final String[] thread = new String[ 1 ];
+		Future<Void,JSONObject> future = log.append( 1, "record".getBytes( UTF8 ));
+		Future<Void,JSONObject> next = future.then(
+				new Closure<Void>() {
+					public void apply( Void value ) { thread[0] = Thread.currentThread().getName(); }
+				},
+				null,
+				null );
+		assertTrue( next.await( 10000 ));
+		assertNotNull( thread[0] );
+		assertFalse( thread[0], thread[0].startsWith( "jsonq-log-" ));
+		log.close();
+	}
+}
@@ -0,0 +1,215 @@
+package org.jsonq.util;
+
+import org.jsonq.*;
+import org.junit.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class FuturesTest {
+
+	private static final Function<RuntimeException,String> THROWN = new Function<RuntimeException,String>() {
+		public String apply( RuntimeException e ) { return "thrown: "+e.getMessage(); }
+	};
+
+	@Test
+	public void mapsResults() {
+		FutureImpl<Integer,String> source = new FutureImpl<>();
+		Future<String,String> result = Futures.map(
+				source,
+				new Function<Integer,String>() {
+					public String apply( Integer value ) { return "#"+value; }
+				},
+				THROWN );
+		source.complete( 7 );
+		assertTrue( result.isComplete() );
+		assertEquals( "#7", result.get() );
+	}
+
+	@Test
+	public void failsWhenMapThrows() {
+		FutureImpl<Integer,String> source = new FutureImpl<>();
+		Future<String,String> result = Futures.map(
+				source,
+				new Function<Integer,String>() {
+					public String apply( Integer value ) { throw new IllegalStateException( "boom" ); }
+				},
+				THROWN );
+		source.complete( 7 );
+		assertTrue( result.isFailure() );
+		assertEquals( "thrown: boom", result.getError() );
+	}
+
+	@Test
+	public void failsWhenComposeThrows() {
+		FutureImpl<Integer,String> source = new FutureImpl<>();
+		Future<String,String> result = Futures.compose(
+				source,
+				new Function<Integer,Future<String,String>>() {
+					public Future<String,String> apply( Integer value ) {
+						throw new IllegalStateException( "boom" );
+					}
+				},
+				THROWN );
+		source.complete( 7 );
+		assertTrue( result.isFailure() );
+		assertEquals( "thrown: boom", result.getError() );
+	}
+
+	@Test
+	public void failsWhenComposeReturnsNull() {
+		FutureImpl<Integer,String> source = new FutureImpl<>();
+		Future<String,String> result = Futures.compose(
+				source,
+				new Function<Integer,Future<String,String>>() {
+					public Future<String,String> apply( Integer value ) { return null; }
+				},
+				THROWN );
+		source.complete( 7 );
+		assertTrue( result.isFailure() );
+		assertTrue( result.getError().startsWith( "thrown: " ));
+	}
+
+	@Test
+	public void passesFailuresThrough() {
+		FutureImpl<Integer,String> source = new FutureImpl<>();
+		Future<Integer,String> result = Futures.compose(
+				source,
+				new Function<Integer,Future<Integer,String>>() {
+					public Future<Integer,String> apply( Integer value ) {
+						throw new AssertionError( "not called" );
+					}
+				},
+				THROWN );
+		source.fail( "failed" );
+		assertTrue( result.isFailure() );
+		assertEquals( "failed", result.getError() );
+	}
+
+	@Test
+	public void timesOut() {
+		FutureImpl<Integer,String> source = new FutureImpl<>();
+		Future<Integer,String> result = Futures.timeout( source, 10, "timeout" );
+		assertTrue( result.await( 10000 ));
+		assertEquals( "timeout", result.getError() );
+		// the source has been cancelled, so completing it late is ignored
+		assertFalse( source.tryComplete( 1 ));
+		assertEquals( "timeout", result.getError() );
+	}
+
+	@Test
+	public void cancelsTimerOnCompletion() throws Exception {
+		// start the timer, so its queue can be looked at
+		Scheduler.runLater( new Runnable() { public void run() {} }, 0 );
+		BlockingQueue<Runnable> queue = timerQueue();
+		// other timers, such as the one above, may fire meanwhile, so the timeout's own is tracked
+		Set<Runnable> before = new HashSet<>( queue );
+
+		FutureImpl<Integer,String> source = new FutureImpl<>();
+		Future<Integer,String> result = Futures.timeout( source, TimeUnit.HOURS.toMillis( 1 ), "timeout" );
+		List<Runnable> started = new ArrayList<>( queue );
+		started.removeAll( before );
+		assertEquals( 1, started.size() );
+		source.complete( 1 );
+		assertEquals( Integer.valueOf( 1 ), result.get() );
+		assertFalse( queue.contains( started.get( 0 )));
+
+		// completed before the timer would start
+		before = new HashSet<>( queue );
+		FutureImpl<Integer,String> done = new FutureImpl<>();
+		done.fail( "failed" );
+		assertEquals( "failed", Futures.timeout( done, TimeUnit.HOURS.toMillis( 1 ), "timeout" ).getError() );
+		assertTrue( before.containsAll( queue ));
+	}
+
+	@Test
+	public void cancelsSourceOnTimeout() {
+		FutureImpl<Integer,String> source = new FutureImpl<>();
+		Future<Integer,String> result = Futures.timeout( source, 10, "timeout" );
+		assertTrue( result.await( 10000 ));
+		assertTrue( source.await( 10000 ));
+		assertTrue( source.isCancelled() );
+		assertEquals( "timeout", source.getError() );
+	}
+
+	@Test
+	public void cancelsUpstream() {
+		FutureImpl<Integer,String> mapped = new FutureImpl<>();
+		Futures.map( mapped, new Function<Integer,Integer>() {
+			public Integer apply( Integer value ) { return value; }
+		}, THROWN ).cancel( "cancelled" );
+		assertTrue( mapped.isCancelled() );
+
+		// compose cancels whichever call it is waiting on
+		FutureImpl<Integer,String> first = new FutureImpl<>();
+		final FutureImpl<Integer,String> second = new FutureImpl<>();
+		Future<Integer,String> composed = Futures.compose( first, new Function<Integer,Future<Integer,String>>() {
+			public Future<Integer,String> apply( Integer value ) { return second; }
+		}, THROWN );
+		first.complete( 1 );
+		composed.cancel( "cancelled" );
+		assertTrue( second.isCancelled() );
+
+		List<FutureImpl<Integer,String>> all = Arrays.asList( new FutureImpl<Integer,String>(), new FutureImpl<Integer,String>() );
+		all.get( 0 ).complete( 1 );
+		Futures.allOf( all ).cancel( "cancelled" );
+		assertFalse( all.get( 0 ).isCancelled() );
+		assertTrue( all.get( 1 ).isCancelled() );
+
+		List<FutureImpl<Integer,String>> any = Arrays.asList( new FutureImpl<Integer,String>(), new FutureImpl<Integer,String>() );
+		Futures.anyOf( any ).cancel( "cancelled" );
+		assertTrue( any.get( 0 ).isCancelled() );
+		assertTrue( any.get( 1 ).isCancelled() );
+	}
+
+	@Test
+	public void failsWithInternalErrorByDefault() {
+		FutureImpl<Integer,JSONObject> first = new FutureImpl<>();
+		Future<String,JSONObject> mapped = Futures.map( first, new Function<Integer,String>() {
+			public String apply( Integer value ) { throw new IllegalStateException( "boom" ); }
+		});
+		FutureImpl<Integer,JSONObject> second = new FutureImpl<>();
+		Future<String,JSONObject> composed = Futures.compose( second, new Function<Integer,Future<String,JSONObject>>() {
+			public Future<String,JSONObject> apply( Integer value ) { return null; }
+		});
+		first.complete( 7 );
+		second.complete( 7 );
+		assertEquals( "err.internal", mapped.getError().getString( "code" ));
+		assertEquals( "err.internal", composed.getError().getString( "code" ));
+	}
+
+	@Test
+	public void cancelsOthersOnFirstFailure() {
+		List<FutureImpl<Integer,String>> all = Arrays.asList(
+				new FutureImpl<Integer,String>(), new FutureImpl<Integer,String>(), new FutureImpl<Integer,String>() );
+		Future<List<Integer>,String> result = Futures.allOf( all );
+		all.get( 0 ).complete( 1 );
+		all.get( 1 ).fail( "failed" );
+		assertEquals( "failed", result.getError() );
+		assertFalse( all.get( 0 ).isCancelled() );
+		assertFalse( all.get( 1 ).isCancelled() );
+		assertTrue( all.get( 2 ).isCancelled() );
+		assertEquals( "failed", all.get( 2 ).getError() );
+	}
+
+	@Test
+	public void cancelsOthersOnFirstSuccess() {
+		List<FutureImpl<Integer,String>> any = Arrays.asList(
+				new FutureImpl<Integer,String>(), new FutureImpl<Integer,String>(), new FutureImpl<Integer,String>() );
+		Future<Integer,String> result = Futures.anyOf( any );
+		any.get( 0 ).fail( "failed" );
+		any.get( 1 ).complete( 2 );
+		assertEquals( Integer.valueOf( 2 ), result.get() );
+		assertFalse( any.get( 0 ).isCancelled() );
+		assertFalse( any.get( 1 ).isCancelled() );
+		assertTrue( any.get( 2 ).isCancelled() );
+	}
+
+	private static BlockingQueue<Runnable> timerQueue() throws Exception {
+		Method timer = Scheduler.class.getDeclaredMethod( "timer" );
+		timer.setAccessible( true );
+		return ((ThreadPoolExecutor)timer.invoke( null )).getQueue();
+	}
+}
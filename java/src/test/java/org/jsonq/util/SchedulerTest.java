@@ -0,0 +1,106 @@
+package org.jsonq.util;
+
+import org.junit.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class SchedulerTest {
+
+	/**
+	 * Task appending its number to a list, in the given lane
+	 */
+	private static final class Append implements Task {
+
+		final List<Integer> _list;
+		final int _value;
+		final CountDownLatch _done;
+
+		Append( List<Integer> list, int value, CountDownLatch done ) {
+			_list = list;
+			_value = value;
+			_done = done;
+		}
+
+		public void run() {
+			synchronized ( _list ) {
+				_list.add( _value );
+			}
+			_done.countDown();
+		}
+
+		public String getLane() { return "lane"; }
+
+		public int getPriority() { return PRIORITY_NORMAL; }
+	}
+
+	private static void runs( Executor executor ) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch( 100 );
+		for ( int i = 0; i < 100; i++ ) {
+			executor.execute( new Runnable() {
+				public void run() { done.countDown(); }
+			});
+		}
+		assertTrue( done.await( 10, TimeUnit.SECONDS ));
+	}
+
+	@Test
+	public void createsExecutorsForEachMode() throws InterruptedException {
+		Executor single = Scheduler.createExecutor( Scheduler.MODE_SINGLE, 8 );
+		assertEquals( 1, ((ThreadPoolExecutor)single).getMaximumPoolSize() );
+		runs( single );
+		((ExecutorService)single).shutdown();
+
+		Executor forkJoin = Scheduler.createExecutor( Scheduler.MODE_FORK_JOIN, 3 );
+		assertEquals( 3, ((ForkJoinPool)forkJoin).getParallelism() );
+		assertTrue( ((ForkJoinPool)forkJoin).getAsyncMode() );
+		runs( forkJoin );
+		((ExecutorService)forkJoin).shutdown();
+
+		Executor virtual;
+		try {
+			virtual = Scheduler.createExecutor( Scheduler.MODE_VIRTUAL, 1 );
+		} catch ( IllegalStateException e ) {
+			// runtimes before Java 21
+			return;
+		}
+		runs( virtual );
+		((ExecutorService)virtual).shutdown();
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsUnknownMode() {
+		Scheduler.createExecutor( "threads", 1 );
+	}
+
+	@Test
+	public void cannotBeSetOnceRunning() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch( 1 );
+		assertTrue( Scheduler.runAsync( new Runnable() {
+			public void run() { done.countDown(); }
+		}));
+		assertTrue( done.await( 10, TimeUnit.SECONDS ));
+		try {
+			Scheduler.setExecutor( Scheduler.createExecutor( Scheduler.MODE_SINGLE, 1 ));
+			fail( "replaced the executor of a running scheduler" );
+		} catch ( IllegalStateException e ) {
+			// expected
+		}
+	}
+
+	@Test
+	public void runsLanesInOrder() throws InterruptedException {
+		List<Integer> list = new ArrayList<>();
+		CountDownLatch done = new CountDownLatch( 1000 );
+		for ( int i = 0; i < 1000; i++ ) {
+			assertTrue( Scheduler.runAsync( new Append( list, i, done )));
+		}
+		assertTrue( done.await( 10, TimeUnit.SECONDS ));
+		synchronized ( list ) {
+			for ( int i = 0; i < 1000; i++ ) {
+				assertEquals( i, (int)list.get(i) );
+			}
+		}
+	}
+}
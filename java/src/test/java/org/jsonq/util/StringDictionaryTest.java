@@ -0,0 +1,113 @@
+package org.jsonq.util;
+
+import org.jsonq.*;
+import org.jsonq.provider.impl.*;
+import org.junit.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+import static org.jsonq.JSONQConstants.*;
+
+public class StringDictionaryTest {
+
+	@Test
+	public void takesStringsWhichRepeat() {
+		StringDictionary dictionary = new StringDictionary( 16 );
+		String first = new String( "home" );
+		assertSame( first, dictionary.intern( first ));
+		assertSame( "not seen often enough", first, dictionary.intern( first ));
+		String third = new String( "home" );
+		assertSame( third, dictionary.intern( third ));
+		assertEquals( 1, dictionary.getSize() );
+
+		String fourth = new String( "home" );
+		assertSame( third, dictionary.intern( fourth ));
+		assertEquals( 1, dictionary.getHits() );
+		assertTrue( dictionary.getBytesSaved() > 0 );
+	}
+
+	@Test
+	public void leavesOutUniqueStrings() {
+		StringDictionary dictionary = new StringDictionary( 64 );
+		for ( int i = 0; i < 10000; i++ ) {
+			dictionary.intern( "user"+i+"@example.com" );
+			dictionary.intern( new String( "work" ));
+		}
+		// the unique values would have filled the dictionary many times over
+		assertTrue( dictionary.getSize() < 8 );
+		String work = dictionary.intern( new String( "work" ));
+		assertSame( work, dictionary.intern( new String( "work" )));
+	}
+
+	@Test
+	public void letsGoOfStringsNoLongerUsed() {
+		StringDictionary dictionary = new StringDictionary( 16 );
+		for ( int i = 0; i < 10; i++ ) {
+			dictionary.intern( new String( "gone" ));
+		}
+		assertEquals( 1, dictionary.getSize() );
+		// a few periods of lookups of other strings
+		for ( int i = 0; i < 10 * 1024; i++ ) {
+			dictionary.intern( "other"+(i % 8) );
+		}
+		String gone = new String( "gone" );
+		assertSame( gone, dictionary.intern( gone ));
+		assertEquals( 8, dictionary.getSize() );
+	}
+
+	@Test
+	public void internsFromManyThreads() throws Exception {
+		final StringDictionary dictionary = new StringDictionary( 1024 );
+		ExecutorService pool = Executors.newFixedThreadPool( 4 );
+		List<java.util.concurrent.Future<String>> results = new ArrayList<>();
+		for ( int t = 0; t < 4; t++ ) {
+			results.add( pool.submit( new Callable<String>() {
+				public String call() {
+					String last = null;
+					for ( int i = 0; i < 10000; i++ ) {
+						last = dictionary.intern( new String( "shared" ));
+						dictionary.intern( "unique"+Thread.currentThread().getId()+"/"+i );
+					}
+					return last;
+				}
+			}));
+		}
+		String shared = null;
+		for ( java.util.concurrent.Future<String> result : results ) {
+			String last = result.get( 10, TimeUnit.SECONDS );
+			if ( null != shared ) {
+				assertSame( shared, last );
+			}
+			shared = last;
+		}
+		pool.shutdown();
+	}
+
+	@Test
+	public void internsStoredDocuments() {
+		JSONObject schema = JSONObject.create();
+		schema.put( Schema.DICTIONARY, true );
+		SimpleStore store = (SimpleStore)SimpleStore.FACTORY.create( schema ).get();
+		for ( int i = 0; i < 100; i++ ) {
+			JSONObject doc = JSONObject.create();
+			doc.put( "id", "u"+i );
+			doc.put( "email", "user"+i+"@example.com" );
+			doc.put( "country", new String( "CH" ));
+			JSONObject request = JSONObject.create();
+			request.put( Request.PAYLOAD, doc );
+			store.save( request );
+		}
+		JSONObject first = fetch( store, "u10" );
+		JSONObject second = fetch( store, "u99" );
+		assertSame( first.getString( "country" ), second.getString( "country" ));
+		// the keys, and the values seen more than a few times
+		assertTrue( store.getDictionary().getSize() < 10 );
+	}
+
+	private static JSONObject fetch( SimpleStore store, String id ) {
+		JSONObject request = JSONObject.create();
+		request.put( Request.PAYLOAD, id );
+		return store.fetch( request ).get();
+	}
+}
@@ -0,0 +1,68 @@
+package org.jsonq.util.concurrent;
+
+import org.junit.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControlTest {
+
+	private static final Runnable NOTHING = new Runnable() {
+		public void run() {}
+	};
+
+	@Test
+	public void failsFastWhenFull() {
+		AdmissionControl admission = new AdmissionControl( 2, AdmissionControl.Policy.FAIL_FAST, 0 );
+		Runnable first = admission.admit( NOTHING );
+		assertNotNull( admission.admit( NOTHING ));
+		assertNull( admission.admit( NOTHING ));
+		assertEquals( 2, admission.getDepth() );
+
+		// a task gives its permit back when it starts
+		first.run();
+		assertEquals( 1, admission.getDepth() );
+		assertNotNull( admission.admit( NOTHING ));
+	}
+
+	@Test
+	public void waitsForRoomOutsideTheExecutor() throws Exception {
+		AdmissionControl admission = new AdmissionControl( 1, AdmissionControl.Policy.REJECT, 10000 );
+		final Runnable queued = admission.admit( NOTHING );
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+		try {
+			timer.schedule( queued, 50, TimeUnit.MILLISECONDS );
+			assertNotNull( admission.admit( NOTHING ));
+		} finally {
+			timer.shutdown();
+		}
+	}
+
+	@Test
+	public void rejectsOnWorkerThreadsWithoutWaiting() throws Exception {
+		final AdmissionControl admission = new AdmissionControl( 1, AdmissionControl.Policy.REJECT, 10000 );
+		assertNotNull( admission.admit( NOTHING ));
+
+		ExecutorService threads = Executors.newSingleThreadExecutor();
+		try {
+			PriorityExecutor executor = new PriorityExecutor( threads, 1, 1 );
+			final CountDownLatch done = new CountDownLatch( 1 );
+			final Runnable[] admitted = new Runnable[ 1 ];
+			final long[] waited = new long[ 1 ];
+			executor.execute( 0, new Runnable() {
+				public void run() {
+					long start = System.nanoTime();
+					admitted[0] = admission.admit( NOTHING );
+					waited[0] = System.nanoTime() - start;
+					done.countDown();
+				}
+			});
+			assertTrue( done.await( 5, TimeUnit.SECONDS ));
+			assertNull( admitted[0] );
+			assertTrue( waited[0] < TimeUnit.SECONDS.toNanos( 1 ));
+		} finally {
+			threads.shutdown();
+		}
+		assertFalse( PriorityExecutor.isWorkerThread() );
+	}
+}
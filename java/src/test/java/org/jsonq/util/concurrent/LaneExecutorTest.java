@@ -0,0 +1,136 @@
+package org.jsonq.util.concurrent;
+
+import org.junit.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class LaneExecutorTest {
+
+	private ExecutorService _threads;
+	private LaneExecutor _lanes;
+
+	@Before
+	public void setUp() {
+		_threads = Executors.newFixedThreadPool( 4 );
+		_lanes = new LaneExecutor( new PriorityExecutor( _threads, 4, 8, 4, 1 ), 16 );
+	}
+
+	@After
+	public void tearDown() {
+		_threads.shutdownNow();
+	}
+
+	@Test
+	public void runsInOrderWithinLane() throws Exception {
+		final List<Integer> order = Collections.synchronizedList( new ArrayList<Integer>() );
+		final CountDownLatch done = new CountDownLatch( 1000 );
+		for ( int i = 0; i < 1000; i++ ) {
+			final int n = i;
+			_lanes.execute( "doc", 1, new Runnable() {
+				public void run() {
+					order.add( n );
+					done.countDown();
+				}
+			});
+		}
+		assertTrue( done.await( 10, TimeUnit.SECONDS ));
+		for ( int i = 0; i < 1000; i++ ) {
+			assertEquals( i, (int)order.get(i) );
+		}
+	}
+
+	@Test
+	public void carriesOnAfterError() throws Exception {
+		final CountDownLatch done = new CountDownLatch( 10 );
+		for ( int i = 0; i < 10; i++ ) {
+			final int n = i;
+			_lanes.execute( "doc", 1, new Runnable() {
+				public void run() {
+					done.countDown();
+					if ( 0 == n % 3 ) {
+						throw new AssertionError( "task "+n );
+					}
+				}
+			});
+		}
+		assertTrue( done.await( 10, TimeUnit.SECONDS ));
+
+		// the lane is started again by the next task
+		final CountDownLatch after = new CountDownLatch( 1 );
+		_lanes.execute( "doc", 1, new Runnable() {
+			public void run() { after.countDown(); }
+		});
+		assertTrue( after.await( 10, TimeUnit.SECONDS ));
+	}
+
+	@Test
+	public void runsInPlaceWhenIdle() {
+		final Thread caller = Thread.currentThread();
+		final boolean[] ran = new boolean[ 1 ];
+		assertTrue( _lanes.runIfIdle( "doc", 1, new Runnable() {
+			public void run() { ran[0] = Thread.currentThread() == caller; }
+		}));
+		assertTrue( ran[0] );
+	}
+
+	@Test
+	public void doesNotOvertakeQueuedTasks() throws Exception {
+		final CountDownLatch blocked = new CountDownLatch( 1 );
+		final CountDownLatch release = new CountDownLatch( 1 );
+		_lanes.execute( "doc", 1, new Runnable() {
+			public void run() {
+				blocked.countDown();
+				await( release );
+			}
+		});
+		assertTrue( blocked.await( 10, TimeUnit.SECONDS ));
+
+		// the lane is running a task, so a task for it must not run in place
+		final boolean[] ran = new boolean[ 1 ];
+		assertFalse( _lanes.runIfIdle( "doc", 1, new Runnable() {
+			public void run() { ran[0] = true; }
+		}));
+		assertFalse( ran[0] );
+		release.countDown();
+	}
+
+	@Test
+	public void startsTasksQueuedWhileRunningInPlace() throws Exception {
+		final List<String> order = Collections.synchronizedList( new ArrayList<String>() );
+		final CountDownLatch done = new CountDownLatch( 1 );
+		assertTrue( _lanes.runIfIdle( "doc", 1, new Runnable() {
+			public void run() {
+				order.add( "inline" );
+				_lanes.execute( "doc", 1, new Runnable() {
+					public void run() {
+						order.add( "queued" );
+						done.countDown();
+					}
+				});
+				// the queued task waits for this one
+				sleep( 50 );
+				order.add( "inline done" );
+			}
+		}));
+		assertTrue( done.await( 10, TimeUnit.SECONDS ));
+		assertEquals( Arrays.asList( "inline", "inline done", "queued" ), order );
+	}
+
+	private static void await( CountDownLatch latch ) {
+		try {
+			latch.await( 10, TimeUnit.SECONDS );
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void sleep( long millis ) {
+		try {
+			Thread.sleep( millis );
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package org.jsonq.util.concurrent;
+
+import org.junit.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class PriorityExecutorTest {
+
+	/**
+	 * Executor which only runs what it is given when told to, so the drain loops can be stepped
+	 */
+	private static class Manual implements Executor {
+
+		final Deque<Runnable> _queued = new ArrayDeque<>();
+
+		@Override
+		public void execute( Runnable runnable ) {
+			_queued.add( runnable );
+		}
+
+		void runNext() {
+			_queued.poll().run();
+		}
+	}
+
+	private Manual _manual;
+	private List<Integer> _ran;
+
+	@Before
+	public void setUp() {
+		_manual = new Manual();
+		_ran = new ArrayList<>();
+	}
+
+	private void queue( PriorityExecutor executor, final int priority, int count ) {
+		for ( int i = 0; i < count; i++ ) {
+			executor.execute( priority, new Runnable() {
+				public void run() { _ran.add( priority ); }
+			});
+		}
+	}
+
+	private int count( int from, int to, int priority ) {
+		int count = 0;
+		for ( int i = from; i < to; i++ ) {
+			if ( priority == _ran.get( i ) ) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Test
+	public void sharesByWeight() {
+		PriorityExecutor executor = new PriorityExecutor( _manual, 1, 8, 4, 1 );
+		queue( executor, 2, 100 );
+		queue( executor, 1, 100 );
+		queue( executor, 0, 100 );
+		assertEquals( 300, executor.getPending() );
+		while ( ! _manual._queued.isEmpty() ) {
+			_manual.runNext();
+		}
+		assertEquals( 300, _ran.size() );
+		assertEquals( 0, executor.getPending() );
+
+		// every round of 13 runs 8 high, 4 normal and 1 low priority task, so low priority work
+		// is not starved even though it was queued first
+		for ( int round = 0; round < 5; round++ ) {
+			assertEquals( 8, count( round * 13, round * 13 + 13, 0 ));
+			assertEquals( 4, count( round * 13, round * 13 + 13, 1 ));
+			assertEquals( 1, count( round * 13, round * 13 + 13, 2 ));
+		}
+	}
+
+	@Test
+	public void fallsBackToQueuedClasses() {
+		PriorityExecutor executor = new PriorityExecutor( _manual, 1, 8, 4, 1 );
+		queue( executor, 2, 10 );
+		queue( executor, 1, 10 );
+		_manual.runNext();
+
+		// the slots of the empty high class go to the next class with work
+		assertEquals( 20, _ran.size() );
+		assertEquals( 10, count( 0, 12, 1 ));
+	}
+
+	@Test
+	public void batchesByBacklog() {
+		PriorityExecutor executor = new PriorityExecutor( _manual, 1, 1 );
+		queue( executor, 0, 1000 );
+		assertEquals( 1, _manual._queued.size() );
+
+		// a deep queue is run in the largest batches, the loop requeueing itself in between
+		_manual.runNext();
+		assertEquals( 256, _ran.size() );
+		assertEquals( 1, _manual._queued.size() );
+		_manual.runNext();
+		assertEquals( 512, _ran.size() );
+		_manual.runNext();
+		_manual.runNext();
+		assertEquals( 1000, _ran.size() );
+		assertTrue( _manual._queued.isEmpty() );
+
+		// a light load is run at once, and the loop gives its slot back
+		queue( executor, 0, 3 );
+		assertEquals( 1, _manual._queued.size() );
+		_manual.runNext();
+		assertEquals( 1003, _ran.size() );
+		assertTrue( _manual._queued.isEmpty() );
+	}
+
+	@Test
+	public void sharesBacklogBetweenLoops() {
+		PriorityExecutor executor = new PriorityExecutor( _manual, 4, 1 );
+		queue( executor, 0, 400 );
+		assertEquals( 4, _manual._queued.size() );
+
+		// each of the four loops takes its share of the backlog
+		_manual.runNext();
+		assertEquals( 100, _ran.size() );
+	}
+
+	@Test
+	public void carriesOnAfterFailure() throws Exception {
+		ExecutorService threads = Executors.newSingleThreadExecutor( new ThreadFactory() {
+			public Thread newThread( Runnable runnable ) {
+				Thread thread = new Thread( runnable );
+				thread.setUncaughtExceptionHandler( new Thread.UncaughtExceptionHandler() {
+					public void uncaughtException( Thread t, Throwable e ) {}
+				});
+				return thread;
+			}
+		});
+		try {
+			PriorityExecutor executor = new PriorityExecutor( threads, 1, 1 );
+			final CountDownLatch done = new CountDownLatch( 10 );
+			for ( int i = 0; i < 10; i++ ) {
+				final int n = i;
+				executor.execute( 0, new Runnable() {
+					public void run() {
+						done.countDown();
+						if ( 0 == n % 2 ) {
+							throw new IllegalStateException( "task "+n );
+						}
+					}
+				});
+			}
+			assertTrue( done.await( 10, TimeUnit.SECONDS ));
+		} finally {
+			threads.shutdownNow();
+		}
+	}
+
+	@Test
+	public void runsEachTaskOnItsOwnThread() throws Exception {
+		final CountDownLatch release = new CountDownLatch( 1 );
+		final CountDownLatch ran = new CountDownLatch( 1 );
+		PriorityExecutor executor = new PriorityExecutor( _manual, PriorityExecutor.UNBOUNDED, 8, 4, 1 );
+		executor.execute( 0, new Runnable() {
+			public void run() {
+				try {
+					release.await();
+				} catch ( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		executor.execute( 2, new Runnable() {
+			public void run() { ran.countDown(); }
+		});
+		assertEquals( 2, _manual._queued.size() );
+		assertEquals( 2, executor.getPending() );
+
+		// threads need not start in the order they were asked for. Had the first thread to start
+		// picked the blocked task from a queue, the other task would wait for it
+		Runnable first = _manual._queued.poll();
+		Thread other = new Thread( _manual._queued.poll() );
+		other.start();
+		assertTrue( ran.await( 10, TimeUnit.SECONDS ));
+		other.join();
+
+		Thread blocked = new Thread( first );
+		blocked.start();
+		release.countDown();
+		blocked.join();
+		assertEquals( 0, executor.getPending() );
+	}
+}